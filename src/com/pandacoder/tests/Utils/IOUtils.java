@@ -3,6 +3,7 @@ package com.pandacoder.tests.Utils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 
 import android.util.Log;
 
@@ -29,4 +30,14 @@ public class IOUtils {
 			}
 		}
 	}
+	
+	public static void closeSilent(RandomAccessFile file) {
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				Log.e(LOG_TAG, "Fail to close file\n" + e.getMessage());
+			}
+		}
+	}
 }
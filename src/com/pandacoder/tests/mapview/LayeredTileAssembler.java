@@ -0,0 +1,286 @@
+package com.pandacoder.tests.mapview;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.SystemClock;
+
+/**
+ * Собирает тайл карты из нескольких слоев ({@link TileLayer}): нижний слой рисуется первым, остальные
+ * поверх него с прозрачностью.
+ *
+ * <p>Слои одного тайла качаются параллельно: один в потоке, который собирает тайл, остальные в потоках
+ * своей стадии, так что тайл из трех слоев качается примерно столько же, сколько самый медленный слой.
+ * Скачанные слои лежат в кеше сжатых тайлов под своими запросами ({@link TileRequest#forLayer}). Когда у слоя
+ * с временем жизни (пробки) оно вышло, перекачивается только этот слой, остальные берутся из кеша.
+ *
+ * <p>Скачивание ({@link #fetchLayers}) и сборку ({@link #compose}) можно делать в разных потоках.
+ */
+class LayeredTileAssembler {
+
+	private final static int LAYER_FETCH_TIMES_MAX_SIZE = 1024;
+
+	private final TileMiner tileMiner;
+	private final TileLayer[] layers;
+	private final TilesCompressedRamCache layersCache;
+	private final TileFailureTracker tileFailureTracker;
+	private final TileLoadStatistics tileLoadStatistics;
+	private final TilePipelineStageExecutor layerMineExecutor;
+	private final boolean hasTimeToLiveLayers;
+
+	// когда скачивались тайлы слоев с временем жизни, по часам SystemClock.uptimeMillis
+	private final LinkedHashMap<TileRequest, Long> layerFetchTimesMs;	// использовать только из synchronized(this)
+
+	/**
+	 * Создает сборщик
+	 * @param tileMiner загрузчик тайлов, должен понимать слои в запросах
+	 * @param layers слои снизу вверх
+	 * @param layersCache кеш скачанных слоев, если null - слои не кешируются и качаются каждый раз все
+	 * @param tileFailureTracker куда сообщать о неудачных скачиваниях слоев
+	 * @param tileLoadStatistics счетчики скачанных байт
+	 * @param poolSize сколько тайлов собирается одновременно
+	 *
+	 * @throws IllegalArgumentException если слоев нет
+	 */
+	LayeredTileAssembler(TileMiner tileMiner, TileLayer[] layers, TilesCompressedRamCache layersCache,
+						 TileFailureTracker tileFailureTracker, TileLoadStatistics tileLoadStatistics, int poolSize) {
+
+		if (layers == null || layers.length == 0) throw new IllegalArgumentException("At least one layer required");
+
+		this.tileMiner = tileMiner;
+		this.layers = layers.clone();
+		this.layersCache = layersCache;
+		this.tileFailureTracker = tileFailureTracker;
+		this.tileLoadStatistics = tileLoadStatistics;
+
+		boolean hasTimeToLiveLayers = false;
+		for (TileLayer layer : layers) {
+			if (layer.ttlMs > 0) hasTimeToLiveLayers = true;
+		}
+		this.hasTimeToLiveLayers = hasTimeToLiveLayers;
+
+		this.layerFetchTimesMs = new LinkedHashMap<TileRequest, Long>(64, 0.75f, true) {
+
+			private static final long serialVersionUID = -2215471386001573442L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<TileRequest, Long> eldest) {
+				return size() > LAYER_FETCH_TIMES_MAX_SIZE;
+			}
+		};
+
+		// собирающий поток ждет свои слои, поэтому если стадия занята - он подождет места в очереди
+		int layerPoolSize = Math.max(1, poolSize*(layers.length - 1));
+		this.layerMineExecutor = new TilePipelineStageExecutor("TileLayerMiner", layerPoolSize, layerPoolSize, true);
+	}
+
+	/**
+	 * Есть ли среди слоев такие, которые устаревают
+	 */
+	boolean hasTimeToLiveLayers() {
+		return hasTimeToLiveLayers;
+	}
+
+	/**
+	 * @return когда устареет тайл слоя, по часам SystemClock.uptimeMillis. 0 - если он еще не скачивался
+	 */
+	private synchronized long getLayerExpiresAtMs(TileLayer layer, TileRequest layerRequest) {
+		Long fetchTimeMs = layerFetchTimesMs.get(layerRequest);
+		return (fetchTimeMs != null)?fetchTimeMs + layer.ttlMs:0;
+	}
+
+	/**
+	 * Есть ли у тайла слои, которые пора обновить. Слои, которые недавно не скачались, не считаются:
+	 * время их повторной попытки еще не пришло.
+	 * @param tileRequest запрос готового тайла карты
+	 */
+	boolean hasExpiredLayers(TileRequest tileRequest) {
+		long nowMs = SystemClock.uptimeMillis();
+		for (TileLayer layer : layers) {
+			if (layer.ttlMs == 0) continue;
+
+			TileRequest layerRequest = tileRequest.forLayer(layer.id);
+			if (getLayerExpiresAtMs(layer, layerRequest) <= nowMs && tileFailureTracker.isTileBackedOff(layerRequest) == false) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Когда тайл пора обновить: момент, когда устареет первый из его слоев. Если слой еще не скачивался
+	 * или уже устарел, следующая попытка - через его время жизни.
+	 * @param tileRequest запрос готового тайла карты
+	 * @return время по часам SystemClock.uptimeMillis или 0, если у тайла нет устаревающих слоев
+	 */
+	long getRefreshAtMs(TileRequest tileRequest) {
+		long nowMs = SystemClock.uptimeMillis();
+		long refreshAtMs = 0;
+		for (TileLayer layer : layers) {
+			if (layer.ttlMs == 0) continue;
+
+			long expiresAtMs = getLayerExpiresAtMs(layer, tileRequest.forLayer(layer.id));
+			if (expiresAtMs <= nowMs) expiresAtMs = nowMs + layer.ttlMs;
+			if (refreshAtMs == 0 || expiresAtMs < refreshAtMs) refreshAtMs = expiresAtMs;
+		}
+		return refreshAtMs;
+	}
+
+	/**
+	 * @return сжатое изображение слоя из кеша или null, если его там нет или оно устарело
+	 */
+	private byte[] getCachedLayerData(TileLayer layer, TileRequest layerRequest) {
+		if (layersCache == null) return null;
+		if (layer.ttlMs > 0 && getLayerExpiresAtMs(layer, layerRequest) <= SystemClock.uptimeMillis()) return null;
+		return layersCache.getEncoded(layerRequest);
+	}
+
+	/**
+	 * Скачивает тайл одного слоя и кладет его в кеш слоев
+	 * @return сжатое изображение или null, если скачать не удалось
+	 */
+	private byte[] fetchLayer(TileLayer layer, TileRequest layerRequest) {
+		byte[] layerData = tileMiner.getTileData(layerRequest);
+		if (layerData == null) {
+			tileLoadStatistics.onNetworkFailure();
+			// пусть лучше будет старое изображение слоя, чем никакого
+			return (layersCache != null)?layersCache.getEncoded(layerRequest):null;
+		}
+
+		tileLoadStatistics.onNetworkFetch(layerData.length);
+		tileFailureTracker.onTileSucceeded(layerRequest);
+		if (layersCache != null) layersCache.putEncoded(layerRequest, layerData);
+		if (layer.ttlMs > 0) {
+			synchronized(this) {
+				layerFetchTimesMs.put(layerRequest, SystemClock.uptimeMillis());
+			}
+		}
+		return layerData;
+	}
+
+	/**
+	 * Собирает сжатые изображения всех слоев тайла: свежие берет из кеша, остальные качает параллельно.
+	 * Блокирует поток, пока не скачаются все слои. Только сетевая работа.
+	 *
+	 * @param tileRequest запрос готового тайла карты
+	 * @return сжатые изображения слоев снизу вверх, null на месте верхнего слоя, которого нет; или null,
+	 *         если нет нижнего слоя
+	 */
+	byte[][] fetchLayers(TileRequest tileRequest) {
+		final byte[][] layersData = new byte[layers.length][];
+		ArrayList<Integer> layersToFetch = new ArrayList<Integer>();
+
+		for (int i = 0; i < layers.length; i++) {
+			TileRequest layerRequest = tileRequest.forLayer(layers[i].id);
+			layersData[i] = getCachedLayerData(layers[i], layerRequest);
+			if (layersData[i] != null) continue;
+
+			// верхний слой недавно не скачался - соберем тайл без него, или со старым, если он есть
+			if (i > 0 && tileFailureTracker.isTileBackedOff(layerRequest)) {
+				if (layersCache != null) layersData[i] = layersCache.getEncoded(layerRequest);
+				continue;
+			}
+			layersToFetch.add(i);
+		}
+
+		if (layersToFetch.isEmpty()) return layersData;
+
+		final CountDownLatch layersFetchedLatch = new CountDownLatch(layersToFetch.size() - 1);
+		for (int i = 1; i < layersToFetch.size(); i++) {
+			final int layerIndex = layersToFetch.get(i);
+			final TileRequest layerRequest = tileRequest.forLayer(layers[layerIndex].id);
+			Runnable layerFetchJob = new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						layersData[layerIndex] = fetchLayer(layers[layerIndex], layerRequest);
+					} finally {
+						layersFetchedLatch.countDown();
+					}
+				}
+			};
+
+			try {
+				layerMineExecutor.execute(layerFetchJob);
+			} catch (RejectedExecutionException ex) {
+				layerFetchJob.run();	// стадия остановлена, качаем сами
+			}
+		}
+
+		int ownLayerIndex = layersToFetch.get(0);
+		layersData[ownLayerIndex] = fetchLayer(layers[ownLayerIndex], tileRequest.forLayer(layers[ownLayerIndex].id));
+
+		try {
+			layersFetchedLatch.await();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+
+		return (layersData[0] != null)?layersData:null;
+	}
+
+	/**
+	 * Слой не удалось декодировать: выкидываем его из кеша, чтобы в следующий раз скачать заново
+	 */
+	private void forgetLayer(TileRequest layerRequest) {
+		if (layersCache != null) layersCache.remove(layerRequest);
+		synchronized(this) {
+			layerFetchTimesMs.remove(layerRequest);
+		}
+	}
+
+	/**
+	 * Декодирует слои и рисует их друг на друге. Только работа процессора, сеть не нужна.
+	 *
+	 * @param tileRequest запрос готового тайла карты
+	 * @param layersData то, что вернул {@link #fetchLayers}
+	 * @return изображение тайла в формате {@link TileSpecs#TILE_BITMAP_CONFIG} или null, если не удалось
+	 *         декодировать нижний слой
+	 */
+	Bitmap compose(TileRequest tileRequest, byte[][] layersData) {
+		Bitmap tileBitmap = tileMiner.decodeTileBitmap(layersData[0]);
+		if (tileBitmap == null) {
+			forgetLayer(tileRequest.forLayer(layers[0].id));
+			return null;
+		}
+
+		if (layers.length == 1) return tileBitmap;
+
+		if (tileBitmap.isMutable() == false) {	// на декодированном битмапе рисовать нельзя
+			Bitmap mutableTileBitmap = tileBitmap.copy(TileSpecs.TILE_BITMAP_CONFIG, true);
+			tileBitmap.recycle();
+			tileBitmap = mutableTileBitmap;
+		}
+
+		Canvas canvas = new Canvas(tileBitmap);
+		for (int i = 1; i < layers.length; i++) {
+			if (layersData[i] == null) continue;
+
+			Bitmap overlayBitmap = tileMiner.decodeOverlayBitmap(layersData[i]);
+			if (overlayBitmap == null) {
+				forgetLayer(tileRequest.forLayer(layers[i].id));
+				continue;
+			}
+			canvas.drawBitmap(overlayBitmap, 0, 0, null);
+			overlayBitmap.recycle();
+		}
+
+		return tileBitmap;
+	}
+
+	/**
+	 * Останавливает скачивание слоев
+	 */
+	void destroy() {
+		if (layerMineExecutor.isShutdown() == false) {
+			layerMineExecutor.shutdownNow();
+		}
+	}
+}
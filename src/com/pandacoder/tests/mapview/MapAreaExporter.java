@@ -0,0 +1,368 @@
+package com.pandacoder.tests.mapview;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Выгружает большой участок карты одной картинкой, например для отчетов и печати, без карты на экране.
+ *
+ * <p>Картинка целиком в память не помещается, поэтому она собирается горизонтальными полосами высотой в тайл.
+ * Тайлы полос запрашиваются у центра обработки тайлов движка, как это делает карта: из кешей, архива или
+ * из сети. Одновременно собирается несколько полос, а готовые полосы по порядку сразу пишутся в поток,
+ * так что памяти нужно на несколько полос, сколько бы их ни было. Строка PNG идет во всю ширину картинки,
+ * поэтому полоса во всю ширину нужна целиком: все собираемые полосы укладываются в STRIPS_MEMORY_BUDGET_BYTES,
+ * чем шире картинка, тем меньше их собирается одновременно, а картинки шире {@link #MAX_EXPORT_WIDTH_TILES}
+ * тайлов не выгружаются.
+ *
+ * <p>Запросы тайлов экспортера обрабатываются после запросов карт на экране (см. {@link TileEngine#attachBackground}),
+ * поэтому выгрузка не тормозит карты.
+ *
+ * <p>Форматы:
+ * <ul>
+ * 	<li> {@link #FORMAT_PNG} - обычный PNG, сжимается по мере записи полос;
+ * 	<li> {@link #FORMAT_RAW_RGB565} - заголовок и пиксели RGB_565 как есть, полосами сверху вниз. Пишется
+ * 		 быстрее всего, подходит для дальнейшей обработки.
+ * </ul>
+ *
+ * <p>{@link #export} блокирует вызывающий поток на все время выгрузки, вызывать не из UI потока.
+ * Один экспортер выгружает один участок за раз.
+ */
+public class MapAreaExporter {
+
+	private static final String LOG_TAG = MapAreaExporter.class.getSimpleName();
+
+	public static final int FORMAT_PNG = 0;
+	public static final int FORMAT_RAW_RGB565 = 1;
+
+	private static final int RAW_FILE_MAGIC = 0x534d5652;	// "SMVR"
+	private static final int RAW_FILE_VERSION = 1;
+
+	private static final int STRIPS_IN_FLIGHT = 3;
+	// сколько памяти под собираемые полосы: 4Mb - одна полоса шириной 32 тайла или три шириной 10 тайлов
+	private static final long STRIPS_MEMORY_BUDGET_BYTES = 32L*TileSpecs.TILE_BITMAP_SIZE_BYTES;
+	public static final int MAX_EXPORT_WIDTH_TILES = (int)(STRIPS_MEMORY_BUDGET_BYTES/TileSpecs.TILE_BITMAP_SIZE_BYTES);
+	// если тайлы полосы так долго не приходят, они, видимо, не скачиваются, пишем полосу без них
+	private static final long STRIP_PROGRESS_TIMEOUT_MS = 20*1000;
+	private static final int MISSING_TILE_COLOR = 0xff000000;
+
+	/**
+	 * Пишет готовые полосы картинки по порядку
+	 */
+	interface StripWriter {
+
+		/**
+		 * @param strip полоса во всю ширину картинки, после возврата может быть переиспользована
+		 */
+		void writeStrip(Bitmap strip) throws IOException;
+
+		/**
+		 * Дописывает картинку и освобождает ресурсы. Вызывается и после ошибки записи.
+		 */
+		void finish() throws IOException;
+	}
+
+	/**
+	 * Итог выгрузки
+	 */
+	public static class Report {
+		int widthPx, heightPx;
+		int tilesCount;
+		int missingTilesCount;		// сколько тайлов так и не пришло, на их месте фон
+		long durationMs;
+		boolean canceled;
+
+		public int getMissingTilesCount() {
+			return missingTilesCount;
+		}
+
+		public boolean isCanceled() {
+			return canceled;
+		}
+
+		@Override
+		public String toString() {
+			return widthPx + "x" + heightPx + "px tiles=" + tilesCount + " missing=" + missingTilesCount
+					+ " duration=" + durationMs + "ms" + (canceled?" canceled":"");
+		}
+	}
+
+	/**
+	 * Полоса картинки высотой в тайл, которая сейчас собирается
+	 */
+	private static class Strip {
+		final int ySn;
+		final Bitmap bitmap;
+		final Canvas canvas;
+		final HashSet<TileRequest> missingTiles = new HashSet<TileRequest>();
+		long lastProgressMs;
+
+		Strip(int ySn, Bitmap bitmap) {
+			this.ySn = ySn;
+			this.bitmap = bitmap;
+			this.canvas = new Canvas(bitmap);
+		}
+	}
+
+	private final TileEngine tileEngine;
+	private final TilesReceiver tilesReceiver;
+
+	private final LinkedList<Strip> strips;	// собираемые полосы сверху вниз, использовать только из synchronized(this)
+	private int minXsn;
+	private volatile boolean canceled = false;
+
+	/**
+	 * @param tileEngine движок, через кеши и загрузчик которого пойдут тайлы
+	 */
+	public MapAreaExporter(TileEngine tileEngine) {
+		this.tileEngine = tileEngine;
+		this.tilesReceiver = new TilesReceiver();
+		this.strips = new LinkedList<Strip>();
+	}
+
+	/**
+	 * Получает тайлы от центра обработки тайлов и рисует их на своих полосах
+	 */
+	private class TilesReceiver implements MapTilesReceiver {
+
+		@Override
+		public void addTileOnMapBitmap(TileRequest tileRequest, Bitmap tileBitmap) {
+			drawTileOnStrip(tileRequest, tileBitmap);
+		}
+	}
+
+	private synchronized void drawTileOnStrip(TileRequest tileRequest, Bitmap tileBitmap) {
+		for (Strip strip : strips) {
+			if (strip.ySn != tileRequest.getTileSpecs().ySn) continue;
+			if (strip.missingTiles.remove(tileRequest) == false) return;	// уже нарисован
+
+			int tileX = (tileRequest.getTileSpecs().xSn - minXsn)*TileSpecs.TILE_SIZE_WH_PX;
+			strip.canvas.drawBitmap(tileBitmap, tileX, 0, null);
+			strip.lastProgressMs = SystemClock.uptimeMillis();
+			if (strip.missingTiles.isEmpty()) notifyAll();
+			return;
+		}
+	}
+
+	/**
+	 * Прерывает выгрузку. Записанное к этому моменту остается в потоке, картинка будет неполной.
+	 */
+	public void cancel() {
+		canceled = true;
+		synchronized(this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Выгружает прямоугольник тайлов, края включительно
+	 * @param minXsn номер левого столбца тайлов
+	 * @param minYsn номер верхней строки тайлов
+	 * @param maxXsn номер правого столбца тайлов
+	 * @param maxYsn номер нижней строки тайлов
+	 * @param format {@link #FORMAT_PNG} или {@link #FORMAT_RAW_RGB565}
+	 * @param out куда писать картинку, не закрывается
+	 * @throws IOException если писать не удалось
+	 * @throws InterruptedException если вызывающий поток прервали
+	 * @throws IllegalArgumentException если прямоугольник пустой или шире {@link #MAX_EXPORT_WIDTH_TILES} тайлов
+	 */
+	public Report export(int minXsn, int minYsn, int maxXsn, int maxYsn, int format, OutputStream out)
+			throws IOException, InterruptedException {
+
+		if (minXsn > maxXsn || minYsn > maxYsn) throw new IllegalArgumentException("Empty tiles range");
+
+		int tilesX = maxXsn - minXsn + 1, tilesY = maxYsn - minYsn + 1;
+		if (tilesX > MAX_EXPORT_WIDTH_TILES) {
+			throw new IllegalArgumentException("Export is " + tilesX + " tiles wide, max " + MAX_EXPORT_WIDTH_TILES);
+		}
+		int widthPx = tilesX*TileSpecs.TILE_SIZE_WH_PX, heightPx = tilesY*TileSpecs.TILE_SIZE_WH_PX;
+
+		Report report = new Report();
+		report.widthPx = widthPx;
+		report.heightPx = heightPx;
+		report.tilesCount = tilesX*tilesY;
+		long startMs = SystemClock.uptimeMillis();
+
+		StripWriter stripWriter;
+		switch (format) {
+		case FORMAT_PNG: 		stripWriter = new PngStreamWriter(out, widthPx, heightPx); break;
+		case FORMAT_RAW_RGB565:	stripWriter = new RawStripWriter(out, widthPx, heightPx); break;
+		default: throw new IllegalArgumentException("Unknown format " + format);
+		}
+
+		this.minXsn = minXsn;
+		canceled = false;
+
+		// полосы переиспользуются, поэтому памяти нужно только на те, что собираются одновременно
+		long stripSizeBytes = (long)tilesX*TileSpecs.TILE_BITMAP_SIZE_BYTES;
+		int stripsInFlight = (int)Math.max(1, Math.min(STRIPS_IN_FLIGHT, STRIPS_MEMORY_BUDGET_BYTES/stripSizeBytes));
+		LinkedList<Bitmap> stripBitmapsPool = new LinkedList<Bitmap>();
+		for (int i = 0; i < Math.min(stripsInFlight, tilesY); i++) {
+			stripBitmapsPool.add(Bitmap.createBitmap(widthPx, TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_BITMAP_CONFIG));
+		}
+
+		TilesProcessorCenter tileProcessor = tileEngine.getTilesProcessor();
+		tileEngine.attachBackground(tilesReceiver);
+		tileEngine.resume(tilesReceiver);
+
+		boolean finished = false;
+		try {
+			int nextStripYsn = minYsn;
+			for (int ySn = minYsn; ySn <= maxYsn && canceled == false; ySn++) {
+
+				// пока пишется эта полоса, следующие уже собираются
+				while (nextStripYsn <= maxYsn && stripBitmapsPool.isEmpty() == false) {
+					startStrip(nextStripYsn++, minXsn, maxXsn, stripBitmapsPool.remove(), tileProcessor);
+				}
+
+				Strip strip = awaitFirstStrip(tileProcessor);
+				if (strip == null) break;	// выгрузку отменили
+
+				report.missingTilesCount += strip.missingTiles.size();
+				stripWriter.writeStrip(strip.bitmap);
+				stripBitmapsPool.add(strip.bitmap);
+			}
+
+			if (canceled == false) {
+				finished = true;	// повторно finish не вызываем, даже если он бросит исключение
+				stripWriter.finish();
+			}
+		} finally {
+			tileEngine.detach(tilesReceiver);
+			synchronized(this) {
+				for (Strip strip : strips) {
+					stripBitmapsPool.add(strip.bitmap);
+				}
+				strips.clear();
+			}
+			for (Bitmap stripBitmap : stripBitmapsPool) {
+				stripBitmap.recycle();
+			}
+
+			if (finished == false) {
+				try {
+					stripWriter.finish();
+				} catch (IOException ex) {
+					// картинка все равно неполная, нужно было только освободить ресурсы
+				}
+			}
+		}
+
+		report.canceled = canceled;
+		report.durationMs = SystemClock.uptimeMillis() - startMs;
+		Log.i(LOG_TAG, "export " + report);
+		return report;
+	}
+
+	/**
+	 * Начинает собирать полосу: тайлы из кеша изображений рисуются сразу, остальные запрашиваются
+	 */
+	private void startStrip(int ySn, int minXsn, int maxXsn, Bitmap stripBitmap, TilesProcessorCenter tileProcessor) {
+		stripBitmap.eraseColor(MISSING_TILE_COLOR);
+		Strip strip = new Strip(ySn, stripBitmap);
+		strip.lastProgressMs = SystemClock.uptimeMillis();
+
+		synchronized(this) {
+			for (int xSn = minXsn; xSn <= maxXsn; xSn++) {
+				strip.missingTiles.add(new TileRequest(new TileSpecs(xSn, ySn)));
+			}
+			strips.add(strip);
+		}
+
+		TileBitmapCache tilesRamCache = tileEngine.getTilesRamCache();
+		for (int xSn = minXsn; xSn <= maxXsn; xSn++) {
+			TileRequest tileRequest = new TileRequest(new TileSpecs(xSn, ySn));
+			synchronized(tilesRamCache) {
+				Bitmap tileBitmap = tilesRamCache.get(tileRequest);
+				if (tileBitmap != null) {
+					drawTileOnStrip(tileRequest, tileBitmap);
+					continue;
+				}
+			}
+			tileProcessor.request(tilesReceiver, tileRequest);
+		}
+		tileProcessor.doRequests();
+	}
+
+	/**
+	 * Ждет, пока соберется верхняя полоса, и забирает ее. Если тайлы долго не приходят, забирает полосу
+	 * без них и отменяет их запросы.
+	 * @return полоса или null, если выгрузку отменили
+	 */
+	private synchronized Strip awaitFirstStrip(TilesProcessorCenter tileProcessor) throws InterruptedException {
+		Strip strip = strips.getFirst();
+		while (strip.missingTiles.isEmpty() == false && canceled == false) {
+			long waitMs = strip.lastProgressMs + STRIP_PROGRESS_TIMEOUT_MS - SystemClock.uptimeMillis();
+			if (waitMs <= 0) {
+				Log.w(LOG_TAG, strip.missingTiles.size() + " tiles of row " + strip.ySn + " did not come, export without them");
+				for (TileRequest tileRequest : strip.missingTiles) {
+					tileProcessor.cancelRequest(tilesReceiver, tileRequest);
+				}
+				break;
+			}
+			wait(waitMs);
+		}
+
+		if (canceled) return null;
+		return strips.removeFirst();
+	}
+
+	/**
+	 * Пишет заголовок и пиксели полос. Заголовок: магическое число, версия, ширина, высота,
+	 * байт на пиксель; дальше строки пикселей RGB_565 сверху вниз. Полоса переводится в RGB_565 по строке,
+	 * чтобы не держать рядом с ней еще одну копию ее пикселей.
+	 */
+	private static class RawStripWriter implements StripWriter {
+
+		private final DataOutputStream out;
+		private final int width, height;
+		private int rowsWritten = 0;
+		private final int[] rowPixels;
+		private final byte[] rowBytes;
+
+		RawStripWriter(OutputStream out, int width, int height) throws IOException {
+			this.out = new DataOutputStream(out);
+			this.width = width;
+			this.height = height;
+			this.rowPixels = new int[width];
+			this.rowBytes = new byte[width*2];
+
+			this.out.writeInt(RAW_FILE_MAGIC);
+			this.out.writeInt(RAW_FILE_VERSION);
+			this.out.writeInt(width);
+			this.out.writeInt(height);
+			this.out.writeInt(2);
+		}
+
+		@Override
+		public void writeStrip(Bitmap strip) throws IOException {
+			int rows = Math.min(strip.getHeight(), height - rowsWritten);
+			for (int y = 0; y < rows; y++) {
+				strip.getPixels(rowPixels, 0, width, 0, y, width, 1);
+				// пиксели полосы и так RGB_565, обратный перевод из ARGB точный. порядок байт тот же,
+				// что у copyPixelsToBuffer: младший первым
+				for (int x = 0, i = 0; x < width; x++, i += 2) {
+					int pixel = rowPixels[x];
+					int rgb565 = ((pixel >> 8) & 0xf800) | ((pixel >> 5) & 0x07e0) | ((pixel >> 3) & 0x001f);
+					rowBytes[i] = (byte)rgb565;
+					rowBytes[i + 1] = (byte)(rgb565 >> 8);
+				}
+				out.write(rowBytes, 0, rowBytes.length);
+			}
+			rowsWritten += rows;
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (rowsWritten != height) throw new IOException("Only " + rowsWritten + " of " + height + " rows written");
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.pandacoder.tests.mapview;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.view.MotionEvent;
+
+/**
+ * Перетаскивание карты пальцем, общее для {@link SimpleMapView} и {@link SurfaceMapView}. Превращает касания
+ * в сдвиги и копит их без блокировок, пока карта не заберет накопленный сдвиг ({@link #takePendingPan}).
+ *
+ * <p>Касания принимаются в UI потоке, накопленный сдвиг можно забирать из любого потока.
+ */
+abstract class MapPanGesture {
+
+	// по заданию карта должна быть 100х100, сервер отдает намного больше тайлов
+	// поэтому не будем давать пользователю сдвинуть карту больше чем
+	// на 50 тайлов в любую сторону
+	private final static int MAP_MAXMIN_XY_ALLOWED_COORDS = 100*TileSpecs.TILE_SIZE_WH_PX/2;
+
+	private int previousTouchX, previousTouchY;		// только UI поток
+	private final AtomicLong pendingPan = new AtomicLong(0);	// накопленный сдвиг: dx - старшие 32 бита, dy - младшие
+
+	boolean handleTouchEvent(MotionEvent event) {
+		int eventX = (int) event.getX(),
+			eventY = (int) event.getY();
+
+		switch (event.getAction()) {
+		case MotionEvent.ACTION_DOWN:
+			previousTouchX = eventX;
+			previousTouchY = eventY;
+			return true;
+
+		case MotionEvent.ACTION_UP:
+			onRelease();
+			break;
+
+		case MotionEvent.ACTION_MOVE:
+			int moveMapX = eventX - previousTouchX,
+				moveMapY = eventY - previousTouchY;
+
+			previousTouchX = eventX;
+			previousTouchY = eventY;
+
+			if (moveMapX != 0 || moveMapY != 0) {
+				addPendingPan(moveMapX, moveMapY);
+				onPan();
+			}
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * К накопленному сдвигу добавился новый. Вызывается в UI потоке.
+	 */
+	protected abstract void onPan();
+
+	/**
+	 * Палец отпущен. Вызывается в UI потоке.
+	 */
+	protected abstract void onRelease();
+
+	/**
+	 * Прибавляет сдвиг к накопленному, не блокируясь
+	 */
+	private void addPendingPan(int dx, int dy) {
+		while (true) {
+			long pan = pendingPan.get();
+			int panX = getPanX(pan) + dx,
+				panY = getPanY(pan) + dy;
+			if (pendingPan.compareAndSet(pan, ((long)panX << 32) | (panY & 0xffffffffL))) return;
+		}
+	}
+
+	/**
+	 * Забирает накопленный сдвиг, разбирать его {@link #getPanX} и {@link #getPanY}
+	 */
+	long takePendingPan() {
+		return pendingPan.getAndSet(0);
+	}
+
+	static int getPanX(long pan) {
+		return (int)(pan >> 32);
+	}
+
+	static int getPanY(long pan) {
+		return (int)pan;
+	}
+
+	/**
+	 * Ограничение на передвижение карты по одной оси
+	 * @param mapCenterOffset текущее смещение центра карты
+	 * @param delta сдвиг карты
+	 * @return сдвиг или 0, если с ним центр карты уйдет слишком далеко
+	 */
+	static int limitPan(int mapCenterOffset, int delta) {
+		return (Math.abs(mapCenterOffset - delta) > MAP_MAXMIN_XY_ALLOWED_COORDS)?0:delta;
+	}
+}
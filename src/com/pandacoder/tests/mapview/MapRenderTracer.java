@@ -0,0 +1,352 @@
+package com.pandacoder.tests.mapview;
+
+import java.lang.reflect.Method;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+
+/**
+ * Трассировка отрисовки карты, чтобы разбираться с рывками при перетаскивании.
+ *
+ * <ul>
+ * 	<li> Секции systrace вокруг отрисовки кадра, сдвига карты и рисования тайлов (android.os.Trace,
+ * 		 на устройствах с API 18 и выше; проект собирается под android-16, поэтому Trace вызывается через reflection).
+ * 	<li> Время ожидания и удержания блокировок карты: матрицы сдвига и монитора самой карты.
+ * 	<li> Количество подмен битмапа карты и тайлов, нарисованных между кадрами.
+ * 	<li> Распределение времени кадров, в которых рисовалась карта, и кадры, пропустившие vsync, с вероятной причиной.
+ * 		 Время кадра - интервал между соседними кадрами {@link Choreographer}, то есть весь кадр: касания,
+ * 		 анимации, раскладка и отрисовка. До API 16 Choreographer нет, тогда меряется только onDraw карты.
+ * </ul>
+ *
+ * Все собирается только пока трассировка включена ({@link #setEnabled}), выключенная почти ничего не стоит.
+ * Итог можно получить строкой {@link #getSummary} или записать в лог {@link #logSummary}.
+ *
+ * Методы можно вызывать из разных потоков.
+ */
+public class MapRenderTracer {
+
+	private static final String LOG_TAG = MapRenderTracer.class.getSimpleName();
+
+	static final int LOCK_MATRIX = 0;	// mapViewBitmapMatrix
+	static final int LOCK_VIEW = 1;		// монитор SimpleMapView
+	private static final String[] LOCK_NAMES = {"matrix", "view"};
+
+	private static final long FRAME_INTERVAL_NS = 16666667;				// 60 fps
+	private static final long MISSED_VSYNC_INTERVAL_NS = FRAME_INTERVAL_NS * 3 / 2;
+	private static final long GESTURE_FRAME_GAP_NS = 100*1000*1000;		// кадры реже - это уже не анимация, vsync не считаем
+	private static final long SLOW_LOCK_WAIT_NS = 4*1000*1000;
+
+	// верхние границы корзин распределения времени отрисовки кадра, мс
+	private static final int[] FRAME_TIME_BUCKETS_MS = {2, 4, 8, 16, 33, 50, 100};
+
+	private static final int SYSTRACE_API_LEVEL = 18;	// JELLY_BEAN_MR2, в android-16 такой константы нет
+	private static final Method TRACE_BEGIN_SECTION, TRACE_END_SECTION;	// null - systrace недоступен
+	static {
+		Method beginSection = null, endSection = null;
+		if (Build.VERSION.SDK_INT >= SYSTRACE_API_LEVEL) {
+			try {
+				Class<?> traceClass = Class.forName("android.os.Trace");
+				beginSection = traceClass.getMethod("beginSection", String.class);
+				endSection = traceClass.getMethod("endSection");
+			} catch (Exception ex) {
+				Log.w(LOG_TAG, "systrace is not available: " + ex);
+				beginSection = endSection = null;
+			}
+		}
+		TRACE_BEGIN_SECTION = beginSection;
+		TRACE_END_SECTION = endSection;
+	}
+	private static final boolean FRAME_CALLBACKS_AVAILABLE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+
+	/**
+	 * Меряет кадры по обратным вызовам Choreographer, пока трассировка включена. Создается только на API 16
+	 * и выше, поэтому на старых устройствах класс не загружается.
+	 */
+	private class FrameWatcher implements Choreographer.FrameCallback, Runnable {
+
+		private boolean watching = false;	// только UI поток
+		private long previousFrameTimeNs = 0;
+
+		/**
+		 * Начинает следить за кадрами, если еще не следит. Вызывается в UI потоке.
+		 */
+		@Override
+		public void run() {
+			if (watching) return;
+			watching = true;
+			previousFrameTimeNs = 0;
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			if (previousFrameTimeNs != 0) onFrameFinished(frameTimeNanos - previousFrameTimeNs);
+			previousFrameTimeNs = frameTimeNanos;
+
+			if (enabled) Choreographer.getInstance().postFrameCallback(this);
+			else watching = false;
+		}
+	}
+
+	private volatile boolean enabled = false;
+	private final FrameWatcher frameWatcher;		// null - Choreographer нет, меряется только onDraw
+	private final Handler uiHandler;
+
+	private final long[] lockAcquisitions = new long[LOCK_NAMES.length];
+	private final long[] lockWaitTotalNs = new long[LOCK_NAMES.length];
+	private final long[] lockWaitMaxNs = new long[LOCK_NAMES.length];
+	private final long[] lockHoldTotalNs = new long[LOCK_NAMES.length];
+	private final long[] lockHoldMaxNs = new long[LOCK_NAMES.length];
+
+	private long bufferSwaps;
+	private long tilesDrawn;
+	private long frames;
+	private long frameTimeMaxNs;
+	private final long[] frameTimeHistogram = new long[FRAME_TIME_BUCKETS_MS.length + 1];
+	private long tilesPerFrameMax;
+
+	// что случилось между прошлым кадром и текущим
+	private boolean frameDrawn = false;			// карта рисовалась в текущем кадре Choreographer
+	private long frameLockWaitNs = 0;
+	private long previousFrameStartNs = 0;
+	private int tilesSincePreviousFrame = 0;
+	private boolean swapSincePreviousFrame = false;
+
+	private long missedVsyncFrames;
+	private long missedVsyncBySwap, missedVsyncByLockWait, missedVsyncByTiles, missedVsyncOther;
+
+	public MapRenderTracer() {
+		frameWatcher = FRAME_CALLBACKS_AVAILABLE?new FrameWatcher():null;
+		uiHandler = new Handler(Looper.getMainLooper());
+	}
+
+	/**
+	 * Включает или выключает трассировку. При включении счетчики обнуляются.
+	 */
+	public void setEnabled(boolean enabled) {
+		if (enabled) reset();
+		this.enabled = enabled;
+		if (enabled && frameWatcher != null) uiHandler.post(frameWatcher);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Обнуляет все счетчики
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < LOCK_NAMES.length; i++) {
+			lockAcquisitions[i] = lockWaitTotalNs[i] = lockWaitMaxNs[i] = lockHoldTotalNs[i] = lockHoldMaxNs[i] = 0;
+		}
+		for (int i = 0; i < frameTimeHistogram.length; i++) {
+			frameTimeHistogram[i] = 0;
+		}
+		bufferSwaps = tilesDrawn = frames = frameTimeMaxNs = tilesPerFrameMax = 0;
+		frameDrawn = false;
+		frameLockWaitNs = 0;
+		previousFrameStartNs = 0;
+		tilesSincePreviousFrame = 0;
+		swapSincePreviousFrame = false;
+		missedVsyncFrames = missedVsyncBySwap = missedVsyncByLockWait = missedVsyncByTiles = missedVsyncOther = 0;
+	}
+
+	/**
+	 * Текущее время для замеров, 0 - если трассировка выключена
+	 */
+	long now() {
+		return enabled?System.nanoTime():0;
+	}
+
+	/**
+	 * Начинает секцию systrace. Каждой секции нужен парный {@link #endSection} в том же потоке.
+	 * @return начата ли секция, передать в {@link #endSection}: трассировку могут выключить посреди секции
+	 */
+	boolean beginSection(String sectionName) {
+		if (enabled == false || TRACE_BEGIN_SECTION == null) return false;
+		return invokeTrace(TRACE_BEGIN_SECTION, sectionName);
+	}
+
+	/**
+	 * @param sectionStarted то, что вернул {@link #beginSection}
+	 */
+	void endSection(boolean sectionStarted) {
+		if (sectionStarted) invokeTrace(TRACE_END_SECTION);
+	}
+
+	/**
+	 * @return false - если вызов не удался
+	 */
+	private static boolean invokeTrace(Method traceMethod, Object... args) {
+		try {
+			traceMethod.invoke(null, args);
+			return true;
+		} catch (Exception ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Блокировка захвачена
+	 * @param lock LOCK_MATRIX или LOCK_VIEW
+	 * @param waitStartNs {@link #now} перед входом в synchronized
+	 * @return момент захвата, передать в {@link #lockReleased}
+	 */
+	long lockAcquired(int lock, long waitStartNs) {
+		if (!enabled || waitStartNs == 0) return 0;
+
+		long acquiredNs = System.nanoTime();
+		long waitNs = acquiredNs - waitStartNs;
+		synchronized(this) {
+			lockAcquisitions[lock]++;
+			lockWaitTotalNs[lock] += waitNs;
+			if (waitNs > lockWaitMaxNs[lock]) lockWaitMaxNs[lock] = waitNs;
+		}
+		return acquiredNs;
+	}
+
+	/**
+	 * Блокировка сейчас будет отпущена
+	 * @param acquiredNs то, что вернул {@link #lockAcquired}
+	 */
+	void lockReleased(int lock, long acquiredNs) {
+		if (!enabled || acquiredNs == 0) return;
+
+		long holdNs = System.nanoTime() - acquiredNs;
+		synchronized(this) {
+			lockHoldTotalNs[lock] += holdNs;
+			if (holdNs > lockHoldMaxNs[lock]) lockHoldMaxNs[lock] = holdNs;
+		}
+	}
+
+	/**
+	 * Битмап карты подменен запасным: вся карта перерисована со сдвигом
+	 */
+	void onBufferSwap() {
+		if (!enabled) return;
+		synchronized(this) {
+			bufferSwaps++;
+			swapSincePreviousFrame = true;
+		}
+	}
+
+	/**
+	 * На битмап карты нарисован тайл
+	 */
+	void onTileDrawn() {
+		if (!enabled) return;
+		synchronized(this) {
+			tilesDrawn++;
+			tilesSincePreviousFrame++;
+		}
+	}
+
+	/**
+	 * Карта нарисована в onDraw. Кадр считается, когда начнется следующий кадр Choreographer, а без него - сразу,
+	 * по времени самого onDraw.
+	 * @param drawStartNs {@link #now} в начале onDraw
+	 * @param lockWaitNs сколько onDraw ждал блокировок
+	 */
+	void onFrameDrawn(long drawStartNs, long lockWaitNs) {
+		if (!enabled || drawStartNs == 0) return;
+
+		long drawTimeNs = System.nanoTime() - drawStartNs;
+		synchronized(this) {
+			if (frameWatcher != null) {
+				frameDrawn = true;
+				frameLockWaitNs += lockWaitNs;
+				return;
+			}
+
+			// vsync считаем пропущенным, если кадры идут подряд (анимация, перетаскивание), а интервал
+			// между ними заметно больше периода vsync
+			long frameIntervalNs = (previousFrameStartNs != 0)?drawStartNs - previousFrameStartNs:0;
+			boolean missedVsync = frameIntervalNs > MISSED_VSYNC_INTERVAL_NS && frameIntervalNs < GESTURE_FRAME_GAP_NS;
+			previousFrameStartNs = drawStartNs;
+			recordFrame(drawTimeNs, lockWaitNs, missedVsync);
+		}
+	}
+
+	/**
+	 * Кадр Choreographer закончился: начался следующий
+	 * @param frameTimeNs длительность кадра
+	 */
+	private synchronized void onFrameFinished(long frameTimeNs) {
+		if (frameDrawn) recordFrame(frameTimeNs, frameLockWaitNs, frameTimeNs > MISSED_VSYNC_INTERVAL_NS);
+		frameDrawn = false;
+		frameLockWaitNs = 0;
+	}
+
+	private void recordFrame(long frameTimeNs, long lockWaitNs, boolean missedVsync) {
+		frames++;
+		if (frameTimeNs > frameTimeMaxNs) frameTimeMaxNs = frameTimeNs;
+
+		int bucket = 0;
+		while (bucket < FRAME_TIME_BUCKETS_MS.length && frameTimeNs > FRAME_TIME_BUCKETS_MS[bucket] * 1000000L) bucket++;
+		frameTimeHistogram[bucket]++;
+
+		if (tilesSincePreviousFrame > tilesPerFrameMax) tilesPerFrameMax = tilesSincePreviousFrame;
+
+		if (missedVsync) {
+			missedVsyncFrames++;
+			if (swapSincePreviousFrame) missedVsyncBySwap++;
+			else if (lockWaitNs > SLOW_LOCK_WAIT_NS) missedVsyncByLockWait++;
+			else if (tilesSincePreviousFrame > 0) missedVsyncByTiles++;
+			else missedVsyncOther++;
+		}
+
+		tilesSincePreviousFrame = 0;
+		swapSincePreviousFrame = false;
+	}
+
+	private static String ms(long ns) {
+		return String.format("%.2fms", ns / 1000000.0);
+	}
+
+	/**
+	 * Итог трассировки с момента включения
+	 */
+	public synchronized String getSummary() {
+		StringBuilder summary = new StringBuilder();
+
+		summary.append("frames=").append(frames).append(" max=").append(ms(frameTimeMaxNs)).append(" histogram:");
+		for (int i = 0; i < frameTimeHistogram.length; i++) {
+			summary.append((i < FRAME_TIME_BUCKETS_MS.length)?" <=" + FRAME_TIME_BUCKETS_MS[i] + "ms:":" more:");
+			summary.append(frameTimeHistogram[i]);
+		}
+
+		summary.append("\nmissed vsync=").append(missedVsyncFrames)
+			   .append(" (swap=").append(missedVsyncBySwap)
+			   .append(" lockWait=").append(missedVsyncByLockWait)
+			   .append(" tiles=").append(missedVsyncByTiles)
+			   .append(" other=").append(missedVsyncOther).append(")");
+
+		summary.append("\nbuffer swaps=").append(bufferSwaps)
+			   .append(" tiles drawn=").append(tilesDrawn)
+			   .append(" max tiles per frame=").append(tilesPerFrameMax);
+
+		for (int i = 0; i < LOCK_NAMES.length; i++) {
+			long acquisitions = lockAcquisitions[i];
+			summary.append("\nlock ").append(LOCK_NAMES[i]).append(": acquired=").append(acquisitions);
+			if (acquisitions > 0) {
+				summary.append(" wait avg=").append(ms(lockWaitTotalNs[i] / acquisitions))
+					   .append(" max=").append(ms(lockWaitMaxNs[i]))
+					   .append(" hold avg=").append(ms(lockHoldTotalNs[i] / acquisitions))
+					   .append(" max=").append(ms(lockHoldMaxNs[i]));
+			}
+		}
+
+		return summary.toString();
+	}
+
+	/**
+	 * Пишет итог трассировки в лог
+	 */
+	public void logSummary() {
+		Log.i(LOG_TAG, getSummary());
+	}
+}
@@ -0,0 +1,18 @@
+package com.pandacoder.tests.mapview;
+
+import android.graphics.Bitmap;
+
+/**
+ * Получатель готовых изображений тайлов от {@link TilesProcessorCenter}: карта, которая их рисует.
+ */
+public interface MapTilesReceiver {
+	
+	/**
+	 * Отдает карте изображение тайла. Вызывается из потоков процессора тайлов.
+	 * 
+	 * @param tileRequest запрос тайла
+	 * @param tileBitmap изображение тайла. Принадлежит процессору и после возврата из метода будет 
+	 * 		  переиспользовано или освобождено, поэтому запоминать его нельзя - только нарисовать или скопировать.
+	 */
+	void addTileOnMapBitmap(TileRequest tileRequest, Bitmap tileBitmap);
+}
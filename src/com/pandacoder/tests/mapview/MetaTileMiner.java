@@ -0,0 +1,45 @@
+package com.pandacoder.tests.mapview;
+
+/**
+ * Скачивает метатайлы - блоки NxN тайлов одним изображением за один запрос - с источника, который умеет
+ * их отдавать, например с локального прокси перед сервером тайлов. Вместо десятков запросов на экран
+ * получается несколько.
+ * 
+ * <p>К базовому URL добавляются параметры x, y (левый верхний тайл метатайла) и n (размер метатайла):
+ * <pre>baseMetaTileSourceURL&x=616&y=320&n=4</pre>
+ */
+public class MetaTileMiner extends TileMiner {
+	
+	private final String baseMetaTileSourceURL;
+	private final int metaTileSize;
+	
+	/**
+	 * Создает загрузчик метатайлов
+	 * @param baseMetaTileSourceURL URL источника метатайлов, должен уже содержать '?'
+	 * @param metaTileSize размер метатайла в тайлах по каждой стороне
+	 * 
+	 * @throws IllegalArgumentException если metaTileSize < 1
+	 * @throws NullPointerException если baseMetaTileSourceURL == null
+	 */
+	public MetaTileMiner(String baseMetaTileSourceURL, int metaTileSize) {
+		super();
+		
+		if (baseMetaTileSourceURL == null) throw new NullPointerException("Meta tile source URL can't be null");
+		if (metaTileSize < 1) throw new IllegalArgumentException("Meta tile size should be >= 1");
+		
+		this.baseMetaTileSourceURL = baseMetaTileSourceURL;
+		this.metaTileSize = metaTileSize;
+	}
+
+	@Override
+	public int getMetaTileSize() {
+		return metaTileSize;
+	}
+
+	@Override
+	protected String buildURL(TileRequest tileRequest) {
+		int reqTileSnX = tileRequest.getTileSpecs().xSn,
+		    reqTileSnY = tileRequest.getTileSpecs().ySn;
+		return baseMetaTileSourceURL + "&x=" + reqTileSnX + "&y=" + reqTileSnY + "&n=" + metaTileSize;
+	}
+}
@@ -0,0 +1,891 @@
+package com.pandacoder.tests.mapview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Загрузчик тайлов на неблокирующих сокетах: один поток с селектором ведет десятки скачиваний сразу, без
+ * потока и стека на каждый запрос. URL тайлов строит обычный загрузчик, которому этот передается
+ * при создании, например {@link YandexTileMiner}.
+ *
+ * <p>HTTP/1.1 с постоянными соединениями: на хост открывается до MAX_CONNECTIONS_PER_HOST соединений, свободное
+ * соединение переиспользуется. Когда соединений уже максимум, запросы отправляются друг за другом по одному
+ * соединению, не дожидаясь ответов (pipelining), но только если сервер уже показал, что держит соединение
+ * после ответа HTTP/1.1. Запросы, на которые не пришел ответ, потому что сервер закрыл соединение, повторяются
+ * один раз по новому соединению.
+ *
+ * <p>Асинхронный ({@link #getTileDataAsync}): центр обработки тайлов отдает ему запросы, пока в работе меньше
+ * MAX_IN_FLIGHT_FETCHES. Результат приходит в потоке селектора. Поток запускается с первым запросом и
+ * завершается сам, если работы нет SELECTOR_IDLE_EXIT_MS. Дублирующие запросы ({@link TileRequestHedger})
+ * этот загрузчик не отправляет. Только http, без https.
+ *
+ * <p>Имена хостов резолвятся в отдельном потоке и запоминаются на DNS_CACHE_TTL_MS: медленный DNS на мобильной
+ * сети не должен останавливать поток селектора со всеми его скачиваниями.
+ *
+ * <p>Проверять удобно на MockTileServer из тестового проекта, см. MockTileServer.createNioTileMiner и NioTileMinerTest.
+ */
+public class NioTileMiner extends TileMiner {
+
+	private static final String LOG_TAG = NioTileMiner.class.getSimpleName();
+
+	private static final int CONNECT_TIMEOUT_MS = 1000;
+	private static final int SOCKET_TIMEOUT_MS = 5000;
+	private static final int KEEP_ALIVE_IDLE_MS = 15*1000;		// простаивающее соединение закрываем сами
+	private static final int SELECTOR_IDLE_EXIT_MS = 30*1000;
+	private static final long DNS_CACHE_TTL_MS = 5*60*1000;
+	private static final long DNS_FAILURE_TTL_MS = 10*1000;		// хост не резолвится - столько запросы к нему сразу неудачны
+
+	private static final int MAX_CONNECTIONS_PER_HOST = 6;
+	private static final int MAX_PIPELINE_DEPTH = 4;
+	private static final int MAX_IN_FLIGHT_FETCHES = 32;
+	private static final int MAX_FETCH_ATTEMPTS = 2;
+
+	private static final int READ_BUFFER_SIZE = 16*1024;
+	private static final int MAX_HEADER_LINE_LENGTH = 8*1024;
+	private static final int MAX_BODY_SIZE = 4*1024*1024;
+
+	/**
+	 * Скачивание одного тайла
+	 */
+	private static class Fetch {
+		final TileRequest tileRequest;
+		final TileDataCallback callback;
+		final String host;
+		final int port;
+		final String hostKey;		// host:port, соединения общие для одного адреса
+		final byte[] requestBytes;
+		int attempts = 0;
+		long sentAtMs;
+
+		Fetch(TileRequest tileRequest, TileDataCallback callback, URI tileURI) throws IOException {
+			this.tileRequest = tileRequest;
+			this.callback = callback;
+			this.host = tileURI.getHost();
+			this.port = (tileURI.getPort() != -1)?tileURI.getPort():80;
+			this.hostKey = host + ":" + port;
+
+			String path = (tileURI.getRawPath() != null && tileURI.getRawPath().length() > 0)?tileURI.getRawPath():"/";
+			if (tileURI.getRawQuery() != null) path += "?" + tileURI.getRawQuery();
+
+			String request = "GET " + path + " HTTP/1.1\r\n"
+					+ "Host: " + ((port == 80)?host:hostKey) + "\r\n"
+					+ "Connection: keep-alive\r\n"
+					+ "\r\n";
+			this.requestBytes = request.getBytes("ISO-8859-1");
+		}
+	}
+
+	/**
+	 * Разбор ответов HTTP/1.1 по мере прихода байт. Поддерживает Content-Length, chunked и тело до закрытия
+	 * соединения. Один разборщик на соединение, ответы идут друг за другом.
+	 */
+	private static class ResponseParser {
+
+		private static final int STATUS_LINE = 0, HEADERS = 1, BODY = 2, CHUNK_SIZE = 3, CHUNK_DATA = 4,
+								 CHUNK_DATA_END = 5, TRAILERS = 6, BODY_UNTIL_CLOSE = 7;
+
+		private int state = STATUS_LINE;
+		private final StringBuilder line = new StringBuilder();
+		private long bodyLeft;
+		private long contentLength;
+		private boolean chunked;
+
+		int statusCode;
+		boolean http11;
+		boolean keepAlive;
+		ByteArrayOutputStream body;
+
+		/**
+		 * @return строка без \r\n или null, если она еще не пришла целиком
+		 */
+		private String readLine(ByteBuffer in) throws IOException {
+			while (in.hasRemaining()) {
+				char c = (char)(in.get() & 0xff);
+				if (c == '\n') {
+					int length = line.length();
+					if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+					String result = line.toString();
+					line.setLength(0);
+					return result;
+				}
+				if (line.length() >= MAX_HEADER_LINE_LENGTH) throw new IOException("Header line is too long");
+				line.append(c);
+			}
+			return null;
+		}
+
+		private void parseStatusLine(String statusLine) throws IOException {
+			String[] parts = statusLine.split(" ", 3);
+			if (parts.length < 2 || parts[0].startsWith("HTTP/") == false) throw new IOException("Bad status line: " + statusLine);
+			try {
+				statusCode = Integer.parseInt(parts[1]);
+			} catch (NumberFormatException ex) {
+				throw new IOException("Bad status line: " + statusLine);
+			}
+			http11 = parts[0].equals("HTTP/1.1");
+			keepAlive = http11;
+			contentLength = -1;
+			chunked = false;
+		}
+
+		private void parseHeader(String headerLine) throws IOException {
+			int colon = headerLine.indexOf(':');
+			if (colon <= 0) return;
+
+			String name = headerLine.substring(0, colon).trim().toLowerCase();
+			String value = headerLine.substring(colon + 1).trim().toLowerCase();
+			if (name.equals("content-length")) {
+				try {
+					contentLength = Long.parseLong(value);
+				} catch (NumberFormatException ex) {
+					throw new IOException("Bad content length: " + value);
+				}
+			} else if (name.equals("transfer-encoding")) {
+				chunked = value.contains("chunked");
+			} else if (name.equals("connection")) {
+				if (value.contains("close")) keepAlive = false;
+				else if (value.contains("keep-alive")) keepAlive = true;
+			}
+		}
+
+		/**
+		 * Заголовки кончились, решаем, как читать тело
+		 * @return true - если тела нет и ответ уже готов
+		 */
+		private boolean startBody() throws IOException {
+			if (statusCode == 204 || statusCode == 304 || (chunked == false && contentLength == 0)) {
+				body = new ByteArrayOutputStream(0);
+				state = STATUS_LINE;
+				return true;
+			}
+
+			if (chunked) {
+				body = new ByteArrayOutputStream(READ_BUFFER_SIZE);
+				state = CHUNK_SIZE;
+			} else if (contentLength > 0) {
+				if (contentLength > MAX_BODY_SIZE) throw new IOException("Response is too big: " + contentLength);
+				body = new ByteArrayOutputStream((int)contentLength);
+				bodyLeft = contentLength;
+				state = BODY;
+			} else {	// длина неизвестна, тело до закрытия соединения
+				body = new ByteArrayOutputStream(READ_BUFFER_SIZE);
+				keepAlive = false;
+				state = BODY_UNTIL_CLOSE;
+			}
+			return false;
+		}
+
+		private void copyBody(ByteBuffer in, int count) throws IOException {
+			if (body.size() + count > MAX_BODY_SIZE) throw new IOException("Response is too big");
+			body.write(in.array(), in.arrayOffset() + in.position(), count);
+			in.position(in.position() + count);
+		}
+
+		/**
+		 * Разбирает пришедшие байты, пока не кончится очередной ответ
+		 * @return true - ответ готов (statusCode, keepAlive, body), остаток байт относится к следующему ответу
+		 * @throws IOException если сервер прислал что-то не то
+		 */
+		boolean parse(ByteBuffer in) throws IOException {
+			while (in.hasRemaining()) {
+				switch (state) {
+				case STATUS_LINE:
+					String statusLine = readLine(in);
+					if (statusLine == null) return false;
+					if (statusLine.length() == 0) break;	// лишний CRLF между ответами
+					parseStatusLine(statusLine);
+					state = HEADERS;
+					break;
+
+				case HEADERS:
+					String headerLine = readLine(in);
+					if (headerLine == null) return false;
+					if (headerLine.length() > 0) {
+						parseHeader(headerLine);
+					} else if (statusCode / 100 == 1) {	// промежуточный ответ, ждем настоящий
+						state = STATUS_LINE;
+					} else if (startBody()) {
+						return true;
+					}
+					break;
+
+				case BODY:
+				case CHUNK_DATA:
+					int count = (int)Math.min(in.remaining(), bodyLeft);
+					copyBody(in, count);
+					bodyLeft -= count;
+					if (bodyLeft == 0) {
+						if (state == BODY) {
+							state = STATUS_LINE;
+							return true;
+						}
+						state = CHUNK_DATA_END;
+					}
+					break;
+
+				case CHUNK_SIZE:
+					String sizeLine = readLine(in);
+					if (sizeLine == null) return false;
+					int extensionStart = sizeLine.indexOf(';');
+					if (extensionStart >= 0) sizeLine = sizeLine.substring(0, extensionStart);
+					try {
+						bodyLeft = Long.parseLong(sizeLine.trim(), 16);
+					} catch (NumberFormatException ex) {
+						throw new IOException("Bad chunk size: " + sizeLine);
+					}
+					if (bodyLeft < 0 || body.size() + bodyLeft > MAX_BODY_SIZE) throw new IOException("Bad chunk size: " + sizeLine);
+					state = (bodyLeft == 0)?TRAILERS:CHUNK_DATA;
+					break;
+
+				case CHUNK_DATA_END:
+					if (readLine(in) == null) return false;
+					state = CHUNK_SIZE;
+					break;
+
+				case TRAILERS:
+					String trailerLine = readLine(in);
+					if (trailerLine == null) return false;
+					if (trailerLine.length() == 0) {
+						state = STATUS_LINE;
+						return true;
+					}
+					break;
+
+				case BODY_UNTIL_CLOSE:
+					copyBody(in, in.remaining());
+					break;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Сервер закрыл соединение
+		 * @return true - если это и был конец ответа без длины
+		 */
+		boolean finishOnClose() {
+			if (state != BODY_UNTIL_CLOSE) return false;
+			state = STATUS_LINE;
+			return true;
+		}
+	}
+
+	/**
+	 * Соединение с хостом и запросы, отправленные по нему в ожидании ответа
+	 */
+	private static class Connection {
+		final String host;
+		final String hostKey;
+		final SocketChannel channel;
+		SelectionKey selectionKey;
+		boolean connected = false;
+		boolean pipeliningConfirmed = false;	// сервер уже держал соединение после ответа HTTP/1.1
+		final LinkedList<Fetch> sentFetches = new LinkedList<Fetch>();
+		final LinkedList<ByteBuffer> pendingWrites = new LinkedList<ByteBuffer>();
+		final ResponseParser responseParser = new ResponseParser();
+		long deadlineMs;
+
+		Connection(String host, String hostKey, SocketChannel channel) {
+			this.host = host;
+			this.hostKey = hostKey;
+			this.channel = channel;
+		}
+
+		boolean isIdle() {
+			return sentFetches.isEmpty();
+		}
+
+		boolean canPipeline() {
+			return connected && pipeliningConfirmed && sentFetches.size() < MAX_PIPELINE_DEPTH;
+		}
+
+		void updateInterestOps() {
+			if (connected == false) return;
+			selectionKey.interestOps(SelectionKey.OP_READ | (pendingWrites.isEmpty()?0:SelectionKey.OP_WRITE));
+		}
+	}
+
+	/**
+	 * Адрес хоста, полученный от DNS
+	 */
+	private static class ResolvedHost {
+		final InetAddress address;	// null - хост не резолвится
+		final long expiresAtMs;
+
+		ResolvedHost(InetAddress address, long expiresAtMs) {
+			this.address = address;
+			this.expiresAtMs = expiresAtMs;
+		}
+	}
+
+	private final TileMiner urlSource;
+
+	// использовать только из synchronized(this)
+	private final LinkedList<Fetch> submittedFetches;
+	private int inFlightFetches = 0;
+	private Thread selectorThread;
+	private Selector selector;
+	private final HashMap<String, ResolvedHost> resolvedHosts;
+	private final HashSet<String> resolvingHosts;
+
+	// использовать только из потока селектора
+	private final HashMap<String, LinkedList<Fetch>> waitingFetches;
+	private final HashMap<String, ArrayList<Connection>> connections;
+	private final ByteBuffer readBuffer;
+
+	/**
+	 * Создает загрузчик
+	 * @param urlSource загрузчик, который строит URL тайлов. Сам он ничего не качает.
+	 * @throws NullPointerException если urlSource == null
+	 */
+	public NioTileMiner(TileMiner urlSource) {
+		super();
+		if (urlSource == null) throw new NullPointerException("URL source can't be null");
+
+		this.urlSource = urlSource;
+		this.submittedFetches = new LinkedList<Fetch>();
+		this.resolvedHosts = new HashMap<String, ResolvedHost>();
+		this.resolvingHosts = new HashSet<String>();
+		this.waitingFetches = new HashMap<String, LinkedList<Fetch>>();
+		this.connections = new HashMap<String, ArrayList<Connection>>();
+		this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	}
+
+	@Override
+	protected String buildURL(TileRequest tileRequest) {
+		return urlSource.buildURL(tileRequest);
+	}
+
+	@Override
+	public int getMetaTileSize() {
+		return urlSource.getMetaTileSize();
+	}
+
+	@Override
+	public String getCacheNamespace() {
+		return urlSource.getCacheNamespace();
+	}
+
+	@Override
+	public void destroy() {
+		super.destroy();
+		urlSource.destroy();
+	}
+
+	@Override
+	public boolean isAsync() {
+		return true;
+	}
+
+	@Override
+	public boolean getTileDataAsync(TileRequest tileRequest, String tileURL, TileDataCallback callback) {
+		return submit(tileRequest, tileURL, callback, false);
+	}
+
+	/**
+	 * Скачивает тайл, блокируя вызывающий поток, например для сборки тайла из слоев
+	 */
+	@Override
+	public byte[] getTileData(TileRequest tileRequest, String tileURL) {
+		final CountDownLatch done = new CountDownLatch(1);
+		final byte[][] tileDataHolder = new byte[1][];
+
+		submit(tileRequest, tileURL, new TileDataCallback() {
+
+			@Override
+			public void onTileData(TileRequest tileRequest, byte[] tileData) {
+				tileDataHolder[0] = tileData;
+				done.countDown();
+			}
+		}, true);
+
+		try {
+			done.await();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;	// скачивание доведется до конца, но результат уже никому не нужен
+		}
+		return tileDataHolder[0];
+	}
+
+	/**
+	 * Отдает запрос потоку селектора
+	 * @param force принять запрос, даже если в работе уже MAX_IN_FLIGHT_FETCHES
+	 * @return false - если запрос не принят, callback не будет вызван
+	 */
+	private boolean submit(TileRequest tileRequest, String tileURL, TileDataCallback callback, boolean force) {
+		Fetch fetch;
+		try {
+			URI tileURI = new URI(tileURL);
+			if ("http".equals(tileURI.getScheme()) == false || tileURI.getHost() == null) {
+				throw new IOException("Only http URLs supported: " + tileURI);
+			}
+			fetch = new Fetch(tileRequest, callback, tileURI);
+		} catch (Exception ex) {
+			Log.w(LOG_TAG, "Fail to build tile request: " + ex.getMessage());
+			reportFetchResult(tileRequest, getURLHost(tileURL), 0, null);
+			callback.onTileData(tileRequest, null);
+			return true;
+		}
+
+		synchronized(this) {
+			if (force == false && inFlightFetches >= MAX_IN_FLIGHT_FETCHES) return false;
+
+			if (selectorThread == null) {
+				try {
+					selector = Selector.open();
+				} catch (IOException ex) {
+					Log.e(LOG_TAG, "Fail to open selector: " + ex.getMessage());
+					if (force == false) return false;
+					reportFetchResult(tileRequest, fetch.host, 0, null);
+					callback.onTileData(tileRequest, null);
+					return true;
+				}
+				selectorThread = new SelectorThread(selector);
+				selectorThread.start();
+			}
+
+			inFlightFetches++;
+			submittedFetches.add(fetch);
+			selector.wakeup();
+		}
+		return true;
+	}
+
+	/**
+	 * Поток селектора: все соединения и весь разбор ответов
+	 */
+	private class SelectorThread extends Thread {
+
+		private final Selector threadSelector;
+		private long idleSinceMs = 0;
+
+		SelectorThread(Selector threadSelector) {
+			super("NioTileMiner-selector");
+			setDaemon(true);
+			this.threadSelector = threadSelector;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (takeSubmittedFetches()) {
+					dispatchWaitingFetches(threadSelector);
+					long waitMs = checkTimeouts(SystemClock.uptimeMillis());
+
+					threadSelector.select(waitMs);
+
+					Iterator<SelectionKey> it = threadSelector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey selectionKey = it.next();
+						it.remove();
+						handleSelectionKey(selectionKey);
+					}
+				}
+			} catch (Exception ex) {
+				Log.e(LOG_TAG, "Selector thread failed: " + ex.getMessage());
+				failEverything();
+			} finally {
+				try {
+					threadSelector.close();
+				} catch (IOException ex) {
+					// закрываем молча
+				}
+			}
+		}
+
+		/**
+		 * Забирает новые запросы. Если работы нет слишком долго - отпускает поток.
+		 * @return false - поток пора завершать
+		 */
+		private boolean takeSubmittedFetches() {
+			synchronized(NioTileMiner.this) {
+				while (submittedFetches.isEmpty() == false) {
+					Fetch fetch = submittedFetches.poll();
+					getWaitingFetches(fetch.hostKey).add(fetch);
+				}
+
+				if (waitingFetches.isEmpty() == false || connections.isEmpty() == false) {
+					idleSinceMs = 0;
+					return true;
+				}
+
+				long now = SystemClock.uptimeMillis();
+				if (idleSinceMs == 0) {
+					idleSinceMs = now;
+				} else if (now - idleSinceMs >= SELECTOR_IDLE_EXIT_MS) {
+					selectorThread = null;	// следующий запрос запустит новый поток
+					selector = null;
+					return false;
+				}
+				return true;
+			}
+		}
+
+		private void handleSelectionKey(SelectionKey selectionKey) {
+			Connection connection = (Connection)selectionKey.attachment();
+			try {
+				if (selectionKey.isValid() && selectionKey.isConnectable()) {
+					if (connection.channel.finishConnect()) {
+						connection.connected = true;
+						connection.deadlineMs = SystemClock.uptimeMillis() + SOCKET_TIMEOUT_MS;
+						connection.updateInterestOps();
+					}
+				}
+				if (selectionKey.isValid() && selectionKey.isWritable()) {
+					writePendingRequests(connection);
+				}
+				if (selectionKey.isValid() && selectionKey.isReadable()) {
+					readResponses(connection);
+				}
+			} catch (IOException ex) {
+				failConnection(connection, ex.getMessage());
+			} catch (RuntimeException ex) {	// например CancelledKeyException
+				failConnection(connection, ex.toString());
+			}
+		}
+	}
+
+	private LinkedList<Fetch> getWaitingFetches(String hostKey) {
+		LinkedList<Fetch> hostFetches = waitingFetches.get(hostKey);
+		if (hostFetches == null) {
+			hostFetches = new LinkedList<Fetch>();
+			waitingFetches.put(hostKey, hostFetches);
+		}
+		return hostFetches;
+	}
+
+	/**
+	 * Раздает ждущие запросы по соединениям: сначала свободным, потом новым, и только когда соединений
+	 * максимум - вдогонку по уже занятым (pipelining).
+	 */
+	private void dispatchWaitingFetches(Selector selector) {
+		Iterator<Map.Entry<String, LinkedList<Fetch>>> it = waitingFetches.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, LinkedList<Fetch>> hostEntry = it.next();
+			LinkedList<Fetch> hostFetches = hostEntry.getValue();
+
+			ArrayList<Connection> hostConnections = connections.get(hostEntry.getKey());
+			if (hostConnections == null) {
+				hostConnections = new ArrayList<Connection>();
+				connections.put(hostEntry.getKey(), hostConnections);
+			}
+
+			while (hostFetches.isEmpty() == false) {
+				Connection connection = findIdleConnection(hostConnections);
+				if (connection == null && hostConnections.size() < MAX_CONNECTIONS_PER_HOST) {
+					try {
+						Fetch fetch = hostFetches.peek();
+						InetAddress address = getHostAddress(fetch.host);
+						if (address != null) {	// иначе хост еще резолвится, пока обходимся открытыми соединениями
+							connection = openConnection(selector, fetch, address);
+							hostConnections.add(connection);
+						}
+					} catch (IOException ex) {
+						Fetch fetch = hostFetches.poll();
+						fetch.attempts++;
+						onFetchFailed(fetch, "fail to connect: " + ex.getMessage());
+						continue;
+					}
+				}
+				if (connection == null) connection = findPipelineConnection(hostConnections);
+				if (connection == null) break;	// все соединения заняты, ждем
+
+				sendFetch(connection, hostFetches.poll());
+			}
+
+			if (hostFetches.isEmpty()) it.remove();
+			if (hostConnections.isEmpty()) connections.remove(hostEntry.getKey());
+		}
+	}
+
+	private static Connection findIdleConnection(ArrayList<Connection> hostConnections) {
+		for (Connection connection : hostConnections) {
+			if (connection.isIdle() && connection.pendingWrites.isEmpty()) return connection;
+		}
+		return null;
+	}
+
+	/**
+	 * Соединение, по которому можно отправить запрос вдогонку: с самой короткой очередью ответов
+	 */
+	private static Connection findPipelineConnection(ArrayList<Connection> hostConnections) {
+		Connection bestConnection = null;
+		for (Connection connection : hostConnections) {
+			if (connection.canPipeline() == false) continue;
+			if (bestConnection == null || connection.sentFetches.size() < bestConnection.sentFetches.size()) {
+				bestConnection = connection;
+			}
+		}
+		return bestConnection;
+	}
+
+	/**
+	 * Адрес хоста из кеша. Если его там нет или он устарел, запускает резолвинг в отдельном потоке,
+	 * по его окончании поток селектора разбудится.
+	 * @return адрес или null, если хост еще резолвится
+	 * @throws UnknownHostException если хост недавно не резолвился
+	 */
+	private synchronized InetAddress getHostAddress(final String host) throws UnknownHostException {
+		ResolvedHost resolvedHost = resolvedHosts.get(host);
+		if (resolvedHost != null && SystemClock.uptimeMillis() < resolvedHost.expiresAtMs) {
+			if (resolvedHost.address == null) throw new UnknownHostException(host);
+			return resolvedHost.address;
+		}
+
+		if (resolvingHosts.add(host)) {
+			Thread resolverThread = new Thread("NioTileMiner-dns") {
+
+				@Override
+				public void run() {
+					InetAddress address = null;
+					try {
+						address = InetAddress.getByName(host);
+					} catch (UnknownHostException ex) {
+						Log.w(LOG_TAG, "Fail to resolve " + host);
+					}
+
+					synchronized(NioTileMiner.this) {
+						long ttlMs = (address != null)?DNS_CACHE_TTL_MS:DNS_FAILURE_TTL_MS;
+						resolvedHosts.put(host, new ResolvedHost(address, SystemClock.uptimeMillis() + ttlMs));
+						resolvingHosts.remove(host);
+						if (selector != null) selector.wakeup();
+					}
+				}
+			};
+			resolverThread.setDaemon(true);
+			resolverThread.start();
+		}
+		return (resolvedHost != null)?resolvedHost.address:null;	// пока резолвится, годится и старый адрес
+	}
+
+	/**
+	 * Адрес хоста больше не отвечает, при следующем соединении резолвим заново
+	 */
+	private synchronized void forgetHostAddress(String host) {
+		resolvedHosts.remove(host);
+	}
+
+	/**
+	 * Открывает соединение по уже известному адресу хоста
+	 */
+	private Connection openConnection(Selector selector, Fetch fetch, InetAddress address) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			boolean connected = channel.connect(new InetSocketAddress(address, fetch.port));
+
+			Connection connection = new Connection(fetch.host, fetch.hostKey, channel);
+			connection.connected = connected;
+			connection.deadlineMs = SystemClock.uptimeMillis() + (connected?SOCKET_TIMEOUT_MS:CONNECT_TIMEOUT_MS);
+			connection.selectionKey = channel.register(selector, connected?SelectionKey.OP_READ:SelectionKey.OP_CONNECT, connection);
+			return connection;
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	private void sendFetch(Connection connection, Fetch fetch) {
+		long now = SystemClock.uptimeMillis();
+		if (connection.isIdle() && connection.connected) connection.deadlineMs = now + SOCKET_TIMEOUT_MS;
+
+		fetch.attempts++;
+		fetch.sentAtMs = now;
+		connection.sentFetches.add(fetch);
+		connection.pendingWrites.add(ByteBuffer.wrap(fetch.requestBytes));
+		connection.updateInterestOps();
+	}
+
+	private void writePendingRequests(Connection connection) throws IOException {
+		while (connection.pendingWrites.isEmpty() == false) {
+			ByteBuffer requestBuffer = connection.pendingWrites.peek();
+			connection.channel.write(requestBuffer);
+			if (requestBuffer.hasRemaining()) break;	// буфер сокета полон, допишем потом
+			connection.pendingWrites.poll();
+		}
+		connection.updateInterestOps();
+	}
+
+	private void readResponses(Connection connection) throws IOException {
+		readBuffer.clear();
+		int count = connection.channel.read(readBuffer);
+		if (count == -1) {	// сервер закрыл соединение
+			if (connection.responseParser.finishOnClose()) {
+				completeResponse(connection);
+			}
+			failConnection(connection, null);
+			return;
+		}
+		if (count == 0) return;
+
+		if (connection.isIdle() == false) connection.deadlineMs = SystemClock.uptimeMillis() + SOCKET_TIMEOUT_MS;
+
+		readBuffer.flip();
+		while (readBuffer.hasRemaining()) {
+			if (connection.responseParser.parse(readBuffer) == false) break;
+			if (completeResponse(connection) == false) return;
+		}
+	}
+
+	/**
+	 * Ответ пришел целиком, отдаем его запросу, который был отправлен первым
+	 * @return false - если соединение закрыто
+	 */
+	private boolean completeResponse(Connection connection) {
+		ResponseParser responseParser = connection.responseParser;
+		Fetch fetch = connection.sentFetches.poll();
+		if (fetch == null) {
+			failConnection(connection, "unexpected response");
+			return false;
+		}
+
+		int statusCode = responseParser.statusCode;
+		byte[] tileData = (statusCode == 200)?responseParser.body.toByteArray():null;
+		responseParser.body = null;
+		deliver(fetch, statusCode, tileData);
+
+		if (responseParser.keepAlive == false) {
+			failConnection(connection, null);	// недождавшиеся ответа запросы повторятся
+			return false;
+		}
+
+		if (responseParser.http11) connection.pipeliningConfirmed = true;
+		if (connection.isIdle()) connection.deadlineMs = SystemClock.uptimeMillis() + KEEP_ALIVE_IDLE_MS;
+		return true;
+	}
+
+	/**
+	 * Закрывает соединение. Запросы, на которые не пришел ответ, повторяются, если еще можно.
+	 * @param reason почему соединение закрывается, null - нормальное закрытие
+	 */
+	private void failConnection(Connection connection, String reason) {
+		try {
+			connection.channel.close();
+		} catch (IOException ex) {
+			// закрываем молча
+		}
+
+		if (connection.connected == false && reason != null) forgetHostAddress(connection.host);	// не соединились - может, адрес сменился
+
+		ArrayList<Connection> hostConnections = connections.get(connection.hostKey);
+		if (hostConnections != null) {
+			hostConnections.remove(connection);
+			if (hostConnections.isEmpty()) connections.remove(connection.hostKey);
+		}
+
+		// порядок сохраняем: первыми повторятся запросы, отправленные первыми
+		LinkedList<Fetch> hostFetches = null;
+		while (connection.sentFetches.isEmpty() == false) {
+			Fetch fetch = connection.sentFetches.removeLast();
+			if (fetch.attempts < MAX_FETCH_ATTEMPTS) {
+				if (hostFetches == null) hostFetches = getWaitingFetches(connection.hostKey);
+				hostFetches.addFirst(fetch);
+			} else {
+				onFetchFailed(fetch, (reason != null)?reason:"connection closed");
+			}
+		}
+	}
+
+	/**
+	 * Закрывает соединения, которые слишком долго ждут соединения или ответа, и простаивающие
+	 * @return сколько можно ждать до следующей проверки
+	 */
+	private long checkTimeouts(long now) {
+		long nextDeadlineMs = now + SELECTOR_IDLE_EXIT_MS;
+
+		ArrayList<Connection> expiredConnections = new ArrayList<Connection>();
+		for (ArrayList<Connection> hostConnections : connections.values()) {
+			for (Connection connection : hostConnections) {
+				if (now >= connection.deadlineMs) expiredConnections.add(connection);
+				else nextDeadlineMs = Math.min(nextDeadlineMs, connection.deadlineMs);
+			}
+		}
+
+		for (Connection connection : expiredConnections) {
+			failConnection(connection, connection.isIdle()?null:"timeout");
+		}
+		return Math.max(1, nextDeadlineMs - now);
+	}
+
+	private void onFetchFailed(Fetch fetch, String reason) {
+		Log.w(LOG_TAG, "fail to fetch " + fetch.tileRequest + ": " + reason);
+		deliver(fetch, 0, null);
+	}
+
+	/**
+	 * Отдает результат скачивания: балансировщику хостов, трекеру сбоев и тому, кто просил тайл
+	 * @param statusCode код ответа, 0 - ответа не было
+	 */
+	private void deliver(Fetch fetch, int statusCode, byte[] tileData) {
+		synchronized(this) {
+			inFlightFetches--;
+		}
+
+		TileHostBalancer hostBalancer = urlSource.getHostBalancer();
+		if (hostBalancer != null) {
+			if (statusCode != 0 && statusCode < 500) hostBalancer.onHostSucceeded(fetch.host, SystemClock.uptimeMillis() - fetch.sentAtMs);
+			else hostBalancer.onHostFailed(fetch.host);
+		}
+		reportFetchResult(fetch.tileRequest, fetch.host, statusCode, tileData);
+
+		try {
+			fetch.callback.onTileData(fetch.tileRequest, tileData);
+		} catch (RuntimeException ex) {
+			Log.e(LOG_TAG, "Tile data callback failed: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Поток селектора упал: закрываем все соединения, все запросы считаем неудачными. Следующий запрос
+	 * запустит новый поток.
+	 */
+	private void failEverything() {
+		ArrayList<Fetch> failedFetches = new ArrayList<Fetch>();
+		for (ArrayList<Connection> hostConnections : connections.values()) {
+			for (Connection connection : hostConnections) {
+				try {
+					connection.channel.close();
+				} catch (IOException ex) {
+					// закрываем молча
+				}
+				failedFetches.addAll(connection.sentFetches);
+			}
+		}
+		connections.clear();
+
+		for (LinkedList<Fetch> hostFetches : waitingFetches.values()) {
+			failedFetches.addAll(hostFetches);
+		}
+		waitingFetches.clear();
+
+		synchronized(this) {
+			failedFetches.addAll(submittedFetches);
+			submittedFetches.clear();
+			selectorThread = null;
+			selector = null;
+		}
+
+		for (Fetch fetch : failedFetches) {
+			deliver(fetch, 0, null);
+		}
+	}
+}
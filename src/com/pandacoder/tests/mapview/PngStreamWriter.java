@@ -0,0 +1,161 @@
+package com.pandacoder.tests.mapview;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import android.graphics.Bitmap;
+
+/**
+ * Пишет PNG (RGB, 8 бит на канал) построчно, не держа в памяти всю картинку: строки сжимаются по мере
+ * поступления и уходят в поток кусками IDAT. Так можно записать картинку, которая не влезла бы в один битмап.
+ *
+ * <p>Строки фильтруются фильтром Sub: для карты с большими одноцветными областями он почти ничего не стоит,
+ * а сжатие заметно лучше.
+ */
+class PngStreamWriter implements MapAreaExporter.StripWriter {
+
+	private static final byte[] PNG_SIGNATURE = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+	private static final int IDAT_CHUNK_SIZE = 64*1024;
+	private static final int BYTES_PER_PIXEL = 3;
+	private static final byte FILTER_SUB = 1;
+
+	private final DataOutputStream out;
+	private final int width, height;
+	private int rowsWritten = 0;
+
+	private final Deflater deflater;
+	private final CRC32 crc;
+	private final int[] rowPixels;
+	private final byte[] filteredRow;
+	private final byte[] idatBuffer;
+	private int idatBufferSize = 0;
+
+	/**
+	 * Начинает картинку: пишет сигнатуру и заголовок
+	 * @param out куда писать, не закрывается
+	 * @param width ширина картинки
+	 * @param height высота картинки
+	 * @throws IOException если писать не удалось
+	 */
+	PngStreamWriter(OutputStream out, int width, int height) throws IOException {
+		if (width <= 0 || height <= 0) throw new IllegalArgumentException("Image size should be > 0");
+
+		this.out = new DataOutputStream(out);
+		this.width = width;
+		this.height = height;
+
+		this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		this.crc = new CRC32();
+		this.rowPixels = new int[width];
+		this.filteredRow = new byte[1 + width*BYTES_PER_PIXEL];
+		this.idatBuffer = new byte[IDAT_CHUNK_SIZE];
+
+		this.out.write(PNG_SIGNATURE);
+
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8;		// бит на канал
+		header[9] = 2;		// RGB
+		header[10] = 0;		// deflate
+		header[11] = 0;		// стандартные фильтры
+		header[12] = 0;		// без interlace
+		writeChunk("IHDR", header, header.length);
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte)(value >>> 24);
+		buffer[offset + 1] = (byte)(value >>> 16);
+		buffer[offset + 2] = (byte)(value >>> 8);
+		buffer[offset + 3] = (byte)value;
+	}
+
+	private void writeChunk(String type, byte[] data, int length) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+
+		crc.reset();
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, 0, length);
+		out.writeInt((int)crc.getValue());
+	}
+
+	/**
+	 * Сжимает все, что уже отдано deflater, и пишет полные куски IDAT
+	 */
+	private void drainDeflater() throws IOException {
+		while (true) {
+			int count = deflater.deflate(idatBuffer, idatBufferSize, idatBuffer.length - idatBufferSize);
+			idatBufferSize += count;
+			if (idatBufferSize == idatBuffer.length) {
+				writeChunk("IDAT", idatBuffer, idatBufferSize);
+				idatBufferSize = 0;
+			} else if (count == 0) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Пишет строки картинки, все строки битмапа сверху вниз
+	 * @param strip полоса картинки шириной во всю картинку
+	 * @throws IOException если писать не удалось
+	 */
+	@Override
+	public void writeStrip(Bitmap strip) throws IOException {
+		if (strip.getWidth() != width) throw new IllegalArgumentException("Strip width should be " + width);
+
+		int rows = Math.min(strip.getHeight(), height - rowsWritten);
+		for (int y = 0; y < rows; y++) {
+			strip.getPixels(rowPixels, 0, width, 0, y, width, 1);
+
+			filteredRow[0] = FILTER_SUB;
+			int previousR = 0, previousG = 0, previousB = 0;
+			for (int x = 0, i = 1; x < width; x++, i += BYTES_PER_PIXEL) {
+				int pixel = rowPixels[x];
+				int r = (pixel >> 16) & 0xff, g = (pixel >> 8) & 0xff, b = pixel & 0xff;
+				filteredRow[i] = (byte)(r - previousR);
+				filteredRow[i + 1] = (byte)(g - previousG);
+				filteredRow[i + 2] = (byte)(b - previousB);
+				previousR = r;
+				previousG = g;
+				previousB = b;
+			}
+
+			deflater.setInput(filteredRow);
+			drainDeflater();
+		}
+		rowsWritten += rows;
+	}
+
+	/**
+	 * Дописывает остаток сжатых данных и конец картинки. Поток не закрывается. Ресурсы сжатия освобождаются
+	 * в любом случае, если записаны не все строки - больше ничего не пишется.
+	 * @throws IOException если писать не удалось или записаны не все строки
+	 */
+	@Override
+	public void finish() throws IOException {
+		try {
+			if (rowsWritten != height) throw new IOException("Only " + rowsWritten + " of " + height + " rows written");
+
+			deflater.finish();
+			while (deflater.finished() == false) {
+				drainDeflater();
+			}
+			if (idatBufferSize > 0) {
+				writeChunk("IDAT", idatBuffer, idatBufferSize);
+				idatBufferSize = 0;
+			}
+			writeChunk("IEND", new byte[0], 0);
+			out.flush();
+		} finally {
+			deflater.end();
+		}
+	}
+}
@@ -0,0 +1,338 @@
+package com.pandacoder.tests.mapview;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Заранее скачивает в кеш в постоянной памяти тайлы вдоль маршрута, чтобы карта показывалась и там, где
+ * связь пропадает. Маршрут - ломаная в координатах карты (как у {@link MapProjection}: пиксели от левого
+ * верхнего угла тайла MAP_CENTER_TILE_X_SN, MAP_CENTER_TILE_Y_SN), вокруг нее берется коридор заданной ширины.
+ *
+ * <p>Тайлы коридора качаются в порядке движения, начиная с текущего положения ({@link #updatePosition}):
+ * сначала ближайшие впереди, пройденные не качаются. Запросы идут через центр обработки тайлов как запросы
+ * фонового загрузчика ({@link TilesProcessorCenter#prefetch}), поэтому карты на экране их не ждут. Тайлы, которые
+ * уже есть в архиве или кеше, не запрашиваются. Скачанным тайл считается, только когда он оказался в кеше: тайлы,
+ * которые не скачались или не записались, запрашиваются снова, когда придет все запрошенное или обновится
+ * положение, но не больше MAX_TILE_ATTEMPTS раз. О неудачах центр обработки тайлов не сообщает, поэтому если
+ * STALL_TIMEOUT_MS не пришло ни одного запрошенного тайла, оставшиеся тоже запрашиваются снова.
+ *
+ * <p>Пока все карты в фоне, центр обработки тайлов на паузе, и загрузка ждет вместе с ним.
+ * Создается методом {@link TileEngine#prefetchRoute}, останавливается методом {@link #cancel} или сам, когда
+ * скачаны все тайлы впереди.
+ */
+public class RoutePrefetcher extends Thread implements MapTilesReceiver {
+
+	private static final String LOG_TAG = RoutePrefetcher.class.getSimpleName();
+
+	// тайл задевает коридор, если его центр не дальше половины ширины коридора и половины диагонали тайла
+	private static final float TILE_HALF_DIAGONAL_PX = TileSpecs.TILE_SIZE_WH_PX * 0.7072f;
+	private static final int MAX_TILE_ATTEMPTS = 3;		// тайл, который столько раз не попал в кеш, больше не запрашиваем
+	private static final long STALL_TIMEOUT_MS = 30*1000;	// столько ждем следующего тайла, потом запрашиваем заново
+
+	/**
+	 * Тайл коридора и где он на маршруте: расстояние вдоль маршрута до ближайшей к тайлу точки
+	 */
+	private static class RouteTile {
+		final TileRequest tileRequest;
+		float routePosition;
+		boolean prefetched = false;
+		int attempts = 0;
+
+		RouteTile(TileRequest tileRequest, float routePosition) {
+			this.tileRequest = tileRequest;
+			this.routePosition = routePosition;
+		}
+	}
+
+	private final TilesProcessorCenter tileProcessor;
+	private final TilesPersistentMemoryCache tilesPersistentCache;
+	private final TilesArchive tilesArchive;
+	private final float[] routePoints;
+	private final float corridorReachPx;
+
+	// использовать только из synchronized(this)
+	private ArrayList<RouteTile> routeTiles = new ArrayList<RouteTile>();	// в порядке движения
+	private final HashSet<TileRequest> queuedTiles = new HashSet<TileRequest>();	// запрошены и еще не пришли
+	private int prefetchedTilesCount = 0;
+	private float routePosition = 0;
+	private boolean requeueRequested = true;
+	private long lastProgressAtMs = 0;		// когда последний раз запрашивали тайлы или приходил тайл
+
+	/**
+	 * @param tileProcessor центр обработки тайлов, через который качаются тайлы
+	 * @param tilesPersistentCache кеш, в который попадут тайлы
+	 * @param tilesArchive архив базовой карты, если null - не используется
+	 * @param routePoints точки маршрута парами x, y в порядке движения, хотя бы одна точка
+	 * @param corridorWidthPx ширина коридора вокруг маршрута в пикселях карты
+	 *
+	 * @throws IllegalArgumentException если точек нет или ширина коридора отрицательная
+	 */
+	RoutePrefetcher(TilesProcessorCenter tileProcessor, TilesPersistentMemoryCache tilesPersistentCache, TilesArchive tilesArchive,
+					float[] routePoints, float corridorWidthPx) {
+		super("RoutePrefetcher");
+
+		if (routePoints.length < 2 || routePoints.length % 2 != 0) {
+			throw new IllegalArgumentException("Route should have at least one point given as x, y pair");
+		}
+		if (corridorWidthPx < 0) throw new IllegalArgumentException("Corridor width should be >= 0");
+
+		this.tileProcessor = tileProcessor;
+		this.tilesPersistentCache = tilesPersistentCache;
+		this.tilesArchive = tilesArchive;
+		this.routePoints = routePoints.clone();
+		this.corridorReachPx = corridorWidthPx/2 + TILE_HALF_DIAGONAL_PX;
+
+		setDaemon(true);
+		setPriority(Thread.MIN_PRIORITY);
+	}
+
+	/**
+	 * Сообщает, где сейчас едет пользователь: тайлы качаются от ближайшей к этой точке части маршрута
+	 * @param x координата на карте
+	 * @param y координата на карте
+	 */
+	public synchronized void updatePosition(float x, float y) {
+		routePosition = findRoutePosition(routePoints, x, y);
+		requeueRequested = true;
+		notify();
+	}
+
+	/**
+	 * Останавливает загрузку. Уже скачивающиеся тайлы докачаются в кеш.
+	 */
+	public void cancel() {
+		interrupt();
+	}
+
+	/**
+	 * Сколько тайлов в коридоре. 0, пока коридор не посчитан.
+	 */
+	public synchronized int getTilesCount() {
+		return routeTiles.size();
+	}
+
+	/**
+	 * Сколько тайлов коридора уже есть в кеше или архиве
+	 */
+	public synchronized int getPrefetchedTilesCount() {
+		return prefetchedTilesCount;
+	}
+
+	@Override
+	public void addTileOnMapBitmap(TileRequest tileRequest, Bitmap tileBitmap) {
+		// сам тайл не нужен, центр обработки тайлов отдаст его на запись в кеш. Записался ли он,
+		// проверит queueTilesAhead: в заполненный кеш или при заполненной очереди записи тайл может не попасть
+		synchronized(this) {
+			lastProgressAtMs = SystemClock.uptimeMillis();
+			if (queuedTiles.remove(tileRequest) && queuedTiles.isEmpty()) {
+				requeueRequested = true;	// все запрошенное пришло - проверим, не пора ли закончить
+				notify();
+			}
+		}
+	}
+
+	private void markPrefetched(RouteTile routeTile) {
+		if (routeTile == null || routeTile.prefetched) return;
+		routeTile.prefetched = true;
+		prefetchedTilesCount++;
+	}
+
+	@Override
+	public void run() {
+		ArrayList<RouteTile> corridorTiles = findCorridorTiles(routePoints, corridorReachPx);
+		synchronized(this) {
+			routeTiles = corridorTiles;
+		}
+		Log.i(LOG_TAG, "route corridor tiles: " + corridorTiles.size());
+
+		tileProcessor.registerPrefetcher(this);
+		try {
+			while (!isInterrupted()) {
+				float position;
+				synchronized(this) {
+					while (requeueRequested == false) {
+						try {
+							waitForProgress();
+						} catch (InterruptedException ex) {
+							return;
+						}
+					}
+					requeueRequested = false;
+					position = routePosition;
+				}
+
+				if (queueTilesAhead(position) == 0) break;	// впереди все скачано
+			}
+		} finally {
+			tileProcessor.unregister(this);
+			Log.i(LOG_TAG, "route prefetch stopped, prefetched tiles: " + getPrefetchedTilesCount() + " of " + getTilesCount());
+		}
+	}
+
+	/**
+	 * Ждет, пока не придет тайл или не обновится положение. Если запрошенные тайлы перестали приходить
+	 * (не скачались, отложены после неудачи), через STALL_TIMEOUT_MS просит запросить их заново.
+	 * Вызывать только из synchronized(this).
+	 */
+	private void waitForProgress() throws InterruptedException {
+		if (queuedTiles.isEmpty()) {
+			wait();
+			return;
+		}
+
+		long stalledMs = SystemClock.uptimeMillis() - lastProgressAtMs;
+		if (stalledMs >= STALL_TIMEOUT_MS) {
+			Log.i(LOG_TAG, "route prefetch stalled, requeue tiles: " + queuedTiles.size());
+			requeueRequested = true;
+		} else {
+			wait(STALL_TIMEOUT_MS - stalledMs);
+		}
+	}
+
+	/**
+	 * Заново ставит в очередь центра обработки тайлов все нескачанные тайлы впереди положения, по порядку движения
+	 * @return сколько тайлов запрошено
+	 */
+	private int queueTilesAhead(float position) {
+		tileProcessor.clearRequestQueue(this);
+		synchronized(this) {
+			queuedTiles.clear();
+		}
+
+		int queuedCount = 0;
+		for (RouteTile routeTile : routeTiles) {	// после подсчета коридора список не меняется
+			if (routeTile.routePosition < position - corridorReachPx) continue;	// уже проехали
+
+			synchronized(this) {
+				if (routeTile.prefetched || routeTile.attempts >= MAX_TILE_ATTEMPTS) continue;
+			}
+
+			if ((tilesArchive != null && tilesArchive.contains(routeTile.tileRequest)) || tilesPersistentCache.contains(routeTile.tileRequest)) {
+				synchronized(this) {
+					markPrefetched(routeTile);
+				}
+				continue;
+			}
+
+			synchronized(this) {
+				routeTile.attempts++;
+				queuedTiles.add(routeTile.tileRequest);
+			}
+			tileProcessor.prefetch(this, routeTile.tileRequest);
+			queuedCount++;
+		}
+
+		synchronized(this) {
+			lastProgressAtMs = SystemClock.uptimeMillis();
+		}
+		tileProcessor.doRequests();
+		return queuedCount;
+	}
+
+	/**
+	 * Находит тайлы коридора вокруг маршрута и упорядочивает их по движению
+	 * @param corridorReachPx насколько далеко от маршрута может быть центр тайла коридора
+	 */
+	private static ArrayList<RouteTile> findCorridorTiles(float[] routePoints, float corridorReachPx) {
+		HashMap<TileSpecs, RouteTile> corridorTiles = new HashMap<TileSpecs, RouteTile>();
+		float segmentStartPosition = 0;
+
+		int pointsCount = routePoints.length/2;
+		for (int i = 0; i < Math.max(1, pointsCount - 1); i++) {
+			float ax = routePoints[2*i], ay = routePoints[2*i + 1];
+			float bx = routePoints[2*Math.min(i + 1, pointsCount - 1)], by = routePoints[2*Math.min(i + 1, pointsCount - 1) + 1];
+			float segmentLength = (float)Math.hypot(bx - ax, by - ay);
+
+			// длинный отрезок обходим кусками в тайл, чтобы не перебирать тайлы всего его прямоугольника
+			int piecesCount = Math.max(1, (int)Math.ceil(segmentLength / TileSpecs.TILE_SIZE_WH_PX));
+			for (int piece = 0; piece < piecesCount; piece++) {
+				float t0 = (float)piece / piecesCount, t1 = (float)(piece + 1) / piecesCount;
+				float x0 = ax + (bx - ax)*t0, y0 = ay + (by - ay)*t0, x1 = ax + (bx - ax)*t1, y1 = ay + (by - ay)*t1;
+
+				int minXsn = toTileSn(Math.min(x0, x1) - corridorReachPx, MapProjection.MAP_CENTER_TILE_X_SN),
+					maxXsn = toTileSn(Math.max(x0, x1) + corridorReachPx, MapProjection.MAP_CENTER_TILE_X_SN),
+					minYsn = toTileSn(Math.min(y0, y1) - corridorReachPx, MapProjection.MAP_CENTER_TILE_Y_SN),
+					maxYsn = toTileSn(Math.max(y0, y1) + corridorReachPx, MapProjection.MAP_CENTER_TILE_Y_SN);
+
+				for (int xSn = minXsn; xSn <= maxXsn; xSn++) {
+					for (int ySn = minYsn; ySn <= maxYsn; ySn++) {
+						float centerX = (xSn - MapProjection.MAP_CENTER_TILE_X_SN + 0.5f)*TileSpecs.TILE_SIZE_WH_PX,
+							  centerY = (ySn - MapProjection.MAP_CENTER_TILE_Y_SN + 0.5f)*TileSpecs.TILE_SIZE_WH_PX;
+
+						float t = projectOnSegment(ax, ay, bx, by, centerX, centerY);
+						float distance = (float)Math.hypot(ax + (bx - ax)*t - centerX, ay + (by - ay)*t - centerY);
+						if (distance > corridorReachPx) continue;
+
+						float routePosition = segmentStartPosition + t*segmentLength;
+						TileSpecs tileSpecs = new TileSpecs(xSn, ySn);
+						RouteTile routeTile = corridorTiles.get(tileSpecs);
+						if (routeTile == null) {
+							corridorTiles.put(tileSpecs, new RouteTile(new TileRequest(tileSpecs), routePosition));
+						} else if (routePosition < routeTile.routePosition) {	// маршрут проходит тут несколько раз
+							routeTile.routePosition = routePosition;
+						}
+					}
+				}
+			}
+			segmentStartPosition += segmentLength;
+		}
+
+		ArrayList<RouteTile> orderedTiles = new ArrayList<RouteTile>(corridorTiles.values());
+		Collections.sort(orderedTiles, new Comparator<RouteTile>() {
+
+			@Override
+			public int compare(RouteTile first, RouteTile second) {
+				return Float.compare(first.routePosition, second.routePosition);
+			}
+		});
+		return orderedTiles;
+	}
+
+	/**
+	 * Расстояние вдоль маршрута до ближайшей к точке точки маршрута
+	 */
+	private static float findRoutePosition(float[] routePoints, float x, float y) {
+		int pointsCount = routePoints.length/2;
+		float bestPosition = 0, bestDistance = Float.MAX_VALUE, segmentStartPosition = 0;
+
+		for (int i = 0; i < Math.max(1, pointsCount - 1); i++) {
+			float ax = routePoints[2*i], ay = routePoints[2*i + 1];
+			float bx = routePoints[2*Math.min(i + 1, pointsCount - 1)], by = routePoints[2*Math.min(i + 1, pointsCount - 1) + 1];
+			float segmentLength = (float)Math.hypot(bx - ax, by - ay);
+
+			float t = projectOnSegment(ax, ay, bx, by, x, y);
+			float distance = (float)Math.hypot(ax + (bx - ax)*t - x, ay + (by - ay)*t - y);
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				bestPosition = segmentStartPosition + t*segmentLength;
+			}
+			segmentStartPosition += segmentLength;
+		}
+		return bestPosition;
+	}
+
+	/**
+	 * Ближайшая к точке точка отрезка
+	 * @return доля отрезка от его начала, от 0 до 1
+	 */
+	private static float projectOnSegment(float ax, float ay, float bx, float by, float x, float y) {
+		float dx = bx - ax, dy = by - ay;
+		float lengthSquared = dx*dx + dy*dy;
+		if (lengthSquared == 0) return 0;
+		return Math.max(0, Math.min(1, ((x - ax)*dx + (y - ay)*dy) / lengthSquared));
+	}
+
+	/**
+	 * Номер тайла, в который попадает координата карты
+	 */
+	private static int toTileSn(float coord, int mapCenterTileSn) {
+		return (int)Math.floor(coord / TileSpecs.TILE_SIZE_WH_PX) + mapCenterTileSn;
+	}
+}
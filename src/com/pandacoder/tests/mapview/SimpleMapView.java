@@ -1,13 +1,20 @@
 package com.pandacoder.tests.mapview;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
-import android.os.Environment;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
+import android.view.View;
 import android.view.ViewGroup;
 
 
@@ -22,19 +29,28 @@ import android.view.ViewGroup;
  * 	<li> {@link #pauseTileProcessing} когда карта в фоне
  * </ul>
  * 
+ * <p>При уходе в фон карта запоминает свое положение и снимок экрана и при следующем создании открывается
+ * там же, сразу со снимком (см. {@link TileEngine#saveViewportSnapshot}). У нескольких карт на экране для этого
+ * должны быть разные id.
+ * 
+ * <p>Сдвиги от касаний не применяются сразу, а копятся без блокировок и применяются раз в кадр: один сдвиг
+ * матрицы, один расчет проекции и одно обновление запросов тайлов, сколько бы событий ни пришло за кадр.
+ * 
  * 
  *
  */
-public class SimpleMapView extends ViewGroup {
+public class SimpleMapView extends ViewGroup implements MapTilesReceiver {
 	
 	private final String LOG_TAG = SimpleMapView.class.getSimpleName();
 	
-	private final int MAP_BG_COLOR = 0xff000000;
+	// цвет карты там, где нет тайлов, общий с SurfaceMapView
+	final static int MAP_BG_COLOR = 0xff000000;
 	
-	// по заданию карта должна быть 100х100, сервер отдает намного больше тайлов
-	// поэтому не будем давать пользователю сдвинуть карту больше чем
-	// на 50 тайлов в любую сторону
-	private final static int MAP_MAXMIN_XY_ALLOWED_COORDS = 100*TileSpecs.TILE_SIZE_WH_PX/2;
+	// сколько первый кадр может ждать чтения видимых тайлов с диска при быстром старте
+	private final static long TILES_PRELOAD_WAIT_MS = 150;
+	
+	// View.postOnAnimation (кадр Choreographer) есть с Android 4.1, раньше сдвиг применяется следующим сообщением UI потока
+	private final static boolean FRAME_CALLBACKS_AVAILABLE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
 	
 	private int currentMapCenterOffsetXp = 0,
 				currentMapCenterOffsetYp = 0;
@@ -46,14 +62,27 @@ public class SimpleMapView extends ViewGroup {
 		
 	private TilesProcessorCenter tileProcessor;
 	private MapProjection mapProjection;
+	private MapRenderTracer renderTracer;
 	
-	private TouchEventHandler touchEventHandler;
+	private MapPanGesture panGesture;	// копит сдвиги от касаний до кадра
+	private final AtomicBoolean panFramePosted = new AtomicBoolean(false);
+	private final Runnable applyPendingPanRunnable = new Runnable() {
+		@Override
+		public void run() {
+			panFramePosted.set(false);
+			applyPendingPan();
+		}
+	};
 	
-	private final static int TILES_RAM_CACHE_SIZE = 16;	// tiles 16*256*256*2 ~ 2.1Mb ram
-	private final static int TILES_PERSISTENT_MEMORY_CACHE_SIZE = 100*100; // tiles 100*100*256*256*2 ~1250Mb O_o 
+	private VisibleTilesTracker visibleTilesTracker;
+	private VisibleTilesListener visibleTilesListener;
+	private HashSet<TileRequest> drawnTiles;	// видимые тайлы, которые уже нарисованы на карте. использовать только из synchronized(this)
 	
-	private TilesRamCache tilesRamCache; 
-	private TilesPersistentMemoryCache tilesMemoryCache;
+	private TileEngine tileEngine;		// кеши и центр обработки тайлов, общие для всех карт процесса
+	private TileBitmapCache tilesRamCache; 
+	
+	private ViewportSnapshot startViewportSnapshot;	// положение и снимок с прошлого запуска, до первого onSizeChanged
+	private CountDownLatch tilesPreloadLatch;		// откроется, когда тайлы прошлой видимой области прочитаются с диска
 	
 
 	public SimpleMapView(Context context, AttributeSet attrs, int defStyle) {
@@ -71,88 +100,118 @@ public class SimpleMapView extends ViewGroup {
 		initThis();
 	}
 	
-	private String generateCacheDirectoryName() {
-		String dirName = Environment.getExternalStorageDirectory().getAbsolutePath();
-		dirName += "/" + getContext().getPackageName() + "/SimpleMapViewCache";
-		return dirName;
+	/**
+	 * Создает карту с заданным источником тайлов и своей директорией кеша, без архива базовой карты.
+	 * Нужен, например, для нагрузочного тестирования (TileLoadTestHarness в тестовом проекте).
+	 * 
+	 * @param tileMiner загрузчик тайлов
+	 * @param cacheDirectoryName директория кеша в постоянной памяти, null - работать без него
+	 */
+	SimpleMapView(Context context, TileMiner tileMiner, String cacheDirectoryName) {
+		super(context);
+		initThis(TileEngine.createPrivate(tileMiner, cacheDirectoryName));
 	}
 	
 	private void initThis() {
+		initThis(TileEngine.acquire(getContext()));
+	}
+	
+	private void initThis(TileEngine tileEngine) {
 		setBackgroundColor(MAP_BG_COLOR);
 		
-		tilesRamCache = new TilesRamCache(TILES_RAM_CACHE_SIZE);
-		try {
-			String cacheDirectoryName = generateCacheDirectoryName();
-			tilesMemoryCache = new TilesPersistentMemoryCache(cacheDirectoryName, TILES_PERSISTENT_MEMORY_CACHE_SIZE);
-		} catch(Exception ex) {
-			// чтото пошло не так при инициализации кеша в постоянной памяти
-			// ничего не поделаешь, работаем без этого кеша
-		}
+		this.tileEngine = tileEngine;
+		tilesRamCache = tileEngine.getTilesRamCache();
+		tileProcessor = tileEngine.getTilesProcessor();
 		
 		mapViewBitmapMatrix = new Matrix();
 		mapProjection = new MapProjection();
+		renderTracer = new MapRenderTracer();
 		
-		touchEventHandler = new TouchEventHandler();
+		panGesture = new TouchEventHandler();
 		
-		tileProcessor = new TilesProcessorCenter(this, tilesMemoryCache);
-		tileProcessor.start();
+		visibleTilesTracker = new VisibleTilesTracker();
+		visibleTilesListener = new VisibleTilesListener();
+		drawnTiles = new HashSet<TileRequest>();
+		
+		tileEngine.attach(this);
+		
+		// открываемся там же, где были в прошлый раз, тайлы той области начинают читаться с диска сразу
+		startViewportSnapshot = tileEngine.loadViewportSnapshot(getViewportName());
+		if (startViewportSnapshot != null) {
+			currentMapCenterOffsetXp = startViewportSnapshot.mapCenterOffsetXp;
+			currentMapCenterOffsetYp = startViewportSnapshot.mapCenterOffsetYp;
+			tilesPreloadLatch = tileEngine.preloadTiles(startViewportSnapshot.getVisibleTileRequests());
+		}
+	}
+	
+	/**
+	 * Имя, под которым сохраняется положение карты
+	 */
+	private String getViewportName() {
+		return (getId() != View.NO_ID)?"viewport-" + getId():"viewport";
 	}
 	
 	/**
 	 * Запускает обработку тайлов процессинговым центром
 	 */
 	public void resumeTileProcessing() {
-		tileProcessor.resumeProcessing();
+		tileEngine.resume(this);
 	}
 	
 	/**
 	 * Останавливает обработку тайлов процессинтовым центором
 	 */
 	public void pauseTileProcessing() {
-		tileProcessor.pauseProcessing();
+		tileEngine.pause(this);
+		saveViewportSnapshot();
+	}
+	
+	/**
+	 * Отдает движку положение карты и снимок экрана, чтобы при следующем запуске открыться там же
+	 */
+	private void saveViewportSnapshot() {
+		if (tileEngine.isWarmStartEnabled() == false) return;
+		
+		ViewportSnapshot viewportSnapshot;
+		synchronized(this) {
+			if (mapViewBitmap1 == null) return;
+			
+			Bitmap screenBitmap = Bitmap.createBitmap(mapViewBitmap1.getWidth(), mapViewBitmap1.getHeight(), TileSpecs.TILE_BITMAP_CONFIG);
+			Canvas screenCanvas = new Canvas(screenBitmap);
+			screenCanvas.drawColor(MAP_BG_COLOR);
+			synchronized(mapViewBitmapMatrix) {
+				screenCanvas.drawBitmap(mapViewBitmap1, mapViewBitmapMatrix, null);
+				viewportSnapshot = new ViewportSnapshot(currentMapCenterOffsetXp, currentMapCenterOffsetYp, 
+														screenBitmap.getWidth(), screenBitmap.getHeight(), screenBitmap);
+			}
+		}
+		
+		tileEngine.saveViewportSnapshot(getViewportName(), viewportSnapshot);
 	}
 	
 	/**
 	 * Простенький обработчик прикосновений, позволяет перетаскивать карту пальцем
-	 * и центрировать ее по двойному нажатию
 	 *  	
 	 */
-	private class TouchEventHandler {
+	private class TouchEventHandler extends MapPanGesture {
 		
-		private int previousActionDownX,
-					previousActionDownY;
+		@Override
+		protected void onPan() {
+			// сколько бы сдвигов ни пришло до кадра, кадр попросится один раз
+			if (panFramePosted.compareAndSet(false, true)) {
+				if (FRAME_CALLBACKS_AVAILABLE) postOnAnimation(applyPendingPanRunnable);
+				else post(applyPendingPanRunnable);
+			}
+		}
 		
-		boolean handleTouchEvent(MotionEvent event) {
+		@Override
+		protected void onRelease() {
+			// сдвиг, который еще ждет кадра, применим сейчас, чтобы проекция была актуальной
+			applyPendingPan();
 			
-			int eventX = (int) event.getX(),
-				eventY = (int) event.getY();
-			
-			switch (event.getAction()) {
-			case MotionEvent.ACTION_DOWN:
-				previousActionDownX = eventX;
-				previousActionDownY = eventY;
-				return true;
-				
-			case MotionEvent.ACTION_UP:
-				break;
-				
-			case MotionEvent.ACTION_MOVE:
-				
-				int moveMapX = eventX - previousActionDownX,
-					moveMapY = eventY - previousActionDownY;
-				
-				previousActionDownX = eventX;
-				previousActionDownY = eventY;
-				
-				if (moveMapX != 0 || moveMapY != 0) {
-					translateMap(moveMapX, moveMapY);
-					requestRequiredTiles();
-				}
-				
-				return true;
-			}
-
-			return false;
+			// во время перетаскивания запрашивались только новые тайлы, теперь
+			// дозапросим те, которые так и не появились
+			requestMissingTiles();
 		}
 	}
 
@@ -165,20 +224,51 @@ public class SimpleMapView extends ViewGroup {
 	
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
-		return touchEventHandler.handleTouchEvent(event);
+		return panGesture.handleTouchEvent(event);
+	}
+	
+	/**
+	 * Сдвигает карту и запрашивает тайлы, которые стали видны. Вызывать из UI потока.
+	 */
+	void panMap(int dx, int dy) {
+		if (dx != 0 || dy != 0) {
+			translateMap(dx, dy);
+			requestRequiredTiles();
+		}
+	}
+	
+	/**
+	 * Забирает накопленный сдвиг и применяет его. Вызывать из UI потока.
+	 */
+	private void applyPendingPan() {
+		long pan = panGesture.takePendingPan();
+		panMap(MapPanGesture.getPanX(pan), MapPanGesture.getPanY(pan));
+	}
+	
+	/**
+	 * Дозапрашивает видимые тайлы, которых нет на карте, как после отпускания пальца. Вызывать из UI потока.
+	 */
+	void finishPan() {
+		requestMissingTiles();
 	}
 	
 	private void translateMap(int dx, int dy) {
+		boolean traced = renderTracer.beginSection("SimpleMapView.translateMap");
+		long lockWaitStartNs = renderTracer.now();
 		synchronized(mapViewBitmapMatrix) {
+			long lockAcquiredNs = renderTracer.lockAcquired(MapRenderTracer.LOCK_MATRIX, lockWaitStartNs);
 			
 			// ограничение на передвижение карты
-			if (Math.abs(currentMapCenterOffsetXp - dx) > MAP_MAXMIN_XY_ALLOWED_COORDS) dx = 0;
-			if (Math.abs(currentMapCenterOffsetYp - dy) > MAP_MAXMIN_XY_ALLOWED_COORDS) dy = 0;
+			dx = MapPanGesture.limitPan(currentMapCenterOffsetXp, dx);
+			dy = MapPanGesture.limitPan(currentMapCenterOffsetYp, dy);
 			
 			mapViewBitmapMatrix.postTranslate(dx, dy);
 			currentMapCenterOffsetXp -= dx;
 			currentMapCenterOffsetYp -= dy;
+			
+			renderTracer.lockReleased(MapRenderTracer.LOCK_MATRIX, lockAcquiredNs);
 		}
+		renderTracer.endSection(traced);
 	}
 
 	@Override
@@ -186,9 +276,23 @@ public class SimpleMapView extends ViewGroup {
 		
 		if (mapViewBitmap1 == null) return;
 		
+		boolean traced = renderTracer.beginSection("SimpleMapView.onDraw");
+		long drawStartNs = renderTracer.now();
+		long lockAcquiredNs;
 		synchronized(mapViewBitmapMatrix) {
+			lockAcquiredNs = renderTracer.lockAcquired(MapRenderTracer.LOCK_MATRIX, drawStartNs);
 			canvas.drawBitmap(mapViewBitmap1, mapViewBitmapMatrix, null);
+			renderTracer.lockReleased(MapRenderTracer.LOCK_MATRIX, lockAcquiredNs);
 		}
+		renderTracer.onFrameDrawn(drawStartNs, lockAcquiredNs - drawStartNs);
+		renderTracer.endSection(traced);
+	}
+	
+	/**
+	 * Трассировка отрисовки карты. По умолчанию выключена, см. {@link MapRenderTracer#setEnabled}.
+	 */
+	public MapRenderTracer getRenderTracer() {
+		return renderTracer;
 	}
 		
 	@Override
@@ -206,11 +310,44 @@ public class SimpleMapView extends ViewGroup {
 		mapViewBitmap2 = Bitmap.createBitmap(w, h, TileSpecs.TILE_BITMAP_CONFIG);
 		mapViewCanvas = new Canvas(mapViewBitmap1);
 		
+		synchronized(this) {
+			drawnTiles.clear();
+			drawStartViewportSnapshot();
+		}
+		
+		// пусть первый кадр возьмет тайлы из памяти, а не ждет их из очереди на чтение с диска
+		if (tilesPreloadLatch != null) {
+			try {
+				tilesPreloadLatch.await(TILES_PRELOAD_WAIT_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			tilesPreloadLatch = null;
+		}
+		
+		visibleTilesTracker.reset();
 		requestRequiredTiles();
 	}
 	
 	/**
-	 * Запрашивает у tileProcessor требуемы в текущий момент тайлы для карты
+	 * Рисует снимок экрана с прошлого запуска, пока на его месте не нарисуются тайлы. Центр снимка - центр
+	 * карты, даже если размер карты с тех пор поменялся. Вызывать только из synchronized(this).
+	 */
+	private void drawStartViewportSnapshot() {
+		if (startViewportSnapshot == null) return;
+		
+		Bitmap screenBitmap = startViewportSnapshot.getScreenBitmap();
+		if (screenBitmap != null) {
+			mapViewCanvas.drawBitmap(screenBitmap, (mapViewBitmap1.getWidth() - screenBitmap.getWidth())/2, 
+									 (mapViewBitmap1.getHeight() - screenBitmap.getHeight())/2, null);
+		}
+		startViewportSnapshot.recycle();
+		startViewportSnapshot = null;
+	}
+	
+	/**
+	 * Запрашивает у tileProcessor требуемы в текущий момент тайлы для карты. Запрашиваются только тайлы,
+	 * которые стали видны с прошлого вызова, запросы на ушедшие с экрана тайлы отменяются.
 	 */
 	private void requestRequiredTiles() {
 		
@@ -218,37 +355,114 @@ public class SimpleMapView extends ViewGroup {
 		int viewHeight = getHeight();
 		
 		mapProjection.setProjectionsParams(viewWidth, viewHeight, currentMapCenterOffsetXp, currentMapCenterOffsetYp);
-				
-		int minXrequiredTile = mapProjection.getMinTileSnX(),
-			maxXrequiredTile = mapProjection.getMaxTileSnX(),
-			minYrequiredTile = mapProjection.getMinTileSnY(),
-			maxYrequiredTile = mapProjection.getMaxTileSnY();
+		if (tilesRamCache != null) tilesRamCache.updateViewport(this, mapProjection);
+		visibleTilesTracker.update(mapProjection, visibleTilesListener);
 		
-		tileProcessor.clearRequestQueue();
-				
-		for (int x = minXrequiredTile; x <= maxXrequiredTile; x++) {
-			for (int y = minYrequiredTile; y <= maxYrequiredTile; y++) {
+		tileProcessor.doRequests();
+		
+		invalidate();
+	}
+	
+	/**
+	 * Запрашивает видимые тайлы, которых еще нет на карте, например те, которые не удалось скачать.
+	 */
+	private void requestMissingTiles() {
+		
+		for (int x = mapProjection.getMinTileSnX(); x <= mapProjection.getMaxTileSnX(); x++) {
+			for (int y = mapProjection.getMinTileSnY(); y <= mapProjection.getMaxTileSnY(); y++) {
 				
-				// запрос на необхожимый тайл
 				TileRequest tileRequest = new TileRequest(new TileSpecs(x,y));
-				
-				synchronized (tilesRamCache) {
-					// сначала проверим, может быть тайл есть в РАМ кеше
-					Bitmap tileBitmap = tilesRamCache.get(tileRequest);
-					if (tileBitmap != null) {
-						addTileOnMapBitmap(tileRequest, tileBitmap);
-						continue;
-					}
+				synchronized(this) {
+					if (drawnTiles.contains(tileRequest)) continue;
 				}
-								
-				tileProcessor.request(tileRequest);
-				//Log.i(LOG_TAG, "requested tile: snX=" + x + " snY=" + y);
+				
+				requestTile(tileRequest);
 			}
 		}
 		
 		tileProcessor.doRequests();
+	}
+	
+	private void requestTile(TileRequest tileRequest) {
 		
-		invalidate();
+		tileProcessor.getStatistics().onTileRequested();
+		synchronized (tilesRamCache) {
+			// сначала проверим, может быть тайл есть в РАМ кеше
+			Bitmap tileBitmap = tilesRamCache.get(tileRequest);
+			if (tileBitmap != null) {
+				tileProcessor.getStatistics().onRamCacheHit();
+				addTileOnMapBitmap(tileRequest, tileBitmap);
+				return;
+			}
+		}
+						
+		tileProcessor.request(this, tileRequest);
+		//Log.i(LOG_TAG, "requested tile: " + tileRequest);
+	}
+	
+	/**
+	 * Сколько видимых сейчас тайлов еще не нарисовано на карте
+	 */
+	synchronized int countMissingVisibleTiles() {
+		if (mapViewBitmap1 == null) return 0;
+		
+		int visibleTilesCount = (mapProjection.getMaxTileSnX() - mapProjection.getMinTileSnX() + 1) 
+							  * (mapProjection.getMaxTileSnY() - mapProjection.getMinTileSnY() + 1);
+		return visibleTilesCount - drawnTiles.size();
+	}
+	
+	/**
+	 * Цвета центров нарисованных видимых тайлов на битмапе карты. По ним нагрузочный прогон проверяет, что 
+	 * каждый тайл нарисован на своем месте. Вызывать из UI потока.
+	 */
+	synchronized HashMap<TileRequest, Integer> sampleDrawnTileColors() {
+		HashMap<TileRequest, Integer> tileColors = new HashMap<TileRequest, Integer>();
+		if (mapViewBitmap1 == null) return tileColors;
+		
+		float[] matrixValues = new float[9];
+		synchronized(mapViewBitmapMatrix) {
+			mapViewBitmapMatrix.getValues(matrixValues);	// битмап карты сдвинут относительно экрана на матрицу
+			
+			for (TileRequest tileRequest : drawnTiles) {
+				int centerX = mapProjection.getTileScreenX(tileRequest.getTileSpecs()) - (int)matrixValues[Matrix.MTRANS_X] 
+							+ TileSpecs.TILE_SIZE_WH_PX/2;
+				int centerY = mapProjection.getTileScreenY(tileRequest.getTileSpecs()) - (int)matrixValues[Matrix.MTRANS_Y] 
+							+ TileSpecs.TILE_SIZE_WH_PX/2;
+				
+				if (centerX >= 0 && centerX < mapViewBitmap1.getWidth() && centerY >= 0 && centerY < mapViewBitmap1.getHeight()) {
+					tileColors.put(tileRequest, mapViewBitmap1.getPixel(centerX, centerY));
+				}
+			}
+		}
+		return tileColors;
+	}
+	
+	/**
+	 * Счетчики попаданий в кеши и скачанных байт
+	 */
+	public TileLoadStatistics getTileLoadStatistics() {
+		return tileProcessor.getStatistics();
+	}
+	
+	/**
+	 * Получает от visibleTilesTracker изменения видимой области карты
+	 */
+	private class VisibleTilesListener implements VisibleTilesTracker.Listener {
+
+		@Override
+		public void onTileShown(int xSn, int ySn) {
+			// запрос на необхожимый тайл
+			requestTile(new TileRequest(new TileSpecs(xSn, ySn)));
+		}
+
+		@Override
+		public void onTileHidden(int xSn, int ySn) {
+			TileRequest tileRequest = new TileRequest(new TileSpecs(xSn, ySn));
+			tileProcessor.cancelRequest(SimpleMapView.this, tileRequest);
+			synchronized(SimpleMapView.this) {
+				drawnTiles.remove(tileRequest);
+			}
+		}
 	}
 	
 	/**
@@ -257,16 +471,45 @@ public class SimpleMapView extends ViewGroup {
 	 * @param tileRequest запрос тайла
 	 * @param tileBitmap изображение тайла
 	 */
+	@Override
 	public void addTileOnMapBitmap(TileRequest tileRequest, Bitmap tileBitmap) {
 
-		synchronized(this) {
-			// сейчас будет интересное место, где надо разобраться, что делать если
-			// карта была сдвинута
+		boolean traced = renderTracer.beginSection("SimpleMapView.addTileOnMapBitmap");
+		try {
+			long viewLockWaitStartNs = renderTracer.now();
+			synchronized(this) {
+				long viewLockAcquiredNs = renderTracer.lockAcquired(MapRenderTracer.LOCK_VIEW, viewLockWaitStartNs);
+				try {
+					if (drawTileOnMapBitmap(tileRequest, tileBitmap) == false) return;
+				} finally {
+					renderTracer.lockReleased(MapRenderTracer.LOCK_VIEW, viewLockAcquiredNs);
+				}
+			}
 	
-			int tileScreenX, tileScreenY;
-			synchronized(mapViewBitmapMatrix) {
+			if (tilesRamCache != null) tilesRamCache.put(tileRequest, tileBitmap);
+		} finally {
+			renderTracer.endSection(traced);
+		}
+	}
+	
+	/**
+	 * Рисует тайл на битмапе карты. Вызывать только из synchronized(this).
+	 * @return false - если тайл уже не виден и не нарисован
+	 */
+	private boolean drawTileOnMapBitmap(TileRequest tileRequest, Bitmap tileBitmap) {
+		if (mapViewBitmap1 == null) return false;	// карта еще без размера или уже уничтожена
+		
+		// сейчас будет интересное место, где надо разобраться, что делать если
+		// карта была сдвинута
+
+		int tileScreenX, tileScreenY;
+		long matrixLockWaitStartNs = renderTracer.now();
+		synchronized(mapViewBitmapMatrix) {
+			long matrixLockAcquiredNs = renderTracer.lockAcquired(MapRenderTracer.LOCK_MATRIX, matrixLockWaitStartNs);
+			try {
 				if (!mapViewBitmapMatrix.isIdentity()) {
 	
+					boolean swapTraced = renderTracer.beginSection("SimpleMapView.swapBuffers");
 					// берем запасной битмап
 					mapViewBitmap2.eraseColor(MAP_BG_COLOR);	// стираем его
 					mapViewCanvas.setBitmap(mapViewBitmap2);	// готовимся на нем рисовать
@@ -276,23 +519,28 @@ public class SimpleMapView extends ViewGroup {
 	
 					Bitmap temp = mapViewBitmap1;
 					mapViewBitmap1 = mapViewBitmap2;
-					mapViewBitmap2 = temp;			
+					mapViewBitmap2 = temp;
+					renderTracer.onBufferSwap();
+					renderTracer.endSection(swapTraced);
 				}
 	
 				TileSpecs currentTile = tileRequest.getTileSpecs();
 				if (mapProjection.isTileNotVisible(currentTile) == true) {
-					return;
+					return false;
 				} else {
 					tileScreenX = mapProjection.getTileScreenX(tileRequest.getTileSpecs());
 					tileScreenY	= mapProjection.getTileScreenY(tileRequest.getTileSpecs());
 				}
+			} finally {
+				renderTracer.lockReleased(MapRenderTracer.LOCK_MATRIX, matrixLockAcquiredNs);
 			}
-	
-			mapViewCanvas.drawBitmap(tileBitmap, tileScreenX, tileScreenY, null);
-			postInvalidate();
 		}
 
-		if (tilesRamCache != null) tilesRamCache.put(tileRequest, tileBitmap);
+		mapViewCanvas.drawBitmap(tileBitmap, tileScreenX, tileScreenY, null);
+		drawnTiles.add(tileRequest);
+		renderTracer.onTileDrawn();
+		postInvalidate();
+		return true;
 	}
 	
 	
@@ -301,11 +549,21 @@ public class SimpleMapView extends ViewGroup {
 	 */
 	public synchronized void destroy() {
 		
-		if (tileProcessor != null) {
-			tileProcessor.destroy();
-			tileProcessor = null;
+		removeCallbacks(applyPendingPanRunnable);
+		panGesture.takePendingPan();
+		
+		if (tileEngine != null) {
+			tileEngine.detach(this);
+			tileEngine.release();	// последняя карта освобождает кеши и центр обработки тайлов
+			tileEngine = null;
+			tilesRamCache = null;
 		}		
 		
+		if (startViewportSnapshot != null) {
+			startViewportSnapshot.recycle();
+			startViewportSnapshot = null;
+		}
+		
 		if (mapViewBitmap1 != null) {
 			mapViewBitmap1.recycle();
 			mapViewBitmap1 = null;
@@ -315,10 +573,5 @@ public class SimpleMapView extends ViewGroup {
 			mapViewBitmap2.recycle();
 			mapViewBitmap2 = null;
 		}
-		
-		if (tilesRamCache != null) {
-			tilesRamCache.destroy();
-			tilesRamCache = null;
-		}		
 	}
 }
@@ -0,0 +1,415 @@
+package com.pandacoder.tests.mapview;
+
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+/**
+ * Карта из тайлов, как {@link SimpleMapView}, но рисуется на поверхности ({@link SurfaceView}) отдельным
+ * потоком отрисовки. Все, что относится к рисованию, - битмапы карты, сдвиг, проекция, видимые тайлы -
+ * принадлежит потоку отрисовки и меняется только в нем.
+ *
+ * <p>UI поток только принимает касания и складывает сдвиги в атомарный счетчик, без блокировок.
+ * Потоки процессора тайлов копируют готовые тайлы в битмапы из пула и кладут их в неблокирующую очередь.
+ * Поток отрисовки забирает накопленный сдвиг и тайлы, запрашивает новые тайлы и рисует кадр.
+ * Поэтому медленное рисование тайла никогда не останавливает UI поток.
+ *
+ * <p>Не забывать вызывать:
+ * <ul>
+ * 	<li> {@link #destroy} чтобы очистить ресурсы
+ * 	<li> {@link #resumeTileProcessing} когда карта активна
+ * 	<li> {@link #pauseTileProcessing} когда карта в фоне
+ * </ul>
+ */
+public class SurfaceMapView extends SurfaceView implements SurfaceHolder.Callback, MapTilesReceiver {
+
+	private final static int MAP_BG_COLOR = SimpleMapView.MAP_BG_COLOR;
+
+	// сколько готовых тайлов может ждать потока отрисовки. если пул пуст, поток процессора немного подождет
+	private final static int PENDING_TILES_POOL_SIZE = 8;
+	private final static long PENDING_TILES_POOL_WAIT_MS = 500;
+
+	/**
+	 * Тайл, который ждет отрисовки. Битмап взят из пула и возвращается туда после отрисовки.
+	 */
+	private static class PendingTile {
+		final TileRequest tileRequest;
+		final Bitmap tileBitmap;
+
+		PendingTile(TileRequest tileRequest, Bitmap tileBitmap) {
+			this.tileRequest = tileRequest;
+			this.tileBitmap = tileBitmap;
+		}
+	}
+
+	// общее между потоками, все без блокировок или с блокировками, которые не берет UI поток
+	private final MapPanGesture panGesture = new MapPanGesture() {
+
+		@Override
+		protected void onPan() {
+			renderThread.wakeUp();
+		}
+
+		@Override
+		protected void onRelease() {
+			pendingRelease.set(true);
+			renderThread.wakeUp();
+		}
+	};
+	private final AtomicBoolean pendingRelease = new AtomicBoolean(false);
+	private final ConcurrentLinkedQueue<PendingTile> pendingTiles = new ConcurrentLinkedQueue<PendingTile>();
+	private ArrayBlockingQueue<Bitmap> freeTileBitmaps;		// между потоками процессора и потоком отрисовки
+
+	private TileEngine tileEngine;		// кеши и центр обработки тайлов, общие для всех карт процесса
+	private TilesProcessorCenter tileProcessor;
+	private TileBitmapCache tilesRamCache;
+
+	private RenderThread renderThread;
+	private boolean destroyed = false;		// использовать только из synchronized(this)
+
+	public SurfaceMapView(Context context, AttributeSet attrs, int defStyle) {
+		super(context, attrs, defStyle);
+		initThis();
+	}
+
+	public SurfaceMapView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		initThis();
+	}
+
+	public SurfaceMapView(Context context) {
+		super(context);
+		initThis();
+	}
+
+	private void initThis() {
+		tileEngine = TileEngine.acquire(getContext());
+		tileProcessor = tileEngine.getTilesProcessor();
+		tilesRamCache = tileEngine.getTilesRamCache();
+
+		freeTileBitmaps = new ArrayBlockingQueue<Bitmap>(PENDING_TILES_POOL_SIZE);
+		for (int i = 0; i < PENDING_TILES_POOL_SIZE; i++) {
+			freeTileBitmaps.add(Bitmap.createBitmap(TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_BITMAP_CONFIG));
+		}
+
+		renderThread = new RenderThread();
+		renderThread.start();
+
+		tileEngine.attach(this);
+
+		getHolder().addCallback(this);
+	}
+
+	/**
+	 * Запускает обработку тайлов процессинговым центром
+	 */
+	public void resumeTileProcessing() {
+		tileEngine.resume(this);
+	}
+
+	/**
+	 * Останавливает обработку тайлов процессинтовым центором
+	 */
+	public void pauseTileProcessing() {
+		tileEngine.pause(this);
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		return panGesture.handleTouchEvent(event);
+	}
+
+	/**
+	 * Копирует тайл в битмап из пула и отдает потоку отрисовки. Вызывается из потоков процессора тайлов.
+	 */
+	@Override
+	public void addTileOnMapBitmap(TileRequest tileRequest, Bitmap tileBitmap) {
+		Bitmap pendingTileBitmap = null;
+		try {
+			pendingTileBitmap = freeTileBitmaps.poll(PENDING_TILES_POOL_WAIT_MS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (pendingTileBitmap == null) return;	// поток отрисовки не успевает или остановлен, тайл дозапросится потом
+
+		new Canvas(pendingTileBitmap).drawBitmap(tileBitmap, 0, 0, null);
+		pendingTiles.add(new PendingTile(tileRequest, pendingTileBitmap));
+		renderThread.wakeUp();
+	}
+
+	@Override
+	public void surfaceCreated(SurfaceHolder holder) {
+		// поверхность готова, размер придет в surfaceChanged
+	}
+
+	@Override
+	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+		renderThread.setSurface(holder, width, height);
+	}
+
+	@Override
+	public void surfaceDestroyed(SurfaceHolder holder) {
+		renderThread.setSurface(null, 0, 0);	// вернется, когда поток отрисовки отпустит поверхность
+	}
+
+	/**
+	 * Поток отрисовки. Владеет битмапами карты, сдвигом, проекцией и набором нарисованных тайлов.
+	 */
+	private class RenderThread extends Thread implements VisibleTilesTracker.Listener {
+
+		private volatile boolean running = true;
+
+		// поверхность меняется UI потоком, блокировка общая только у UI потока и потока отрисовки
+		private final Object surfaceLock = new Object();
+		private SurfaceHolder surfaceHolder;
+		private int surfaceWidth, surfaceHeight;
+		private boolean surfaceSizeChanged = false;
+
+		// дальше - только поток отрисовки
+		private Bitmap mapBitmap;			// нарисованные тайлы
+		private Bitmap spareMapBitmap;		// запасной, для перерисовки со сдвигом
+		private Canvas mapCanvas;
+		private int mapBitmapOffsetX, mapBitmapOffsetY;	// сдвиг содержимого mapBitmap с момента последней перерисовки
+		private int mapCenterOffsetX, mapCenterOffsetY;
+		private int width, height;
+		private final MapProjection mapProjection = new MapProjection();
+		private final VisibleTilesTracker visibleTilesTracker = new VisibleTilesTracker();
+		private final HashSet<TileRequest> drawnTiles = new HashSet<TileRequest>();
+
+		RenderThread() {
+			super("MapRenderThread");
+		}
+
+		void wakeUp() {
+			LockSupport.unpark(this);
+		}
+
+		void setSurface(SurfaceHolder holder, int width, int height) {
+			synchronized(surfaceLock) {
+				this.surfaceHolder = holder;
+				this.surfaceWidth = width;
+				this.surfaceHeight = height;
+				this.surfaceSizeChanged = true;
+			}
+			wakeUp();
+		}
+
+		void stopRendering() {
+			running = false;
+			wakeUp();
+			try {
+				join(200);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				LockSupport.park(this);
+				if (!running) break;
+
+				boolean resized = false;
+				int newWidth = 0, newHeight = 0;
+				synchronized(surfaceLock) {
+					if (surfaceSizeChanged) {
+						surfaceSizeChanged = false;
+						resized = (surfaceHolder != null);
+						newWidth = surfaceWidth;
+						newHeight = surfaceHeight;
+					}
+				}
+				if (resized) resize(newWidth, newHeight);
+
+				boolean changed = applyPendingPan();
+				changed |= drawPendingTiles();
+				if (pendingRelease.getAndSet(false)) requestMissingTiles();
+
+				if (changed || resized) {
+					// пока держим блокировку, UI поток не отберет поверхность
+					synchronized(surfaceLock) {
+						if (surfaceHolder != null && mapBitmap != null) drawFrame();
+					}
+				}
+			}
+
+			releaseBitmaps();
+		}
+
+		private void resize(int newWidth, int newHeight) {
+			releaseBitmaps();
+
+			width = newWidth;
+			height = newHeight;
+			mapBitmap = Bitmap.createBitmap(width, height, TileSpecs.TILE_BITMAP_CONFIG);
+			spareMapBitmap = Bitmap.createBitmap(width, height, TileSpecs.TILE_BITMAP_CONFIG);
+			mapBitmap.eraseColor(MAP_BG_COLOR);
+			mapCanvas = new Canvas(mapBitmap);
+			mapBitmapOffsetX = mapBitmapOffsetY = 0;
+
+			drawnTiles.clear();
+			visibleTilesTracker.reset();
+			requestVisibleTiles();
+		}
+
+		private void releaseBitmaps() {
+			if (mapBitmap != null) {
+				mapBitmap.recycle();
+				mapBitmap = null;
+			}
+			if (spareMapBitmap != null) {
+				spareMapBitmap.recycle();
+				spareMapBitmap = null;
+			}
+		}
+
+		private boolean applyPendingPan() {
+			long pan = panGesture.takePendingPan();
+			int dx = MapPanGesture.limitPan(mapCenterOffsetX, MapPanGesture.getPanX(pan)),
+				dy = MapPanGesture.limitPan(mapCenterOffsetY, MapPanGesture.getPanY(pan));
+			if (dx == 0 && dy == 0) return false;
+
+			mapCenterOffsetX -= dx;
+			mapCenterOffsetY -= dy;
+			mapBitmapOffsetX += dx;
+			mapBitmapOffsetY += dy;
+
+			if (mapBitmap != null) requestVisibleTiles();
+			return true;
+		}
+
+		private void requestVisibleTiles() {
+			mapProjection.setProjectionsParams(width, height, mapCenterOffsetX, mapCenterOffsetY);
+			tilesRamCache.updateViewport(SurfaceMapView.this, mapProjection);
+			visibleTilesTracker.update(mapProjection, this);
+			tileProcessor.doRequests();
+		}
+
+		private void requestMissingTiles() {
+			if (mapBitmap == null) return;
+
+			for (int x = mapProjection.getMinTileSnX(); x <= mapProjection.getMaxTileSnX(); x++) {
+				for (int y = mapProjection.getMinTileSnY(); y <= mapProjection.getMaxTileSnY(); y++) {
+					TileRequest tileRequest = new TileRequest(new TileSpecs(x, y));
+					if (drawnTiles.contains(tileRequest) == false) requestTile(tileRequest);
+				}
+			}
+			tileProcessor.doRequests();
+		}
+
+		private void requestTile(TileRequest tileRequest) {
+			synchronized(tilesRamCache) {
+				Bitmap tileBitmap = tilesRamCache.get(tileRequest);
+				if (tileBitmap != null) {
+					drawTile(tileRequest, tileBitmap);
+					return;
+				}
+			}
+			tileProcessor.request(SurfaceMapView.this, tileRequest);
+		}
+
+		@Override
+		public void onTileShown(int xSn, int ySn) {
+			requestTile(new TileRequest(new TileSpecs(xSn, ySn)));
+		}
+
+		@Override
+		public void onTileHidden(int xSn, int ySn) {
+			TileRequest tileRequest = new TileRequest(new TileSpecs(xSn, ySn));
+			tileProcessor.cancelRequest(SurfaceMapView.this, tileRequest);
+			drawnTiles.remove(tileRequest);
+		}
+
+		private boolean drawPendingTiles() {
+			boolean drawn = false;
+
+			PendingTile pendingTile;
+			while ((pendingTile = pendingTiles.poll()) != null) {
+				if (mapBitmap != null && drawTile(pendingTile.tileRequest, pendingTile.tileBitmap)) {
+					tilesRamCache.put(pendingTile.tileRequest, pendingTile.tileBitmap);
+					drawn = true;
+				}
+				freeTileBitmaps.offer(pendingTile.tileBitmap);
+			}
+
+			return drawn;
+		}
+
+		/**
+		 * Рисует тайл на битмапе карты. Если карту сдвигали, сначала перерисовывает битмап со сдвигом.
+		 * @return false - если тайл уже не виден
+		 */
+		private boolean drawTile(TileRequest tileRequest, Bitmap tileBitmap) {
+			TileSpecs tileSpecs = tileRequest.getTileSpecs();
+			if (mapProjection.isTileNotVisible(tileSpecs)) return false;
+
+			if (mapBitmapOffsetX != 0 || mapBitmapOffsetY != 0) {
+				spareMapBitmap.eraseColor(MAP_BG_COLOR);
+				mapCanvas.setBitmap(spareMapBitmap);
+				mapCanvas.drawBitmap(mapBitmap, mapBitmapOffsetX, mapBitmapOffsetY, null);
+				mapBitmapOffsetX = mapBitmapOffsetY = 0;
+
+				Bitmap temp = mapBitmap;
+				mapBitmap = spareMapBitmap;
+				spareMapBitmap = temp;
+			}
+
+			mapCanvas.drawBitmap(tileBitmap, mapProjection.getTileScreenX(tileSpecs), mapProjection.getTileScreenY(tileSpecs), null);
+			drawnTiles.add(tileRequest);
+			return true;
+		}
+
+		private void drawFrame() {
+			Canvas canvas = surfaceHolder.lockCanvas();
+			if (canvas == null) return;
+
+			try {
+				canvas.drawColor(MAP_BG_COLOR);
+				canvas.drawBitmap(mapBitmap, mapBitmapOffsetX, mapBitmapOffsetY, null);
+			} finally {
+				surfaceHolder.unlockCanvasAndPost(canvas);
+			}
+		}
+	}
+
+	/**
+	 * Правильно очищает ресурсы. Вызывать, когда карта больше не нужна. Повторные вызовы ничего не делают.
+	 */
+	public synchronized void destroy() {
+		if (destroyed) return;
+		destroyed = true;
+
+		getHolder().removeCallback(this);
+
+		// сначала поток отрисовки, он обращается к процессору тайлов
+		if (renderThread != null) {
+			renderThread.stopRendering();
+		}
+
+		// потом отключаемся от общего центра обработки тайлов, новые тайлы больше не придут
+		tileEngine.detach(this);
+		tileEngine.release();
+		tileEngine = null;
+
+		Bitmap tileBitmap;
+		while ((tileBitmap = freeTileBitmaps.poll()) != null) {
+			tileBitmap.recycle();
+		}
+		PendingTile pendingTile;
+		while ((pendingTile = pendingTiles.poll()) != null) {
+			pendingTile.tileBitmap.recycle();
+		}
+	}
+}
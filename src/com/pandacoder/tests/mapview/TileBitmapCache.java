@@ -0,0 +1,45 @@
+package com.pandacoder.tests.mapview;
+
+import android.graphics.Bitmap;
+
+/**
+ * Кеш изображений тайлов в оперативной памяти. В кеше хранятся копии.
+ * 
+ * <p>Битмап, который вернул {@link #get}, принадлежит кешу: его можно только нарисовать, и только пока
+ * держишь монитор кеша (synchronized(cache)). Менять и освобождать его нельзя.
+ */
+public interface TileBitmapCache {
+	
+	/**
+	 * Кладет в кеш копию изображения тайла
+	 * @param tileRequest запрос тайла
+	 * @param tileBitmap изображение тайла, кеш его не запоминает
+	 */
+	void put(TileRequest tileRequest, Bitmap tileBitmap);
+	
+	/**
+	 * Достает изображение тайла
+	 * @param tileRequest запрос тайла
+	 * @return изображение или null, если такого тайла в кеше нет
+	 */
+	Bitmap get(TileRequest tileRequest);
+	
+	/**
+	 * Выкидывает тайл из кеша, например когда его изображение устарело
+	 * @param tileRequest запрос тайла
+	 */
+	void remove(TileRequest tileRequest);
+	
+	/**
+	 * Сообщает кешу, какие тайлы видны карте. Кеш, который вытесняет тайлы по расстоянию до карт
+	 * (см. {@link ViewportEvictionPolicy}), бережет видимые тайлы и их соседей, остальные кеши это игнорируют.
+	 * @param mapView карта
+	 * @param mapProjection проекция карты, null - карта больше ничего не показывает
+	 */
+	void updateViewport(MapTilesReceiver mapView, MapProjection mapProjection);
+	
+	/**
+	 * Освобождает память кеша
+	 */
+	void destroy();
+}
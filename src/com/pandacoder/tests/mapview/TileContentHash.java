@@ -0,0 +1,71 @@
+package com.pandacoder.tests.mapview;
+
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Отпечатки пикселей тайлов для дедупликации в кешах. Большие куски карты - вода, пустая суша, области
+ * без покрытия - дают одинаковые тайлы, их незачем хранить по копии на каждый.
+ *
+ * <p>Пиксели - в формате {@link TileSpecs#TILE_BITMAP_CONFIG} (RGB_565), как их отдает
+ * {@link android.graphics.Bitmap#copyPixelsToBuffer}: по два байта на пиксель в порядке байт платформы.
+ */
+final class TileContentHash {
+
+	private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+	private TileContentHash() {
+	}
+
+	/**
+	 * Все ли пиксели тайла одного цвета
+	 * @param pixels пиксели тайла
+	 * @param length сколько байт пикселей
+	 */
+	static boolean isSolid(byte[] pixels, int length) {
+		byte first = pixels[0], second = pixels[1];
+		for (int i = 2; i < length; i += 2) {
+			if (pixels[i] != first || pixels[i + 1] != second) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Цвет одноцветного тайла для {@link android.graphics.Bitmap#eraseColor}. Заливка этим цветом
+	 * битмапа RGB_565 дает ровно исходный пиксель.
+	 * @param first первый байт пикселя
+	 * @param second второй байт пикселя
+	 */
+	static int toArgb(byte first, byte second) {
+		int pixel = LITTLE_ENDIAN?((first & 0xff) | (second & 0xff) << 8):((first & 0xff) << 8 | (second & 0xff));
+
+		int r = (pixel >> 11) & 0x1f, g = (pixel >> 5) & 0x3f, b = pixel & 0x1f;
+		return 0xff000000 | ((r << 3) | (r >> 2)) << 16 | ((g << 2) | (g >> 4)) << 8 | ((b << 3) | (b >> 2));
+	}
+
+	/**
+	 * Отпечаток пикселей: первые 8 байт SHA-1. Вероятность совпадения у разных тайлов на десятках тысяч тайлов
+	 * кеша пренебрежимо мала, поэтому пиксели при совпадении не сравниваются.
+	 * @param pixels пиксели тайла
+	 * @param length сколько байт пикселей
+	 * @return отпечаток, никогда не 0: 0 означает "отпечатка нет"
+	 */
+	static long hash(byte[] pixels, int length) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-1 is not available", ex);
+		}
+
+		digest.update(pixels, 0, length);
+		byte[] sha1 = digest.digest();
+
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (sha1[i] & 0xff);
+		}
+		return (hash != 0)?hash:1;
+	}
+}
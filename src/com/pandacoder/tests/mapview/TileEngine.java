@@ -0,0 +1,454 @@
+package com.pandacoder.tests.mapview;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * Все, что нужно картам для получения тайлов: кеши, архив базовой карты, загрузчик и центр обработки тайлов.
+ * Создается один на процесс ({@link #acquire}) и делится между всеми картами: две карты на экране (например
+ * основная и маленькая обзорная) не держат в памяти по два кеша, не запускают по два пула потоков скачивания
+ * и не пишут одновременно в одни и те же файлы кеша.
+ *
+ * <p>Движок считает ссылки: каждый {@link #acquire} должен завершаться {@link #release}, после последнего
+ * release ресурсы освобождаются. Центр обработки тайлов работает, пока хотя бы одна карта активна
+ * ({@link #resume}).
+ *
+ * <p>Быстрый старт: при уходе карты в фон движок сохраняет ее положение и снимок экрана
+ * ({@link #saveViewportSnapshot}), при следующем запуске карта сразу показывает снимок, а тайлы видимой области
+ * параллельно читаются с диска в кеши в памяти ({@link #preloadTiles}), не дожидаясь восстановления кеша
+ * в постоянной памяти.
+ *
+ * <p>Тайлы вдоль известного маршрута можно заранее скачать в кеш в постоянной памяти ({@link #prefetchRoute}),
+ * чтобы карта показывалась там, где пропадает связь.
+ */
+public class TileEngine {
+
+	private final static String LOG_TAG = TileEngine.class.getSimpleName();
+
+	private final static int TILES_RAM_CACHE_SIZE = 16;	// tiles 16*256*256*2 ~ 2.1Mb ram
+
+	// вместо битмапов в куче можно держать пиксели тайлов вне кучи, тогда тайлов в памяти можно держать больше
+	private final static boolean USE_OFF_HEAP_RAM_CACHE = false;
+	private final static int TILES_OFF_HEAP_RAM_CACHE_SIZE = 128; // tiles 128*256*256*2 ~ 16Mb ram вне кучи
+
+	// вытеснять из кеша в памяти тайлы, дальние от видимых областей карт, а не самые старые
+	private final static boolean RAM_CACHE_VIEWPORT_EVICTION = true;
+
+	// если есть источник метатайлов (например локальный прокси), тайлы качаются блоками
+	// META_TILE_SIZE x META_TILE_SIZE за один запрос. null - качаем по одному тайлу с яндекса
+	private final static String META_TILE_SOURCE_URL = null;
+	private final static int META_TILE_SIZE = 4;
+
+	// равноценные зеркала сервера тайлов, тайлы раскладываются по ним, например
+	// {"vec01.maps.yandex.net", "vec02.maps.yandex.net", "vec03.maps.yandex.net", "vec04.maps.yandex.net"}.
+	// null - качаем с одного хоста
+	private final static String[] TILE_SOURCE_HOSTS = null;
+
+	// качать тайлы одним потоком на неблокирующих сокетах (см. NioTileMiner), а не пулом потоков
+	private final static boolean USE_NIO_TILE_MINER = false;
+
+	// слои карты снизу вверх, например {TileLayer.MAP, TileLayer.TRAFFIC} - схема с пробками, пробки обновляются
+	// по своему времени жизни. null - только схема одним изображением. С метатайлами не сочетается
+	private final static TileLayer[] TILE_LAYERS = null;
+
+	// сжатые тайлы: столько же памяти, сколько у 16 битмапов, но это несколько сотен тайлов
+	private final static long TILES_COMPRESSED_RAM_CACHE_SIZE_BYTES = (long)TILES_RAM_CACHE_SIZE*TileSpecs.TILE_BITMAP_SIZE_BYTES;
+	private final static long TILES_PERSISTENT_MEMORY_CACHE_SIZE_BYTES = 100L*100*TileSpecs.TILE_BITMAP_SIZE_BYTES; // 100*100*256*256*2 ~1250Mb O_o
+	// часто читаемые тайлы копируются из кеша на внешней памяти (часто медленной SD карте) во внутреннюю память
+	private final static long TILES_HOT_CACHE_SIZE_BYTES = 256L*TileSpecs.TILE_BITMAP_SIZE_BYTES; // 256*256*256*2 ~32Mb
+
+	private final static int WARM_START_THREADS = 2;
+	private final static int WARM_START_QUEUE_SIZE = 4;
+	private final static String VIEWPORT_SNAPSHOT_FILE_EXTENSION = ".snapshot";
+
+	private static TileEngine sharedEngine;	// использовать только из synchronized(TileEngine.class)
+	// общий движок, который отпустили, но еще освобождают: новый на тех же директориях создавать рано.
+	// использовать только из synchronized(TileEngine.class)
+	private static TileEngine destroyingSharedEngine;
+
+	private int referenceCount = 0;			// использовать только из synchronized(TileEngine.class)
+
+	private final TileBitmapCache tilesRamCache;
+	private final TilesCompressedRamCache tilesCompressedRamCache;
+	private TilesArchive tilesArchive;
+	private TilesPersistentMemoryCache tilesMemoryCache;
+	private final TileMiner tileMiner;
+	private final TilesProcessorCenter tileProcessor;
+	private final boolean ramCachePreloadAllowed;
+	private final File viewportSnapshotsDir;						// null - быстрый старт выключен
+	private final TilePipelineStageExecutor warmStartExecutor;		// чтение тайлов при старте и запись снимков
+
+	private final HashSet<MapTilesReceiver> activeMapViews;
+	private final HashSet<RoutePrefetcher> routePrefetchers;		// использовать только из synchronized(this)
+
+	/**
+	 * Создает движок
+	 * @param tileMiner загрузчик тайлов
+	 * @param cacheDirectoryName директория кеша в постоянной памяти, null - работать без него
+	 * @param hotCacheDirectoryName директория горячего уровня кеша на быстрой памяти, null - работать без него
+	 * @param archiveFileName файл архива базовой карты, null - работать без него
+	 * @param tileLayers слои карты, null - тайл карты качается одним изображением
+	 * @param warmStart сохранять ли положение карт и снимки экрана для быстрого старта (в директории кеша)
+	 */
+	private TileEngine(TileMiner tileMiner, String cacheDirectoryName, String hotCacheDirectoryName, String archiveFileName, 
+					   TileLayer[] tileLayers, boolean warmStart) {
+
+		if (USE_OFF_HEAP_RAM_CACHE) {
+			tilesRamCache = new TilesDirectRamCache(TILES_OFF_HEAP_RAM_CACHE_SIZE, RAM_CACHE_VIEWPORT_EVICTION);
+		} else {
+			tilesRamCache = new TilesRamCache(TILES_RAM_CACHE_SIZE, RAM_CACHE_VIEWPORT_EVICTION);
+		}
+		tilesCompressedRamCache = new TilesCompressedRamCache(TILES_COMPRESSED_RAM_CACHE_SIZE_BYTES);
+
+		try {
+			if (cacheDirectoryName != null) {
+				tilesMemoryCache = new TilesPersistentMemoryCache(cacheDirectoryName, tileMiner.getCacheNamespace(), 
+															  TILES_PERSISTENT_MEMORY_CACHE_SIZE_BYTES,
+															  hotCacheDirectoryName, TILES_HOT_CACHE_SIZE_BYTES);
+			}
+		} catch(Exception ex) {
+			// чтото пошло не так при инициализации кеша в постоянной памяти
+			// ничего не поделаешь, работаем без этого кеша
+		}
+
+		try {
+			if (archiveFileName != null && new File(archiveFileName).exists()) {
+				tilesArchive = new TilesArchive(archiveFileName);
+			}
+		} catch(Exception ex) {
+			// архив испорчен или не читается, работаем без него
+			Log.w(LOG_TAG, "Fail to open tiles archive: " + ex.getMessage());
+		}
+
+		activeMapViews = new HashSet<MapTilesReceiver>();
+		routePrefetchers = new HashSet<RoutePrefetcher>();
+
+		viewportSnapshotsDir = (warmStart && tilesMemoryCache != null)?new File(cacheDirectoryName):null;
+		warmStartExecutor = new TilePipelineStageExecutor("TileWarmStart", WARM_START_THREADS, WARM_START_QUEUE_SIZE, false);
+
+		// тайл с устаревающими слоями должен пройти через центр обработки тайлов, чтобы обновиться
+		boolean hasTimeToLiveLayers = false;
+		if (tileLayers != null) {
+			for (TileLayer tileLayer : tileLayers) {
+				if (tileLayer.ttlMs > 0) hasTimeToLiveLayers = true;
+			}
+		}
+		ramCachePreloadAllowed = !hasTimeToLiveLayers;
+
+		this.tileMiner = tileMiner;
+		tileProcessor = new TilesProcessorCenter(tileMiner, tileLayers, tilesRamCache, tilesCompressedRamCache, tilesArchive, tilesMemoryCache);
+		tileProcessor.start();
+	}
+
+	private static String generateCacheDirectoryName(Context context) {
+		String dirName = Environment.getExternalStorageDirectory().getAbsolutePath();
+		dirName += "/" + context.getPackageName() + "/SimpleMapViewCache";
+		return dirName;
+	}
+
+	/**
+	 * Горячий уровень кеша лежит во внутренней памяти приложения: она быстрее внешней, но ее мало
+	 */
+	private static String generateHotCacheDirectoryName(Context context) {
+		File cacheDir = context.getCacheDir();
+		return (cacheDir != null)?new File(cacheDir, "SimpleMapViewHotCache").getAbsolutePath():null;
+	}
+
+	/**
+	 * Архив с базовой картой района вокруг центра карты лежит рядом с директорией кеша
+	 */
+	private static String generateArchiveFileName(Context context) {
+		String fileName = Environment.getExternalStorageDirectory().getAbsolutePath();
+		fileName += "/" + context.getPackageName() + "/SimpleMapViewBase.tiles";
+		return fileName;
+	}
+
+	/**
+	 * Возвращает общий для процесса движок, создает его при первом вызове.
+	 * Каждому вызову должен соответствовать вызов {@link #release}.
+	 *
+	 * <p>Если прошлый общий движок еще освобождается (дописывает состояние кеша), ждет, пока он закончит,
+	 * чтобы два кеша никогда не работали с одной директорией.
+	 */
+	public static synchronized TileEngine acquire(Context context) {
+		boolean interrupted = false;
+		while (destroyingSharedEngine != null) {
+			try {
+				TileEngine.class.wait();
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+
+		if (sharedEngine == null) {
+			TileMiner tileMiner;
+			TileLayer[] tileLayers = null;
+			if (META_TILE_SOURCE_URL != null) {
+				tileMiner = new MetaTileMiner(META_TILE_SOURCE_URL, META_TILE_SIZE);
+			} else {
+				tileMiner = (TILE_SOURCE_HOSTS != null)?new YandexTileMiner(TILE_SOURCE_HOSTS):new YandexTileMiner();
+				tileLayers = TILE_LAYERS;
+			}
+			if (USE_NIO_TILE_MINER) tileMiner = new NioTileMiner(tileMiner);
+			sharedEngine = new TileEngine(tileMiner, generateCacheDirectoryName(context), generateHotCacheDirectoryName(context),
+										  generateArchiveFileName(context), tileLayers, true);
+		}
+		sharedEngine.referenceCount++;
+		return sharedEngine;
+	}
+
+	/**
+	 * Создает отдельный, ни с кем не разделяемый движок, например для нагрузочного тестирования.
+	 * Освобождается первым же вызовом {@link #release}.
+	 *
+	 * @param tileMiner загрузчик тайлов
+	 * @param cacheDirectoryName директория кеша в постоянной памяти, null - работать без него
+	 */
+	static TileEngine createPrivate(TileMiner tileMiner, String cacheDirectoryName) {
+		TileEngine engine = new TileEngine(tileMiner, cacheDirectoryName, null, null, null, false);
+		synchronized(TileEngine.class) {
+			engine.referenceCount = 1;
+		}
+		return engine;
+	}
+
+	/**
+	 * Отпускает движок. Когда его отпустили все, кто получал, ресурсы освобождаются. Пока общий движок
+	 * освобождается, {@link #acquire} ждет.
+	 */
+	public void release() {
+		synchronized(TileEngine.class) {
+			if (referenceCount == 0) return;	// уже освобожден
+			if (--referenceCount > 0) return;
+			if (sharedEngine == this) {
+				sharedEngine = null;
+				destroyingSharedEngine = this;
+			}
+		}
+
+		try {
+			destroy();
+		} finally {
+			synchronized(TileEngine.class) {
+				if (destroyingSharedEngine == this) {
+					destroyingSharedEngine = null;
+					TileEngine.class.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Подключает карту к центру обработки тайлов
+	 */
+	public void attach(MapTilesReceiver mapView) {
+		tileProcessor.register(mapView);
+	}
+
+	/**
+	 * Подключает к центру обработки тайлов получателя, которого нет на экране, например {@link MapAreaExporter}.
+	 * Его запросы обрабатываются после запросов карт. Отключается методом {@link #detach}.
+	 */
+	public void attachBackground(MapTilesReceiver receiver) {
+		tileProcessor.registerBackground(receiver);
+	}
+
+	/**
+	 * Отключает карту. Ее запросы отменяются, тайлы ей больше не отдаются, ее видимая область больше
+	 * не защищает тайлы в кеше в памяти.
+	 */
+	public void detach(MapTilesReceiver mapView) {
+		pause(mapView);
+		tileProcessor.unregister(mapView);
+		tilesRamCache.updateViewport(mapView, null);
+	}
+
+	/**
+	 * Карта стала активной: центр обработки тайлов работает, пока активна хотя бы одна карта
+	 */
+	public synchronized void resume(MapTilesReceiver mapView) {
+		if (activeMapViews.add(mapView) && activeMapViews.size() == 1) {
+			tileProcessor.resumeProcessing();
+		}
+	}
+
+	/**
+	 * Карта ушла в фон. Когда в фоне все карты, центр обработки тайлов встает на паузу.
+	 */
+	public synchronized void pause(MapTilesReceiver mapView) {
+		if (activeMapViews.remove(mapView) && activeMapViews.isEmpty()) {
+			tileProcessor.pauseProcessing();
+		}
+	}
+
+	/**
+	 * Начинает в фоне скачивать в кеш в постоянной памяти тайлы вдоль маршрута, см. {@link RoutePrefetcher}.
+	 * Запросы карт на экране обрабатываются раньше.
+	 *
+	 * @param routePoints точки маршрута в координатах карты парами x, y в порядке движения
+	 * @param corridorWidthPx ширина коридора вокруг маршрута в пикселях карты
+	 * @return загрузчик: ему сообщается текущее положение, им же загрузка отменяется
+	 *
+	 * @throws IllegalStateException если движок работает без кеша в постоянной памяти
+	 * @throws IllegalArgumentException если точек нет или ширина коридора отрицательная
+	 */
+	public synchronized RoutePrefetcher prefetchRoute(float[] routePoints, float corridorWidthPx) {
+		if (tilesMemoryCache == null) throw new IllegalStateException("Route prefetch needs the persistent tiles cache");
+
+		// закончившие загрузчики больше не держим
+		Iterator<RoutePrefetcher> it = routePrefetchers.iterator();
+		while (it.hasNext()) {
+			if (it.next().isAlive() == false) it.remove();
+		}
+
+		RoutePrefetcher routePrefetcher = new RoutePrefetcher(tileProcessor, tilesMemoryCache, tilesArchive, routePoints, corridorWidthPx);
+		routePrefetchers.add(routePrefetcher);
+		routePrefetcher.start();
+		return routePrefetcher;
+	}
+
+	TilesProcessorCenter getTilesProcessor() {
+		return tileProcessor;
+	}
+
+	/**
+	 * Кеш изображений тайлов, общий для всех карт. Перед {@link TileBitmapCache#get} брать монитор кеша.
+	 */
+	TileBitmapCache getTilesRamCache() {
+		return tilesRamCache;
+	}
+
+	/**
+	 * Читает сохраненное положение карты и снимок ее экрана. Читает с диска в вызывающем потоке.
+	 * @param viewportName имя карты, у разных карт на экране должны быть разные
+	 * @return снимок или null, если его нет или быстрый старт выключен
+	 */
+	ViewportSnapshot loadViewportSnapshot(String viewportName) {
+		if (viewportSnapshotsDir == null) return null;
+		return ViewportSnapshot.readFrom(new File(viewportSnapshotsDir, viewportName + VIEWPORT_SNAPSHOT_FILE_EXTENSION));
+	}
+
+	/**
+	 * Включен ли быстрый старт, то есть есть ли смысл делать снимок экрана для {@link #saveViewportSnapshot}
+	 */
+	boolean isWarmStartEnabled() {
+		return viewportSnapshotsDir != null;
+	}
+
+	/**
+	 * Сохраняет положение карты и снимок ее экрана в фоне. Снимок экрана после записи освобождается.
+	 * @param viewportName имя карты, то же, что и в {@link #loadViewportSnapshot}
+	 * @param viewportSnapshot снимок, теперь принадлежит движку
+	 */
+	void saveViewportSnapshot(String viewportName, final ViewportSnapshot viewportSnapshot) {
+		if (viewportSnapshotsDir == null) {
+			viewportSnapshot.recycle();
+			return;
+		}
+
+		final File snapshotFile = new File(viewportSnapshotsDir, viewportName + VIEWPORT_SNAPSHOT_FILE_EXTENSION);
+		try {
+			warmStartExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						viewportSnapshot.writeTo(snapshotFile);
+					} catch (IOException ex) {
+						Log.w(LOG_TAG, "Fail to save viewport snapshot: " + ex.getMessage());
+					} finally {
+						viewportSnapshot.recycle();
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			viewportSnapshot.recycle();	// не успеваем записывать, оставим прошлый снимок
+		}
+	}
+
+	/**
+	 * Параллельно читает тайлы из файлов кеша в постоянной памяти в кеши в оперативной памяти. Не ждет,
+	 * пока кеш в постоянной памяти восстановится, поэтому к первому кадру видимые тайлы уже в памяти.
+	 *
+	 * @param tileRequests тайлы в порядке чтения, в кеш изображений попадут последние из них
+	 * @return защелка, которая откроется, когда все тайлы прочитаются
+	 */
+	CountDownLatch preloadTiles(List<TileRequest> tileRequests) {
+		final CountDownLatch preloadLatch = new CountDownLatch(WARM_START_THREADS);
+
+		for (int i = 0; i < WARM_START_THREADS; i++) {
+			// каждый поток читает каждый WARM_START_THREADS-й тайл, так порядок чтения примерно сохраняется
+			final int firstTileIndex = i;
+			final List<TileRequest> preloadedTileRequests = tileRequests;
+			Runnable preloadJob = new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						preloadTiles(preloadedTileRequests, firstTileIndex);
+					} finally {
+						preloadLatch.countDown();
+					}
+				}
+			};
+
+			try {
+				warmStartExecutor.execute(preloadJob);
+			} catch (RejectedExecutionException ex) {
+				preloadLatch.countDown();
+			}
+		}
+
+		return preloadLatch;
+	}
+
+	private void preloadTiles(List<TileRequest> tileRequests, int firstTileIndex) {
+		if (tilesMemoryCache == null) return;
+
+		Bitmap tileBitmap = Bitmap.createBitmap(TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_BITMAP_CONFIG);
+		ByteBuffer pixelsBuffer = ByteBuffer.allocate(TileSpecs.TILE_BITMAP_SIZE_BYTES);
+		try {
+			for (int i = firstTileIndex; i < tileRequests.size(); i += WARM_START_THREADS) {
+				TileRequest tileRequest = tileRequests.get(i);
+				if (tilesMemoryCache.readTileFile(tileRequest, tileBitmap, pixelsBuffer) == false) continue;
+
+				tilesCompressedRamCache.putPixels(tileRequest, tileBitmap);
+				if (ramCachePreloadAllowed) tilesRamCache.put(tileRequest, tileBitmap);
+			}
+		} finally {
+			tileBitmap.recycle();
+		}
+	}
+
+	private void destroy() {
+		// снимки экрана, которые уже в очереди, пусть допишутся
+		warmStartExecutor.shutdown();
+		synchronized(this) {
+			for (RoutePrefetcher routePrefetcher : routePrefetchers) {
+				routePrefetcher.cancel();
+			}
+			routePrefetchers.clear();
+		}
+		tileProcessor.destroy();
+		tileMiner.destroy();
+
+		tilesRamCache.destroy();
+		tilesCompressedRamCache.destroy();
+
+		if (tilesMemoryCache != null) {
+			tilesMemoryCache.destroy();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package com.pandacoder.tests.mapview;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Помнит неудачные попытки скачать тайлы, чтобы не долбить сервер одними и теми же запросами.
+ *
+ * <ul>
+ * 	<li> Для каждого тайла, который не удалось скачать, считается время следующей попытки: экспоненциальная
+ * 		 задержка со случайным разбросом. До этого времени тайл считается отсутствующим (негативный кеш).
+ * 	<li> Для каждого хоста работает предохранитель (circuit breaker): после нескольких сбоев подряд хост
+ * 		 считается лежащим, и запросы к нему не отправляются до конца паузы. После паузы пропускается
+ * 		 один пробный запрос: если он прошел - хост снова считается рабочим, если нет - пауза удваивается.
+ * </ul>
+ *
+ * Между зеркалами источника тайлы раскладывает {@link TileHostBalancer}, он уводит тайлы с плохого хоста раньше,
+ * чем здесь сработает предохранитель. О хосте сообщается тот, на который на самом деле ушел запрос.
+ *
+ * Методы можно вызывать из разных потоков.
+ */
+public class TileFailureTracker {
+
+	private static final String LOG_TAG = TileFailureTracker.class.getSimpleName();
+
+	private static final long TILE_BACKOFF_BASE_MS = 2*1000;
+	private static final long TILE_BACKOFF_MAX_MS = 5*60*1000;
+	private static final int MAX_TRACKED_TILES = 1024;
+
+	private static final int HOST_FAILURES_TO_OPEN_CIRCUIT = 5;
+	private static final long HOST_COOLDOWN_BASE_MS = 5*1000;
+	private static final long HOST_COOLDOWN_MAX_MS = 2*60*1000;
+	private static final long HOST_PROBE_WAIT_MS = 500;	// сколько ждать результата пробного запроса
+
+	private static class TileFailureState {
+		int failures;
+		long retryAtMs;
+	}
+
+	private static class HostState {
+		int consecutiveFailures;
+		int circuitTrips;		// сколько раз подряд предохранитель срабатывал, от этого зависит пауза
+		long openUntilMs;		// 0 - предохранитель замкнут, запросы идут
+		boolean probeInFlight;
+	}
+
+	private final LinkedHashMap<TileRequest, TileFailureState> failedTiles;
+	private final HashMap<String, HostState> hosts;
+	private final Random random;
+
+	public TileFailureTracker() {
+		// помним ограниченное количество тайлов, самые давние неудачи забываются
+		this.failedTiles = new LinkedHashMap<TileRequest, TileFailureState>(64, 0.75f, false) {
+
+			private static final long serialVersionUID = -2164393316203556181L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<TileRequest, TileFailureState> eldest) {
+				return size() > MAX_TRACKED_TILES;
+			}
+		};
+		this.hosts = new HashMap<String, HostState>();
+		this.random = new Random();
+	}
+
+	/**
+	 * Экспоненциальная задержка со случайным разбросом от половины до полной величины,
+	 * чтобы повторные запросы многих тайлов не приходили на сервер одновременно
+	 */
+	private long jitteredBackoff(long baseMs, long maxMs, int attempt) {
+		long backoffMs = baseMs << Math.min(attempt, 16);
+		if (backoffMs > maxMs || backoffMs <= 0) backoffMs = maxMs;
+		return backoffMs / 2 + (long)(random.nextDouble() * (backoffMs / 2));
+	}
+
+	/**
+	 * Тайл не удалось скачать или декодировать
+	 */
+	public synchronized void onTileFailed(TileRequest tileRequest) {
+		TileFailureState state = failedTiles.remove(tileRequest);	// remove + put, чтобы тайл стал самым свежим
+		if (state == null) state = new TileFailureState();
+
+		state.retryAtMs = SystemClock.uptimeMillis() + jitteredBackoff(TILE_BACKOFF_BASE_MS, TILE_BACKOFF_MAX_MS, state.failures);
+		state.failures++;
+		failedTiles.put(tileRequest, state);
+	}
+
+	/**
+	 * Тайл скачан, можно забыть о прошлых неудачах
+	 */
+	public synchronized void onTileSucceeded(TileRequest tileRequest) {
+		failedTiles.remove(tileRequest);
+	}
+
+	/**
+	 * @return true - если тайл недавно не удалось скачать и время следующей попытки еще не пришло
+	 */
+	public synchronized boolean isTileBackedOff(TileRequest tileRequest) {
+		TileFailureState state = failedTiles.get(tileRequest);
+		return state != null && SystemClock.uptimeMillis() < state.retryAtMs;
+	}
+
+	/**
+	 * @return когда можно снова качать тайл, по часам SystemClock.uptimeMillis. 0 - тайл можно качать сразу
+	 */
+	public synchronized long getTileRetryAtMs(TileRequest tileRequest) {
+		TileFailureState state = failedTiles.get(tileRequest);
+		return (state != null && SystemClock.uptimeMillis() < state.retryAtMs)?state.retryAtMs:0;
+	}
+
+	private HostState getHostState(String host) {
+		HostState state = hosts.get(host);
+		if (state == null) {
+			state = new HostState();
+			hosts.put(host, state);
+		}
+		return state;
+	}
+
+	/**
+	 * Хост не ответил или ответил ошибкой сервера
+	 */
+	public synchronized void onHostFailed(String host) {
+		if (host == null) return;
+
+		HostState state = getHostState(host);
+		state.probeInFlight = false;
+		state.consecutiveFailures++;
+
+		// пробный запрос не прошел или сбоев слишком много - размыкаем предохранитель
+		if (state.openUntilMs != 0 || state.consecutiveFailures >= HOST_FAILURES_TO_OPEN_CIRCUIT) {
+			long cooldownMs = jitteredBackoff(HOST_COOLDOWN_BASE_MS, HOST_COOLDOWN_MAX_MS, state.circuitTrips);
+			state.openUntilMs = SystemClock.uptimeMillis() + cooldownMs;
+			state.circuitTrips++;
+			Log.w(LOG_TAG, "host " + host + " looks down, pause requests for " + cooldownMs + "ms");
+		}
+	}
+
+	/**
+	 * Хост ответил, даже если самого тайла на нем нет
+	 */
+	public synchronized void onHostSucceeded(String host) {
+		if (host == null) return;
+
+		HostState state = getHostState(host);
+		if (state.openUntilMs != 0) {
+			Log.i(LOG_TAG, "host " + host + " is up again");
+		}
+		state.consecutiveFailures = 0;
+		state.circuitTrips = 0;
+		state.openUntilMs = 0;
+		state.probeInFlight = false;
+	}
+
+	/**
+	 * Спрашивает разрешения отправить запрос хосту. Если предохранитель разомкнут и пауза прошла, разрешает
+	 * ровно один пробный запрос, остальные ждут его результата.
+	 *
+	 * @return 0 - запрос можно отправлять, иначе сколько миллисекунд стоит подождать
+	 */
+	public synchronized long tryAcquireHost(String host) {
+		if (host == null) return 0;
+
+		HostState state = hosts.get(host);
+		if (state == null || state.openUntilMs == 0) return 0;
+
+		long now = SystemClock.uptimeMillis();
+		if (now < state.openUntilMs) return state.openUntilMs - now;
+		if (state.probeInFlight) return HOST_PROBE_WAIT_MS;
+
+		state.probeInFlight = true;
+		return 0;
+	}
+
+	/**
+	 * Запрос, на который {@link #tryAcquireHost} дал разрешение, так и не был отправлен
+	 */
+	public synchronized void releaseHost(String host) {
+		if (host == null) return;
+
+		HostState state = hosts.get(host);
+		if (state != null) state.probeInFlight = false;
+	}
+}
@@ -0,0 +1,152 @@
+package com.pandacoder.tests.mapview;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Компактная оценка частоты обращений к тайлам (count-min sketch с 4-битными счетчиками).
+ * Используется кешем для решения, пускать ли новый тайл на место старого (TinyLFU).
+ *
+ * <p>Счетчики периодически делятся пополам, поэтому старая популярность со временем забывается.
+ * Класс не потокобезопасен, синхронизация на совести пользователя.
+ */
+class TileFrequencySketch {
+
+	private static final int HASH_FUNCTIONS_COUNT = 4;
+	private static final int COUNTERS_PER_LONG = 16;
+	private static final int MAX_COUNTER_VALUE = 15;
+
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+	};
+
+	private final long[] counters;
+	private final int countersMask;
+	private final int sampleSize;
+	private int additions;
+
+	/**
+	 * Создает оценку частоты
+	 * @param expectedEntries сколько разных тайлов примерно будет учитываться одновременно
+	 */
+	TileFrequencySketch(int expectedEntries) {
+		int countersCount = Integer.highestOneBit(Math.max(expectedEntries, COUNTERS_PER_LONG) - 1) << 1;
+		this.counters = new long[countersCount / COUNTERS_PER_LONG];
+		this.countersMask = countersCount - 1;
+		this.sampleSize = 10 * Math.max(expectedEntries, 1);
+	}
+
+	private static long tileKey(TileRequest tileRequest) {
+		TileSpecs tileSpecs = tileRequest.getTileSpecs();
+		return ((long)tileSpecs.xSn << 32) ^ (tileSpecs.ySn & 0xffffffffL);
+	}
+
+	private int counterIndex(long key, int hashNumber) {
+		long hash = (key + SEEDS[hashNumber]) * SEEDS[hashNumber];
+		hash ^= hash >>> 29;
+		return (int) hash & countersMask;
+	}
+
+	private int getCounter(int index) {
+		int shift = (index % COUNTERS_PER_LONG) * 4;
+		return (int) ((counters[index / COUNTERS_PER_LONG] >>> shift) & 0xfL);
+	}
+
+	private boolean incrementCounter(int index) {
+		int shift = (index % COUNTERS_PER_LONG) * 4;
+		int longIndex = index / COUNTERS_PER_LONG;
+		if (((counters[longIndex] >>> shift) & 0xfL) == MAX_COUNTER_VALUE) return false;
+		counters[longIndex] += 1L << shift;
+		return true;
+	}
+
+	/**
+	 * Учитывает очередное обращение к тайлу
+	 * @param tileRequest запрос тайла
+	 */
+	void increment(TileRequest tileRequest) {
+		long key = tileKey(tileRequest);
+
+		boolean added = false;
+		for (int i = 0; i < HASH_FUNCTIONS_COUNT; i++) {
+			added |= incrementCounter(counterIndex(key, i));
+		}
+
+		if (added && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+
+	/**
+	 * Оценка частоты обращений к тайлу
+	 * @param tileRequest запрос тайла
+	 * @return от 0 до 15
+	 */
+	int frequency(TileRequest tileRequest) {
+		long key = tileKey(tileRequest);
+
+		int frequency = MAX_COUNTER_VALUE;
+		for (int i = 0; i < HASH_FUNCTIONS_COUNT; i++) {
+			frequency = Math.min(frequency, getCounter(counterIndex(key, i)));
+		}
+
+		return frequency;
+	}
+
+	/**
+	 * "Старение": все счетчики делятся пополам
+	 */
+	private void reset() {
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = (counters[i] >>> 1) & RESET_MASK;
+		}
+		additions /= 2;
+	}
+
+	void writeTo(DataOutputStream dos) throws IOException {
+		dos.writeInt(counters.length);
+		dos.writeInt(additions);
+		for (long counter : counters) {
+			dos.writeLong(counter);
+		}
+	}
+
+	/**
+	 * Восстанавливает счетчики, сохраненные {@link #writeTo}
+	 * @return false - если сохраненная оценка другого размера и не может быть использована. Ее данные
+	 * 		   все равно прочитываются, за ними можно читать дальше.
+	 * @throws IOException если данные испорчены или кончились
+	 */
+	boolean readFrom(DataInputStream dis) throws IOException {
+		int savedLength = dis.readInt();
+		if (savedLength != counters.length) {
+			if (savedLength < 0) throw new IOException("Bad frequency sketch length: " + savedLength);
+			skipFully(dis, 4 + 8L*savedLength);	// additions и счетчики
+			return false;
+		}
+
+		int savedAdditions = dis.readInt();
+		long[] savedCounters = new long[counters.length];
+		for (int i = 0; i < savedCounters.length; i++) {
+			savedCounters[i] = dis.readLong();
+		}
+		
+		System.arraycopy(savedCounters, 0, counters, 0, counters.length);
+		additions = savedAdditions;
+		return true;
+	}
+
+	private static void skipFully(DataInputStream dis, long count) throws IOException {
+		while (count > 0) {
+			int skipped = dis.skipBytes((int)Math.min(count, Integer.MAX_VALUE));
+			if (skipped <= 0) {	// skipBytes может ничего не пропустить, не дойдя до конца - проверим чтением
+				dis.readByte();
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+	}
+}
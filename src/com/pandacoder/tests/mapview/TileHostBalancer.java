@@ -0,0 +1,201 @@
+package com.pandacoder.tests.mapview;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Раскладывает тайлы по равноценным хостам источника (зеркалам вида vec01, vec02... или локальным прокси),
+ * чтобы запросы шли параллельно на несколько серверов, а один тормозящий сервер не держал всю карту.
+ *
+ * <p>Хост для тайла выбирается детерминированно (rendezvous hashing): тайл всегда уходит на один и тот же
+ * хост, пока тот в порядке, поэтому открытые соединения из пула загрузчика (см. {@link TileMiner}) и кеши
+ * на стороне серверов переиспользуются. Когда хост выпадает, на другие хосты переезжают только его тайлы.
+ *
+ * <p>Для каждого хоста считаются сбои подряд и сглаженное время ответа. Хост исключается из выбора, если
+ * HOST_FAILURES_TO_EXCLUDE раз подряд не ответил или отвечает в SLOW_HOST_FACTOR раз медленнее самого быстрого.
+ * Через HOST_RECHECK_MS исключенный хост снова получает тайлы: если он поправился, он остается в работе.
+ * Если исключены все хосты, тайлы раскладываются по всем.
+ *
+ * <p>Балансировщик решает только, на какой хост отправить тайл, и считает все попытки, включая дублирующие.
+ * Отправлять ли запрос на выбранный хост вообще, решает предохранитель {@link TileFailureTracker}, он считает
+ * только итог скачивания тайла. Балансировщик исключает хост раньше (HOST_FAILURES_TO_EXCLUDE сбоев против
+ * большего порога предохранителя), поэтому, пока есть живые зеркала, тайлы уходят с плохого хоста до того,
+ * как сработает предохранитель. Предохранитель срабатывает, когда деваться некуда: хост один или лежат все.
+ *
+ * <p>Методы можно вызывать из разных потоков.
+ */
+public class TileHostBalancer {
+
+	private static final String LOG_TAG = TileHostBalancer.class.getSimpleName();
+
+	private static final int HOST_FAILURES_TO_EXCLUDE = 3;
+	private static final double LATENCY_EWMA_ALPHA = 0.2;
+	private static final int MIN_LATENCY_SAMPLES = 5;			// до этого время ответа хоста не сравнивается
+	private static final double SLOW_HOST_FACTOR = 3.0;
+	private static final long MIN_SLOW_HOST_LATENCY_MS = 200;	// быстрее этого хост медленным не считается
+	private static final long HOST_RECHECK_MS = 30*1000;
+
+	private static class HostState {
+		final String host;
+		final long seed;
+		int consecutiveFailures = 0;
+		double latencyEwmaMs = 0;
+		int latencySamples = 0;
+		long excludedUntilMs = 0;	// 0 - хост в работе
+
+		HostState(String host) {
+			this.host = host;
+			this.seed = mix(host.hashCode());
+		}
+	}
+
+	private final HostState[] hostStates;	// состояние хостов использовать только из synchronized(this)
+
+	/**
+	 * @param hosts равноценные хосты, с каждого можно скачать любой тайл
+	 * @throws IllegalArgumentException если хостов нет
+	 * @throws NullPointerException если hosts == null
+	 */
+	public TileHostBalancer(String[] hosts) {
+		if (hosts == null) throw new NullPointerException("Hosts can't be null");
+		if (hosts.length == 0) throw new IllegalArgumentException("At least one host required");
+
+		this.hostStates = new HostState[hosts.length];
+		for (int i = 0; i < hosts.length; i++) {
+			hostStates[i] = new HostState(hosts[i]);
+		}
+	}
+
+	/**
+	 * Перемешивает биты (финализатор splitmix64), чтобы соседние тайлы не попадали на один хост
+	 */
+	private static long mix(long value) {
+		value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+		value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+		return value ^ (value >>> 31);
+	}
+
+	private static long tileKey(TileRequest tileRequest) {
+		TileSpecs tileSpecs = tileRequest.getTileSpecs();
+		return ((long)tileSpecs.xSn << 32) ^ (tileSpecs.ySn & 0xffffffffL);
+	}
+
+	private boolean isExcluded(HostState state, long now) {
+		if (state.excludedUntilMs == 0) return false;
+		if (now < state.excludedUntilMs) return true;
+
+		// пора проверить хост снова: забываем, каким он был, пусть наберет новую статистику
+		state.excludedUntilMs = 0;
+		state.consecutiveFailures = 0;
+		state.latencySamples = 0;
+		Log.i(LOG_TAG, "host " + state.host + " gets tiles again");
+		return false;
+	}
+
+	/**
+	 * Хосты в порядке предпочтения для тайла: первый - основной, второй - запасной
+	 * @return индексы первого и второго хоста, второй равен первому, если хост один
+	 */
+	private synchronized int[] rankHosts(TileRequest tileRequest) {
+		long now = SystemClock.uptimeMillis();
+		long tileKey = tileKey(tileRequest);
+
+		int bestIndex = -1, secondIndex = -1;
+		long bestScore = 0, secondScore = 0;
+		boolean anyIncluded = false;
+		for (HostState state : hostStates) {
+			if (isExcluded(state, now) == false) anyIncluded = true;
+		}
+
+		for (int i = 0; i < hostStates.length; i++) {
+			HostState state = hostStates[i];
+			if (anyIncluded && state.excludedUntilMs != 0) continue;
+
+			long score = mix(tileKey ^ state.seed);
+			if (bestIndex == -1 || score > bestScore) {
+				secondIndex = bestIndex;
+				secondScore = bestScore;
+				bestIndex = i;
+				bestScore = score;
+			} else if (secondIndex == -1 || score > secondScore) {
+				secondIndex = i;
+				secondScore = score;
+			}
+		}
+		return new int[] {bestIndex, (secondIndex != -1)?secondIndex:bestIndex};
+	}
+
+	/**
+	 * Хост, на который сейчас уходит тайл
+	 */
+	public String getHost(TileRequest tileRequest) {
+		return hostStates[rankHosts(tileRequest)[0]].host;
+	}
+
+	/**
+	 * Запасной хост для тайла, например для дублирующего запроса. Если рабочий хост один - он же.
+	 */
+	public String getAlternateHost(TileRequest tileRequest) {
+		return hostStates[rankHosts(tileRequest)[1]].host;
+	}
+
+	private HostState findHostState(String host) {
+		for (HostState state : hostStates) {
+			if (state.host.equals(host)) return state;
+		}
+		return null;
+	}
+
+	/**
+	 * Хост ответил, даже если самого тайла на нем нет
+	 * @param latencyMs сколько шел ответ
+	 */
+	public synchronized void onHostSucceeded(String host, long latencyMs) {
+		HostState state = findHostState(host);
+		if (state == null) return;
+
+		state.consecutiveFailures = 0;
+		if (state.latencySamples == 0) {
+			state.latencyEwmaMs = latencyMs;
+		} else {
+			state.latencyEwmaMs += LATENCY_EWMA_ALPHA * (latencyMs - state.latencyEwmaMs);
+		}
+		state.latencySamples++;
+
+		if (state.excludedUntilMs == 0 && isSlow(state)) {
+			exclude(state, "slow, " + (long)state.latencyEwmaMs + "ms");
+		}
+	}
+
+	/**
+	 * Хост не ответил или ответил ошибкой сервера
+	 */
+	public synchronized void onHostFailed(String host) {
+		HostState state = findHostState(host);
+		if (state == null) return;
+
+		state.consecutiveFailures++;
+		if (state.excludedUntilMs == 0 && state.consecutiveFailures >= HOST_FAILURES_TO_EXCLUDE) {
+			exclude(state, state.consecutiveFailures + " failures");
+		}
+	}
+
+	/**
+	 * Медленнее ли хост самого быстрого из тех, что в работе, в SLOW_HOST_FACTOR раз
+	 */
+	private boolean isSlow(HostState state) {
+		if (state.latencySamples < MIN_LATENCY_SAMPLES || state.latencyEwmaMs < MIN_SLOW_HOST_LATENCY_MS) return false;
+
+		double fastestLatencyMs = Double.MAX_VALUE;
+		for (HostState other : hostStates) {
+			if (other == state || other.excludedUntilMs != 0 || other.latencySamples < MIN_LATENCY_SAMPLES) continue;
+			fastestLatencyMs = Math.min(fastestLatencyMs, other.latencyEwmaMs);
+		}
+		return state.latencyEwmaMs > SLOW_HOST_FACTOR * fastestLatencyMs;
+	}
+
+	private void exclude(HostState state, String reason) {
+		state.excludedUntilMs = SystemClock.uptimeMillis() + HOST_RECHECK_MS;
+		Log.w(LOG_TAG, "host " + state.host + " excluded for " + HOST_RECHECK_MS + "ms: " + reason);
+	}
+}
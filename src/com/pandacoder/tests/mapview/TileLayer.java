@@ -0,0 +1,38 @@
+package com.pandacoder.tests.mapview;
+
+/**
+ * Слой карты: схема, пробки. Тайл карты собирается из нескольких слоев, нижний рисуется первым
+ * (см. {@link LayeredTileAssembler}). Все слои качаются с того же хоста, что и схема, поэтому
+ * слой здесь - только то, что этот хост отдает.
+ *
+ * <p>У слоя, который часто меняется (пробки), есть время жизни: по его истечении перекачивается только
+ * этот слой, остальные берутся из кеша.
+ */
+public class TileLayer {
+
+	public static final TileLayer MAP = new TileLayer("map", 0);
+	public static final TileLayer TRAFFIC = new TileLayer("trf", 60*1000);
+
+	public final String id;		// идентификатор слоя у источника тайлов, он же часть ключа тайла в кешах
+	public final long ttlMs;	// время жизни скачанного тайла слоя, 0 - не устаревает
+
+	/**
+	 * Создает слой
+	 * @param id идентификатор слоя у источника тайлов
+	 * @param ttlMs время жизни скачанного тайла слоя, 0 - не устаревает
+	 *
+	 * @throws IllegalArgumentException если id пустой или ttlMs < 0
+	 */
+	public TileLayer(String id, long ttlMs) {
+		if (id == null || id.length() == 0) throw new IllegalArgumentException("Layer id can't be empty");
+		if (ttlMs < 0) throw new IllegalArgumentException("Layer ttl should be >= 0");
+
+		this.id = id;
+		this.ttlMs = ttlMs;
+	}
+
+	@Override
+	public String toString() {
+		return "Layer " + id + ((ttlMs > 0)?" ttl=" + ttlMs + "ms":"");
+	}
+}
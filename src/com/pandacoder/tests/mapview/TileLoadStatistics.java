@@ -0,0 +1,158 @@
+package com.pandacoder.tests.mapview;
+
+/**
+ * Счетчики того, откуда карта получала тайлы: сколько раз тайл нашелся в каждом из кешей, сколько тайлов
+ * пришлось скачать и сколько байт для этого понадобилось. Нужны, чтобы сравнивать изменения в кешах и
+ * порядке обработки запросов, например с помощью {@link TileLoadTestHarness}.
+ *
+ * Методы можно вызывать из разных потоков.
+ */
+public class TileLoadStatistics {
+
+	private long tilesRequested;
+	private long ramCacheHits;
+	private long compressedCacheHits;
+	private long archiveHits;
+	private long persistentCacheHits;
+	private long placeholderHits;
+	private long networkFetches;
+	private long networkFailures;
+	private long bytesFetched;
+	private long hedgesSent;
+	private long hedgesWon;
+
+	synchronized void onTileRequested() {
+		tilesRequested++;
+	}
+
+	synchronized void onRamCacheHit() {
+		ramCacheHits++;
+	}
+
+	synchronized void onCompressedCacheHit() {
+		compressedCacheHits++;
+	}
+
+	synchronized void onArchiveHit() {
+		archiveHits++;
+	}
+
+	synchronized void onPersistentCacheHit() {
+		persistentCacheHits++;
+	}
+
+	/**
+	 * Пока тайл качается, показан тайл старой версии из кеша в постоянной памяти
+	 */
+	synchronized void onPlaceholderHit() {
+		placeholderHits++;
+	}
+
+	/**
+	 * Тайл (или метатайл) скачан
+	 * @param sizeBytes сколько байт пришло с сервера
+	 */
+	synchronized void onNetworkFetch(long sizeBytes) {
+		networkFetches++;
+		bytesFetched += sizeBytes;
+	}
+
+	synchronized void onNetworkFailure() {
+		networkFailures++;
+	}
+
+	/**
+	 * Тайл качался слишком долго, отправлен дублирующий запрос
+	 */
+	synchronized void onHedgeSent() {
+		hedgesSent++;
+	}
+
+	/**
+	 * Дублирующий запрос принес тайл раньше основного
+	 */
+	synchronized void onHedgeWon() {
+		hedgesWon++;
+	}
+
+	/**
+	 * Обнуляет все счетчики
+	 */
+	public synchronized void reset() {
+		tilesRequested = 0;
+		ramCacheHits = 0;
+		compressedCacheHits = 0;
+		archiveHits = 0;
+		persistentCacheHits = 0;
+		placeholderHits = 0;
+		networkFetches = 0;
+		networkFailures = 0;
+		bytesFetched = 0;
+		hedgesSent = 0;
+		hedgesWon = 0;
+	}
+
+	/**
+	 * Сколько раз карта запрашивала тайлы (с учетом попаданий в кеш битмапов)
+	 */
+	public synchronized long getTilesRequested() {
+		return tilesRequested;
+	}
+
+	public synchronized long getRamCacheHits() {
+		return ramCacheHits;
+	}
+
+	public synchronized long getCompressedCacheHits() {
+		return compressedCacheHits;
+	}
+
+	public synchronized long getArchiveHits() {
+		return archiveHits;
+	}
+
+	public synchronized long getPersistentCacheHits() {
+		return persistentCacheHits;
+	}
+
+	public synchronized long getPlaceholderHits() {
+		return placeholderHits;
+	}
+
+	public synchronized long getNetworkFetches() {
+		return networkFetches;
+	}
+
+	public synchronized long getNetworkFailures() {
+		return networkFailures;
+	}
+
+	public synchronized long getBytesFetched() {
+		return bytesFetched;
+	}
+
+	public synchronized long getHedgesSent() {
+		return hedgesSent;
+	}
+
+	public synchronized long getHedgesWon() {
+		return hedgesWon;
+	}
+
+	private static String ratio(long hits, long total) {
+		return (total == 0)?"-":String.format("%.1f%%", 100.0 * hits / total);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "requested=" + tilesRequested
+				+ " ram=" + ratio(ramCacheHits, tilesRequested)
+				+ " compressed=" + ratio(compressedCacheHits, tilesRequested)
+				+ " archive=" + ratio(archiveHits, tilesRequested)
+				+ " persistent=" + ratio(persistentCacheHits, tilesRequested)
+				+ " placeholder=" + ratio(placeholderHits, tilesRequested)
+				+ " fetched=" + networkFetches + " (" + bytesFetched + " bytes)"
+				+ " failed=" + networkFailures
+				+ " hedged=" + hedgesSent + " (won " + hedgesWon + ")";
+	}
+}
@@ -0,0 +1,501 @@
+package com.pandacoder.tests.mapview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import com.pandacoder.tests.Utils.IOUtils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Базовый класс для скачивания тайлов по HTTP. Наследники знают только, как построить URL тайла.
+ * {@link#getTileBitmap} можно вызывать из разных потоков.
+ * Скачивание ({@link #getTileData}) и декодирование ({@link #decodeTileBitmap}) можно делать в разных потоках.
+ * 
+ * <p>Источник может отдавать метатайлы: блок NxN тайлов одним изображением за один запрос
+ * (см. {@link #getMetaTileSize}). Тогда скачивать нужно метатайл, а потом резать его
+ * на обычные тайлы методом {@link #splitMetaTileBitmap}.
+ * 
+ * <p>Источник может состоять из нескольких равноценных хостов. Тогда наследник строит URL на хосте,
+ * который выбрал {@link TileHostBalancer}, а загрузчик сообщает балансировщику, как хосты отвечают.
+ * Кто спрашивал у трекера сбоев разрешения на хост ({@link TileFailureTracker#tryAcquireHost}), строит URL один
+ * раз ({@link #getTileURL}) и качает по нему ({@link #getTileData(TileRequest, String)}): результат засчитывается
+ * хосту, на который на самом деле ушел запрос.
+ * 
+ * <p>Все скачивания идут через один HTTP клиент с пулом соединений: соединение с хостом после ответа
+ * остается открытым и переиспользуется следующими запросами к этому хосту.
+ * 
+ * <p>Загрузчик может уметь качать асинхронно ({@link #isAsync}): тогда центр обработки тайлов не занимает 
+ * под каждое скачивание поток, а отдает запросы {@link #getTileDataAsync}, пока загрузчик их принимает.
+ *
+ */
+public abstract class TileMiner {
+	
+	private final static int CONNECTION_ESTABLISH_TIMEOUT_MS = 1000;
+	private final static int SOCKET_TIMEOUT_MS = 5000;
+	private final static int TILE_DATA_BUFFER_SIZE = 16*1024;
+	// на хост: потоки скачивания, дублирующие запросы и слои качают одновременно
+	private final static int MAX_CONNECTIONS_PER_HOST = 8;
+	private final static int MAX_CONNECTIONS_TOTAL = 16;
+	
+	private final BitmapFactory.Options tileBitmapOptions;
+	private final BitmapFactory.Options overlayBitmapOptions;
+	private volatile TileFailureTracker failureTracker;
+	private volatile TileRequestHedger hedger;
+	private final TileHostBalancer hostBalancer;
+	private HttpClient httpClient;		// создается при первом скачивании, использовать только из getHttpClient
+	private boolean destroyed = false;	// использовать только из synchronized(this)
+	
+	protected TileMiner() {
+		this(null);
+	}
+	
+	/**
+	 * @param hostBalancer раскладывает тайлы по хостам источника, null - хост один
+	 */
+	protected TileMiner(TileHostBalancer hostBalancer) {
+		this.hostBalancer = hostBalancer;
+		this.tileBitmapOptions = new BitmapFactory.Options();
+		this.tileBitmapOptions.inPreferredConfig = TileSpecs.TILE_BITMAP_CONFIG;
+		this.overlayBitmapOptions = new BitmapFactory.Options();
+		this.overlayBitmapOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+	}
+	
+	/**
+	 * Строит URL для скачивания тайла
+	 * @param tileRequest запрос тайла, для источников метатайлов - запрос левого верхнего тайла метатайла
+	 */
+	protected abstract String buildURL(TileRequest tileRequest);
+	
+	/**
+	 * Пространство имен кеша тайлов этого источника, обычно версия стиля тайлов. Когда она меняется, тайлы,
+	 * скачанные раньше, в кеше становятся заглушками (см. {@link TilesPersistentMemoryCache}).
+	 * @return пространство имен или null, если у источника нет версий
+	 */
+	public String getCacheNamespace() {
+		return null;
+	}
+	
+	/**
+	 * Строит URL для дублирующего запроса тайла. Если хостов несколько, стоит качать с запасного хоста.
+	 * @param tileRequest запрос тайла, как в {@link #buildURL}
+	 */
+	protected String buildHedgeURL(TileRequest tileRequest) {
+		return buildURL(tileRequest);
+	}
+	
+	/**
+	 * Балансировщик хостов источника, null - хост один
+	 */
+	protected TileHostBalancer getHostBalancer() {
+		return hostBalancer;
+	}
+	
+	/**
+	 * Задает, куда сообщать об успешных и неудачных скачиваниях
+	 * @param failureTracker null - никуда не сообщать
+	 */
+	public void setFailureTracker(TileFailureTracker failureTracker) {
+		this.failureTracker = failureTracker;
+	}
+	
+	/**
+	 * Хост, с которого будет скачиваться тайл
+	 * @param tileRequest запрос тайла
+	 * @return имя хоста или null, если его не удалось определить
+	 */
+	public String getHost(TileRequest tileRequest) {
+		return getURLHost(buildURL(tileRequest));
+	}
+	
+	/**
+	 * URL тайла на хосте, который сейчас выбран для тайла. Выбор может поменяться, поэтому кто проверял хост 
+	 * ({@link #getURLHost}), должен качать по этому же URL.
+	 * @param tileRequest запрос тайла
+	 */
+	public String getTileURL(TileRequest tileRequest) {
+		return buildURL(tileRequest);
+	}
+	
+	/**
+	 * Хост из URL тайла
+	 * @return имя хоста или null, если его не удалось определить
+	 */
+	public static String getURLHost(String tileURL) {
+		try {
+			return new URL(tileURL).getHost();
+		} catch (MalformedURLException ex) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Размер метатайла в тайлах по каждой стороне. 1 - источник отдает тайлы по одному.
+	 */
+	public int getMetaTileSize() {
+		return 1;
+	}
+	
+	/**
+	 * Возвращает запрос, которым нужно качать тайл: для источников метатайлов - запрос левого верхнего 
+	 * тайла метатайла, в который входит тайл. Запросы соседних тайлов одного метатайла совпадают, поэтому
+	 * их скачивание объединяется.
+	 * 
+	 * @param tileRequest запрос тайла
+	 */
+	public TileRequest getMiningRequest(TileRequest tileRequest) {
+		int metaTileSize = getMetaTileSize();
+		if (metaTileSize == 1) return tileRequest;
+		
+		TileSpecs tileSpecs = tileRequest.getTileSpecs();
+		int metaTileXsn = tileSpecs.xSn - floorMod(tileSpecs.xSn, metaTileSize),
+			metaTileYsn = tileSpecs.ySn - floorMod(tileSpecs.ySn, metaTileSize);
+		
+		if (metaTileXsn == tileSpecs.xSn && metaTileYsn == tileSpecs.ySn) return tileRequest;
+		return new TileRequest(new TileSpecs(metaTileXsn, metaTileYsn));
+	}
+	
+	private static int floorMod(int value, int divisor) {
+		int mod = value % divisor;
+		return (mod < 0)?mod + divisor:mod;
+	}
+	
+	private HttpParams buildHttpClientParams() {
+		HttpParams httpParameters = new BasicHttpParams();
+		HttpConnectionParams.setConnectionTimeout(httpParameters, CONNECTION_ESTABLISH_TIMEOUT_MS);
+		HttpConnectionParams.setSoTimeout(httpParameters, SOCKET_TIMEOUT_MS);
+		ConnManagerParams.setMaxConnectionsPerRoute(httpParameters, new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+		ConnManagerParams.setMaxTotalConnections(httpParameters, MAX_CONNECTIONS_TOTAL);
+		ConnManagerParams.setTimeout(httpParameters, CONNECTION_ESTABLISH_TIMEOUT_MS);	// ждать свободного соединения из пула
+		return httpParameters;
+	}
+	
+	/**
+	 * HTTP клиент, общий для всех скачиваний этого загрузчика, с пулом соединений
+	 */
+	private synchronized HttpClient getHttpClient() {
+		if (destroyed) return null;
+		if (httpClient == null) {
+			HttpParams httpParameters = buildHttpClientParams();
+			SchemeRegistry schemeRegistry = new SchemeRegistry();
+			schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+			schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+			httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(httpParameters, schemeRegistry), httpParameters);
+		}
+		return httpClient;
+	}
+	
+	/**
+	 * Закрывает пул соединений. Скачивания после этого сразу завершаются неудачей.
+	 */
+	public synchronized void destroy() {
+		destroyed = true;
+		if (httpClient != null) {
+			httpClient.getConnectionManager().shutdown();
+			httpClient = null;
+		}
+	}
+
+	/**
+	 * Получатель результата асинхронного скачивания
+	 */
+	public interface TileDataCallback {
+		
+		/**
+		 * Скачивание закончилось. Вызывается из потока загрузчика, долго работать в нем нельзя.
+		 * @param tileRequest запрос, который передавали в {@link TileMiner#getTileDataAsync}
+		 * @param tileData байты изображения тайла или null, если скачать не удалось
+		 */
+		void onTileData(TileRequest tileRequest, byte[] tileData);
+	}
+	
+	/**
+	 * Умеет ли загрузчик качать асинхронно, см. {@link #getTileDataAsync}
+	 */
+	public boolean isAsync() {
+		return false;
+	}
+	
+	/**
+	 * Начинает скачивание тайла и сразу возвращается. Успехи и неудачи загрузчик сам сообщает трекеру сбоев,
+	 * как и {@link #getTileData}.
+	 * @param tileRequest запрос на тайл
+	 * @param callback кому отдать результат
+	 * @return false - если загрузчик сейчас занят и запрос не принял, callback не будет вызван
+	 * @throws UnsupportedOperationException если загрузчик не умеет качать асинхронно
+	 */
+	public boolean getTileDataAsync(TileRequest tileRequest, TileDataCallback callback) {
+		return getTileDataAsync(tileRequest, buildURL(tileRequest), callback);
+	}
+	
+	/**
+	 * Как {@link #getTileDataAsync(TileRequest, TileDataCallback)}, но по готовому URL, см. {@link #getTileURL}
+	 */
+	public boolean getTileDataAsync(TileRequest tileRequest, String tileURL, TileDataCallback callback) {
+		throw new UnsupportedOperationException("Tile miner is not async");
+	}
+	
+	/**
+	 * Пытается скачать тайл. Если не получилось - возвращает null.
+	 * @param tileRequest запрос на тайл
+	 * @return изображение тайла (для источников метатайлов - метатайла) или null, если скачивание не произошло
+	 */
+	public Bitmap getTileBitmap(TileRequest tileRequest) {
+		byte[] tileData = getTileData(tileRequest);
+		return (tileData != null)?decodeTileBitmap(tileData):null;
+	}
+	
+	/**
+	 * Одна попытка скачать тайл. Попытку можно прервать из другого потока ({@link #abort}), например когда
+	 * тайл уже пришел по другому запросу.
+	 */
+	static class FetchAttempt {
+		final String tileURL;
+		final HttpGet httpGet;
+		volatile byte[] tileData;		// null - не скачался
+		volatile int statusCode = 0;	// 0 - ответа не было
+		volatile long latencyMs = 0;
+		volatile boolean aborted = false;
+		
+		FetchAttempt(String tileURL) {
+			this.tileURL = tileURL;
+			this.httpGet = new HttpGet(tileURL);
+		}
+		
+		String getHost() {
+			return httpGet.getURI().getHost();
+		}
+		
+		/**
+		 * Прерывает попытку: соединение закрывается, {@link TileMiner#executeFetchAttempt} возвращается без тайла
+		 */
+		void abort() {
+			aborted = true;
+			httpGet.abort();
+		}
+	}
+	
+	/**
+	 * Задает, отправлять ли дублирующие запросы на тайлы, которые качаются подозрительно долго
+	 * @param hedger null - не отправлять
+	 */
+	public void setHedger(TileRequestHedger hedger) {
+		this.hedger = hedger;
+	}
+	
+	/**
+	 * Скачивает сжатое изображение тайла, не декодируя его. Только сетевая работа.
+	 * @param tileRequest запрос на тайл
+	 * @return байты изображения тайла или null, если скачивание не произошло
+	 */
+	public byte[] getTileData(TileRequest tileRequest) {
+		return getTileData(tileRequest, buildURL(tileRequest));
+	}
+	
+	/**
+	 * Скачивает сжатое изображение тайла по готовому URL, см. {@link #getTileURL}
+	 * @param tileRequest запрос на тайл
+	 * @param tileURL URL тайла
+	 * @return байты изображения тайла или null, если скачивание не произошло
+	 */
+	public byte[] getTileData(TileRequest tileRequest, String tileURL) {
+
+		TileRequestHedger hedger = this.hedger;
+		
+		FetchAttempt primaryAttempt = new FetchAttempt(tileURL);
+		FetchAttempt attempt = primaryAttempt;
+		if (hedger != null) {
+			attempt = hedger.fetch(this, primaryAttempt, buildHedgeURL(tileRequest));
+		} else {
+			executeFetchAttempt(primaryAttempt);
+		}
+		
+		reportFetchResult(tileRequest, attempt.getHost(), attempt.statusCode, attempt.tileData);
+		
+		// тайл принес дублирующий запрос: основная попытка тоже должна отчитаться за свой хост, иначе
+		// пробный запрос к нему так и будет считаться незавершенным
+		TileFailureTracker failureTracker = this.failureTracker;
+		if (attempt != primaryAttempt && failureTracker != null) {
+			if (primaryAttempt.aborted) failureTracker.releaseHost(primaryAttempt.getHost());	// ее просто перестали ждать
+			else reportHostResult(failureTracker, primaryAttempt.getHost(), primaryAttempt.statusCode, primaryAttempt.tileData);
+		}
+		return attempt.tileData;
+	}
+	
+	/**
+	 * Сообщает трекеру сбоев, чем кончилось скачивание тайла
+	 * @param host хост, с которого на самом деле качали
+	 * @param statusCode код ответа HTTP, 0 - ответа не было
+	 * @param tileData байты изображения тайла, null - не скачался
+	 */
+	void reportFetchResult(TileRequest tileRequest, String host, int statusCode, byte[] tileData) {
+		TileFailureTracker failureTracker = this.failureTracker;
+		if (failureTracker == null) return;
+		
+		if (tileData == null) failureTracker.onTileFailed(tileRequest);
+		reportHostResult(failureTracker, host, statusCode, tileData);
+	}
+	
+	private static void reportHostResult(TileFailureTracker failureTracker, String host, int statusCode, byte[] tileData) {
+		if (statusCode != 0 && statusCode != HttpStatus.SC_OK) {
+			// ошибка клиента (нет такого тайла) - хост жив, ошибка сервера - хосту плохо
+			if (statusCode >= 500) failureTracker.onHostFailed(host);
+			else failureTracker.onHostSucceeded(host);
+		} else if (tileData != null) {
+			failureTracker.onHostSucceeded(host);
+		} else {	// соединение не установилось, оборвалось или не дождались ответа
+			failureTracker.onHostFailed(host);
+		}
+	}
+	
+	/**
+	 * Выполняет одну попытку скачать тайл, результат остается в попытке. Трекеру сбоев ничего не сообщает,
+	 * балансировщику хостов сообщает, как ответил хост.
+	 */
+	void executeFetchAttempt(FetchAttempt attempt) {
+		long startMs = SystemClock.uptimeMillis();
+		executeHttpRequest(attempt);
+		attempt.latencyMs = SystemClock.uptimeMillis() - startMs;
+		
+		// прерванная попытка ничего не говорит о хосте: ее просто перестали ждать
+		if (hostBalancer != null && attempt.aborted == false) {
+			if (attempt.statusCode != 0 && attempt.statusCode < 500) {
+				hostBalancer.onHostSucceeded(attempt.getHost(), attempt.latencyMs);
+			} else {
+				hostBalancer.onHostFailed(attempt.getHost());
+			}
+		}
+	}
+	
+	private void executeHttpRequest(FetchAttempt attempt) {
+
+		HttpClient httpClient = getHttpClient();
+		if (httpClient == null) return;	// загрузчик уже уничтожен
+		HttpGet getTileRequest = attempt.httpGet;
+		
+		try {
+			HttpResponse response = httpClient.execute(getTileRequest);
+			final int statusCode = response.getStatusLine().getStatusCode();
+			attempt.statusCode = statusCode;
+			if (statusCode != HttpStatus.SC_OK) {
+				getTileRequest.abort();
+				return;
+			}
+
+			final HttpEntity entity = response.getEntity();
+			if (entity != null) {
+				InputStream inputStream = null;
+				try {
+					inputStream = entity.getContent();
+					
+					long contentLength = entity.getContentLength();
+					ByteArrayOutputStream tileDataStream = new ByteArrayOutputStream(
+							(contentLength > 0 && contentLength < Integer.MAX_VALUE)?(int)contentLength:TILE_DATA_BUFFER_SIZE);
+					
+					byte[] buffer = new byte[TILE_DATA_BUFFER_SIZE];
+					int count;
+					while ((count = inputStream.read(buffer)) != -1) {
+						tileDataStream.write(buffer, 0, count);
+					}
+					
+					if (attempt.aborted == false) attempt.tileData = tileDataStream.toByteArray();
+				} finally {
+					IOUtils.closeSilent(inputStream);
+					entity.consumeContent();
+				}
+			}
+		} catch (Exception ex) {	// не важно какое исключение произошло
+			getTileRequest.abort();	// прекращаем запрос
+		} 
+	}
+	
+	/**
+	 * Декодирует скачанное изображение тайла. Только работа процессора, сеть не нужна.
+	 * @param tileData байты изображения, полученные {@link #getTileData}
+	 * @return изображение тайла или null, если декодировать не получилось
+	 */
+	public Bitmap decodeTileBitmap(byte[] tileData) {
+		
+		Bitmap resultTileBitmap = BitmapFactory.decodeByteArray(tileData, 0, tileData.length, tileBitmapOptions);
+		if (resultTileBitmap == null) return null;
+		
+		// иногда decodeStream не хочет отдавать битмап в правильном формате
+		// нужно перерисовать вручную на новый битмап
+		if (resultTileBitmap.getConfig() != TileSpecs.TILE_BITMAP_CONFIG) {
+			resultTileBitmap = fixBitmapConfigIssue(resultTileBitmap);
+		}
+		
+		return resultTileBitmap;
+	}
+	
+	/**
+	 * Декодирует изображение слоя, который рисуется поверх другого (пробки, подписи). Прозрачность
+	 * нужна, поэтому битмап в ARGB_8888, а не в {@link TileSpecs#TILE_BITMAP_CONFIG}.
+	 * @param tileData байты изображения, полученные {@link #getTileData}
+	 * @return изображение слоя или null, если декодировать не получилось
+	 */
+	public Bitmap decodeOverlayBitmap(byte[] tileData) {
+		return BitmapFactory.decodeByteArray(tileData, 0, tileData.length, overlayBitmapOptions);
+	}
+	
+	private Bitmap fixBitmapConfigIssue(Bitmap badConfigBitmap) {
+		Bitmap fixedBitmap = Bitmap.createBitmap(badConfigBitmap.getWidth(), badConfigBitmap.getHeight(), TileSpecs.TILE_BITMAP_CONFIG);
+		Canvas canvas = new Canvas(fixedBitmap);
+		canvas.drawBitmap(badConfigBitmap, 0, 0, null);
+		badConfigBitmap.recycle();
+		return fixedBitmap;
+	}
+	
+	/**
+	 * Режет изображение метатайла на обычные тайлы. Изображение метатайла не освобождается.
+	 * 
+	 * @param miningRequest запрос, которым качали метатайл (см. {@link #getMiningRequest})
+	 * @param metaTileBitmap изображение метатайла
+	 * @param tileRequests сюда кладутся запросы тайлов, входящих в метатайл. Если изображение меньше NxN тайлов,
+	 * 		  их меньше: тайлов за краем изображения нет
+	 * @param tileBitmaps сюда кладутся изображения тайлов, в том же порядке
+	 */
+	public void splitMetaTileBitmap(TileRequest miningRequest, Bitmap metaTileBitmap, 
+									List<TileRequest> tileRequests, List<Bitmap> tileBitmaps) {
+		
+		int metaTileSize = getMetaTileSize();
+		TileSpecs metaTileSpecs = miningRequest.getTileSpecs();
+		
+		// сервер может отдать метатайл меньшего размера, например на краю карты
+		int tilesX = Math.min(metaTileSize, metaTileBitmap.getWidth() / TileSpecs.TILE_SIZE_WH_PX),
+			tilesY = Math.min(metaTileSize, metaTileBitmap.getHeight() / TileSpecs.TILE_SIZE_WH_PX);
+		
+		for (int dx = 0; dx < tilesX; dx++) {
+			for (int dy = 0; dy < tilesY; dy++) {
+				Bitmap tileBitmap = Bitmap.createBitmap(metaTileBitmap, dx*TileSpecs.TILE_SIZE_WH_PX, dy*TileSpecs.TILE_SIZE_WH_PX, 
+														TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_SIZE_WH_PX);
+				tileRequests.add(new TileRequest(new TileSpecs(metaTileSpecs.xSn + dx, metaTileSpecs.ySn + dy)));
+				tileBitmaps.add(tileBitmap);
+			}
+		}
+	}
+}
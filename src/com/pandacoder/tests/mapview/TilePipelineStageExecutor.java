@@ -0,0 +1,84 @@
+package com.pandacoder.tests.mapview;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Одна стадия конвейера обработки тайлов (декодирование, запись в кеш и т.п.). Пул потоков
+ * фиксированного размера со своей ограниченной очередью заданий.
+ *
+ * <p>Когда очередь заполнена, стадия либо блокирует того, кто кладет задание, пока не освободится место
+ * (blockWhenFull == true, обратное давление на предыдущую стадию), либо бросает
+ * {@link RejectedExecutionException} и задание можно выбросить. Потоки, которым ждать нельзя, кладут задания
+ * через {@link #tryExecute}.
+ */
+class TilePipelineStageExecutor extends ThreadPoolExecutor {
+
+	private final ThreadLocal<Boolean> nonBlockingSubmit = new ThreadLocal<Boolean>();
+
+	/**
+	 * Создает стадию конвейера
+	 * @param stageName имя стадии, используется в именах потоков
+	 * @param poolSize количество потоков
+	 * @param queueCapacity размер очереди заданий
+	 * @param blockWhenFull ждать ли места в очереди, если она заполнена
+	 */
+	TilePipelineStageExecutor(final String stageName, int poolSize, int queueCapacity, boolean blockWhenFull) {
+		super(poolSize, poolSize, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity));
+
+		setThreadFactory(new ThreadFactory() {
+			private int threadNumber = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				return new Thread(r, stageName + "-" + (threadNumber++));
+			}
+		});
+
+		if (blockWhenFull) {
+			setRejectedExecutionHandler(new RejectedExecutionHandler() {
+
+				@Override
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+					if (executor.isShutdown()) throw new RejectedExecutionException("Stage " + stageName + " is shut down");
+					if (nonBlockingSubmit.get() != null) throw new RejectedExecutionException("Stage " + stageName + " is full");
+					try {
+						executor.getQueue().put(r);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new RejectedExecutionException("Interrupted while waiting for stage " + stageName);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Кладет задание, не дожидаясь места в очереди, даже если стадия создана с blockWhenFull
+	 * @return false - очередь заполнена, задание не принято
+	 * @throws RejectedExecutionException стадия остановлена
+	 */
+	boolean tryExecute(Runnable command) {
+		nonBlockingSubmit.set(Boolean.TRUE);
+		try {
+			execute(command);
+			return true;
+		} catch (RejectedExecutionException ex) {
+			if (isShutdown()) throw ex;
+			return false;
+		} finally {
+			nonBlockingSubmit.remove();
+		}
+	}
+
+	/**
+	 * Заполнена ли очередь заданий: следующее задание придется ждать
+	 */
+	boolean isSaturated() {
+		return getQueue().remainingCapacity() == 0;
+	}
+}
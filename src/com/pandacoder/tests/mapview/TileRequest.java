@@ -3,36 +3,65 @@ package com.pandacoder.tests.mapview;
 /**
  * Класс-запрос на определенный тайл
  *
+ * <p>Запрос без слоя - это готовый тайл карты, каким его видит пользователь. Запрос со слоем
+ * ({@link TileLayer}) - изображение одного слоя, из которых собирается тайл карты.
  */
 public class TileRequest {
-	
+
 	private final TileSpecs tileSpecs;
-	
+	private final String layerId;	// null - готовый тайл карты со всеми слоями
+
 	public TileRequest(TileSpecs tileSpecs) {
+		this(tileSpecs, null);
+	}
+
+	/**
+	 * Запрос на тайл одного слоя карты
+	 * @param layerId идентификатор слоя ({@link TileLayer#id}), null - готовый тайл карты
+	 */
+	public TileRequest(TileSpecs tileSpecs, String layerId) {
 		this.tileSpecs = tileSpecs;
+		this.layerId = layerId;
 	}
-	
+
 	public TileSpecs getTileSpecs() {
 		return tileSpecs;
 	}
 
+	/**
+	 * @return идентификатор слоя или null, если это запрос готового тайла карты
+	 */
+	public String getLayerId() {
+		return layerId;
+	}
+
+	/**
+	 * Запрос того же тайла в заданном слое
+	 */
+	public TileRequest forLayer(String layerId) {
+		return new TileRequest(tileSpecs, layerId);
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (o instanceof TileRequest) {
-			TileRequest other = (TileRequest)o;			
+			TileRequest other = (TileRequest)o;
 			if (tileSpecs == null && other.tileSpecs != null) return false;
-			else return tileSpecs.equals(other.tileSpecs);
+			if (layerId == null) {
+				if (other.layerId != null) return false;
+			} else if (layerId.equals(other.layerId) == false) return false;
+			return tileSpecs.equals(other.tileSpecs);
 		}
 		return false;
 	}
 
 	@Override
 	public int hashCode() {
-		return 31*tileSpecs.hashCode();
+		return 31*tileSpecs.hashCode() + ((layerId != null)?layerId.hashCode():0);
 	}
 
 	@Override
 	public String toString() {
-		return "Req for " + tileSpecs.toString();
-	}	
+		return "Req for " + tileSpecs.toString() + ((layerId != null)?" layer " + layerId:"");
+	}
 }
@@ -0,0 +1,234 @@
+package com.pandacoder.tests.mapview;
+
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+
+/**
+ * Дублирующие запросы на тайлы. Почти все тайлы приходят быстро, но несколько тайлов на экран висят
+ * до таймаута сокета, а экран не дорисован, пока не придет последний. Если тайл качается дольше, чем
+ * HEDGE_LATENCY_PERCENTILE процентов недавних скачиваний, отправляется второй запрос по новому соединению,
+ * на запасной хост, если у источника их несколько (см. {@link TileMiner#buildHedgeURL}).
+ * Какой ответ пришел первым, тот и берется, второй запрос прерывается.
+ *
+ * <p>Порог подстраивается под сеть: он считается по последним LATENCY_SAMPLES_COUNT удачным скачиваниям.
+ * Лишняя нагрузка ограничена бюджетом: каждый запрос добавляет к бюджету HEDGE_BUDGET_PERCENT процентов
+ * дублирующего запроса, дублирующий запрос тратит целый. Так дублирующих запросов не больше нескольких
+ * процентов, даже когда сеть тормозит вся, а не отдельные запросы.
+ *
+ * <p>Таймеры дублирующих запросов срабатывают в одном потоке, а сами дублирующие запросы качаются в своей
+ * стадии: медленный дублирующий запрос не задерживает таймеры других тайлов. Если все потоки стадии заняты
+ * и очередь полна, дублирующий запрос не отправляется, бюджет возвращается.
+ *
+ * <p>Методы можно вызывать из разных потоков.
+ */
+public class TileRequestHedger {
+
+	private final static int LATENCY_SAMPLES_COUNT = 128;
+	private final static int MIN_LATENCY_SAMPLES_COUNT = 16;	// до этого порог не считаем, а берем DEFAULT_HEDGE_DELAY_MS
+	private final static int HEDGE_LATENCY_PERCENTILE = 95;
+	private final static long DEFAULT_HEDGE_DELAY_MS = 1000;
+	private final static long MIN_HEDGE_DELAY_MS = 50;
+	private final static int HEDGE_DELAY_RECALC_INTERVAL = 16;		// порог пересчитывается раз в столько замеров
+
+	private final static int HEDGE_BUDGET_PERCENT = 5;
+	private final static int HEDGE_BUDGET_MAX_PERCENT = 500;		// не копим бюджет больше, чем на 5 запросов подряд
+
+	private final static int HEDGE_FETCH_THREADS_COUNT = 4;
+	private final static int HEDGE_FETCH_QUEUE_SIZE = 1;
+
+	/**
+	 * Скачивание одного тайла: основная попытка и, может быть, дублирующая
+	 */
+	private static class HedgedFetch {
+		final TileMiner.FetchAttempt primaryAttempt;
+		TileMiner.FetchAttempt hedgeAttempt;
+		TileMiner.FetchAttempt winnerAttempt;
+		boolean primaryDone = false;
+		boolean hedgeRunning = false;
+
+		HedgedFetch(TileMiner.FetchAttempt primaryAttempt) {
+			this.primaryAttempt = primaryAttempt;
+		}
+
+		/**
+		 * @return false - если дублирующая попытка уже не нужна
+		 */
+		synchronized boolean startHedge(TileMiner.FetchAttempt hedgeAttempt) {
+			if (primaryDone || winnerAttempt != null) return false;
+			this.hedgeAttempt = hedgeAttempt;
+			hedgeRunning = true;
+			return true;
+		}
+
+		/**
+		 * Попытка закончилась. Первая, которая принесла тайл, побеждает, вторая прерывается.
+		 */
+		synchronized void onAttemptDone(TileMiner.FetchAttempt attempt) {
+			if (attempt.tileData != null && winnerAttempt == null) {
+				winnerAttempt = attempt;
+				TileMiner.FetchAttempt loserAttempt = (attempt == primaryAttempt)?hedgeAttempt:primaryAttempt;
+				if (loserAttempt != null) loserAttempt.abort();
+			}
+
+			if (attempt == primaryAttempt) primaryDone = true;
+			else hedgeRunning = false;
+			notifyAll();
+		}
+
+		synchronized boolean isWinner(TileMiner.FetchAttempt attempt) {
+			return winnerAttempt == attempt;
+		}
+
+		/**
+		 * Ждет, пока закончится дублирующая попытка, если основная тайл не принесла
+		 * @return попытка, которая принесла тайл, или основная, если тайл не принесла ни одна
+		 */
+		synchronized TileMiner.FetchAttempt awaitResult() {
+			try {
+				while (winnerAttempt == null && hedgeRunning) {
+					wait();
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				if (hedgeAttempt != null) hedgeAttempt.abort();
+			}
+			return (winnerAttempt != null)?winnerAttempt:primaryAttempt;
+		}
+	}
+
+	private final ScheduledThreadPoolExecutor hedgeTimerExecutor;	// только таймеры, ничего не качает
+	private final TilePipelineStageExecutor hedgeFetchExecutor;
+	private final TileLoadStatistics tileLoadStatistics;
+
+	// использовать только из synchronized(this)
+	private final long[] latencySamplesMs = new long[LATENCY_SAMPLES_COUNT];
+	private int latencySamplesCount = 0;
+	private int nextLatencySample = 0;
+	private int samplesSinceRecalc = 0;
+	private long hedgeDelayMs = DEFAULT_HEDGE_DELAY_MS;
+	private int hedgeBudgetPercent = 0;
+
+	/**
+	 * @param tileLoadStatistics куда считать дублирующие запросы, null - никуда
+	 */
+	public TileRequestHedger(TileLoadStatistics tileLoadStatistics) {
+		this.tileLoadStatistics = tileLoadStatistics;
+
+		this.hedgeTimerExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "TileHedgeTimer");
+			}
+		});
+		this.hedgeFetchExecutor = new TilePipelineStageExecutor("TileHedgeFetch", HEDGE_FETCH_THREADS_COUNT, HEDGE_FETCH_QUEUE_SIZE, false);
+	}
+
+	/**
+	 * Текущий порог, после которого отправляется дублирующий запрос
+	 */
+	public synchronized long getHedgeDelayMs() {
+		return hedgeDelayMs;
+	}
+
+	private synchronized void recordLatency(long latencyMs) {
+		latencySamplesMs[nextLatencySample] = latencyMs;
+		nextLatencySample = (nextLatencySample + 1) % LATENCY_SAMPLES_COUNT;
+		if (latencySamplesCount < LATENCY_SAMPLES_COUNT) latencySamplesCount++;
+
+		if (latencySamplesCount >= MIN_LATENCY_SAMPLES_COUNT && ++samplesSinceRecalc >= HEDGE_DELAY_RECALC_INTERVAL) {
+			samplesSinceRecalc = 0;
+			long[] sortedSamplesMs = new long[latencySamplesCount];
+			System.arraycopy(latencySamplesMs, 0, sortedSamplesMs, 0, latencySamplesCount);
+			Arrays.sort(sortedSamplesMs);
+			int percentileIndex = Math.min(latencySamplesCount - 1, latencySamplesCount * HEDGE_LATENCY_PERCENTILE / 100);
+			hedgeDelayMs = Math.max(MIN_HEDGE_DELAY_MS, sortedSamplesMs[percentileIndex]);
+		}
+	}
+
+	private synchronized void addHedgeBudget() {
+		hedgeBudgetPercent = Math.min(HEDGE_BUDGET_MAX_PERCENT, hedgeBudgetPercent + HEDGE_BUDGET_PERCENT);
+	}
+
+	private synchronized boolean tryTakeHedgeBudget() {
+		if (hedgeBudgetPercent < 100) return false;
+		hedgeBudgetPercent -= 100;
+		return true;
+	}
+
+	private synchronized void returnHedgeBudget() {
+		hedgeBudgetPercent += 100;
+	}
+
+	/**
+	 * Качает тайл, при необходимости дублирующим запросом. Блокирует поток до конца скачивания.
+	 * @param tileMiner чем качать
+	 * @param primaryAttempt основная попытка, еще не выполненная
+	 * @param hedgeTileURL откуда качать дублирующим запросом
+	 * @return попытка, которая принесла тайл, или основная, если тайл не пришел
+	 */
+	TileMiner.FetchAttempt fetch(final TileMiner tileMiner, TileMiner.FetchAttempt primaryAttempt, final String hedgeTileURL) {
+		final HedgedFetch hedgedFetch = new HedgedFetch(primaryAttempt);
+		addHedgeBudget();
+
+		final Runnable hedgeFetch = new Runnable() {
+
+			@Override
+			public void run() {
+				TileMiner.FetchAttempt hedgeAttempt = new TileMiner.FetchAttempt(hedgeTileURL);
+				if (hedgedFetch.startHedge(hedgeAttempt) == false) {
+					returnHedgeBudget();
+					return;
+				}
+
+				if (tileLoadStatistics != null) tileLoadStatistics.onHedgeSent();
+				tileMiner.executeFetchAttempt(hedgeAttempt);
+				hedgedFetch.onAttemptDone(hedgeAttempt);
+				if (hedgedFetch.isWinner(hedgeAttempt) && tileLoadStatistics != null) tileLoadStatistics.onHedgeWon();
+			}
+		};
+
+		ScheduledFuture<?> hedgeTimer = null;
+		try {
+			hedgeTimer = hedgeTimerExecutor.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					if (tryTakeHedgeBudget() == false) return;
+					try {
+						hedgeFetchExecutor.execute(hedgeFetch);
+					} catch (RejectedExecutionException ex) {
+						returnHedgeBudget();	// все потоки дублирующих запросов заняты, этот тайл без дубля
+					}
+				}
+			}, getHedgeDelayMs(), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ex) {
+			// дублирующие запросы выключены, качаем как обычно
+		}
+
+		long startMs = SystemClock.uptimeMillis();
+		tileMiner.executeFetchAttempt(hedgedFetch.primaryAttempt);
+		long latencyMs = SystemClock.uptimeMillis() - startMs;
+		if (hedgeTimer != null) hedgeTimer.cancel(false);
+
+		hedgedFetch.onAttemptDone(hedgedFetch.primaryAttempt);
+		// прерванная проигравшая попытка шла как минимум столько, это тоже замер
+		if (hedgedFetch.primaryAttempt.tileData != null || hedgedFetch.primaryAttempt.aborted) recordLatency(latencyMs);
+
+		return hedgedFetch.awaitResult();
+	}
+
+	/**
+	 * Останавливает дублирующие запросы
+	 */
+	public void destroy() {
+		hedgeTimerExecutor.shutdownNow();
+		hedgeFetchExecutor.shutdownNow();
+	}
+}
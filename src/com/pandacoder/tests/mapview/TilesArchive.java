@@ -0,0 +1,247 @@
+package com.pandacoder.tests.mapview;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.pandacoder.tests.Utils.IOUtils;
+
+/**
+ * Архив тайлов только для чтения. Один файл, отображенный в память (mmap), с отсортированным индексом ключей.
+ * Нужен, чтобы поставлять вместе с приложением заранее подготовленную базовую карту района вокруг
+ * {@link MapProjection#MAP_CENTER_TILE_X_SN}, {@link MapProjection#MAP_CENTER_TILE_Y_SN}: такие тайлы грузятся
+ * без сети и без отдельного файла на каждый тайл.
+ *
+ * <p>Формат файла (big endian):
+ * <pre>
+ * int magic, int version, int tilesCount, int tileSizeBytes
+ * tilesCount * (int xSn, int ySn)			- индекс, отсортирован по xSn, потом по ySn
+ * tilesCount * tileSizeBytes				- пиксели тайлов в том же порядке, что и индекс
+ * </pre>
+ *
+ * Метод {@link #get} можно вызывать из разных потоков.
+ */
+public class TilesArchive {
+
+	private static final String LOG_TAG = TilesArchive.class.getSimpleName();
+
+	private static final int ARCHIVE_MAGIC = 0x534D5641;	// "SMVA"
+	private static final int ARCHIVE_VERSION = 1;
+	private static final int HEADER_SIZE_BYTES = 4*4;
+	private static final int INDEX_ENTRY_SIZE_BYTES = 2*4;
+
+	private final MappedByteBuffer archiveBuffer;
+	private final int tilesCount;
+	private final int dataOffset;
+
+	/**
+	 * Открывает архив тайлов.
+	 *
+	 * @param archiveFileName имя файла архива
+	 *
+	 * @throws TilesArchiveException если архив не удалось открыть или он испорчен
+	 * @throws NullPointerException если archiveFileName == null
+	 */
+	public TilesArchive(String archiveFileName) {
+
+		if (archiveFileName == null) {
+			throw new NullPointerException("Tiles archive file name is null. It's wrong.");
+		}
+
+		RandomAccessFile archiveFile = null;
+		try {
+			archiveFile = new RandomAccessFile(archiveFileName, "r");
+			FileChannel channel = archiveFile.getChannel();
+			// после отображения в память файл можно закрыть, отображение останется валидным
+			archiveBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (Exception ex) {
+			throw new TilesArchiveException("Fail to map tiles archive " + archiveFileName, ex);
+		} finally {
+			IOUtils.closeSilent(archiveFile);
+		}
+
+		if (archiveBuffer.capacity() < HEADER_SIZE_BYTES || archiveBuffer.getInt(0) != ARCHIVE_MAGIC) {
+			throw new TilesArchiveException("Not a tiles archive: " + archiveFileName);
+		}
+
+		if (archiveBuffer.getInt(4) != ARCHIVE_VERSION) {
+			throw new TilesArchiveException("Unsupported tiles archive version");
+		}
+
+		tilesCount = archiveBuffer.getInt(8);
+		if (archiveBuffer.getInt(12) != TileSpecs.TILE_BITMAP_SIZE_BYTES) {
+			throw new TilesArchiveException("Tiles archive was built for other tile bitmap config");
+		}
+
+		if (tilesCount < 0) {
+			throw new TilesArchiveException("Tiles archive is corrupted, tiles count: " + tilesCount);
+		}
+
+		long indexEndOffset = HEADER_SIZE_BYTES + (long)tilesCount*INDEX_ENTRY_SIZE_BYTES;
+		long expectedSize = indexEndOffset + (long)tilesCount*TileSpecs.TILE_BITMAP_SIZE_BYTES;
+		if (archiveBuffer.capacity() < expectedSize) {
+			throw new TilesArchiveException("Tiles archive is truncated");
+		}
+		dataOffset = (int)indexEndOffset;
+
+		Log.i(LOG_TAG, "tiles archive opened, tiles: " + tilesCount);
+	}
+
+	static class TilesArchiveException extends RuntimeException {
+
+		private static final long serialVersionUID = -2801538296318624447L;
+
+		TilesArchiveException(String message) {
+			super(message);
+		}
+
+		TilesArchiveException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	private static int compareTileKeys(int xSn1, int ySn1, int xSn2, int ySn2) {
+		if (xSn1 != xSn2) return (xSn1 < xSn2)?-1:1;
+		if (ySn1 != ySn2) return (ySn1 < ySn2)?-1:1;
+		return 0;
+	}
+
+	/**
+	 * Бинарный поиск тайла в индексе архива
+	 * @return номер тайла в архиве или -1 если такого тайла нет
+	 */
+	private int findTileIndex(TileSpecs tileSpecs) {
+		int low = 0, high = tilesCount - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int entryOffset = HEADER_SIZE_BYTES + mid*INDEX_ENTRY_SIZE_BYTES;
+			int cmp = compareTileKeys(archiveBuffer.getInt(entryOffset), archiveBuffer.getInt(entryOffset + 4),
+									  tileSpecs.xSn, tileSpecs.ySn);
+			if (cmp < 0) low = mid + 1;
+			else if (cmp > 0) high = mid - 1;
+			else return mid;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Проверяет, есть ли тайл в архиве
+	 * @param tileRequest запрос тайла
+	 * @return true - если есть
+	 */
+	public boolean contains(TileRequest tileRequest) {
+		return findTileIndex(tileRequest.getTileSpecs()) >= 0;
+	}
+
+	/**
+	 * Достает из архива изображение запрошенного тайла
+	 * @param tileRequest запрос тайла
+	 * @param tileBitmap созданный заранее битмап требуемого размера, в который запишется результат
+	 * @return true - если в архиве был такой тайл, false - если нет
+	 */
+	public boolean get(TileRequest tileRequest, Bitmap tileBitmap) {
+
+		int tileIndex = findTileIndex(tileRequest.getTileSpecs());
+		if (tileIndex < 0) return false;
+
+		// у каждого вызова своя копия позиции, поэтому синхронизация не нужна
+		ByteBuffer tilePixels = archiveBuffer.duplicate();
+		int tileOffset = dataOffset + tileIndex*TileSpecs.TILE_BITMAP_SIZE_BYTES;
+		tilePixels.limit(tileOffset + TileSpecs.TILE_BITMAP_SIZE_BYTES);
+		tilePixels.position(tileOffset);
+
+		try {
+			tileBitmap.copyPixelsFromBuffer(tilePixels.slice());
+			return true;
+		} catch (Exception ex) {
+			// битмап не подходит под размер тайла
+			return false;
+		}
+	}
+
+	/**
+	 * Собирает архив из директории кеша {@link TilesPersistentMemoryCache}. Используется для подготовки
+	 * базовой карты, которая будет поставляться с приложением.
+	 *
+	 * @param cacheDirName директория кеша тайлов
+	 * @param archiveFileName файл архива, который будет создан
+	 * @return количество тайлов в архиве
+	 *
+	 * @throws TilesArchiveException если собрать архив не удалось
+	 */
+	public static int pack(String cacheDirName, String archiveFileName) {
+
+		File[] cachedFiles = new File(cacheDirName).listFiles();
+		if (cachedFiles == null) {
+			throw new TilesArchiveException("Can't list cache dir " + cacheDirName);
+		}
+
+		// собираем ключи всех годных тайлов и сортируем их
+		long[] tileKeys = new long[cachedFiles.length];
+		int tilesFound = 0;
+		for (File cachedFile : cachedFiles) {
+			TileRequest tileRequest = TilesPersistentMemoryCache.getTileRequestFromTileFileName(cachedFile.getName());
+			if (tileRequest != null && cachedFile.length() == TileSpecs.TILE_BITMAP_SIZE_BYTES) {
+				TileSpecs tileSpecs = tileRequest.getTileSpecs();
+				tileKeys[tilesFound++] = ((long)tileSpecs.xSn << 32) | (tileSpecs.ySn & 0xffffffffL);
+			}
+		}
+		Arrays.sort(tileKeys, 0, tilesFound);
+
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(archiveFileName, false)));
+			dos.writeInt(ARCHIVE_MAGIC);
+			dos.writeInt(ARCHIVE_VERSION);
+			dos.writeInt(tilesFound);
+			dos.writeInt(TileSpecs.TILE_BITMAP_SIZE_BYTES);
+
+			for (int i = 0; i < tilesFound; i++) {
+				dos.writeInt((int)(tileKeys[i] >> 32));
+				dos.writeInt((int)tileKeys[i]);
+			}
+
+			byte[] tilePixels = new byte[TileSpecs.TILE_BITMAP_SIZE_BYTES];
+			for (int i = 0; i < tilesFound; i++) {
+				TileRequest tileRequest = new TileRequest(new TileSpecs((int)(tileKeys[i] >> 32), (int)tileKeys[i]));
+				File tileFile = new File(cacheDirName, TilesPersistentMemoryCache.getTileFileNameFromTileRequest(tileRequest));
+
+				FileInputStream fis = new FileInputStream(tileFile);
+				try {
+					int bytesRead = 0;
+					while (bytesRead < tilePixels.length) {
+						int count = fis.read(tilePixels, bytesRead, tilePixels.length - bytesRead);
+						if (count < 0) throw new TilesArchiveException("Tile file is truncated " + tileFile);
+						bytesRead += count;
+					}
+				} finally {
+					IOUtils.closeSilent(fis);
+				}
+
+				dos.write(tilePixels);
+			}
+
+			dos.close();
+		} catch (TilesArchiveException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			throw new TilesArchiveException("Fail to pack tiles archive", ex);
+		} finally {
+			IOUtils.closeSilent(dos);
+		}
+
+		return tilesFound;
+	}
+}
@@ -0,0 +1,197 @@
+package com.pandacoder.tests.mapview;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+
+/**
+ * Кеш тайлов в оперативной памяти в сжатом виде. Стоит между {@link TileBitmapCache} с готовыми битмапами
+ * и кешем в постоянной памяти. Сжатый тайл занимает примерно в десять раз меньше декодированного,
+ * поэтому за тот же объем памяти в кеше помещается история из нескольких сотен тайлов.
+ *
+ * <p>Тайлы хранятся либо в исходном виде, как их отдал сервер (PNG), либо как пиксели, сжатые
+ * быстрым deflate. Декодируются только когда их запросили. Размер кеша ограничивается в байтах,
+ * вытесняется тайл, который дольше всех не запрашивали.
+ */
+public class TilesCompressedRamCache {
+
+	private static final int FORMAT_ENCODED_IMAGE = 0;	// PNG/JPEG как пришел с сервера
+	private static final int FORMAT_DEFLATED_PIXELS = 1;	// пиксели TILE_BITMAP_CONFIG, сжатые deflate
+
+	private static class CompressedTile {
+		final int format;
+		final byte[] data;
+
+		CompressedTile(int format, byte[] data) {
+			this.format = format;
+			this.data = data;
+		}
+	}
+
+	private final long maxSizeBytes;
+	private long currentSizeBytes = 0;
+	private final LinkedHashMap<TileRequest, CompressedTile> cache;
+
+	private final BitmapFactory.Options tileBitmapOptions;
+	private final Canvas decodeCanvas;
+	private final byte[] tilePixels;
+	private final byte[] deflateBuffer;
+	private final Deflater deflater;
+	private final Inflater inflater;
+	private boolean destroyed = false;
+
+	/**
+	 * Создает кеш
+	 * @param maxSizeBytes сколько байт сжатых данных может держать кеш
+	 */
+	public TilesCompressedRamCache(long maxSizeBytes) {
+
+		if (maxSizeBytes < 0) {
+			throw new IllegalArgumentException("Compressed tiles cache size should be >= 0");
+		}
+
+		this.maxSizeBytes = maxSizeBytes;
+
+		// accessOrder = true: самый старый элемент - тот, который дольше всех не запрашивали
+		this.cache = new LinkedHashMap<TileRequest, CompressedTile>(64, 0.75f, true);
+
+		this.tileBitmapOptions = new BitmapFactory.Options();
+		this.tileBitmapOptions.inPreferredConfig = TileSpecs.TILE_BITMAP_CONFIG;
+		this.decodeCanvas = new Canvas();
+
+		this.tilePixels = new byte[TileSpecs.TILE_BITMAP_SIZE_BYTES];
+		this.deflateBuffer = new byte[TileSpecs.TILE_BITMAP_SIZE_BYTES];
+		this.deflater = new Deflater(Deflater.BEST_SPEED);
+		this.inflater = new Inflater();
+	}
+
+	private void putCompressedTile(TileRequest tileRequest, CompressedTile compressedTile) {
+		if (destroyed || compressedTile.data.length > maxSizeBytes) return;
+
+		CompressedTile replacedTile = cache.put(tileRequest, compressedTile);
+		if (replacedTile != null) currentSizeBytes -= replacedTile.data.length;
+		currentSizeBytes += compressedTile.data.length;
+
+		Iterator<CompressedTile> it = cache.values().iterator();
+		while (currentSizeBytes > maxSizeBytes && it.hasNext()) {
+			currentSizeBytes -= it.next().data.length;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Кладет в кеш тайл в том виде, в каком он пришел с сервера.
+	 * @param tileRequest запрос тайла
+	 * @param encodedTileData сжатое изображение (PNG), массив не копируется и не должен меняться
+	 */
+	public synchronized void putEncoded(TileRequest tileRequest, byte[] encodedTileData) {
+		putCompressedTile(tileRequest, new CompressedTile(FORMAT_ENCODED_IMAGE, encodedTileData));
+	}
+
+	/**
+	 * Кладет в кеш пиксели тайла, сжатые быстрым deflate. Для тайлов, у которых нет исходного
+	 * сжатого изображения, например прочитанных из кеша в постоянной памяти.
+	 * @param tileRequest запрос тайла
+	 * @param tileBitmap изображение тайла
+	 */
+	public synchronized void putPixels(TileRequest tileRequest, Bitmap tileBitmap) {
+		if (destroyed || cache.containsKey(tileRequest)) return;
+
+		ByteBuffer tilePixelsBuffer = ByteBuffer.wrap(tilePixels);
+		tileBitmap.copyPixelsToBuffer(tilePixelsBuffer);
+
+		deflater.reset();
+		deflater.setInput(tilePixels);
+		deflater.finish();
+		int compressedSize = deflater.deflate(deflateBuffer);
+		if (deflater.finished() == false) return;	// сжатие не помогло, такой тайл хранить невыгодно
+
+		byte[] compressedPixels = new byte[compressedSize];
+		System.arraycopy(deflateBuffer, 0, compressedPixels, 0, compressedSize);
+		putCompressedTile(tileRequest, new CompressedTile(FORMAT_DEFLATED_PIXELS, compressedPixels));
+	}
+
+	/**
+	 * Достает из кеша и декодирует изображение запрошенного тайла
+	 * @param tileRequest запрос тайла
+	 * @param tileBitmap созданный заранее битмап требуемого размера, в который запишется результат
+	 * @return true - если в кеше был такой тайл, false - если нет
+	 */
+	public synchronized boolean get(TileRequest tileRequest, Bitmap tileBitmap) {
+
+		if (destroyed) return false;
+
+		CompressedTile compressedTile = cache.get(tileRequest);
+		if (compressedTile == null) return false;
+
+		boolean decoded = false;
+		if (compressedTile.format == FORMAT_ENCODED_IMAGE) {
+			Bitmap decodedBitmap = BitmapFactory.decodeByteArray(compressedTile.data, 0, compressedTile.data.length, tileBitmapOptions);
+			if (decodedBitmap != null) {
+				decodeCanvas.setBitmap(tileBitmap);
+				decodeCanvas.drawBitmap(decodedBitmap, 0, 0, null);
+				decodedBitmap.recycle();
+				decoded = true;
+			}
+		} else {
+			try {
+				inflater.reset();
+				inflater.setInput(compressedTile.data);
+				if (inflater.inflate(tilePixels) == tilePixels.length) {
+					tileBitmap.copyPixelsFromBuffer(ByteBuffer.wrap(tilePixels));
+					decoded = true;
+				}
+			} catch (DataFormatException ex) {
+				// испорченные данные, ниже выкинем их из кеша
+			}
+		}
+
+		if (decoded == false) {
+			cache.remove(tileRequest);
+			currentSizeBytes -= compressedTile.data.length;
+		}
+
+		return decoded;
+	}
+
+	/**
+	 * Достает сжатое изображение тайла в том виде, в каком его отдал сервер, не декодируя его
+	 * @param tileRequest запрос тайла
+	 * @return байты изображения (менять нельзя) или null, если тайла нет в кеше или он хранится как пиксели
+	 */
+	public synchronized byte[] getEncoded(TileRequest tileRequest) {
+		if (destroyed) return null;
+
+		CompressedTile compressedTile = cache.get(tileRequest);
+		return (compressedTile != null && compressedTile.format == FORMAT_ENCODED_IMAGE)?compressedTile.data:null;
+	}
+
+	/**
+	 * Выкидывает тайл из кеша, например когда его изображение устарело
+	 * @param tileRequest запрос тайла
+	 */
+	public synchronized void remove(TileRequest tileRequest) {
+		CompressedTile removedTile = cache.remove(tileRequest);
+		if (removedTile != null) currentSizeBytes -= removedTile.data.length;
+	}
+
+	/**
+	 * Освобождает ресурсы кеша
+	 */
+	public synchronized void destroy() {
+		if (destroyed) return;
+
+		destroyed = true;
+		cache.clear();
+		currentSizeBytes = 0;
+		deflater.end();
+		inflater.end();
+	}
+}
@@ -0,0 +1,166 @@
+package com.pandacoder.tests.mapview;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * Кеш для тайлов в оперативной памяти, но вне java-кучи. Пиксели тайлов лежат в одном большом direct
+ * {@link ByteBuffer}, поделенном на ячейки по размеру тайла. Такая память не считается в лимит кучи
+ * приложения и не нагружает сборщик мусора, поэтому в кеше можно держать намного больше тайлов, чем в
+ * {@link TilesRamCache}.
+ *
+ * <p>Для отрисовки пиксели копируются в один из нескольких битмапов для показа, только когда тайл
+ * запросили. Вытесняется тайл, который дольше всех не запрашивали, или, если задано, самый далекий от видимых
+ * областей карт (см. {@link ViewportEvictionPolicy}).
+ */
+public class TilesDirectRamCache implements TileBitmapCache {
+
+	/**
+	 * Сколько битмапов для показа держит кеш. Тайл, скопированный в битмап для показа, при повторном
+	 * запросе не копируется.
+	 */
+	private final static int DISPLAY_BITMAPS_COUNT = 2;
+
+	private final int size;
+	private LinkedHashMap<TileRequest, Integer> cache;	// тайл -> номер ячейки
+	private final LinkedList<Integer> freeSlots;
+	private final ByteBuffer[] slots;
+
+	private final Bitmap[] displayBitmaps;
+	private final TileRequest[] displayBitmapsTiles;	// какой тайл сейчас лежит в битмапе для показа
+	private int nextDisplayBitmap = 0;
+	private final ViewportEvictionPolicy evictionPolicy;	// null - вытесняется тайл, который дольше всех не запрашивали
+
+	/**
+	 * Создает кеш для тайлов заданного размера.
+	 * @param size сколько тайлов помещается в кеш
+	 */
+	public TilesDirectRamCache(int size) {
+		this(size, false);
+	}
+
+	/**
+	 * Создает кеш для тайлов заданного размера.
+	 * @param size сколько тайлов помещается в кеш
+	 * @param viewportEviction вытеснять тайлы по расстоянию до видимых областей карт, а не по давности запросов
+	 */
+	public TilesDirectRamCache(int size, boolean viewportEviction) {
+		this.size = size;
+		this.evictionPolicy = viewportEviction?new ViewportEvictionPolicy():null;
+
+		ByteBuffer slab = ByteBuffer.allocateDirect(size * TileSpecs.TILE_BITMAP_SIZE_BYTES);
+		slots = new ByteBuffer[size];
+		freeSlots = new LinkedList<Integer>();
+		for (int i = 0; i < size; i++) {
+			slab.limit((i + 1) * TileSpecs.TILE_BITMAP_SIZE_BYTES);
+			slab.position(i * TileSpecs.TILE_BITMAP_SIZE_BYTES);
+			slots[i] = slab.slice();
+			freeSlots.add(i);
+		}
+
+		// accessOrder = true: самый старый элемент - тот, который дольше всех не запрашивали
+		cache = new LinkedHashMap<TileRequest, Integer>(this.size, 0.75f, true) {
+
+			private static final long serialVersionUID = -4630934516520983402L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<TileRequest, Integer> eldest) {
+		        if (size() > TilesDirectRamCache.this.size) {
+		        	remove(eldest.getKey());
+		        	forgetDisplayedTile(eldest.getKey());
+		        	TilesDirectRamCache.this.freeSlots.add(eldest.getValue());
+		        }
+		        return false;
+		    }
+		};
+
+		displayBitmaps = new Bitmap[DISPLAY_BITMAPS_COUNT];
+		displayBitmapsTiles = new TileRequest[DISPLAY_BITMAPS_COUNT];
+		for (int i = 0; i < DISPLAY_BITMAPS_COUNT; i++) {
+			displayBitmaps[i] = Bitmap.createBitmap(TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_BITMAP_CONFIG);
+		}
+	}
+
+	private void forgetDisplayedTile(TileRequest tileRequest) {
+		for (int i = 0; i < DISPLAY_BITMAPS_COUNT; i++) {
+			if (tileRequest.equals(displayBitmapsTiles[i])) displayBitmapsTiles[i] = null;
+		}
+	}
+
+	@Override
+	public synchronized void put(TileRequest tileRequest, Bitmap tileBitmap) {
+		if (cache == null || cache.containsKey(tileRequest)) return; // такой тайл у нас уже есть
+
+		if (freeSlots.isEmpty()) {	// места нет, освобождаем ячейку самого старого или самого далекого тайла
+			TileRequest victimTileRequest = (evictionPolicy != null)?evictionPolicy.chooseVictim(cache.keySet(), null)
+																	 :cache.keySet().iterator().next();
+			forgetDisplayedTile(victimTileRequest);
+			freeSlots.add(cache.remove(victimTileRequest));
+		}
+
+		int slot = freeSlots.remove();
+		ByteBuffer slotBuffer = slots[slot];
+		slotBuffer.rewind();
+		tileBitmap.copyPixelsToBuffer(slotBuffer);
+
+		cache.put(tileRequest, slot);
+	}
+
+	/**
+	 * Достает изображение тайла. Возвращается один из битмапов для показа, он будет перезаписан
+	 * одним из следующих вызовов get.
+	 */
+	@Override
+	public synchronized Bitmap get(TileRequest tileRequest) {
+		if (cache == null) return null;
+
+		Integer slot = cache.get(tileRequest);
+		if (slot == null) return null;
+
+		for (int i = 0; i < DISPLAY_BITMAPS_COUNT; i++) {	// может быть тайл уже лежит в битмапе для показа
+			if (tileRequest.equals(displayBitmapsTiles[i])) return displayBitmaps[i];
+		}
+
+		int displayBitmapIndex = nextDisplayBitmap;
+		nextDisplayBitmap = (nextDisplayBitmap + 1) % DISPLAY_BITMAPS_COUNT;
+
+		ByteBuffer slotBuffer = slots[slot];
+		slotBuffer.rewind();
+		displayBitmaps[displayBitmapIndex].copyPixelsFromBuffer(slotBuffer);
+		displayBitmapsTiles[displayBitmapIndex] = tileRequest;
+
+		return displayBitmaps[displayBitmapIndex];
+	}
+
+	@Override
+	public synchronized void remove(TileRequest tileRequest) {
+		if (cache == null) return;
+
+		Integer slot = cache.remove(tileRequest);
+		if (slot != null) {
+			forgetDisplayedTile(tileRequest);
+			freeSlots.add(slot);
+		}
+	}
+
+	@Override
+	public synchronized void updateViewport(MapTilesReceiver mapView, MapProjection mapProjection) {
+		if (evictionPolicy != null) evictionPolicy.updateViewport(mapView, mapProjection);
+	}
+
+	@Override
+	public synchronized void destroy() {
+		if (cache != null) {
+			for (Bitmap displayBitmap : displayBitmaps) {
+				displayBitmap.recycle();
+			}
+
+			cache.clear();
+			cache = null;
+		}
+	}
+}
@@ -1,11 +1,22 @@
 package com.pandacoder.tests.mapview;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
 
 import android.graphics.Bitmap;
 import android.os.StatFs;
@@ -14,8 +25,32 @@ import android.util.Log;
 import com.pandacoder.tests.Utils.IOUtils;
 
 /**
- * Класс для кеширования тайлов в постоянной памяти. Кеш умеет автоматически масштабировать себя
- * не занимая более 90% свободного места на диске, где он расположен.
+ * Класс для кеширования тайлов в постоянной памяти. Кеш считает, сколько байт реально занимает на диске, и
+ * держит этот размер между нижней и верхней границей. Верхняя граница - меньшее из абсолютного размера и
+ * 90% места, доступного кешу на диске. Чистит кеш фоновый поток, put только будит его.
+ * 
+ * <p>Вытеснение: кандидат на удаление - давно не читанный тайл (порядок доступа), но новый тайл
+ * займет его место только если читается чаще (TinyLFU, см. {@link TileFrequencySketch}). Так один проход
+ * по карте не вымывает из кеша тайлы, которые смотрят каждый день. Порядок доступа и частоты
+ * сохраняются между запусками методом {@link #saveState}.
+ * 
+ * <p>Пространства имен: тайлы разных версий стиля источника лежат в разных поддиректориях, поэтому после смены
+ * версии кеш не отдает тайлы старого стиля как новые. Тайлы старых версий не стираются разом: пока новый тайл
+ * качается, старый показывается как заглушка ({@link #getObsolete}), а фоновый поток удаляет старые
+ * пространства имен понемногу. Тайлы, лежащие прямо в директории кеша (до появления версий), тоже считаются
+ * старой версией.
+ *
+ * <p>Одинаковые тайлы (вода, пустая суша, области без покрытия) не хранятся по копии на каждый. Одноцветный
+ * тайл записывается как файл из одного пикселя и читается заливкой. Когда в кеш попадает второй тайл с теми же
+ * пикселями (см. {@link TileContentHash}), изображение переезжает в общий блоб в поддиректории blobs, а файлы
+ * тайлов хранят только ссылку на него. Блоб удаляется вместе с последним ссылающимся на него тайлом.
+ * Вид файла тайла определяется по его длине.
+ *
+ * <p>Уровни: перед большим кешем на внешней памяти (часто медленной SD карте) может стоять маленький горячий
+ * уровень на быстрой внутренней памяти - такой же кеш со своей директорией и своим бюджетом. Поиск идет
+ * сначала в горячем уровне. Тайл, который снова и снова читается с внешней памяти (HOT_TIER_PROMOTION_FREQUENCY
+ * обращений), копируется в горячий уровень. Тайл, который горячий уровень вытесняет, возвращается во внешний кеш,
+ * если тот его уже выкинул. Новые тайлы пишутся во внешний кеш. Мониторы уровней никогда не берутся вложенно.
  *
  */
 public class TilesPersistentMemoryCache {
@@ -36,30 +71,162 @@ public class TilesPersistentMemoryCache {
 	} 
 	
 	/**
-	 * После каждых RECHECK_AVAILABLE_SPACE_INTERVAL put операций в кеш, будет проверятся
-	 * доступное место в директории отведенное под кеш. Кеш старается занять не больше 90%
-	 * доступного на данный момент места.
-	 * 
+	 * Кеш старается занять не больше FREE_SPACE_SHARE_PERCENT процентов от места, которое
+	 * доступно ему на диске (свободное место + то, что кеш уже занимает).
+	 */
+	private final static int FREE_SPACE_SHARE_PERCENT = 90;
+	
+	/**
+	 * Когда кеш перерастает верхнюю границу, фоновый поток чистит его до нижней границы,
+	 * LOW_WATERMARK_PERCENT процентов от верхней. Запас нужен, чтобы не чистить кеш после каждого put.
+	 */
+	private final static int LOW_WATERMARK_PERCENT = 85;
+	
+	/**
+	 * Как часто фоновый поток перепроверяет свободное место на диске
+	 */
+	private final static long GOVERNOR_RECHECK_INTERVAL_MS = 30*1000;
+	
+	/**
+	 * Сколько тайлов удаляется за один захват монитора кеша. Между пачками put и get могут работать.
+	 */
+	private final static int GOVERNOR_EVICTION_BATCH_SIZE = 16;
+	
+	/**
+	 * Файл в директории кеша, в котором хранится состояние политики вытеснения.
+	 * Имя не парсится как имя тайла, поэтому {@link #restore} его пропускает.
+	 */
+	private final static String STATE_FILE_NAME = "cache.state";
+	private final static int STATE_FILE_VERSION = 1;
+	
+	private final static String NAMESPACE_DIR_PREFIX = "tiles-";
+	
+	/**
+	 * Тайлы старых версий удаляются пачками по OBSOLETE_CLEANUP_BATCH_SIZE файлов раз в OBSOLETE_CLEANUP_INTERVAL_MS,
+	 * чтобы не занимать диск надолго и дать старым тайлам побыть заглушками
+	 */
+	private final static int OBSOLETE_CLEANUP_BATCH_SIZE = 32;
+	private final static long OBSOLETE_CLEANUP_INTERVAL_MS = 2*1000;
+	
+	/**
+	 * Поддиректория пространства имен с общими изображениями одинаковых тайлов
+	 */
+	private final static String BLOBS_DIR_NAME = "blobs";
+
+	/**
+	 * Файл одноцветного тайла - один пиксель, файл ссылки на блоб - отпечаток изображения. Оба короче файла
+	 * с изображением, поэтому вид файла понятен по длине.
+	 */
+	private final static int SOLID_TILE_FILE_SIZE = 2;
+	private final static int BLOB_REFERENCE_FILE_SIZE = 8;
+
+	/**
+	 * Со скольких обращений (по оценке {@link TileFrequencySketch}, промахи тоже считаются) тайл, прочитанный
+	 * из внешнего кеша, копируется в горячий уровень
+	 */
+	private final static int HOT_TIER_PROMOTION_FREQUENCY = 3;
+
+	/**
+	 * Файл тайла в кеше и его размер на диске. Общий блоб в размер тайла не входит.
 	 */
-	private final static int RECHECK_AVAILABLE_SPACE_INTERVAL = 20;
+	private static class CachedTile {
+		final File file;
+		long sizeBytes;
+		long blobKey = 0;		// отпечаток изображения в общем блобе, 0 - изображение в самом файле тайла
+		long contentHash = 0;	// отпечаток изображения в самом файле тайла, 0 - неизвестен
+		
+		CachedTile(File file, long sizeBytes) {
+			this.file = file;
+			this.sizeBytes = sizeBytes;
+		}
+	}
+
+	/**
+	 * Общее изображение одинаковых тайлов
+	 */
+	private static class Blob {
+		final File file;
+		final long sizeBytes;
+		int referenceCount = 0;
+
+		Blob(File file, long sizeBytes) {
+			this.file = file;
+			this.sizeBytes = sizeBytes;
+		}
+	}
+	
+	/**
+	 * Тайлы старой версии: поддиректория старого пространства имен или директория кеша, если тайлы
+	 * лежат прямо в ней
+	 */
+	private static class ObsoleteNamespace {
+		final File dir;
+		final boolean rootDir;	// в директории кеша удаляются только файлы тайлов и состояния
+		
+		ObsoleteNamespace(File dir, boolean rootDir) {
+			this.dir = dir;
+			this.rootDir = rootDir;
+		}
+	}
 	
-	private final File cacheDir;
-	private final LinkedHashMap<TileRequest, File> cacheMap ;
-	private final int maxAllowedCacheMapSize;
-	private int currentAllowedCacheMapSize;
+	private final File rootDir;
+	private final File cacheDir;		// тайлы текущей версии
+	private final File blobsDir;
+	private final ArrayList<ObsoleteNamespace> obsoleteNamespaces;
+	private final LinkedHashMap<TileRequest, CachedTile> cacheMap;
+	private final HashMap<Long, Blob> blobs;
+	private final HashMap<Long, CachedTile> ownContentTiles;	// тайлы с изображением в своем файле по отпечатку
+	private final long maxCacheSizeBytes;
+	private long currentCacheSizeBytes = 0;
+	private long highWatermarkBytes, lowWatermarkBytes;
 	private final ByteBuffer tilePixelsBuffer;
+	private final TileFrequencySketch frequencySketch;
+	private CacheSizeGovernor sizeGovernor;
+	private boolean destroyed = false;		// после destroy фоновый поток не запускается, файлы кеша не пишутся
+	private final TilesPersistentMemoryCache hotTier;		// null - горячего уровня нет
+	private TilesPersistentMemoryCache demotionTier;		// у горячего уровня: куда возвращать вытесненные тайлы
+	
+	/**
+	 * Создает кеш без пространств имен: тайлы лежат прямо в директории кеша
+	 * 
+	 * @param cacheDirName директория, где будут храниться файлы
+	 * @param maxSizeBytes максимальный размер кеша на диске в байтах
+	 * 
+	 * @throws IllegalArgumentException, NullPointerException
+	 */
+	public TilesPersistentMemoryCache(String cacheDirName, long maxSizeBytes) {
+		this(cacheDirName, null, maxSizeBytes);
+	}
 	
 	/**
 	 * Создает кеш
 	 * 
 	 * @param cacheDirName директория, где будут храниться файлы
-	 * @param sizeTiles размер кеша
+	 * @param namespace пространство имен кеша, например версия стиля тайлов (см. {@link TileMiner#getCacheNamespace}).
+	 * 		  null - тайлы лежат прямо в директории кеша
+	 * @param maxSizeBytes максимальный размер кеша на диске в байтах
 	 * 
 	 * @throws IllegalArgumentException, NullPointerException
 	 */
-	public TilesPersistentMemoryCache(String cacheDirName, int sizeTiles) {
+	public TilesPersistentMemoryCache(String cacheDirName, String namespace, long maxSizeBytes) {
+		this(cacheDirName, namespace, maxSizeBytes, null, 0);
+	}
+	
+	/**
+	 * Создает кеш с горячим уровнем на быстрой памяти
+	 * 
+	 * @param cacheDirName директория основного кеша, например на внешней памяти
+	 * @param namespace пространство имен кеша, null - тайлы лежат прямо в директориях кеша
+	 * @param maxSizeBytes максимальный размер основного кеша на диске в байтах
+	 * @param hotTierDirName директория горячего уровня на быстрой памяти, null - без горячего уровня
+	 * @param hotTierMaxSizeBytes максимальный размер горячего уровня в байтах
+	 * 
+	 * @throws IllegalArgumentException, NullPointerException
+	 */
+	public TilesPersistentMemoryCache(String cacheDirName, String namespace, long maxSizeBytes, 
+									  String hotTierDirName, long hotTierMaxSizeBytes) {
 		
-		if (sizeTiles < 0) {
+		if (maxSizeBytes < 0) {
 			throw new IllegalArgumentException("Tiles cache size shoulde be >= 0");
 		}
 		
@@ -68,7 +235,9 @@ public class TilesPersistentMemoryCache {
 		}
 				
 		// Начинаем инициализировать кеш
-		cacheDir = new File(cacheDirName);
+		rootDir = new File(cacheDirName);
+		cacheDir = (namespace != null)?new File(rootDir, getNamespaceDirName(namespace)):rootDir;
+		blobsDir = new File(cacheDir, BLOBS_DIR_NAME);
 		
 		if (cacheDir.exists() == false) { // если директории для кеша еще нет, нужно ее создать
 			if (!cacheDir.mkdirs()) {
@@ -80,58 +249,72 @@ public class TilesPersistentMemoryCache {
 			throw new TilesPersistentMemoryCacheException("Cant read/write cache dir. Cant work.");
 		}
 
-		this.currentAllowedCacheMapSize = this.maxAllowedCacheMapSize = sizeTiles;
-		this.cacheMap = new LinkedHashMap<TileRequest, File>(sizeTiles) {
-
-			private static final long serialVersionUID = 232181184804078247L;
-
-			@Override
-			protected boolean removeEldestEntry(Entry<TileRequest, File> eldest) {
-				
-				if (size() > TilesPersistentMemoryCache.this.currentAllowedCacheMapSize) {
-					removeCachedItem(eldest.getKey());
-				}
-				
-				return false;
-			}
-
-			@Override
-			public File remove(Object key) {
-				Log.i(LOG_TAG, "removing item " + key.toString());
-				return removeCachedItem(key);
-			}
-			
-			private File removeCachedItem(Object key) {
-				File tileFile = super.remove(key);
-				if (tileFile != null) tileFile.delete();
-				return null;
-			}
-		};
+		this.maxCacheSizeBytes = maxSizeBytes;
+		// пока фоновый поток не посмотрел на диск, ограничиваемся только абсолютным размером
+		setWatermarks(maxSizeBytes);
+		
+		int expectedTilesCount = (int) Math.min(maxSizeBytes / TileSpecs.TILE_BITMAP_SIZE_BYTES, 1 << 20);
+		
+		// accessOrder = true: get перемещает тайл в конец, самый старый - тот, который давно не читали
+		this.cacheMap = new LinkedHashMap<TileRequest, CachedTile>(expectedTilesCount, 0.75f, true);
 		tilePixelsBuffer = ByteBuffer.allocate(TileSpecs.TILE_BITMAP_SIZE_BYTES);
+		frequencySketch = new TileFrequencySketch(expectedTilesCount);
+		obsoleteNamespaces = new ArrayList<ObsoleteNamespace>();
+		blobs = new HashMap<Long, Blob>();
+		ownContentTiles = new HashMap<Long, CachedTile>();
+		
+		TilesPersistentMemoryCache hotTier = null;
+		if (hotTierDirName != null) {
+			try {
+				hotTier = new TilesPersistentMemoryCache(hotTierDirName, namespace, hotTierMaxSizeBytes);
+				hotTier.demotionTier = this;
+			} catch (Exception ex) {
+				// быстрая память недоступна, работаем с одним уровнем
+				Log.w(LOG_TAG, "Fail to create hot cache tier: " + ex.getMessage());
+			}
+		}
+		this.hotTier = hotTier;
 	}
 	
 	/**
-	 * Возращает количество тайлов, для которых достаточно места в директории кеша. Вычисляет 
-	 * общее свободное место в байтах, берет 90% от этого количества, чтобы совсем не забить 
-	 * весь раздел. Полученное число делит на размер одного тайла.
-	 * 
-	 * @return количество тайлов
+	 * Имя поддиректории пространства имен: tiles-2.21.0. Символы, которым не место в имени файла, заменяются.
 	 */
-	private int getAvailableFsSpaceInTiles() {
-		
+	static String getNamespaceDirName(String namespace) {
+		StringBuilder dirName = new StringBuilder(NAMESPACE_DIR_PREFIX);
+		for (int i = 0; i < namespace.length(); i++) {
+			char c = namespace.charAt(i);
+			boolean allowed = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-';
+			dirName.append(allowed?c:'_');
+		}
+		return dirName.toString();
+	}
+	
+	/**
+	 * Файл, который принадлежит кешу тайлов: файл тайла или состояния
+	 */
+	private static boolean isCacheFileName(String fileName) {
+		return STATE_FILE_NAME.equals(fileName) || getTileRequestFromTileFileName(fileName) != null;
+	}
+	
+	private synchronized void setWatermarks(long allowedSizeBytes) {
+		highWatermarkBytes = allowedSizeBytes;
+		lowWatermarkBytes = allowedSizeBytes / 100 * LOW_WATERMARK_PERCENT;
+	}
+	
+	/**
+	 * Возращает количество байт, доступных на разделе, где находится директория кеша
+	 */
+	private long getAvailableFsSpaceBytes() {
 		StatFs stat = new StatFs(cacheDir.getPath());
-		long availableBytes = (long)stat.getAvailableBlocks() * stat.getBlockSize();
-		long availableTiles = availableBytes / TileSpecs.TILE_BITMAP_SIZE_BYTES * 9 / 10; 
-
-		return (int) availableTiles;
+		return (long)stat.getAvailableBlocks() * stat.getBlockSize();
 	}
 	
-	private String getTileFileNameFromTileRequest(TileRequest tileRequest) {
+	static String getTileFileNameFromTileRequest(TileRequest tileRequest) {
 		TileSpecs tileSpecs = tileRequest.getTileSpecs();
 		return tileSpecs.xSn + "x" + tileSpecs.ySn;
 	}
 	
-	private TileRequest getTileRequestFromTileFileName(String fileName) {
+	static TileRequest getTileRequestFromTileFileName(String fileName) {
 		String [] parts = fileName.split("x");
 		if (parts.length == 2) {
 			try {
@@ -156,108 +339,749 @@ public class TilesPersistentMemoryCache {
 	 * @param tileBitmap созданный заранее битмат требуемого размера, в который запишется результат
 	 * @return true - если в кеше был такой тайл, false - если в кеш не попали
 	 */
-	public synchronized boolean get(TileRequest tileRequest, Bitmap tileBitmap) {
+	public boolean get(TileRequest tileRequest, Bitmap tileBitmap) {
+		if (hotTier != null && hotTier.get(tileRequest, tileBitmap)) return true;
 		
-		if (cacheMap.containsKey(tileRequest) == false) return false;
+		if (getFromTier(tileRequest, tileBitmap) == false) return false;
 		
+		// тайл читают снова и снова - пусть дальше читается с быстрой памяти
+		if (hotTier != null && isPromotionCandidate(tileRequest)) hotTier.put(tileRequest, tileBitmap);
+		return true;
+	}
+	
+	private synchronized boolean isPromotionCandidate(TileRequest tileRequest) {
+		return frequencySketch.frequency(tileRequest) >= HOT_TIER_PROMOTION_FREQUENCY;
+	}
+	
+	private synchronized boolean getFromTier(TileRequest tileRequest, Bitmap tileBitmap) {
+		
+		frequencySketch.increment(tileRequest);	// учитываем и промахи: тайл, который часто просят, стоит пустить в кеш
+		
+		CachedTile cachedTile = cacheMap.get(tileRequest);
+		if (cachedTile == null) return false;
+		
+		if (readTileFile(cachedTile.file, tileBitmap, tilePixelsBuffer)) return true;
+		
+		// не смогли для заданного запроса выдать информацию
+		// удаляем информацию о нем
+		removeCachedTile(tileRequest);
+		return false;
+	}
+	
+	/**
+	 * Есть ли тайл в кеше. Файл не читается, обращением к тайлу это не считается.
+	 * @param tileRequest запрос тайла
+	 */
+	public boolean contains(TileRequest tileRequest) {
+		return (hotTier != null && hotTier.contains(tileRequest)) || tierContains(tileRequest);
+	}
+	
+	private synchronized boolean tierContains(TileRequest tileRequest) {
+		return cacheMap.containsKey(tileRequest);
+	}
+	
+	/**
+	 * Читает тайл прямо из его файла: не ждет {@link #restore}, не берет монитор кеша и не меняет порядок
+	 * доступа. Для быстрого старта, можно вызывать из нескольких потоков сразу.
+	 *
+	 * @param tileRequest запрос тайла
+	 * @param tileBitmap созданный заранее битмап требуемого размера, в который запишется результат
+	 * @param pixelsBuffer буфер вызывающего потока размером {@link TileSpecs#TILE_BITMAP_SIZE_BYTES}
+	 * @return true - если файл тайла есть и прочитан целиком
+	 */
+	boolean readTileFile(TileRequest tileRequest, Bitmap tileBitmap, ByteBuffer pixelsBuffer) {
+		if (hotTier != null && hotTier.readTileFile(tileRequest, tileBitmap, pixelsBuffer)) return true;
+		return readTileFile(new File(cacheDir, getTileFileNameFromTileRequest(tileRequest)), tileBitmap, pixelsBuffer);
+	}
+	
+	/**
+	 * Читает тайл из файла любого вида: с изображением, одноцветный или ссылку на блоб. Блоб ищется рядом с файлом
+	 * тайла, поэтому так же читаются тайлы старых версий.
+	 */
+	private static boolean readTileFile(File imageFile, Bitmap tileBitmap, ByteBuffer pixelsBuffer) {
+		byte[] pixels = pixelsBuffer.array();
+
+		if (imageFile.length() == SOLID_TILE_FILE_SIZE) {	// одноцветный тайл - просто заливка
+			if (readFile(imageFile, pixels, SOLID_TILE_FILE_SIZE) == false) return false;
+			tileBitmap.eraseColor(TileContentHash.toArgb(pixels[0], pixels[1]));
+			return true;
+		}
+
+		if (readTilePixels(imageFile, pixels) == false) return false;
+
+		pixelsBuffer.rewind();
+		tileBitmap.copyPixelsFromBuffer(pixelsBuffer);
+		return true;
+	}
+
+	/**
+	 * Читает пиксели тайла из файла любого вида
+	 * @param pixels буфер размером {@link TileSpecs#TILE_BITMAP_SIZE_BYTES}
+	 */
+	private static boolean readTilePixels(File imageFile, byte[] pixels) {
+		long fileLength = imageFile.length();
+
+		if (fileLength == SOLID_TILE_FILE_SIZE) {
+			if (readFile(imageFile, pixels, SOLID_TILE_FILE_SIZE) == false) return false;
+			for (int i = 2; i < pixels.length; i += 2) {
+				pixels[i] = pixels[0];
+				pixels[i + 1] = pixels[1];
+			}
+			return true;
+		}
+
+		if (fileLength == BLOB_REFERENCE_FILE_SIZE) {
+			if (readFile(imageFile, pixels, BLOB_REFERENCE_FILE_SIZE) == false) return false;
+			imageFile = new File(new File(imageFile.getParentFile(), BLOBS_DIR_NAME), getBlobFileName(ByteBuffer.wrap(pixels).getLong()));
+			fileLength = imageFile.length();
+		}
+
+		if (fileLength != pixels.length) return false;
+		return readFile(imageFile, pixels, pixels.length);
+	}
+
+	/**
+	 * Читает начало файла целиком
+	 * @return false - если файл удалили, он короче или не читается
+	 */
+	private static boolean readFile(File file, byte[] buffer, int length) {
 		FileInputStream fis = null;
 		try {
-			File tileFile = cacheMap.get(tileRequest);
-			if (tileFile != null) {
-				fis = new FileInputStream(tileFile);
-				int bytesRead = fis.read(tilePixelsBuffer.array());
-				fis.close();
-				
-				if (bytesRead == tilePixelsBuffer.array().length) {
-					tilePixelsBuffer.rewind();
-					tileBitmap.copyPixelsFromBuffer(tilePixelsBuffer);
-					return true;
-				}
-			}			
-		} catch(Exception ex) { 
-			// чтото пошло не так, ловим все исключения и говорим что в кеше ничего нет		
+			fis = new FileInputStream(file);
+			int bytesRead = 0, count;
+			while (bytesRead < length && (count = fis.read(buffer, bytesRead, length - bytesRead)) != -1) {
+				bytesRead += count;
+			}
+			return bytesRead == length;
+		} catch (Exception ex) {
+			return false;	// файл удалили или он не читается, тайл придет обычным путем
 		} finally {
-			if (fis != null) IOUtils.closeSilent(fis);
+			IOUtils.closeSilent(fis);
+		}
+	}
+
+	private static void writeFile(File file, byte[] data, int length) throws IOException {
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(file, false);
+			fos.write(data, 0, length);
+			fos.close();
+		} finally {
+			IOUtils.closeSilent(fos);
+		}
+	}
+
+	static String getBlobFileName(long blobKey) {
+		return Long.toHexString(blobKey);
+	}
+
+	/**
+	 * Достает изображение тайла старой версии, чтобы показать его, пока качается тайл текущей версии
+	 * @param tileRequest запрос тайла
+	 * @param tileBitmap созданный заранее битмап требуемого размера, в который запишется результат
+	 * @return true - если тайл старой версии нашелся
+	 */
+	public boolean getObsolete(TileRequest tileRequest, Bitmap tileBitmap) {
+		if (hotTier != null && hotTier.getObsolete(tileRequest, tileBitmap)) return true;
+		return getObsoleteFromTier(tileRequest, tileBitmap);
+	}
+	
+	private synchronized boolean getObsoleteFromTier(TileRequest tileRequest, Bitmap tileBitmap) {
+		String tileFileName = getTileFileNameFromTileRequest(tileRequest);
+		for (ObsoleteNamespace obsoleteNamespace : obsoleteNamespaces) {
+			if (readTileFile(new File(obsoleteNamespace.dir, tileFileName), tileBitmap, tilePixelsBuffer)) return true;
 		}
-		
-		// не смогли для заданного запроса выдать информацию
-		// удаляем информацию о нем
-		cacheMap.remove(tileRequest);
 		return false;
 	}
 	
-	private int checkAvailableSpaceCounter = 0;
-	private void scaleCacheMap() {
-		if (--checkAvailableSpaceCounter < 0 || currentAllowedCacheMapSize <= cacheMap.size()) {
-			long availablePlaceTiles = getAvailableFsSpaceInTiles();
-			currentAllowedCacheMapSize = (int) (cacheMap.size() + availablePlaceTiles);
-			
-			if (availablePlaceTiles > 0) {	// если еще есть место под тайлы 
-				if (currentAllowedCacheMapSize > maxAllowedCacheMapSize) {
-					currentAllowedCacheMapSize = maxAllowedCacheMapSize;
-				}
-				
-				checkAvailableSpaceCounter = RECHECK_AVAILABLE_SPACE_INTERVAL;
-			} else {
-				// нужно уменьшить кеш
-				// удалим из него одну запись
-				Iterator<TileRequest> it = cacheMap.keySet().iterator();
-				if (it.hasNext()) {
-					cacheMap.remove(it.next());
-				}
-				// уменьшим разрешенный размер
-				--currentAllowedCacheMapSize;
-				if (currentAllowedCacheMapSize < 0) currentAllowedCacheMapSize = 0;
-				checkAvailableSpaceCounter = 0;
+	private void removeCachedTile(TileRequest tileRequest) {
+		Log.i(LOG_TAG, "removing item " + tileRequest.toString());
+		releaseCachedTile(cacheMap.remove(tileRequest), true);
+	}
+
+	/**
+	 * Забывает тайл, уже убранный из cacheMap: вычитает его размер и отпускает его блоб
+	 * @param cachedTile тайл, null - ничего не делать
+	 * @param deleteFile удалить ли файл тайла, false - файл сейчас перезапишут
+	 */
+	private void releaseCachedTile(CachedTile cachedTile, boolean deleteFile) {
+		if (cachedTile == null) return;
+
+		currentCacheSizeBytes -= cachedTile.sizeBytes;
+		if (deleteFile) cachedTile.file.delete();
+
+		if (cachedTile.blobKey != 0) {
+			Blob blob = blobs.get(cachedTile.blobKey);
+			if (blob != null && --blob.referenceCount == 0) {
+				blobs.remove(cachedTile.blobKey);
+				currentCacheSizeBytes -= blob.sizeBytes;
+				blob.file.delete();
 			}
-			
+		} else if (cachedTile.contentHash != 0 && ownContentTiles.get(cachedTile.contentHash) == cachedTile) {
+			ownContentTiles.remove(cachedTile.contentHash);
 		}
 	}
+	
+	/**
+	 * Решает, пускать ли новый тайл в заполненный кеш. Новый тайл вытеснит самый давно не читанный, только
+	 * если его читают чаще. Редкие тайлы при равенстве вытесняют друг друга, как в обычном LRU.
+	 */
+	private boolean isAdmitted(TileRequest candidate) {
+		if (currentCacheSizeBytes + TileSpecs.TILE_BITMAP_SIZE_BYTES <= highWatermarkBytes) return true;
+		if (cacheMap.containsKey(candidate)) return true;
+		
+		Iterator<TileRequest> it = cacheMap.keySet().iterator();
+		if (it.hasNext() == false) return false;	// кеш пуст, а места все равно нет
+		
+		int candidateFrequency = frequencySketch.frequency(candidate);
+		int victimFrequency = frequencySketch.frequency(it.next());
+		
+		return candidateFrequency > victimFrequency || (candidateFrequency == victimFrequency && victimFrequency <= 1);
+	}
+	
 	/**
 	 * Кладет в кеш изображение тайла. Содержимое битмапа записывается в файл. Если положить в кеш не удалось - молчит.
+	 * Сам put никогда не проверяет место на диске и не чистит кеш, если кеш перерос верхнюю границу - будится
+	 * фоновый поток. Если у кеша есть горячий уровень, тайл пишется в основной кеш, а копия в горячем уровне,
+	 * если она есть, обновляется.
+	 * 
 	 * @param tileRequest
 	 * @param tileBitmap
 	 */
-	public synchronized void put(TileRequest tileRequest, Bitmap tileBitmap) {
+	public void put(TileRequest tileRequest, Bitmap tileBitmap) {
+		put(tileRequest, tileBitmap, false);
+	}
+	
+	/**
+	 * Как {@link #put(TileRequest, Bitmap)}, но может пустить тайл в заполненный кеш без проверки частоты.
+	 * Так пишутся тайлы, скачанные заранее (например, вдоль маршрута): их еще никто не читал, и проверка
+	 * частоты отвергла бы их почти всегда.
+	 * @param admitAlways пускать ли тайл без проверки частоты
+	 */
+	public void put(TileRequest tileRequest, Bitmap tileBitmap, boolean admitAlways) {
+		putToTier(tileRequest, tileBitmap, admitAlways);
+		
+		// например тайл из слоев перекачался, когда устарел: в горячем уровне не должно остаться старого изображения
+		if (hotTier != null && hotTier.contains(tileRequest)) hotTier.put(tileRequest, tileBitmap);
+	}
+	
+	private synchronized void putToTier(TileRequest tileRequest, Bitmap tileBitmap, boolean admitAlways) {
 	
-		scaleCacheMap();
-		if (checkAvailableSpaceCounter <= 0) return;
+		if (admitAlways == false && isAdmitted(tileRequest) == false) return;
 		
-		FileOutputStream fos = null;
-		try {			
-			//  сначала копируем пиксели в буфер
-			tileBitmap.copyPixelsToBuffer(tilePixelsBuffer);
-			tilePixelsBuffer.rewind();
+		//  сначала копируем пиксели в буфер
+		tilePixelsBuffer.rewind();
+		tileBitmap.copyPixelsToBuffer(tilePixelsBuffer);
+		tilePixelsBuffer.rewind();
 						
-			File imageFile = new File(cacheDir, getTileFileNameFromTileRequest(tileRequest));
-			fos = new FileOutputStream(imageFile, false);
-			fos.write(tilePixelsBuffer.array());
-			fos.close();
+		storeTilePixels(tileRequest);
+	}
 			
-			cacheMap.put(tileRequest, imageFile);
+	/**
+	 * Принимает тайл, который вытеснил горячий уровень. Тайл, который уже есть в кеше, не перезаписывается.
+	 * Такой тайл читали часто, поэтому он принимается без проверки частоты.
+	 * @param pixels пиксели тайла
+	 */
+	private synchronized void putDemoted(TileRequest tileRequest, byte[] pixels) {
+		if (cacheMap.containsKey(tileRequest)) return;
+		
+		System.arraycopy(pixels, 0, tilePixelsBuffer.array(), 0, tilePixelsBuffer.capacity());
+		storeTilePixels(tileRequest);
+	}
+	
+	/**
+	 * Записывает тайл из tilePixelsBuffer в кеш. Вызывать только из synchronized(this).
+	 */
+	private void storeTilePixels(TileRequest tileRequest) {
+		if (destroyed) return;	// директорию, возможно, уже открыл новый кеш
+		
+		File imageFile = new File(cacheDir, getTileFileNameFromTileRequest(tileRequest));
+		try {
+			// файл прежней копии тайла сейчас перезапишется
+			releaseCachedTile(cacheMap.remove(tileRequest), false);
+
+			CachedTile cachedTile = writeTileFile(imageFile);
+			cacheMap.put(tileRequest, cachedTile);
+			currentCacheSizeBytes += cachedTile.sizeBytes;
+			
+			// заглушка старой версии больше не нужна
+			for (ObsoleteNamespace obsoleteNamespace : obsoleteNamespaces) {
+				new File(obsoleteNamespace.dir, imageFile.getName()).delete();
+			}
 			
-		} catch(Exception ex) {	// ловим все исключения 
+		} catch(Exception ex) {	// ловим все исключения
 			// тут ничего не поделаешь, чтото пошло не так
-		} finally {
-			IOUtils.closeSilent(fos);
-		}		
+			imageFile.delete();	// не оставляем наполовину записанный файл
+		}
+		
+		if (currentCacheSizeBytes > highWatermarkBytes && sizeGovernor != null) {
+			sizeGovernor.requestTrim();
+		}
 	}
+	
+	/**
+	 * Записывает пиксели из tilePixelsBuffer в файл тайла самым коротким способом: одноцветный тайл - одним
+	 * пикселем, повторившийся тайл - ссылкой на общий блоб, остальные - целиком.
+	 * @return тайл для cacheMap, его размер еще не учтен в currentCacheSizeBytes
+	 */
+	private CachedTile writeTileFile(File imageFile) throws IOException {
+		byte[] pixels = tilePixelsBuffer.array();
 
+		if (TileContentHash.isSolid(pixels, pixels.length)) {
+			writeFile(imageFile, pixels, SOLID_TILE_FILE_SIZE);
+			return new CachedTile(imageFile, SOLID_TILE_FILE_SIZE);
+		}
+
+		long contentHash = TileContentHash.hash(pixels, pixels.length);
+		Blob blob = blobs.get(contentHash);
+		if (blob == null) {
+			CachedTile twinTile = ownContentTiles.get(contentHash);
+			if (twinTile == null) {
+				writeFile(imageFile, pixels, pixels.length);
+				CachedTile cachedTile = new CachedTile(imageFile, pixels.length);
+				cachedTile.contentHash = contentHash;
+				ownContentTiles.put(contentHash, cachedTile);
+				return cachedTile;
+			}
+			blob = moveToBlob(twinTile);
+		}
+
+		writeBlobReference(imageFile, contentHash);
+		blob.referenceCount++;
+		CachedTile cachedTile = new CachedTile(imageFile, BLOB_REFERENCE_FILE_SIZE);
+		cachedTile.blobKey = contentHash;
+		return cachedTile;
+	}
+
+	/**
+	 * Изображение тайла встретилось второй раз: файл первого тайла становится общим блобом, а сам тайл - ссылкой на него
+	 */
+	private Blob moveToBlob(CachedTile cachedTile) throws IOException {
+		long blobKey = cachedTile.contentHash;
+		File blobFile = new File(blobsDir, getBlobFileName(blobKey));
+
+		blobsDir.mkdirs();
+		if (cachedTile.file.renameTo(blobFile) == false) throw new IOException("Fail to move tile to blob " + blobFile);
+		try {
+			writeBlobReference(cachedTile.file, blobKey);
+		} catch (IOException ex) {
+			blobFile.renameTo(cachedTile.file);
+			throw ex;
+		}
+
+		Blob blob = new Blob(blobFile, cachedTile.sizeBytes);
+		blob.referenceCount = 1;
+		blobs.put(blobKey, blob);
+		ownContentTiles.remove(blobKey);
+
+		// изображение теперь учитывается в блобе, а тайл занимает только ссылку
+		currentCacheSizeBytes += BLOB_REFERENCE_FILE_SIZE - cachedTile.sizeBytes + blob.sizeBytes;
+		cachedTile.sizeBytes = BLOB_REFERENCE_FILE_SIZE;
+		cachedTile.blobKey = blobKey;
+		cachedTile.contentHash = 0;
+		return blob;
+	}
+
+	private static void writeBlobReference(File imageFile, long blobKey) throws IOException {
+		byte[] reference = new byte[BLOB_REFERENCE_FILE_SIZE];
+		ByteBuffer.wrap(reference).putLong(blobKey);
+		writeFile(imageFile, reference, reference.length);
+	}
 	
 	/**
-	 * Восстанавливает кеш. Получает файлы тайлов из директории кеша и начинает из использовать 
+	 * Фоновый поток, который следит за размером кеша. Периодически смотрит свободное место на диске и
+	 * пересчитывает границы, а когда кеш перерастает верхнюю границу, удаляет давно не читанные тайлы пачками
+	 * до нижней границы. Заодно понемногу удаляет тайлы старых версий.
 	 */
-	public synchronized void restore() {
+	private class CacheSizeGovernor extends Thread {
+		
+		private boolean trimRequested = false;
+		private byte[] demotedTilePixels;	// у горячего уровня: пиксели тайла, который возвращается в основной кеш
+		private final LinkedList<File> obsoleteFiles = new LinkedList<File>();	// файлы старой версии, которые осталось удалить
+		
+		CacheSizeGovernor() {
+			super("TilesCacheSizeGovernor");
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+		}
+		
+		synchronized void requestTrim() {
+			trimRequested = true;
+			notify();
+		}
+		
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				
+				updateWatermarks();
+				trimCache();
+				boolean obsoleteLeft = cleanupObsoleteNamespaces();
+				
+				synchronized(this) {
+					if (trimRequested == false) {
+						try {
+							wait(obsoleteLeft?OBSOLETE_CLEANUP_INTERVAL_MS:GOVERNOR_RECHECK_INTERVAL_MS);
+						} catch (InterruptedException ex) {
+							interrupt();
+						}
+					}
+					trimRequested = false;
+				}
+			}
+		}
+		
+		private void updateWatermarks() {
+			long availableFsSpaceBytes;
+			try {
+				availableFsSpaceBytes = getAvailableFsSpaceBytes();	// вне монитора кеша, StatFs бывает медленным
+			} catch (Exception ex) {
+				return;	// не смогли узнать место на диске, оставляем старые границы
+			}
+			
+			synchronized(TilesPersistentMemoryCache.this) {
+				long allowedSizeBytes = (currentCacheSizeBytes + availableFsSpaceBytes) / 100 * FREE_SPACE_SHARE_PERCENT;
+				setWatermarks(Math.min(allowedSizeBytes, maxCacheSizeBytes));
+			}
+		}
+		
+		private void trimCache() {
+			synchronized(TilesPersistentMemoryCache.this) {
+				if (currentCacheSizeBytes <= highWatermarkBytes) return;
+			}
+			
+			if (demotionTier != null && demotedTilePixels == null) demotedTilePixels = new byte[TileSpecs.TILE_BITMAP_SIZE_BYTES];
+			
+			int evictedTiles = 0, demotedTiles = 0;
+			boolean trimmed = false;
+			while (!isInterrupted() && trimmed == false) {
+				TileRequest demotedTileRequest = null;
+				synchronized(TilesPersistentMemoryCache.this) {
+					Iterator<Map.Entry<TileRequest, CachedTile>> it = cacheMap.entrySet().iterator();
+					int batchSize = 0;
+					while (batchSize < GOVERNOR_EVICTION_BATCH_SIZE && currentCacheSizeBytes > lowWatermarkBytes && it.hasNext()) {
+						Map.Entry<TileRequest, CachedTile> evictedTile = it.next();
+						it.remove();
+						// горячий уровень возвращает тайл в основной кеш: пиксели читаются до удаления файла
+						if (demotionTier != null && readTilePixels(evictedTile.getValue().file, demotedTilePixels)) {
+							demotedTileRequest = evictedTile.getKey();
+						}
+						releaseCachedTile(evictedTile.getValue(), true);
+						batchSize++;
+						if (demotedTileRequest != null) break;	// основной кеш пишется без монитора этого
+					}
+					
+					evictedTiles += batchSize;
+					trimmed = batchSize == 0 || currentCacheSizeBytes <= lowWatermarkBytes;
+				}
+				
+				if (demotedTileRequest != null) {
+					demotionTier.putDemoted(demotedTileRequest, demotedTilePixels);
+					demotedTiles++;
+				}
+			}
+			
+			Log.i(LOG_TAG, "cache trimmed, tiles evicted: " + evictedTiles + ", returned to the main tier: " + demotedTiles);
+		}
+		
+		/**
+		 * Удаляет очередную пачку файлов старых версий. Когда пространство имен опустело, удаляет его директорию.
+		 * @return true - если старые файлы еще остались
+		 */
+		private boolean cleanupObsoleteNamespaces() {
+			ObsoleteNamespace obsoleteNamespace;
+			synchronized(TilesPersistentMemoryCache.this) {
+				if (obsoleteNamespaces.isEmpty()) return false;
+				obsoleteNamespace = obsoleteNamespaces.get(obsoleteNamespaces.size() - 1);	// самые старые - в конце
+			}
+			
+			if (obsoleteFiles.isEmpty()) {	// список файлов читается один раз, вне монитора кеша
+				File[] files = obsoleteNamespace.dir.listFiles();
+				if (files != null) {
+					for (File file : files) {
+						if (obsoleteNamespace.rootDir && isCacheFileName(file.getName()) == false) continue;
+
+						// директория блобов удаляется после своих файлов
+						File[] nestedFiles = file.isDirectory()?file.listFiles():null;
+						if (nestedFiles != null) obsoleteFiles.addAll(Arrays.asList(nestedFiles));
+						obsoleteFiles.add(file);
+					}
+				}
+			}
+			
+			for (int i = 0; i < OBSOLETE_CLEANUP_BATCH_SIZE && obsoleteFiles.isEmpty() == false; i++) {
+				obsoleteFiles.poll().delete();
+			}
+			
+			if (obsoleteFiles.isEmpty()) {
+				synchronized(TilesPersistentMemoryCache.this) {
+					obsoleteNamespaces.remove(obsoleteNamespace);
+				}
+				if (obsoleteNamespace.rootDir == false) obsoleteNamespace.dir.delete();
+				Log.i(LOG_TAG, "obsolete tiles removed: " + obsoleteNamespace.dir);
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Останавливает фоновый поток, который следит за размером кеша, и дожидается его. После этого кеш больше
+	 * не пишет в свою директорию, и ее может открыть новый кеш.
+	 */
+	public void destroy() {
+		if (hotTier != null) hotTier.destroy();
+		
+		// фоновый поток дорабатывает пачку вытеснения под монитором кеша, ждем его без монитора
+		CacheSizeGovernor stoppedGovernor = destroyTier();
+		if (stoppedGovernor != null) {
+			try {
+				stoppedGovernor.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	private synchronized CacheSizeGovernor destroyTier() {
+		destroyed = true;
+		CacheSizeGovernor stoppedGovernor = sizeGovernor;
+		if (sizeGovernor != null) {
+			sizeGovernor.interrupt();
+			sizeGovernor = null;
+		}
+		return stoppedGovernor;
+	}
+	
+	/**
+	 * Восстанавливает кеш. Получает файлы тайлов из директории кеша и начинает из использовать.
+	 * Порядок доступа и частоты обращений берутся из сохраненного состояния, если оно есть.
+	 * После восстановления запускается фоновый поток, который следит за размером кеша. Горячий уровень
+	 * восстанавливается первым и следит за своим размером сам.
+	 */
+	public void restore() {
+		if (hotTier != null) hotTier.restore();
+		restoreTier();
+	}
+	
+	private synchronized void restoreTier() {
 		cacheMap.clear();
+		blobs.clear();
+		ownContentTiles.clear();
+		currentCacheSizeBytes = 0;
+
+		if (sizeGovernor == null) findObsoleteNamespaces();
+
+		HashMap<TileRequest, File> cachedTiles = new HashMap<TileRequest, File>();
 		File[] cachedFolderFiles = cacheDir.listFiles();
+		if (cachedFolderFiles == null) cachedFolderFiles = new File[0];
+
 		for (File cachedFile : cachedFolderFiles) {
 			String tileFileName = cachedFile.getName();
 			if (tileFileName != null) {
 				TileRequest tileRequest = getTileRequestFromTileFileName(tileFileName);
 				if (tileRequest != null) {
-					cacheMap.put(tileRequest, cachedFile);
+					cachedTiles.put(tileRequest, cachedFile);
 				}
 			}
 		}
-	} 
+
+		ArrayList<TileRequest> savedAccessOrder = readState();
+
+		// тайлы, о которых сохраненное состояние ничего не знает, считаем самыми старыми
+		ArrayList<TileRequest> knownTiles = new ArrayList<TileRequest>(savedAccessOrder.size());
+		for (TileRequest savedTileRequest : savedAccessOrder) {
+			if (cachedTiles.containsKey(savedTileRequest)) knownTiles.add(savedTileRequest);
+		}
+
+		HashMap<TileRequest, File> knownTileFiles = new HashMap<TileRequest, File>(knownTiles.size());
+		for (TileRequest knownTileRequest : knownTiles) {
+			knownTileFiles.put(knownTileRequest, cachedTiles.remove(knownTileRequest));
+		}
+
+		for (Map.Entry<TileRequest, File> cachedTile : cachedTiles.entrySet()) {
+			putRestoredTile(cachedTile.getKey(), cachedTile.getValue());
+		}
+		for (TileRequest knownTileRequest : knownTiles) {
+			putRestoredTile(knownTileRequest, knownTileFiles.get(knownTileRequest));
+		}
+		removeUnreferencedBlobs();
+
+		Log.i(LOG_TAG, "cache restored, tiles: " + cacheMap.size() + ", bytes: " + currentCacheSizeBytes +
+					   ", with saved access order: " + knownTiles.size() + ", shared blobs: " + blobs.size());
+		
+		// восстановление могло закончиться уже после destroy, тогда поток остался бы жить без хозяина
+		if (sizeGovernor == null && destroyed == false) {
+			sizeGovernor = new CacheSizeGovernor();
+			sizeGovernor.start();
+		}
+	}
+	
+	/**
+	 * Ищет тайлы старых версий: другие пространства имен и тайлы прямо в директории кеша. Самые свежие -
+	 * в начале списка, заглушки ищутся сначала в них.
+	 */
+	private void findObsoleteNamespaces() {
+		obsoleteNamespaces.clear();
+		if (cacheDir.equals(rootDir)) return;	// кеш без пространств имен
+		
+		File[] rootFiles = rootDir.listFiles();
+		if (rootFiles == null) return;
+		
+		ArrayList<File> obsoleteDirs = new ArrayList<File>();
+		boolean rootHasTiles = false;
+		for (File rootFile : rootFiles) {
+			String fileName = rootFile.getName();
+			if (fileName.startsWith(NAMESPACE_DIR_PREFIX) && rootFile.isDirectory() && rootFile.equals(cacheDir) == false) {
+				obsoleteDirs.add(rootFile);
+			} else if (rootHasTiles == false && isCacheFileName(fileName)) {
+				rootHasTiles = true;
+			}
+		}
+		
+		// свежее пространство имен то, в которое писали последним
+		while (obsoleteDirs.isEmpty() == false) {
+			File newestDir = obsoleteDirs.get(0);
+			for (File obsoleteDir : obsoleteDirs) {
+				if (obsoleteDir.lastModified() > newestDir.lastModified()) newestDir = obsoleteDir;
+			}
+			obsoleteDirs.remove(newestDir);
+			obsoleteNamespaces.add(new ObsoleteNamespace(newestDir, false));
+		}
+		if (rootHasTiles) obsoleteNamespaces.add(new ObsoleteNamespace(rootDir, true));
+		
+		if (obsoleteNamespaces.isEmpty() == false) {
+			Log.i(LOG_TAG, "obsolete tile namespaces found: " + obsoleteNamespaces.size());
+		}
+	}
+	
+	/**
+	 * Отпечатки изображений в своих файлах при восстановлении не считаются: дубликаты тайлов, скачанных до
+	 * перезапуска, не ищутся, общими становятся только изображения, повторенные после него.
+	 */
+	private void putRestoredTile(TileRequest tileRequest, File tileFile) {
+		long tileFileSize = tileFile.length();
+		CachedTile cachedTile = new CachedTile(tileFile, tileFileSize);
+
+		if (tileFileSize == BLOB_REFERENCE_FILE_SIZE) {
+			byte[] reference = new byte[BLOB_REFERENCE_FILE_SIZE];
+			long blobKey = readFile(tileFile, reference, reference.length)?ByteBuffer.wrap(reference).getLong():0;
+
+			Blob blob = (blobKey != 0)?blobs.get(blobKey):null;
+			if (blob == null && blobKey != 0) {
+				File blobFile = new File(blobsDir, getBlobFileName(blobKey));
+				if (blobFile.length() == TileSpecs.TILE_BITMAP_SIZE_BYTES) {
+					blob = new Blob(blobFile, blobFile.length());
+					blobs.put(blobKey, blob);
+					currentCacheSizeBytes += blob.sizeBytes;
+				}
+			}
+			if (blob == null) {	// ссылка испорчена или блоб пропал
+				tileFile.delete();
+				return;
+			}
+
+			blob.referenceCount++;
+			cachedTile.blobKey = blobKey;
+		}
+
+		cacheMap.put(tileRequest, cachedTile);
+		currentCacheSizeBytes += tileFileSize;
+	}
+
+	/**
+	 * Удаляет блобы, на которые не ссылается ни один тайл: например, если приложение убили между удалением
+	 * последнего тайла и блоба
+	 */
+	private void removeUnreferencedBlobs() {
+		File[] blobFiles = blobsDir.listFiles();
+		if (blobFiles == null) return;
+
+		for (File blobFile : blobFiles) {
+			boolean referenced = false;
+			try {
+				Blob blob = blobs.get(new BigInteger(blobFile.getName(), 16).longValue());
+				referenced = blob != null && blob.file.equals(blobFile);
+			} catch (NumberFormatException ex) {
+				// чужой файл
+			}
+			if (referenced == false) blobFile.delete();
+		}
+	}
+
+	/**
+	 * Читает сохраненное состояние политики вытеснения
+	 * @return тайлы в порядке доступа, от самого старого к самому свежему. Пустой список, если состояния нет.
+	 */
+	private ArrayList<TileRequest> readState() {
+		ArrayList<TileRequest> accessOrder = new ArrayList<TileRequest>();
+
+		File stateFile = new File(cacheDir, STATE_FILE_NAME);
+		if (stateFile.exists() == false) return accessOrder;
+
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+			if (dis.readInt() != STATE_FILE_VERSION) return accessOrder;
+
+			if (frequencySketch.readFrom(dis) == false) {
+				Log.i(LOG_TAG, "Frequency sketch size changed, frequencies start from scratch");
+			}
+
+			int tilesCount = dis.readInt();
+			for (int i = 0; i < tilesCount; i++) {
+				int snX = dis.readInt();
+				int snY = dis.readInt();
+				accessOrder.add(new TileRequest(new TileSpecs(snX, snY)));
+			}
+		} catch (Exception ex) {
+			// состояние испорчено, начнем с чистого листа
+			Log.w(LOG_TAG, "Fail to read cache state: " + ex.getMessage());
+			accessOrder.clear();
+		} finally {
+			IOUtils.closeSilent(dis);
+		}
+
+		return accessOrder;
+	}
+
+	/**
+	 * Сохраняет в директорию кеша порядок доступа к тайлам и частоты обращений, чтобы после
+	 * перезапуска кеш вытеснял тайлы так же, как до него. Если сохранить не удалось - молчит.
+	 */
+	public void saveState() {
+		if (hotTier != null) hotTier.saveState();
+		saveTierState();
+	}
+	
+	private synchronized void saveTierState() {
+		if (destroyed) return;
+
+		File stateFile = new File(cacheDir, STATE_FILE_NAME);
+		File tempStateFile = new File(cacheDir, STATE_FILE_NAME + ".tmp");
+
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempStateFile, false)));
+			dos.writeInt(STATE_FILE_VERSION);
+
+			frequencySketch.writeTo(dos);
+
+			dos.writeInt(cacheMap.size());
+			for (TileRequest tileRequest : cacheMap.keySet()) {
+				dos.writeInt(tileRequest.getTileSpecs().xSn);
+				dos.writeInt(tileRequest.getTileSpecs().ySn);
+			}
+			dos.close();
+
+			// подменяем файл целиком, чтобы не оставить наполовину записанное состояние
+			if (tempStateFile.renameTo(stateFile) == false) {
+				tempStateFile.delete();
+			}
+		} catch (Exception ex) {
+			// ничего страшного, в следующий раз будем вытеснять без истории
+			tempStateFile.delete();
+		} finally {
+			IOUtils.closeSilent(dos);
+		}
+	}
 }
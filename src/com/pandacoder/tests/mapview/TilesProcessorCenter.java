@@ -1,10 +1,17 @@
 package com.pandacoder.tests.mapview;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 import java.util.concurrent.RejectedExecutionException;
 
 import android.graphics.Bitmap;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -12,6 +19,28 @@ import android.util.Log;
  * кеша в постоянной памяти. Скачанные тайлы ложит в кеш. Скачивание происходит параллельно, без прерывания
  * процесса обоработки запросов на тайлы и работы с кешем.
  * 
+ * <p>Скачанный тайл проходит конвейер из трех стадий: сеть, декодирование, запись в кеш. У каждой стадии свои
+ * потоки и своя ограниченная очередь, поэтому медленная сеть не занимает потоки декодирования и наоборот.
+ * 
+ * <p>Тайлы, которые не удалось скачать, и лежащие хосты не запрашиваются повторно до конца паузы,
+ * см. {@link TileFailureTracker}. На тайлы, которые качаются намного дольше обычного, отправляются
+ * дублирующие запросы, см. {@link TileRequestHedger}.
+ * 
+ * <p>Один центр может обслуживать несколько карт ({@link #register}). У каждой карты своя очередь запросов,
+ * очереди обрабатываются по кругу, поэтому карта, запросившая много тайлов, не задерживает остальные.
+ * Тайл, который нужен нескольким картам, скачивается один раз и отдается всем. Запросы фоновых получателей, 
+ * которых нет на экране ({@link #registerBackground}, например {@link MapAreaExporter}), обрабатываются только
+ * когда у карт на экране запросов нет.
+ * 
+ * <p>Кроме карт тайлы могут заранее запрашивать фоновые загрузчики ({@link #registerPrefetcher}, например
+ * {@link RoutePrefetcher}). Их очереди обрабатываются по порядку и только когда у карт нет запросов, а скачивается
+ * меньше PREFETCH_MAX_IN_FLIGHT_TILES тайлов: потоки скачивания остаются картам. Тайлы, нужные только фоновым
+ * загрузчикам, попадают в кеш в постоянной памяти, но не вытесняют из кеша в оперативной памяти то, что на экране.
+ * 
+ * <p>Тайл карты может собираться из нескольких слоев (см. {@link LayeredTileAssembler}). Если у слоя есть время
+ * жизни, показанные тайлы обновляются по его истечении, а тайлы, ушедшие с экрана, выкидываются из кешей
+ * в оперативной памяти, чтобы обновиться при следующем запросе.
+ * 
  * Используйте {@link#destroy}, чтобы остановить центр обработки тайлой и очистить ресурсы
  * 
  */
@@ -19,49 +48,140 @@ public class TilesProcessorCenter extends Thread {
 	
 	private final static String LOG_TAG = TilesProcessorCenter.class.getSimpleName();
 	private final static int TILE_MINER_EXECUTOR_POOL_SIZE = getTileDownloaderExecutorPoolSize();
+	private final static int TILE_DECODE_EXECUTOR_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+	private final static int TILE_DECODE_QUEUE_SIZE = 2*TILE_DECODE_EXECUTOR_POOL_SIZE;
+	private final static int TILE_PERSIST_QUEUE_SIZE = 8;
+	private final static int PREFETCH_MAX_IN_FLIGHT_TILES = Math.max(1, TILE_MINER_EXECUTOR_POOL_SIZE/2);
+	private final static long ASYNC_DECODE_RETRY_DELAY_MS = 200;	// через сколько снова отдавать запросы асинхронному загрузчику, если декодирование не успевает
 	
 	/**
-	 * Определяет количество рабочих потоков для скачивания тайлов, скачивание в несколько
-	 * потоков может дать прирост скорости
+	 * Определяет количество рабочих потоков для скачивания тайлов. Потоки скачивания заняты только сетью,
+	 * декодирование идет в отдельной стадии, поэтому их число не привязано к количеству ядер.
 	 * 
-	 * @return 1 - на одноядерных устройствах, 2 - на многоядерных
+	 * @return 2 - на одноядерных устройствах, 4 - на многоядерных
 	 */
 	private final static int getTileDownloaderExecutorPoolSize() {
-		return (Runtime.getRuntime().availableProcessors() == 1)?1:2;
+		return (Runtime.getRuntime().availableProcessors() == 1)?2:4;
+	}
+	
+	/**
+	 * Очередь запросов одной карты или фонового загрузчика
+	 */
+	private static class ViewportRequests {
+		final MapTilesReceiver mapView;
+		final boolean prefetcher;
+		final boolean background;		// не на экране, запросы после запросов карт на экране
+		final Stack<TileRequest> tileRequestsStackQueue = new Stack<TileRequest>();
+		final LinkedList<TileRequest> prefetchQueue = new LinkedList<TileRequest>();	// по порядку, у фонового загрузчика
+		
+		ViewportRequests(MapTilesReceiver mapView, boolean prefetcher, boolean background) {
+			this.mapView = mapView;
+			this.prefetcher = prefetcher;
+			this.background = background;
+		}
 	}
 	
-	private final SimpleMapView mapView;
-	private final Stack<TileRequest> tileRequestsStackQueue;
+	/**
+	 * Показанный тайл, который нужно обновить, когда устареет один из его слоев
+	 */
+	private static class ScheduledLayerRefresh {
+		long refreshAtMs;
+		final HashSet<MapTilesReceiver> mapViews = new HashSet<MapTilesReceiver>();	// кому показан, пусто - ушел с экрана
+	}
+	
+	private final ArrayList<ViewportRequests> viewports;
+	private int nextViewportIndex = 0;	// с какой карты брать следующий запрос
 	private final LinkedList<TileRequest> delayedTileMiningJobs;
-	private final YandexTileMiner tileMiner;
-	private final TileMinerExecutorService tileMineExecutor;
 	
+	// запросы, которые лежат в очередях карт или в delayedTileMiningJobs и еще не отменены, и карты, которым они нужны.
+	// отмененные запросы из очередей не удаляются, а пропускаются, когда до них доходит очередь
+	private final HashMap<TileRequest, HashSet<MapTilesReceiver>> pendingTileRequests;
+	// тайлы, которые сейчас качаются, и карты, которым их нужно отдать
+	private final HashMap<TileRequest, HashSet<MapTilesReceiver>> inFlightTileRequests;
+	private final HashMap<TileRequest, ScheduledLayerRefresh> scheduledLayerRefreshes;
+	// тайлы, вместо которых картам показаны заглушки старой версии: когда придет новый тайл, заглушку нужно 
+	// выкинуть из кешей в памяти
+	private final HashSet<TileRequest> placeholderTiles;
+	// метатайлы (или тайлы), которые сейчас качаются или декодируются: второй раз их не качаем
+	private final HashSet<TileRequest> inFlightMiningRequests;
+	// метатайлы, которые сейчас качаются, и запросы соседних тайлов, которые ждут их вместо своей очереди
+	private final HashMap<TileRequest, ArrayList<TileRequest>> mergedMetaTileRequests;
+	private final TileMiner tileMiner;
+	private final TileFailureTracker tileFailureTracker;
+	private final TileRequestHedger tileRequestHedger;
+	private final TileLoadStatistics tileLoadStatistics;
+	private final TileMiner.TileDataCallback asyncTileDataCallback;	// для асинхронных загрузчиков
+	private final TileMinerExecutorService tileMineExecutor;		// стадия 1: сеть, отдает сжатые байты тайла
+	private final TilePipelineStageExecutor tileDecodeExecutor;		// стадия 2: декодирование и отрисовка
+	private final TilePipelineStageExecutor tilePersistExecutor;	// стадия 3: запись в кеш в постоянной памяти
+	private final LayeredTileAssembler layeredTileAssembler;		// null - тайлы карты качаются одним изображением
+	
+	private final TileBitmapCache tilesRamCache;	
 	private final TilesPersistentMemoryCache tilesPersistentCache;
+	private final TilesArchive tilesArchive;
+	private final TilesCompressedRamCache tilesCompressedCache;
 	
 	private Bitmap requestedTileBitmap;
 	
 	private boolean paused = true;
 	private boolean delayedTileMiningJobChecked = true;
+	private long delayedTileMiningJobsRetryAtMs = 0;	// когда снова проверить отложенные запросы, если хост лежит. 0 - не нужно
+	private volatile boolean saveCacheStateRequested = false;
 	
 	/**
-	 * Создает центр обработки тайлов.
+	 * Создает центр обработки тайлов. Карты, которым нужны тайлы, подключаются методом {@link #register}.
 	 * 
-	 * @param mapView вид-карта
+	 * @param tileMiner загрузчик тайлов из сети
+	 * @param tileLayers слои карты снизу вверх, null - тайл карты качается одним изображением
+	 * @param tilesRamCache кеш изображений тайлов, из которого выкидываются устаревшие тайлы, если null - не используется
+	 * @param tilesCompressedCache кеш сжатых тайлов в оперативной памяти, если null - не используется
+	 * @param tilesArchive архив заранее подготовленных тайлов только для чтения, если null - не используется
 	 * @param tilesPersistentCache кеш в постоянной памяти, если null - не используется
 	 * 
-	 * @throws NullPointerException если mapView == null
+	 * @throws NullPointerException если tileMiner == null
+	 * @throws IllegalArgumentException если заданы слои, а tileMiner качает метатайлы
 	 */
-	TilesProcessorCenter(SimpleMapView mapView, TilesPersistentMemoryCache tilesPersistentCache) {
+	TilesProcessorCenter(TileMiner tileMiner, TileLayer[] tileLayers, TileBitmapCache tilesRamCache, 
+						 TilesCompressedRamCache tilesCompressedCache, TilesArchive tilesArchive, 
+						 TilesPersistentMemoryCache tilesPersistentCache) {
 		
-		if (mapView == null) throw new NullPointerException("mapView can't be null");
+		if (tileMiner == null) throw new NullPointerException("tileMiner can't be null");
+		if (tileLayers != null && tileMiner.getMetaTileSize() > 1) {
+			throw new IllegalArgumentException("Layered tiles can't be mined as meta tiles");
+		}
 		
-		this.mapView = mapView;
+		this.tilesRamCache = tilesRamCache;
+		this.tilesCompressedCache = tilesCompressedCache;
+		this.tilesArchive = tilesArchive;
 		this.tilesPersistentCache = tilesPersistentCache;
 		
-		this.tileRequestsStackQueue = new Stack<TileRequest>();
+		this.viewports = new ArrayList<ViewportRequests>();
 		this.delayedTileMiningJobs = new LinkedList<TileRequest>();
-		this.tileMiner = new YandexTileMiner();
+		this.pendingTileRequests = new HashMap<TileRequest, HashSet<MapTilesReceiver>>();
+		this.inFlightTileRequests = new HashMap<TileRequest, HashSet<MapTilesReceiver>>();
+		this.scheduledLayerRefreshes = new HashMap<TileRequest, ScheduledLayerRefresh>();
+		this.placeholderTiles = new HashSet<TileRequest>();
+		this.inFlightMiningRequests = new HashSet<TileRequest>();
+		this.mergedMetaTileRequests = new HashMap<TileRequest, ArrayList<TileRequest>>();
+		this.tileMiner = tileMiner;
+		this.tileFailureTracker = new TileFailureTracker();
+		this.tileMiner.setFailureTracker(tileFailureTracker);
+		this.tileLoadStatistics = new TileLoadStatistics();
+		this.tileRequestHedger = new TileRequestHedger(tileLoadStatistics);
+		this.tileMiner.setHedger(tileRequestHedger);
+		this.asyncTileDataCallback = buildAsyncTileDataCallback();
 		this.tileMineExecutor = new TileMinerExecutorService(TILE_MINER_EXECUTOR_POOL_SIZE);
+		// если декодирование не успевает, сетевые потоки подождут: нет смысла качать то, что некогда декодировать
+		this.tileDecodeExecutor = new TilePipelineStageExecutor("TileDecoder", TILE_DECODE_EXECUTOR_POOL_SIZE, TILE_DECODE_QUEUE_SIZE, true);
+		// запись в кеш не обязательна, если диск не успевает - тайл просто не попадет в кеш
+		this.tilePersistExecutor = new TilePipelineStageExecutor("TilePersister", 1, TILE_PERSIST_QUEUE_SIZE, false);
+		
+		if (tileLayers != null) {
+			this.layeredTileAssembler = new LayeredTileAssembler(tileMiner, tileLayers, tilesCompressedCache, tileFailureTracker, 
+																 tileLoadStatistics, TILE_MINER_EXECUTOR_POOL_SIZE);
+		} else {
+			this.layeredTileAssembler = null;
+		}
 		
 		this.requestedTileBitmap = Bitmap.createBitmap(TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_BITMAP_CONFIG);
 	}
@@ -71,7 +191,7 @@ public class TilesProcessorCenter extends Thread {
 	 * Запускает поток, с основной логикой обрабоки запросов на тайлы. 
 	 * Пытается восстановить tilesPersistentCache, потом:
 	 * ждет новых запросов, если очередь запросов пуста;
-	 * просматривает кеш тайлов;
+	 * просматривает кеш сжатых тайлов в памяти, потом архив тайлов, потом кеш тайлов в постоянной памяти;
 	 * скачивает новые тайлы из сети, если не попал в кеш.
 	 */
 	@Override
@@ -80,7 +200,12 @@ public class TilesProcessorCenter extends Thread {
 		if (tilesPersistentCache != null) tilesPersistentCache.restore();
 		
 		while (!isInterrupted()) {
-		
+
+			if (saveCacheStateRequested == true) {	// при уходе на паузу сохраняем состояние кеша
+				saveCacheStateRequested = false;
+				if (tilesPersistentCache != null) tilesPersistentCache.saveState();
+			}
+
 			/*
 			 *	Сначала смотрим стоит ли нам работать 
 			 */
@@ -92,23 +217,43 @@ public class TilesProcessorCenter extends Thread {
 				 *  	если нет запросов на тайлы и нам не нужно проперить отложенные запросы - ждем
 				 *  в других случаях работаем 
 				 */
-				if ((tileRequestsStackQueue.isEmpty() && delayedTileMiningJobChecked == true) || paused == true) {
+				if ((hasTileRequests() == false && delayedTileMiningJobChecked == true && hasPrefetchRequests() == false) || paused == true) {
+					
+					// если отложенные запросы ждут, пока поднимется хост, или скоро устареют слои показанных тайлов,
+					// проснемся сами
+					long wakeUpAtMs = delayedTileMiningJobsRetryAtMs;
+					long layerRefreshAtMs = getNextLayerRefreshAtMs();
+					if (layerRefreshAtMs != 0 && (wakeUpAtMs == 0 || layerRefreshAtMs < wakeUpAtMs)) wakeUpAtMs = layerRefreshAtMs;
+					
+					long waitMs = 0;
+					if (paused == false && wakeUpAtMs != 0) {
+						waitMs = Math.max(1, wakeUpAtMs - SystemClock.uptimeMillis());
+					}
 					
 					try {
-						wait();
+						wait(waitMs);
 					} catch (InterruptedException ex) {
 						interrupt();
 					}
+					
+					if (delayedTileMiningJobsRetryAtMs != 0 && SystemClock.uptimeMillis() >= delayedTileMiningJobsRetryAtMs) {
+						delayedTileMiningJobsRetryAtMs = 0;
+						delayedTileMiningJobChecked = false;
+					}
 				}
+				
+				if (paused == false) startDueLayerRefreshes();
 			}
 			
 			if (isInterrupted()) break;
 				
 			TileRequest currentTileRequest = null;		// задание обрабатываемое на этой итерации
+			HashSet<MapTilesReceiver> currentMapViews;	// карты, которым нужен этот тайл
+			boolean prefetchOnly;						// тайл нужен только фоновым загрузчикам
 			synchronized(this) {
 				
-				if (tileRequestsStackQueue.isEmpty() == false) { 		// если есть запросы на тайлы 
-					currentTileRequest = tileRequestsStackQueue.pop();	// берем на обработку самый свежий	
+				if (hasTileRequests() == true) { 						// если есть запросы на тайлы 
+					currentTileRequest = pollTileRequest();				// берем на обработку самый свежий очередной карты
 				} else {												// если запросов нет, то
 					if (delayedTileMiningJobChecked == false) {			// нужно проверить если ли отложенные работы
 						if (delayedTileMiningJobs.isEmpty() == false) {	// если есть отложенные запросы
@@ -120,57 +265,393 @@ public class TilesProcessorCenter extends Thread {
 					}					
 				}
 				
+				// карты ничего не ждут, сеть почти свободна - качаем заранее
+				if (currentTileRequest == null && hasPrefetchRequests()) currentTileRequest = pollPrefetchRequest();
+				
 				if (currentTileRequest == null) continue; // если задания нет, переходим к следующей итерации
+				currentMapViews = pendingTileRequests.remove(currentTileRequest);
+				if (currentMapViews == null) continue; // запрос уже отменили
+				prefetchOnly = isPrefetchOnly(currentMapViews);
+				
+				// тайл уже качается для другой карты - отдадим его и этой
+				HashSet<MapTilesReceiver> inFlightMapViews = inFlightTileRequests.get(currentTileRequest);
+				if (inFlightMapViews != null) {
+					inFlightMapViews.addAll(currentMapViews);
+					continue;
+				}
 			}
 			
 			if (isInterrupted()) break;
 			
 			boolean tileWasInCache = false;
-			if (tilesPersistentCache != null) {
+			// сжатый тайл в памяти декодировать быстрее, чем читать с диска. Фоновому загрузчику нужен тайл на диске
+			if (tilesCompressedCache != null && prefetchOnly == false) {
+				tileWasInCache = tilesCompressedCache.get(currentTileRequest, requestedTileBitmap);
+				if (tileWasInCache == true) {
+					tileLoadStatistics.onCompressedCacheHit();
+					deliverTile(currentMapViews, currentTileRequest, requestedTileBitmap);
+				}
+			}
+			
+			if (tileWasInCache == false && tilesArchive != null) {	// архив быстрее кеша: mmap и никаких отдельных файлов
+				tileWasInCache = tilesArchive.get(currentTileRequest, requestedTileBitmap);
+				if (tileWasInCache == true) {
+					tileLoadStatistics.onArchiveHit();
+					deliverTile(currentMapViews, currentTileRequest, requestedTileBitmap);
+				}
+			}
+			
+			if (tileWasInCache == false && tilesPersistentCache != null) {
 				tileWasInCache = tilesPersistentCache.get(currentTileRequest, requestedTileBitmap);
 				if (tileWasInCache == true) {
+					tileLoadStatistics.onPersistentCacheHit();
+					deliverTile(currentMapViews, currentTileRequest, requestedTileBitmap);
+					// чтобы при следующем возврате к этому тайлу не читать его с диска
+					if (tilesCompressedCache != null && prefetchOnly == false) tilesCompressedCache.putPixels(currentTileRequest, requestedTileBitmap);
+				}
+			}
+			
+			// тайла текущей версии стиля нет, но есть старый - покажем его, пока качается новый
+			if (tileWasInCache == false && tilesPersistentCache != null && prefetchOnly == false
+					&& tilesPersistentCache.getObsolete(currentTileRequest, requestedTileBitmap)) {
+				tileLoadStatistics.onPlaceholderHit();
+				synchronized(this) {
+					placeholderTiles.add(currentTileRequest);
+				}
+				for (MapTilesReceiver mapView : currentMapViews) {
 					mapView.addTileOnMapBitmap(currentTileRequest, requestedTileBitmap);
 				}
 			}
 			
+			// тайл из кеша уже показан, но слои с временем жизни в нем устарели - перекачаем их
+			if (tileWasInCache == true && layeredTileAssembler != null && layeredTileAssembler.hasExpiredLayers(currentTileRequest)) {
+				tileWasInCache = false;
+			}
+			
 			if (isInterrupted()) break;
 			
 			if (tileWasInCache == false) { // нужно скачать тайл
 				
-				Runnable tileDownloadJob = buildRunnableForTileMinerExecutor(currentTileRequest);
+				// для источников метатайлов качаем весь метатайл, в который входит тайл
+				TileRequest miningRequest = tileMiner.getMiningRequest(currentTileRequest);
+				
+				// метатайл уже качается ради соседнего тайла - тайл отдастся вместе с ним
+				if (attachToInFlightMining(miningRequest, currentTileRequest, currentMapViews)) continue;
+				
+				// тайл недавно не скачался, время повторной попытки еще не пришло - считаем, что его нет
+				if (tileFailureTracker.isTileBackedOff(miningRequest)) continue;
+				
+				// хост лежит - не тратим на него потоки и таймауты, откладываем запрос до конца паузы.
+				// URL строится один раз: качаем ровно с того хоста, на который получили разрешение
+				String miningURL = tileMiner.getTileURL(miningRequest);
+				String miningHost = TileMiner.getURLHost(miningURL);
+				long hostRetryDelayMs = tileFailureTracker.tryAcquireHost(miningHost);
+				if (hostRetryDelayMs > 0) {
+					delayTileMiningJob(currentTileRequest, currentMapViews, SystemClock.uptimeMillis() + hostRetryDelayMs);
+					continue;
+				}
+				
+				// асинхронный загрузчик качает без потока на запрос: отдаем ему запрос, пока он принимает
+				// и пока декодированию есть куда класть скачанное - ждать места его поток не может
+				if (tileMiner.isAsync() && layeredTileAssembler == null) {
+					if (tileDecodeExecutor.isSaturated()) {
+						tileFailureTracker.releaseHost(miningHost);
+						delayTileMiningJob(currentTileRequest, currentMapViews, SystemClock.uptimeMillis() + ASYNC_DECODE_RETRY_DELAY_MS);
+						continue;
+					}
+					startMining(miningRequest, currentTileRequest, currentMapViews);
+					if (tileMiner.getTileDataAsync(miningRequest, miningURL, asyncTileDataCallback) == false) {
+						// загрузчик занят, как и при занятых потоках откладываем запросы
+						tileFailureTracker.releaseHost(miningHost);
+						delayInFlightTileRequests(miningRequest, 0);
+					}
+					continue;
+				}
 				
+				Runnable tileDownloadJob = (layeredTileAssembler != null)?buildRunnableForLayeredTileMining(miningRequest, miningHost)
+																		:buildRunnableForTileMinerExecutor(miningRequest, miningURL);
+				
+				startMining(miningRequest, currentTileRequest, currentMapViews);
 				try {
 					tileMineExecutor.execute(tileDownloadJob);
 				} catch (RejectedExecutionException ex) { 
 					// задание не было принято... видимо все потоки заняты
-					// положим его в очеред к отложенным
-					synchronized(this) {	
-						delayedTileMiningJobs.add(currentTileRequest);
-						delayedTileMiningJobChecked = true;
-					}
+					// положим запросы в очередь к отложенным
+					tileFailureTracker.releaseHost(miningHost);
+					delayInFlightTileRequests(miningRequest, 0);
 				}		
 			}			
 		}
 	}
 	
 	
-	private Runnable buildRunnableForTileMinerExecutor(TileRequest tileRequest) {
+	/**
+	 * Есть ли необработанные запросы в очередях карт
+	 */
+	private boolean hasTileRequests() {
+		for (ViewportRequests viewport : viewports) {
+			if (viewport.tileRequestsStackQueue.isEmpty() == false) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Берет самый свежий запрос из очереди следующей по кругу карты, у которой есть запросы. Фоновые
+	 * получатели получают очередь, только если у карт на экране запросов нет.
+	 * @return запрос или null, если очереди пусты
+	 */
+	private TileRequest pollTileRequest() {
+		TileRequest tileRequest = pollTileRequest(false);
+		return (tileRequest != null)?tileRequest:pollTileRequest(true);
+	}
+	
+	private TileRequest pollTileRequest(boolean background) {
+		int viewportsCount = viewports.size();
+		for (int i = 0; i < viewportsCount; i++) {
+			ViewportRequests viewport = viewports.get((nextViewportIndex + i) % viewportsCount);
+			if (viewport.background == background && viewport.tileRequestsStackQueue.isEmpty() == false) {
+				nextViewportIndex = (nextViewportIndex + i + 1) % viewportsCount;
+				return viewport.tileRequestsStackQueue.pop();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Можно ли сейчас качать заранее: у фоновых загрузчиков есть запросы, а сеть почти свободна
+	 */
+	private boolean hasPrefetchRequests() {
+		if (inFlightTileRequests.size() >= PREFETCH_MAX_IN_FLIGHT_TILES) return false;
+		for (ViewportRequests viewport : viewports) {
+			if (viewport.prefetchQueue.isEmpty() == false) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Берет следующий по порядку запрос очередного фонового загрузчика
+	 * @return запрос или null, если очереди пусты
+	 */
+	private TileRequest pollPrefetchRequest() {
+		int viewportsCount = viewports.size();
+		for (int i = 0; i < viewportsCount; i++) {
+			ViewportRequests viewport = viewports.get((nextViewportIndex + i) % viewportsCount);
+			if (viewport.prefetchQueue.isEmpty() == false) {
+				nextViewportIndex = (nextViewportIndex + i + 1) % viewportsCount;
+				return viewport.prefetchQueue.remove();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Нужен ли тайл только фоновым загрузчикам, а не картам
+	 */
+	private synchronized boolean isPrefetchOnly(Iterable<MapTilesReceiver> mapViews) {
+		boolean prefetchOnly = false;
+		for (MapTilesReceiver mapView : mapViews) {
+			ViewportRequests viewport = findViewport(mapView);
+			if (viewport == null || viewport.prefetcher == false) return false;
+			prefetchOnly = true;
+		}
+		return prefetchOnly;
+	}
+	
+	private ViewportRequests findViewport(MapTilesReceiver mapView) {
+		for (ViewportRequests viewport : viewports) {
+			if (viewport.mapView == mapView) return viewport;
+		}
+		return null;
+	}
+	
+	/**
+	 * Отдает тайл всем картам, которым он нужен
+	 */
+	private void deliverTile(Iterable<MapTilesReceiver> mapViews, TileRequest tileRequest, Bitmap tileBitmap) {
+		for (MapTilesReceiver mapView : mapViews) {
+			mapView.addTileOnMapBitmap(tileRequest, tileBitmap);
+		}
+		
+		if (layeredTileAssembler != null && layeredTileAssembler.hasTimeToLiveLayers()) {
+			scheduleLayerRefresh(tileRequest, mapViews);
+		}
+	}
+	
+	/**
+	 * Запоминает, что тайл показан картам и его нужно обновить, когда устареет один из его слоев
+	 */
+	private synchronized void scheduleLayerRefresh(TileRequest tileRequest, Iterable<MapTilesReceiver> mapViews) {
+		ScheduledLayerRefresh layerRefresh = scheduledLayerRefreshes.get(tileRequest);
+		if (layerRefresh == null) {
+			layerRefresh = new ScheduledLayerRefresh();
+			scheduledLayerRefreshes.put(tileRequest, layerRefresh);
+		}
+		layerRefresh.refreshAtMs = layeredTileAssembler.getRefreshAtMs(tileRequest);
+		for (MapTilesReceiver mapView : mapViews) {
+			layerRefresh.mapViews.add(mapView);
+		}
+	}
+	
+	/**
+	 * @return когда обновлять следующий показанный тайл, по часам SystemClock.uptimeMillis. 0 - не нужно
+	 */
+	private long getNextLayerRefreshAtMs() {
+		long nextRefreshAtMs = 0;
+		for (ScheduledLayerRefresh layerRefresh : scheduledLayerRefreshes.values()) {
+			if (nextRefreshAtMs == 0 || layerRefresh.refreshAtMs < nextRefreshAtMs) nextRefreshAtMs = layerRefresh.refreshAtMs;
+		}
+		return nextRefreshAtMs;
+	}
+	
+	/**
+	 * Показанные тайлы, у которых устарели слои, ставит в очередь отложенных запросов: оттуда они возьмутся
+	 * из кеша и, раз слои устарели, перекачаются. Тайлы, ушедшие с экрана, просто выкидываются из кешей
+	 * в оперативной памяти. Вызывать только из synchronized(this).
+	 */
+	private void startDueLayerRefreshes() {
+		if (scheduledLayerRefreshes.isEmpty()) return;
+		
+		long nowMs = SystemClock.uptimeMillis();
+		boolean refreshesStarted = false;
+		Iterator<Map.Entry<TileRequest, ScheduledLayerRefresh>> it = scheduledLayerRefreshes.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<TileRequest, ScheduledLayerRefresh> entry = it.next();
+			ScheduledLayerRefresh layerRefresh = entry.getValue();
+			if (layerRefresh.refreshAtMs > nowMs) continue;
+			
+			it.remove();
+			if (layerRefresh.mapViews.isEmpty()) {
+				forgetCachedTileImage(entry.getKey());
+			} else {
+				delayTileMiningJob(entry.getKey(), layerRefresh.mapViews, 0);
+				refreshesStarted = true;
+			}
+		}
+		
+		if (refreshesStarted) delayedTileMiningJobChecked = false;
+	}
+	
+	/**
+	 * Выкидывает готовый тайл из кешей в оперативной памяти, например когда он устарел. Кеш в постоянной
+	 * памяти не трогается: оттуда тайл покажется сразу, а устаревшие слои перекачаются.
+	 */
+	private void forgetCachedTileImage(TileRequest tileRequest) {
+		if (tilesRamCache != null) tilesRamCache.remove(tileRequest);
+		if (tilesCompressedCache != null) tilesCompressedCache.remove(tileRequest);
+	}
+	
+	/**
+	 * @return true - если вместо тайла показывалась заглушка старой версии
+	 */
+	private synchronized boolean takePlaceholderTile(TileRequest tileRequest) {
+		return placeholderTiles.remove(tileRequest);
+	}
+	
+	/**
+	 * Кладет запрос в очередь отложенных. Отложенные запросы проверяются, когда освобождается 
+	 * поток скачивания или, если задано, в момент retryAtMs.
+	 * 
+	 * @param tileRequest запрос
+	 * @param mapViews карты, которым нужен тайл
+	 * @param retryAtMs когда проверить отложенные запросы, по часам SystemClock.uptimeMillis. 0 - не нужно
+	 */
+	private synchronized void delayTileMiningJob(TileRequest tileRequest, HashSet<MapTilesReceiver> mapViews, long retryAtMs) {
+		HashSet<MapTilesReceiver> pendingMapViews = pendingTileRequests.get(tileRequest);
+		if (pendingMapViews == null) {	// если его за это время не запросили снова
+			pendingTileRequests.put(tileRequest, mapViews);
+			delayedTileMiningJobs.add(tileRequest);
+		} else {
+			pendingMapViews.addAll(mapViews);
+		}
+		delayedTileMiningJobChecked = true;
+		
+		if (retryAtMs != 0 && (delayedTileMiningJobsRetryAtMs == 0 || retryAtMs < delayedTileMiningJobsRetryAtMs)) {
+			delayedTileMiningJobsRetryAtMs = retryAtMs;
+		}
+	}
+	
+	/**
+	 * Сетевая стадия: только скачивает сжатое изображение тайла и передает его на декодирование.
+	 * @param tileURL URL, на хост которого получено разрешение трекера сбоев
+	 */
+	private Runnable buildRunnableForTileMinerExecutor(TileRequest tileRequest, final String tileURL) {
 		 
 		Runnable tileDownloadJob = new TileMinerExecutorService.TileMinerRunnable(tileRequest) {
 
 			@Override
 			public void run() {
 				if (isCanceled() == false) { // если задание не отменили 
-					Bitmap tileBitmap = tileMiner.getTileBitmap(tileRequest);
-					if (tileBitmap != null) {
-						
-						if (tilesPersistentCache != null) {	// если ест кеш во флеше
-							tilesPersistentCache.put(tileRequest, tileBitmap);
+					byte[] tileData = tileMiner.getTileData(tileRequest, tileURL);
+					if (tileData != null) {
+						tileLoadStatistics.onNetworkFetch(tileData.length);
+						submitTileDecodeJob(tileRequest, tileData);
+					} else {
+						tileLoadStatistics.onNetworkFailure();
+						forgetInFlightTileRequests(tileRequest);
+					}
+				} else {	// дубликат уже выполняющегося задания: запросы тайлов принадлежат тому заданию, их не трогаем
+					tileFailureTracker.releaseHost(TileMiner.getURLHost(tileURL));	// запрос к хосту так и не ушел
+				}
+				TilesProcessorCenter.this.checkDelayedTileMiningJobs();
+			}			
+		};
+		
+		return tileDownloadJob;
+	}
+	
+	/**
+	 * Сетевая стадия для асинхронного загрузчика: результат приходит в его потоке и сразу уходит на
+	 * декодирование. Ждать места в очереди декодирования поток загрузчика не может: на нем все его соединения.
+	 * Если очередь заполнена, скачанное выбрасывается, а запросы тайлов откладываются и скачаются снова.
+	 */
+	private TileMiner.TileDataCallback buildAsyncTileDataCallback() {
+		
+		return new TileMiner.TileDataCallback() {
+
+			@Override
+			public void onTileData(TileRequest tileRequest, byte[] tileData) {
+				if (tileData != null) {
+					tileLoadStatistics.onNetworkFetch(tileData.length);
+					try {
+						if (tileDecodeExecutor.tryExecute(buildTileDecodeJob(tileRequest, tileData)) == false) {
+							delayInFlightTileRequests(tileRequest, SystemClock.uptimeMillis() + ASYNC_DECODE_RETRY_DELAY_MS);
 						}
-						
-						mapView.addTileOnMapBitmap(tileRequest, tileBitmap);					
-						tileBitmap.recycle();
-					}				
+					} catch (RejectedExecutionException ex) {
+						// процессор останавливается, тайл уже никому не нужен
+						forgetInFlightTileRequests(tileRequest);
+					}
+				} else {
+					tileLoadStatistics.onNetworkFailure();
+					forgetInFlightTileRequests(tileRequest);
+				}
+				TilesProcessorCenter.this.checkDelayedTileMiningJobs();
+			}
+		};
+	}
+	
+	/**
+	 * Сетевая стадия для тайлов из нескольких слоев: собирает сжатые изображения всех слоев тайла
+	 * и передает их на сборку.
+	 * @param miningHost хост, на который получено разрешение трекера сбоев. Слои могут оказаться в кеше, 
+	 * 		  тогда к хосту никто не обратится, поэтому разрешение возвращается после скачивания слоев
+	 */
+	private Runnable buildRunnableForLayeredTileMining(TileRequest tileRequest, final String miningHost) {
+		
+		Runnable tileDownloadJob = new TileMinerExecutorService.TileMinerRunnable(tileRequest) {
+
+			@Override
+			public void run() {
+				if (isCanceled() == false) { // если задание не отменили 
+					byte[][] layersData = layeredTileAssembler.fetchLayers(tileRequest);
+					tileFailureTracker.releaseHost(miningHost);
+					if (layersData != null) {
+						submitLayeredTileComposeJob(tileRequest, layersData);
+					} else {	// статистику по слоям уже посчитал сборщик
+						tileFailureTracker.onTileFailed(tileRequest);
+						forgetInFlightTileRequests(tileRequest);
+					}
+				} else {	// дубликат уже выполняющегося задания: запросы тайлов принадлежат тому заданию, их не трогаем
+					tileFailureTracker.releaseHost(miningHost);
 				}
 				TilesProcessorCenter.this.checkDelayedTileMiningJobs();
 			}			
@@ -179,6 +660,286 @@ public class TilesProcessorCenter extends Thread {
 		return tileDownloadJob;
 	}
 	
+	/**
+	 * Запоминает, что метатайл начал качаться ради тайла, и забирает запросы его соседей из очередей. Вызывается
+	 * до того, как задание скачивания отдано на выполнение: оно может закончиться раньше, чем вернется execute.
+	 */
+	private synchronized void startMining(TileRequest miningRequest, TileRequest tileRequest, HashSet<MapTilesReceiver> mapViews) {
+		inFlightMiningRequests.add(miningRequest);
+		inFlightTileRequests.put(tileRequest, mapViews);
+		if (tileMiner.getMetaTileSize() > 1) mergeMetaTileRequests(miningRequest);
+	}
+	
+	/**
+	 * Если метатайл уже качается, тайл ждет его вместе с соседями, а не качает метатайл второй раз
+	 * @return true - тайл присоединен к скачиванию метатайла
+	 */
+	private synchronized boolean attachToInFlightMining(TileRequest miningRequest, TileRequest tileRequest, HashSet<MapTilesReceiver> mapViews) {
+		if (inFlightMiningRequests.contains(miningRequest) == false) return false;
+		
+		HashSet<MapTilesReceiver> inFlightMapViews = inFlightTileRequests.get(tileRequest);
+		if (inFlightMapViews != null) {
+			inFlightMapViews.addAll(mapViews);
+			return true;
+		}
+		
+		inFlightTileRequests.put(tileRequest, mapViews);
+		ArrayList<TileRequest> mergedTileRequests = mergedMetaTileRequests.get(miningRequest);
+		if (mergedTileRequests == null) {
+			mergedTileRequests = new ArrayList<TileRequest>();
+			mergedMetaTileRequests.put(miningRequest, mergedTileRequests);
+		}
+		mergedTileRequests.add(tileRequest);	// если метатайл не скачается, запрос вернется в очередь
+		return true;
+	}
+	
+	/**
+	 * Запросы соседних тайлов, которые придут вместе с уже скачиваемым метатайлом, больше не нужно обрабатывать:
+	 * тайлы отдадутся картам, когда метатайл скачается. Если метатайл не скачается, запросы вернутся в очередь,
+	 * см. {@link #forgetInFlightTileRequests}.
+	 */
+	private synchronized void mergeMetaTileRequests(TileRequest miningRequest) {
+		TileSpecs metaTileSpecs = miningRequest.getTileSpecs();
+		int metaTileSize = tileMiner.getMetaTileSize();
+		ArrayList<TileRequest> mergedTileRequests = new ArrayList<TileRequest>();
+		
+		for (int dx = 0; dx < metaTileSize; dx++) {
+			for (int dy = 0; dy < metaTileSize; dy++) {
+				TileRequest tileRequest = new TileRequest(new TileSpecs(metaTileSpecs.xSn + dx, metaTileSpecs.ySn + dy));
+				HashSet<MapTilesReceiver> pendingMapViews = pendingTileRequests.remove(tileRequest);
+				if (pendingMapViews == null) continue;
+				
+				HashSet<MapTilesReceiver> inFlightMapViews = inFlightTileRequests.get(tileRequest);
+				if (inFlightMapViews == null) {
+					inFlightTileRequests.put(tileRequest, pendingMapViews);
+					mergedTileRequests.add(tileRequest);
+				} else {
+					inFlightMapViews.addAll(pendingMapViews);
+				}
+			}
+		}
+		
+		if (mergedTileRequests.isEmpty() == false) mergedMetaTileRequests.put(miningRequest, mergedTileRequests);
+	}
+	
+	/**
+	 * Метатайл скачан, присоединенные к нему запросы соседей получат свои тайлы вместе с ним. Следующий запрос
+	 * тайла из этого метатайла, которому тайл уже не достанется, качает метатайл заново.
+	 */
+	private synchronized void forgetMiningRequest(TileRequest miningRequest) {
+		inFlightMiningRequests.remove(miningRequest);
+		mergedMetaTileRequests.remove(miningRequest);
+	}
+	
+	/**
+	 * Забирает список карт, которым нужно отдать скачанный тайл
+	 * @return карты или null, если тайл уже никому не нужен
+	 */
+	private synchronized ArrayList<MapTilesReceiver> takeInFlightMapViews(TileRequest tileRequest) {
+		HashSet<MapTilesReceiver> mapViews = inFlightTileRequests.remove(tileRequest);
+		if (hasPrefetchRequests()) notify();	// освободилось место для фоновых загрузчиков
+		return (mapViews != null)?new ArrayList<MapTilesReceiver>(mapViews):null;
+	}
+	
+	/**
+	 * Скачивание не удалось, тайлы метатайла (или один тайл) больше не качаются. Запросы соседних тайлов,
+	 * которые ждали этот метатайл вместо своей очереди, откладываются до конца паузы после неудачи: сами
+	 * они не проваливались и должны получить свою попытку. Заглушки старой версии у остальных тайлов
+	 * выкидываются из кешей в оперативной памяти, чтобы при следующем запросе тайл снова стал качаться.
+	 */
+	private void forgetInFlightTileRequests(TileRequest miningRequest) {
+		releaseInFlightTileRequests(miningRequest, false, 0);
+	}
+	
+	/**
+	 * Скачанный тайл (или метатайл) некуда отдать, тайлы больше не качаются. В отличие от неудачи, откладываются
+	 * запросы всех тайлов, которые ждут карты: тайлы не проваливались и скачаются снова.
+	 * @param retryAtMs когда снова качать, по {@link SystemClock#uptimeMillis()}
+	 */
+	private void delayInFlightTileRequests(TileRequest miningRequest, long retryAtMs) {
+		releaseInFlightTileRequests(miningRequest, true, retryAtMs);
+	}
+	
+	private void releaseInFlightTileRequests(TileRequest miningRequest, boolean delayAll, long delayRetryAtMs) {
+		ArrayList<TileRequest> forgottenPlaceholderTiles = null;
+		
+		synchronized(this) {
+			TileSpecs metaTileSpecs = miningRequest.getTileSpecs();
+			int metaTileSize = tileMiner.getMetaTileSize();
+			inFlightMiningRequests.remove(miningRequest);
+			ArrayList<TileRequest> mergedTileRequests = mergedMetaTileRequests.remove(miningRequest);
+			long retryAtMs = delayAll?delayRetryAtMs:
+				(mergedTileRequests != null)?tileFailureTracker.getTileRetryAtMs(miningRequest):0;
+			
+			for (int dx = 0; dx < metaTileSize; dx++) {
+				for (int dy = 0; dy < metaTileSize; dy++) {
+					TileRequest tileRequest = new TileRequest(new TileSpecs(metaTileSpecs.xSn + dx, metaTileSpecs.ySn + dy));
+					HashSet<MapTilesReceiver> mapViews = inFlightTileRequests.remove(tileRequest);
+					
+					if (mapViews != null && mapViews.isEmpty() == false
+							&& (delayAll || (mergedTileRequests != null && mergedTileRequests.contains(tileRequest)))) {
+						delayTileMiningJob(tileRequest, mapViews, retryAtMs);
+					} else if (placeholderTiles.remove(tileRequest)) {
+						if (forgottenPlaceholderTiles == null) forgottenPlaceholderTiles = new ArrayList<TileRequest>();
+						forgottenPlaceholderTiles.add(tileRequest);
+					}
+				}
+			}
+			if (hasPrefetchRequests()) notify();	// освободилось место для фоновых загрузчиков
+		}
+		
+		if (forgottenPlaceholderTiles != null) {
+			for (TileRequest tileRequest : forgottenPlaceholderTiles) forgetCachedTileImage(tileRequest);
+		}
+	}
+	
+	/**
+	 * Стадия декодирования: декодирует тайл (или метатайл и режет его на тайлы), рисует на карте
+	 * и передает на запись в кеш. Если очередь декодирования заполнена, сетевой поток ждет.
+	 */
+	private void submitTileDecodeJob(TileRequest miningRequest, byte[] tileData) {
+		try {
+			tileDecodeExecutor.execute(buildTileDecodeJob(miningRequest, tileData));
+		} catch (RejectedExecutionException ex) {
+			// процессор останавливается, тайл уже никому не нужен
+			forgetInFlightTileRequests(miningRequest);
+		}
+	}
+	
+	private Runnable buildTileDecodeJob(final TileRequest miningRequest, final byte[] tileData) {
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				Bitmap minedBitmap = tileMiner.decodeTileBitmap(tileData);
+				if (minedBitmap == null) {	// битые данные, повторим не сразу
+					tileFailureTracker.onTileFailed(miningRequest);
+					forgetInFlightTileRequests(miningRequest);
+					return;
+				}
+				tileFailureTracker.onTileSucceeded(miningRequest);
+				forgetMiningRequest(miningRequest);
+				
+				if (tileMiner.getMetaTileSize() == 1) {
+					deliverMinedTile(miningRequest, minedBitmap, tileData);
+					return;
+				}
+				
+				ArrayList<TileRequest> tileRequests = new ArrayList<TileRequest>();
+				ArrayList<Bitmap> tileBitmaps = new ArrayList<Bitmap>();
+				tileMiner.splitMetaTileBitmap(miningRequest, minedBitmap, tileRequests, tileBitmaps);
+				minedBitmap.recycle();
+				
+				for (int i = 0; i < tileRequests.size(); i++) {
+					deliverMinedTile(tileRequests.get(i), tileBitmaps.get(i), null);
+				}
+				if (tileRequests.size() < tileMiner.getMetaTileSize()*tileMiner.getMetaTileSize()) {
+					forgetUndeliveredTiles(miningRequest, tileRequests);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Сервер отдал метатайл меньше NxN, например на краю карты: тайлов, которых в нем нет, у сервера нет.
+	 * Их запросы больше не качаются, иначе эти тайлы никогда не запросятся снова.
+	 * @param deliveredTileRequests тайлы, вырезанные из метатайла и уже отданные
+	 */
+	private void forgetUndeliveredTiles(TileRequest miningRequest, List<TileRequest> deliveredTileRequests) {
+		ArrayList<TileRequest> forgottenPlaceholderTiles = new ArrayList<TileRequest>();
+		
+		synchronized(this) {
+			TileSpecs metaTileSpecs = miningRequest.getTileSpecs();
+			int metaTileSize = tileMiner.getMetaTileSize();
+			
+			for (int dx = 0; dx < metaTileSize; dx++) {
+				for (int dy = 0; dy < metaTileSize; dy++) {
+					TileRequest tileRequest = new TileRequest(new TileSpecs(metaTileSpecs.xSn + dx, metaTileSpecs.ySn + dy));
+					if (deliveredTileRequests.contains(tileRequest)) continue;
+					
+					inFlightTileRequests.remove(tileRequest);
+					if (placeholderTiles.remove(tileRequest)) forgottenPlaceholderTiles.add(tileRequest);
+				}
+			}
+			if (hasPrefetchRequests()) notify();	// освободилось место для фоновых загрузчиков
+		}
+		
+		for (TileRequest tileRequest : forgottenPlaceholderTiles) forgetCachedTileImage(tileRequest);
+	}
+	
+	/**
+	 * Стадия декодирования для тайлов из нескольких слоев: декодирует слои, рисует их друг на друге, отдает
+	 * готовый тайл картам и передает на запись в кеш.
+	 */
+	private void submitLayeredTileComposeJob(final TileRequest tileRequest, final byte[][] layersData) {
+		try {
+			tileDecodeExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					Bitmap tileBitmap = layeredTileAssembler.compose(tileRequest, layersData);
+					if (tileBitmap == null) {	// битые данные, повторим не сразу
+						tileFailureTracker.onTileFailed(tileRequest);
+						forgetInFlightTileRequests(tileRequest);
+						return;
+					}
+					tileFailureTracker.onTileSucceeded(tileRequest);
+					forgetMiningRequest(tileRequest);
+					deliverMinedTile(tileRequest, tileBitmap, null);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// процессор останавливается, тайл уже никому не нужен
+			forgetInFlightTileRequests(tileRequest);
+		}
+	}
+	
+	/**
+	 * Отдает скачанный тайл картам, которые его ждут, и раскладывает его по кешам
+	 * @param tileData сжатое изображение тайла с сервера, null - если его нет (тайл вырезан из метатайла)
+	 */
+	private void deliverMinedTile(TileRequest tileRequest, Bitmap tileBitmap, byte[] tileData) {
+		// тайл из слоев мог перекачаться, потому что устарел, или вместо него показывалась заглушка старой версии:
+		// старое изображение в кешах заменяем новым
+		if (layeredTileAssembler != null || takePlaceholderTile(tileRequest)) forgetCachedTileImage(tileRequest);
+		
+		ArrayList<MapTilesReceiver> mapViews = takeInFlightMapViews(tileRequest);
+		if (mapViews != null) deliverTile(mapViews, tileRequest, tileBitmap);
+		boolean prefetchOnly = (mapViews != null && isPrefetchOnly(mapViews));
+		
+		if (tilesCompressedCache != null && prefetchOnly == false) {
+			if (tileData != null) tilesCompressedCache.putEncoded(tileRequest, tileData);
+			else tilesCompressedCache.putPixels(tileRequest, tileBitmap);
+		}
+		
+		submitTilePersistJob(tileRequest, tileBitmap, prefetchOnly);
+	}
+	
+	/**
+	 * Стадия записи в кеш в постоянной памяти. Если очередь записи заполнена - тайл в кеш не попадет.
+	 * После записи битмап тайла освобождается.
+	 * @param prefetched тайл скачан заранее по просьбе фоновых загрузчиков, кеш примет его без проверки частоты
+	 */
+	private void submitTilePersistJob(final TileRequest tileRequest, final Bitmap tileBitmap, final boolean prefetched) {
+		if (tilesPersistentCache == null) {	// если нет кеша во флеше
+			tileBitmap.recycle();
+			return;
+		}
+		
+		try {
+			tilePersistExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					tilesPersistentCache.put(tileRequest, tileBitmap, prefetched);
+					tileBitmap.recycle();
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			tileBitmap.recycle();
+		}
+	}
+	
 	/**
 	 * Запускает процесс проверки очереди отложенный заданий на добычу тайтов.
 	 */
@@ -188,25 +949,134 @@ public class TilesProcessorCenter extends Thread {
 	} 
 
 	/**
-	 * Добавляет в очередь запрос на опеределенный тайл.
+	 * Счетчики попаданий в кеши и скачанных байт
+	 */
+	public TileLoadStatistics getStatistics() {
+		return tileLoadStatistics;
+	}
+
+	/**
+	 * Подключает карту: теперь она может запрашивать тайлы
+	 * @param mapView карта
+	 */
+	public synchronized void register(MapTilesReceiver mapView) {
+		if (findViewport(mapView) == null) viewports.add(new ViewportRequests(mapView, false, false));
+	}
+	
+	/**
+	 * Подключает фонового получателя тайлов, которого нет на экране. Запрашивает тайлы, как карта, но его запросы 
+	 * обрабатываются, только когда у карт на экране запросов нет.
+	 * @param receiver получатель тайлов
+	 */
+	public synchronized void registerBackground(MapTilesReceiver receiver) {
+		if (findViewport(receiver) == null) viewports.add(new ViewportRequests(receiver, false, true));
+	}
+	
+	/**
+	 * Подключает фоновый загрузчик: он может запрашивать тайлы заранее методом {@link #prefetch}.
+	 * Отключается, как и карта, методом {@link #unregister}.
+	 * @param prefetcher получатель тайлов фонового загрузчика
+	 */
+	public synchronized void registerPrefetcher(MapTilesReceiver prefetcher) {
+		if (findViewport(prefetcher) == null) viewports.add(new ViewportRequests(prefetcher, true, true));
+	}
+	
+	/**
+	 * Отключает карту: ее запросы отменяются, скачиваемые для нее тайлы ей больше не отдаются
+	 * @param mapView карта
+	 */
+	public synchronized void unregister(MapTilesReceiver mapView) {
+		clearRequestQueue(mapView);
+		
+		Iterator<HashSet<MapTilesReceiver>> it = inFlightTileRequests.values().iterator();
+		while (it.hasNext()) {
+			it.next().remove(mapView);
+		}
+		
+		for (ScheduledLayerRefresh layerRefresh : scheduledLayerRefreshes.values()) {
+			layerRefresh.mapViews.remove(mapView);
+		}
+		
+		ViewportRequests viewport = findViewport(mapView);
+		if (viewport != null) viewports.remove(viewport);
+		nextViewportIndex = 0;
+	}
+	
+	/**
+	 * Добавляет в очередь карты запрос на опеределенный тайл.
+	 * @param mapView карта, подключенная методом {@link #register}
+	 * @param tileRequest запрос
+	 */
+	public synchronized void request(MapTilesReceiver mapView, TileRequest tileRequest) {
+		ViewportRequests viewport = findViewport(mapView);
+		if (viewport == null) return;
+		
+		HashSet<MapTilesReceiver> mapViews = pendingTileRequests.get(tileRequest);
+		if (mapViews == null) {
+			mapViews = new HashSet<MapTilesReceiver>();
+			pendingTileRequests.put(tileRequest, mapViews);
+		}
+		if (mapViews.add(mapView)) {
+			viewport.tileRequestsStackQueue.push(tileRequest);
+		}
+	}
+	
+	/**
+	 * Добавляет в конец очереди фонового загрузчика запрос на тайл. Запросы фоновых загрузчиков обрабатываются
+	 * в порядке добавления, после запросов карт. Тайл, который не удалось скачать, загрузчику не отдается.
+	 * @param prefetcher загрузчик, подключенный методом {@link #registerPrefetcher}
+	 * @param tileRequest запрос
+	 */
+	public synchronized void prefetch(MapTilesReceiver prefetcher, TileRequest tileRequest) {
+		ViewportRequests viewport = findViewport(prefetcher);
+		if (viewport == null || viewport.prefetcher == false) return;
+		
+		HashSet<MapTilesReceiver> mapViews = pendingTileRequests.get(tileRequest);
+		if (mapViews == null) {
+			mapViews = new HashSet<MapTilesReceiver>();
+			pendingTileRequests.put(tileRequest, mapViews);
+		}
+		if (mapViews.add(prefetcher)) {
+			viewport.prefetchQueue.add(tileRequest);
+		}
+	}
+	
+	/**
+	 * Отменяет запрос карты на тайл, если его обработка еще не началась. Например, когда тайл ушел с экрана.
+	 * @param mapView карта
 	 * @param tileRequest запрос
 	 */
-	public synchronized void request(TileRequest tileRequest) {
-		if (!tileRequestsStackQueue.contains(tileRequest)) {
-			tileRequestsStackQueue.push(tileRequest);
+	public synchronized void cancelRequest(MapTilesReceiver mapView, TileRequest tileRequest) {
+		HashSet<MapTilesReceiver> mapViews = pendingTileRequests.get(tileRequest);
+		if (mapViews != null && mapViews.remove(mapView) && mapViews.isEmpty()) {
+			pendingTileRequests.remove(tileRequest);
 		}
+		
+		// тайл ушел с экрана этой карты, обновлять его для нее не нужно
+		ScheduledLayerRefresh layerRefresh = scheduledLayerRefreshes.get(tileRequest);
+		if (layerRefresh != null) layerRefresh.mapViews.remove(mapView);
 	}
 	
 	/**
-	 * Очищает очередь запросов на тайлы. Можно вызвать
+	 * Очищает очередь запросов карты на тайлы. Можно вызвать
 	 * перед добавлением запросов на новые тайлы, чтобы отменить
 	 * старые еще не обработанные запросы.
 	 * 
 	 * Тайлы, которые успели начать качаться - докачиваются.
+	 * @param mapView карта
 	 */
-	public synchronized void clearRequestQueue() {
-		tileRequestsStackQueue.clear();
-		delayedTileMiningJobs.clear();
+	public synchronized void clearRequestQueue(MapTilesReceiver mapView) {
+		ViewportRequests viewport = findViewport(mapView);
+		if (viewport != null) {
+			viewport.tileRequestsStackQueue.clear();
+			viewport.prefetchQueue.clear();
+		}
+		
+		Iterator<HashSet<MapTilesReceiver>> it = pendingTileRequests.values().iterator();
+		while (it.hasNext()) {
+			HashSet<MapTilesReceiver> mapViews = it.next();
+			if (mapViews.remove(mapView) && mapViews.isEmpty()) it.remove();
+		}
 	}
 	
 	/**
@@ -219,9 +1089,11 @@ public class TilesProcessorCenter extends Thread {
 	
 	/**
 	 * Ставит процессор тайлов на паузу. Новые задание не начинают обработку, старые доделываются.
+	 * Состояние кеша в постоянной памяти сохраняется в потоке процессора.
 	 */
 	public synchronized void pauseProcessing() {
 		paused = true;
+		saveCacheStateRequested = true;
 		notify();
 	}
 	
@@ -240,11 +1112,25 @@ public class TilesProcessorCenter extends Thread {
 	 */
 	public synchronized void destroy() {
 		
-		// сначала останавливаем tileMineExecutor
+		// сначала останавливаем стадии конвейера
 		if (tileMineExecutor.isShutdown() == false) {
 			tileMineExecutor.shutdownNow();
 		}
 		
+		if (tileDecodeExecutor.isShutdown() == false) {
+			tileDecodeExecutor.shutdownNow();
+		}
+		
+		if (layeredTileAssembler != null) {
+			layeredTileAssembler.destroy();
+		}
+		
+		tileRequestHedger.destroy();
+		
+		if (tilePersistExecutor.isShutdown() == false) {
+			tilePersistExecutor.shutdown();	// то, что уже в очереди, пусть допишется в кеш
+		}
+		
 		// теперь останавливаем себя
 		interrupt();
 		try {
@@ -1,79 +1,208 @@
 package com.pandacoder.tests.mapview;
 
 import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.Map;
 
 import android.graphics.Bitmap;
 
 /**
  * Кеш для тайлов в оперативной памяти заданного размера. В кеше хранятся копии.
- *  
+ *
+ * <p>По умолчанию вытесняется тайл, который раньше всех попал в кеш. Можно вытеснять по расстоянию до видимых
+ * областей карт, см. {@link ViewportEvictionPolicy}.
+ *
+ * <p>Тайлы с одинаковыми пикселями (вода, пустая суша, одноцветные тайлы вне покрытия) делят один битмап,
+ * см. {@link TileContentHash}. Размер кеша - число битмапов, тайлов в нем может быть больше, но не больше
+ * SHARED_TILES_FACTOR размеров кеша.
+ *
  */
-public class TilesRamCache {
+public class TilesRamCache implements TileBitmapCache {
+	
+	private final static int SHARED_TILES_FACTOR = 4;
+	
+	/**
+	 * Битмап и тайлы, которые его делят
+	 */
+	private static class SharedBitmap {
+		final long contentKey;
+		final Bitmap bitmap;
+		int referenceCount = 0;
+		
+		SharedBitmap(long contentKey, Bitmap bitmap) {
+			this.contentKey = contentKey;
+			this.bitmap = bitmap;
+		}
+	}
 	
 	private final int size;
-	private LinkedHashMap<TileRequest, Bitmap> cache;
+	private LinkedHashMap<TileRequest, SharedBitmap> cache;		// в порядке вставки
+	private final HashMap<Long, SharedBitmap> sharedBitmaps;
 	private LinkedList<Bitmap> bitmapPool;
-	private final ByteBuffer bitmapPixelsBuffer;
+	private final LinkedList<ByteBuffer> pixelsBuffersPool;	// по буферу на каждый одновременный put
+	private final ViewportEvictionPolicy evictionPolicy;	// null - вытесняется самый старый тайл
 	
 	/**
 	 * Создает кеш для тайлов заданного размера.
 	 * @param size
 	 */
 	public TilesRamCache(int size) {
+		this(size, false);
+	}
+	
+	/**
+	 * Создает кеш для тайлов заданного размера.
+	 * @param size сколько разных изображений тайлов помещается в кеш
+	 * @param viewportEviction вытеснять тайлы по расстоянию до видимых областей карт, а не по порядку вставки
+	 */
+	public TilesRamCache(int size, boolean viewportEviction) {
 		this.size = size;
+		this.evictionPolicy = viewportEviction?new ViewportEvictionPolicy():null;
 		
-		// используем LinkedHashMap, чтобы знать самый старый элемент и выкидывать его
-		// если заканчивается место
-		cache = new LinkedHashMap<TileRequest, Bitmap>(this.size) {
-
-			private static final long serialVersionUID = 3570299093021796984L;
-
-			@Override
-			protected boolean removeEldestEntry(Map.Entry<TileRequest, Bitmap> eldest) {
-		        if (size() > TilesRamCache.this.size) {
-		        	remove(eldest.getKey());
-		        	TilesRamCache.this.bitmapPool.add(eldest.getValue());	        	
-		        }
-		        return false;
-		    }
-		};
+		cache = new LinkedHashMap<TileRequest, SharedBitmap>(this.size);
+		sharedBitmaps = new HashMap<Long, SharedBitmap>(this.size);
 		
 		bitmapPool = new LinkedList<Bitmap>();
-		for (int i = 0; i <= this.size; i++) {
+		for (int i = 0; i < this.size; i++) {
 			bitmapPool.add(Bitmap.createBitmap(TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_BITMAP_CONFIG));
 		}
 		
-		bitmapPixelsBuffer = ByteBuffer.allocate(TileSpecs.TILE_BITMAP_SIZE_BYTES);
+		pixelsBuffersPool = new LinkedList<ByteBuffer>();
 	}
 	
-	public synchronized void put(TileRequest tileRequest, Bitmap tileBitmap) {
-		if (cache != null && cache.get(tileRequest) == null) { // такого тайла у нас еще нет
-			tileBitmap.copyPixelsToBuffer(bitmapPixelsBuffer);
-			bitmapPixelsBuffer.rewind();
-		    Bitmap temp = bitmapPool.remove();
-		    temp.copyPixelsFromBuffer(bitmapPixelsBuffer);
-		    cache.put(tileRequest, temp);
+	/**
+	 * Ключ содержимого тайла по его пикселям. Для одноцветного тайла - сам цвет, без хеширования.
+	 */
+	private static long getContentKey(byte[] pixels) {
+		if (TileContentHash.isSolid(pixels, pixels.length)) {
+			return Long.MIN_VALUE | (pixels[0] & 0xff) << 8 | (pixels[1] & 0xff);
 		}
+		return TileContentHash.hash(pixels, pixels.length);
 	}
 	
+	/**
+	 * Кладет копию тайла в кеш. Пиксели копируются и хешируются вне монитора кеша, чтобы {@link #get}
+	 * из отрисовки карты не ждал хеширования: под монитором только поиск и вставка.
+	 */
+	@Override
+	public void put(TileRequest tileRequest, Bitmap tileBitmap) {
+		ByteBuffer pixelsBuffer;
+		synchronized(this) {
+			if (cache == null || size == 0 || cache.containsKey(tileRequest)) return; // такой тайл у нас уже есть
+			pixelsBuffer = pixelsBuffersPool.isEmpty()?ByteBuffer.allocate(TileSpecs.TILE_BITMAP_SIZE_BYTES):pixelsBuffersPool.remove();
+		}
+		
+		pixelsBuffer.rewind();
+		tileBitmap.copyPixelsToBuffer(pixelsBuffer);
+		long contentKey = getContentKey(pixelsBuffer.array());
+		
+		Bitmap contentBitmap;
+		synchronized(this) {
+			if (cache == null || cache.containsKey(tileRequest)) {
+				pixelsBuffersPool.add(pixelsBuffer);
+				return;
+			}
+			
+			SharedBitmap sharedBitmap = sharedBitmaps.get(contentKey);
+			if (sharedBitmap != null) {
+				addTile(tileRequest, sharedBitmap);
+				pixelsBuffersPool.add(pixelsBuffer);
+				return;
+			}
+			
+			while (bitmapPool.isEmpty() && cache.isEmpty() == false) evictTile(null);
+			if (bitmapPool.isEmpty()) {	// все битмапы сейчас заполняют другие потоки, тайл не кешируем
+				pixelsBuffersPool.add(pixelsBuffer);
+				return;
+			}
+			contentBitmap = bitmapPool.remove();
+		}
+		
+		// битмап взят из пула и пока ничей, пиксели в него копируются тоже вне монитора
+		pixelsBuffer.rewind();
+		contentBitmap.copyPixelsFromBuffer(pixelsBuffer);
+		
+		synchronized(this) {
+			pixelsBuffersPool.add(pixelsBuffer);
+			if (cache == null) {	// кеш успели уничтожить
+				contentBitmap.recycle();
+				return;
+			}
+			if (cache.containsKey(tileRequest)) {	// тайл успели положить из другого потока
+				bitmapPool.add(contentBitmap);
+				return;
+			}
+			
+			SharedBitmap sharedBitmap = sharedBitmaps.get(contentKey);
+			if (sharedBitmap != null) {	// такие же пиксели успели положить из другого потока
+				bitmapPool.add(contentBitmap);
+			} else {
+				sharedBitmap = new SharedBitmap(contentKey, contentBitmap);
+				sharedBitmaps.put(contentKey, sharedBitmap);
+			}
+			addTile(tileRequest, sharedBitmap);
+		}
+	}
+	
+	private void addTile(TileRequest tileRequest, SharedBitmap sharedBitmap) {
+		sharedBitmap.referenceCount++;
+		cache.put(tileRequest, sharedBitmap);
+		
+		while (cache.size() > size * SHARED_TILES_FACTOR) evictTile(tileRequest);
+	}
+	
+	/**
+	 * Выкидывает из кеша один тайл. Кеш не пуст.
+	 * @param keepTileRequest только что вставленный тайл, его не вытесняем, или null
+	 */
+	private void evictTile(TileRequest keepTileRequest) {
+		TileRequest victim = (evictionPolicy != null)?evictionPolicy.chooseVictim(cache.keySet(), keepTileRequest)
+												  :cache.keySet().iterator().next();
+		releaseSharedBitmap(cache.remove(victim));
+	}
+	
+	private void releaseSharedBitmap(SharedBitmap sharedBitmap) {
+		if (--sharedBitmap.referenceCount == 0) {
+			sharedBitmaps.remove(sharedBitmap.contentKey);
+			bitmapPool.add(sharedBitmap.bitmap);
+		}
+	}
+	
+	@Override
 	public synchronized Bitmap get(TileRequest tileRequest) {
-		if (cache != null) return cache.get(tileRequest);
-		else return null;
+		if (cache == null) return null;
+		
+		SharedBitmap sharedBitmap = cache.get(tileRequest);
+		return (sharedBitmap != null)?sharedBitmap.bitmap:null;
+	}
+	
+	@Override
+	public synchronized void remove(TileRequest tileRequest) {
+		if (cache == null) return;
+		
+		SharedBitmap sharedBitmap = cache.remove(tileRequest);
+		if (sharedBitmap != null) releaseSharedBitmap(sharedBitmap);
+	}
+	
+	@Override
+	public synchronized void updateViewport(MapTilesReceiver mapView, MapProjection mapProjection) {
+		if (evictionPolicy != null) evictionPolicy.updateViewport(mapView, mapProjection);
 	}
 	
+	@Override
 	public synchronized void destroy() {
 		if (cache != null) {
-			for (Bitmap tileBitmap:cache.values()) {
-				tileBitmap.recycle();
+			for (SharedBitmap sharedBitmap : sharedBitmaps.values()) {
+				sharedBitmap.bitmap.recycle();
 			}
 			
 			for (Bitmap bitmap : bitmapPool) {
 		        bitmap.recycle();
 		    }
 			
+			sharedBitmaps.clear();
+			pixelsBuffersPool.clear();
 			cache.clear();
 			cache = null;
 		}
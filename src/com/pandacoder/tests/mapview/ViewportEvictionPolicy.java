@@ -0,0 +1,125 @@
+package com.pandacoder.tests.mapview;
+
+import java.util.HashMap;
+
+/**
+ * Выбирает, какой тайл вытеснить из кеша в оперативной памяти, по тому, где сейчас карты. Вытесняется
+ * тайл, дальше всех отстоящий от видимых областей карт (расстояние в тайлах по большей из осей). Видимые
+ * тайлы и тайлы в VIEWPORT_MARGIN_TILES от края видимой области не вытесняются, пока в кеше есть другие.
+ * Из равноудаленных первым уходит тайл позади движения карты, потом - самый старый.
+ *
+ * <p>При долгом перетаскивании карты обычный порядок вставки выкидывает соседей экрана раньше тайлов
+ * с дальнего конца пути, которые просто позже попали в кеш. А вернуться карту тянут чаще всего недалеко.
+ *
+ * <p>Не потокобезопасен: вызывать только из-под монитора кеша.
+ */
+class ViewportEvictionPolicy {
+
+	/**
+	 * На сколько тайлов за краем видимой области тайлы берегутся от вытеснения: их карта покажет
+	 * при первом же сдвиге.
+	 */
+	final static int VIEWPORT_MARGIN_TILES = 1;
+
+	/**
+	 * Видимая область одной карты в номерах тайлов и направление, куда ее последний раз сдвинули
+	 */
+	private static class Viewport {
+		int minX, maxX, minY, maxY;
+		int panDirectionX, panDirectionY;	// -1, 0, 1
+	}
+
+	private final HashMap<MapTilesReceiver, Viewport> viewports = new HashMap<MapTilesReceiver, Viewport>();
+
+	/**
+	 * Запоминает видимую область карты
+	 * @param mapView карта
+	 * @param mapProjection проекция карты, null - карта больше ничего не показывает
+	 */
+	void updateViewport(MapTilesReceiver mapView, MapProjection mapProjection) {
+		if (mapProjection == null) {
+			viewports.remove(mapView);
+			return;
+		}
+
+		Viewport viewport = viewports.get(mapView);
+		if (viewport == null) {
+			viewport = new Viewport();
+			viewports.put(mapView, viewport);
+		} else {
+			// центр в удвоенных номерах тайлов, чтобы не терять половинки
+			int panX = (mapProjection.getMinTileSnX() + mapProjection.getMaxTileSnX()) - (viewport.minX + viewport.maxX),
+				panY = (mapProjection.getMinTileSnY() + mapProjection.getMaxTileSnY()) - (viewport.minY + viewport.maxY);
+			// карта не сдвинулась на целый тайл - направление прежнее
+			if (panX != 0 || panY != 0) {
+				viewport.panDirectionX = Integer.signum(panX);
+				viewport.panDirectionY = Integer.signum(panY);
+			}
+		}
+
+		viewport.minX = mapProjection.getMinTileSnX();
+		viewport.maxX = mapProjection.getMaxTileSnX();
+		viewport.minY = mapProjection.getMinTileSnY();
+		viewport.maxY = mapProjection.getMaxTileSnY();
+	}
+
+	private static int distanceOutside(int value, int min, int max) {
+		if (value < min) return min - value;
+		if (value > max) return value - max;
+		return 0;
+	}
+
+	/**
+	 * Насколько тайл бесполезен карте: 0 - виден, дальше - больше. Тайл позади движения карты чуть бесполезнее
+	 * такого же тайла впереди или сбоку.
+	 */
+	private static int score(Viewport viewport, TileSpecs tileSpecs) {
+		int distance = Math.max(distanceOutside(tileSpecs.xSn, viewport.minX, viewport.maxX),
+								distanceOutside(tileSpecs.ySn, viewport.minY, viewport.maxY));
+		if (distance == 0) return 0;
+
+		int fromCenterX = Integer.signum(2*tileSpecs.xSn - (viewport.minX + viewport.maxX)),
+			fromCenterY = Integer.signum(2*tileSpecs.ySn - (viewport.minY + viewport.maxY));
+		boolean behind = (viewport.panDirectionX != 0 && fromCenterX == -viewport.panDirectionX)
+					  || (viewport.panDirectionY != 0 && fromCenterY == -viewport.panDirectionY);
+
+		return 2*distance + (behind?1:0);
+	}
+
+	/**
+	 * Тайл виден карте или лежит в VIEWPORT_MARGIN_TILES от края ее видимой области
+	 */
+	private static boolean isProtected(int tileScore) {
+		return tileScore < 2*(VIEWPORT_MARGIN_TILES + 1);
+	}
+
+	/**
+	 * Выбирает тайл на вытеснение. Если все тайлы кеша видны картам или лежат рядом с видимой областью
+	 * (кеш меньше, чем карты показывают), вытесняется самый старый.
+	 * @param tileRequests тайлы кеша от самого старого к самому свежему, хотя бы один кроме keepTileRequest
+	 * @param keepTileRequest тайл, который не вытесняется ни в каком случае (например, только что вставленный), или null
+	 * @return тайл, который стоит вытеснить. Если карт нет - самый старый.
+	 */
+	TileRequest chooseVictim(Iterable<TileRequest> tileRequests, TileRequest keepTileRequest) {
+		TileRequest victim = null, oldest = null;
+		int victimScore = -1;
+
+		for (TileRequest tileRequest : tileRequests) {
+			if (tileRequest.equals(keepTileRequest)) continue;
+			if (viewports.isEmpty()) return tileRequest;
+			if (oldest == null) oldest = tileRequest;
+
+			// тайл нужен хоть одной карте - считаем по самой близкой
+			int tileScore = Integer.MAX_VALUE;
+			for (Viewport viewport : viewports.values()) {
+				tileScore = Math.min(tileScore, score(viewport, tileRequest.getTileSpecs()));
+			}
+
+			if (isProtected(tileScore) == false && tileScore > victimScore) {	// строго больше: из равных остается самый старый
+				victim = tileRequest;
+				victimScore = tileScore;
+			}
+		}
+		return (victim != null)?victim:oldest;
+	}
+}
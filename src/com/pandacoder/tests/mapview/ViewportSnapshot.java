@@ -0,0 +1,175 @@
+package com.pandacoder.tests.mapview;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.pandacoder.tests.Utils.IOUtils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Положение карты и снимок экрана на момент ухода в фон. При следующем запуске карта открывается там же,
+ * снимок показывается вместо пустого экрана, пока не нарисуются тайлы.
+ *
+ * <p>Снимок хранится в JPEG: это заглушка на доли секунды, потери качества не видны, а файл в десятки раз
+ * меньше пикселей экрана.
+ */
+class ViewportSnapshot {
+
+	private static final String LOG_TAG = ViewportSnapshot.class.getSimpleName();
+
+	private static final int FILE_VERSION = 1;
+	private static final int FILE_HEADER_LENGTH = 6*4;	// версия, смещение центра, размеры, длина снимка
+	private static final int SCREEN_JPEG_QUALITY = 80;
+
+	final int mapCenterOffsetXp, mapCenterOffsetYp;
+	final int width, height;
+	private Bitmap screenBitmap;	// null - снимка нет, только положение
+
+	/**
+	 * @param mapCenterOffsetXp смещение центра карты по x
+	 * @param mapCenterOffsetYp смещение центра карты по y
+	 * @param width ширина карты в пикселях
+	 * @param height высота карты в пикселях
+	 * @param screenBitmap снимок экрана карты, снимок теперь принадлежит этому объекту. null - без снимка
+	 */
+	ViewportSnapshot(int mapCenterOffsetXp, int mapCenterOffsetYp, int width, int height, Bitmap screenBitmap) {
+		this.mapCenterOffsetXp = mapCenterOffsetXp;
+		this.mapCenterOffsetYp = mapCenterOffsetYp;
+		this.width = width;
+		this.height = height;
+		this.screenBitmap = screenBitmap;
+	}
+
+	Bitmap getScreenBitmap() {
+		return screenBitmap;
+	}
+
+	/**
+	 * Тайлы, которые были видны. Идут от краев к центру: если кеш, в который их кладут, меньше экрана,
+	 * в нем останутся центральные.
+	 */
+	ArrayList<TileRequest> getVisibleTileRequests() {
+		MapProjection mapProjection = new MapProjection();
+		mapProjection.setProjectionsParams(width, height, mapCenterOffsetXp, mapCenterOffsetYp);
+
+		int minX = mapProjection.getMinTileSnX(), maxX = mapProjection.getMaxTileSnX(),
+			minY = mapProjection.getMinTileSnY(), maxY = mapProjection.getMaxTileSnY();
+
+		ArrayList<TileRequest> tileRequests = new ArrayList<TileRequest>();
+		// обходим прямоугольник кольцами снаружи внутрь
+		while (minX <= maxX && minY <= maxY) {
+			for (int x = minX; x <= maxX; x++) {
+				tileRequests.add(new TileRequest(new TileSpecs(x, minY)));
+				if (maxY != minY) tileRequests.add(new TileRequest(new TileSpecs(x, maxY)));
+			}
+			for (int y = minY + 1; y < maxY; y++) {
+				tileRequests.add(new TileRequest(new TileSpecs(minX, y)));
+				if (maxX != minX) tileRequests.add(new TileRequest(new TileSpecs(maxX, y)));
+			}
+			minX++; maxX--;
+			minY++; maxY--;
+		}
+		return tileRequests;
+	}
+
+	/**
+	 * Освобождает снимок экрана
+	 */
+	void recycle() {
+		if (screenBitmap != null) {
+			screenBitmap.recycle();
+			screenBitmap = null;
+		}
+	}
+
+	/**
+	 * Записывает положение и снимок в файл. Файл подменяется целиком, наполовину записанным он не остается.
+	 * @throws IOException если записать не удалось
+	 */
+	void writeTo(File file) throws IOException {
+		byte[] screenData = null;
+		if (screenBitmap != null) {
+			ByteArrayOutputStream screenDataStream = new ByteArrayOutputStream();
+			if (screenBitmap.compress(Bitmap.CompressFormat.JPEG, SCREEN_JPEG_QUALITY, screenDataStream)) {
+				screenData = screenDataStream.toByteArray();
+			}
+		}
+
+		File tempFile = new File(file.getPath() + ".tmp");
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile, false)));
+			dos.writeInt(FILE_VERSION);
+			dos.writeInt(mapCenterOffsetXp);
+			dos.writeInt(mapCenterOffsetYp);
+			dos.writeInt(width);
+			dos.writeInt(height);
+			if (screenData != null) {
+				dos.writeInt(screenData.length);
+				dos.write(screenData);
+			} else {
+				dos.writeInt(0);
+			}
+			dos.close();
+
+			if (tempFile.renameTo(file) == false) throw new IOException("Fail to rename " + tempFile);
+		} finally {
+			IOUtils.closeSilent(dos);
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Читает положение и снимок из файла
+	 * @return прочитанный снимок или null, если файла нет или он испорчен
+	 */
+	static ViewportSnapshot readFrom(File file) {
+		if (file.exists() == false) return null;
+
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (dis.readInt() != FILE_VERSION) return null;
+
+			int mapCenterOffsetXp = dis.readInt();
+			int mapCenterOffsetYp = dis.readInt();
+			int width = dis.readInt();
+			int height = dis.readInt();
+			if (width <= 0 || height <= 0) return null;
+
+			Bitmap screenBitmap = null;
+			int screenDataLength = dis.readInt();
+			if (screenDataLength < 0 || screenDataLength > file.length() - FILE_HEADER_LENGTH) {
+				// длина испорчена - не выделяем под нее память, иначе OutOfMemoryError на каждом старте
+				throw new IOException("Bad screen data length: " + screenDataLength);
+			}
+			if (screenDataLength > 0) {
+				byte[] screenData = new byte[screenDataLength];
+				dis.readFully(screenData);
+
+				BitmapFactory.Options screenBitmapOptions = new BitmapFactory.Options();
+				screenBitmapOptions.inPreferredConfig = TileSpecs.TILE_BITMAP_CONFIG;
+				screenBitmap = BitmapFactory.decodeByteArray(screenData, 0, screenDataLength, screenBitmapOptions);
+			}
+
+			return new ViewportSnapshot(mapCenterOffsetXp, mapCenterOffsetYp, width, height, screenBitmap);
+		} catch (Exception ex) {
+			// испорченный снимок - просто начнем с центра карты
+			Log.w(LOG_TAG, "Fail to read viewport snapshot: " + ex.getMessage());
+			return null;
+		} finally {
+			IOUtils.closeSilent(dis);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.pandacoder.tests.mapview;
+
+/**
+ * Помнит прямоугольник видимых тайлов с прошлого раза и при сдвиге карты сообщает только об изменениях:
+ * какие тайлы стали видны и какие ушли с экрана. Сдвиг на несколько пикселей внутри тех же тайлов не стоит
+ * ничего, сдвиг на тайл стоит одну строку или столбец тайлов, а не весь экран.
+ *
+ * Класс не потокобезопасен.
+ */
+class VisibleTilesTracker {
+
+	/**
+	 * Получатель изменений видимого прямоугольника тайлов
+	 */
+	interface Listener {
+
+		/**
+		 * Тайл стал видимым
+		 */
+		void onTileShown(int xSn, int ySn);
+
+		/**
+		 * Тайл ушел с экрана
+		 */
+		void onTileHidden(int xSn, int ySn);
+	}
+
+	private int minXsn, minYsn, maxXsn, maxYsn;
+	private boolean empty = true;
+
+	/**
+	 * Забывает прошлый прямоугольник. Следующий {@link #update} сообщит обо всех видимых тайлах как о новых.
+	 */
+	void reset() {
+		empty = true;
+	}
+
+	private boolean contains(int xSn, int ySn) {
+		return !empty && xSn >= minXsn && xSn <= maxXsn && ySn >= minYsn && ySn <= maxYsn;
+	}
+
+	/**
+	 * Запоминает новый прямоугольник видимых тайлов и сообщает слушателю, что изменилось.
+	 * Сначала сообщается об ушедших тайлах, потом о новых.
+	 */
+	void update(MapProjection mapProjection, Listener listener) {
+
+		int newMinXsn = mapProjection.getMinTileSnX(),
+			newMaxXsn = mapProjection.getMaxTileSnX(),
+			newMinYsn = mapProjection.getMinTileSnY(),
+			newMaxYsn = mapProjection.getMaxTileSnY();
+
+		if (!empty && newMinXsn == minXsn && newMaxXsn == maxXsn && newMinYsn == minYsn && newMaxYsn == maxYsn) {
+			return;	// видны те же тайлы
+		}
+
+		if (!empty) {
+			for (int x = minXsn; x <= maxXsn; x++) {
+				for (int y = minYsn; y <= maxYsn; y++) {
+					if (x < newMinXsn || x > newMaxXsn || y < newMinYsn || y > newMaxYsn) {
+						listener.onTileHidden(x, y);
+					}
+				}
+			}
+		}
+
+		for (int x = newMinXsn; x <= newMaxXsn; x++) {
+			for (int y = newMinYsn; y <= newMaxYsn; y++) {
+				if (!contains(x, y)) {
+					listener.onTileShown(x, y);
+				}
+			}
+		}
+
+		minXsn = newMinXsn;
+		maxXsn = newMaxXsn;
+		minYsn = newMinYsn;
+		maxYsn = newMaxYsn;
+		empty = false;
+	}
+}
@@ -1,107 +1,62 @@
 package com.pandacoder.tests.mapview;
 
-import java.io.InputStream;
-
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-
-import com.pandacoder.tests.Utils.IOUtils;
-
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.util.Log;
-
 /**
  * Класс для скачивания тайлов с сервера яндекса. {@link#getTileBitmap} можно вызывать из разных потоков.
+ * Скачивание ({@link #getTileData}) и декодирование ({@link #decodeTileBitmap}) можно делать в разных потоках.
+ * Слой берется из запроса ({@link TileRequest#getLayerId}), для запросов без слоя качается схема.
+ * 
+ * <p>Тайлы можно качать с нескольких зеркал (vec01.maps.yandex.net, vec02.maps.yandex.net...), тогда они
+ * раскладываются по зеркалам {@link TileHostBalancer}.
  * @author Leonidos
  *
  */
-public class YandexTileMiner {
+public class YandexTileMiner extends TileMiner {
 	
-	private final static int CONNECTION_ESTABLISH_TIMEOUT_MS = 1000;
-	private final static int SOCKET_TIMEOUT_MS = 5000;
+	private final static String DEFAULT_LAYER_ID = TileLayer.MAP.id;
+	private final static String DEFAULT_HOST = "vec.maps.yandex.net";
 	
-	private final BitmapFactory.Options tileBitmapOptions;
-	private final String baseTileSourceURL = "http://vec.maps.yandex.net/tiles?l=map&v=2.21.0&z=10";
+	// версия стиля тайлов, она же пространство имен кеша: после смены версии старые тайлы в кеше только заглушки
+	private final static String TILE_STYLE_VERSION = "2.21.0";
+	private final static String TILE_SOURCE_PATH = "/tiles?v=" + TILE_STYLE_VERSION + "&z=10";
 	
 	/**
 	 * Скачивает тайлы с сервера яндекса.
 	 */
 	public YandexTileMiner() {
-		this.tileBitmapOptions = new BitmapFactory.Options();
-		this.tileBitmapOptions.inPreferredConfig = TileSpecs.TILE_BITMAP_CONFIG;
+		super();
+	}
+	
+	/**
+	 * Скачивает тайлы с нескольких зеркал сервера яндекса
+	 * @param hosts хосты зеркал, например {"vec01.maps.yandex.net", "vec02.maps.yandex.net"}
+	 * @throws IllegalArgumentException если хостов нет
+	 * @throws NullPointerException если hosts == null
+	 */
+	public YandexTileMiner(String[] hosts) {
+		super(new TileHostBalancer(hosts));
 	}
 	
-	private String buildURL(TileRequest tileRequest) {
+	private String buildURL(TileRequest tileRequest, String host) {
 		int reqTileSnX = tileRequest.getTileSpecs().xSn,
 		    reqTileSnY = tileRequest.getTileSpecs().ySn;
-		return baseTileSourceURL + "&x=" + reqTileSnX + "&y=" + reqTileSnY;
+		String layerId = (tileRequest.getLayerId() != null)?tileRequest.getLayerId():DEFAULT_LAYER_ID;
+		return "http://" + host + TILE_SOURCE_PATH + "&l=" + layerId + "&x=" + reqTileSnX + "&y=" + reqTileSnY;
 	}
 	
-	private HttpParams buildHttpClientParams() {
-		HttpParams httpParameters = new BasicHttpParams();
-		HttpConnectionParams.setConnectionTimeout(httpParameters, CONNECTION_ESTABLISH_TIMEOUT_MS);
-		HttpConnectionParams.setSoTimeout(httpParameters, SOCKET_TIMEOUT_MS);
-		return httpParameters;
+	@Override
+	public String getCacheNamespace() {
+		return "yandex-" + TILE_STYLE_VERSION;
 	}
-
-	/**
-	 * Пытается скачать тайл с сервера яндекса. Если не получилось - возвращает null.
-	 * @param tileRequest запрос на тайл
-	 * @return изображение тайла или null, если скачивание не произошло
-	 */
-	public Bitmap getTileBitmap(TileRequest tileRequest) {
-
-		Bitmap resultTileBitmap = null;
-		
-		HttpClient httpClient = new DefaultHttpClient(buildHttpClientParams());
-		HttpGet getTileRequest = new HttpGet(buildURL(tileRequest));		
-		
-		try {
-			HttpResponse response = httpClient.execute(getTileRequest);
-			final int statusCode = response.getStatusLine().getStatusCode();
-			if (statusCode != HttpStatus.SC_OK) {
-				return null;
-			}
-
-			final HttpEntity entity = response.getEntity();
-			if (entity != null) {
-				InputStream inputStream = null;
-				try {
-					inputStream = entity.getContent();
-					resultTileBitmap = BitmapFactory.decodeStream(inputStream, null, tileBitmapOptions);
-					
-					// иногда decodeStream не хочет отдавать битмап в правильном формате
-					// нужно перерисовать вручную на новый битмап
-					if (resultTileBitmap.getConfig() != TileSpecs.TILE_BITMAP_CONFIG) {
-						resultTileBitmap = fixBitmapConfigIssue(resultTileBitmap);
-					}
-					
-				} finally {
-					IOUtils.closeSilent(inputStream);
-					entity.consumeContent();
-				}
-			}
-		} catch (Exception ex) {	// не важно какое исключение произошло
-			getTileRequest.abort();	// прекращаем запрос
-		} 
-
-		return resultTileBitmap;
+	
+	@Override
+	protected String buildURL(TileRequest tileRequest) {
+		TileHostBalancer hostBalancer = getHostBalancer();
+		return buildURL(tileRequest, (hostBalancer != null)?hostBalancer.getHost(tileRequest):DEFAULT_HOST);
 	}
 	
-	private Bitmap fixBitmapConfigIssue(Bitmap badConfigBitmap) {
-		Bitmap fixedBitmap = Bitmap.createBitmap(TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_BITMAP_CONFIG);
-		Canvas canvas = new Canvas(fixedBitmap);
-		canvas.drawBitmap(badConfigBitmap, 0, 0, null);
-		badConfigBitmap.recycle();
-		return fixedBitmap;
+	@Override
+	protected String buildHedgeURL(TileRequest tileRequest) {
+		TileHostBalancer hostBalancer = getHostBalancer();
+		return buildURL(tileRequest, (hostBalancer != null)?hostBalancer.getAlternateHost(tileRequest):DEFAULT_HOST);
 	}
 }
@@ -0,0 +1,415 @@
+package com.pandacoder.tests.mapview;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.Log;
+
+/**
+ * Простейший HTTP сервер тайлов на локальном интерфейсе для нагрузочного тестирования. На GET запрос
+ * тайла x, y отдает изображение именно этого тайла (см. {@link #getTileColor}), изображая сеть заданного
+ * качества: задержку ответа с разбросом, ограниченную пропускную способность и долю ответов с ошибкой
+ * (см. {@link Profile}). Так перепутанные тайлы видны на карте и ловятся проверкой.
+ *
+ * <p>Случайные величины для каждого запроса определяются зерном сервера, адресом тайла и номером
+ * попытки его скачать, поэтому прогон с тем же зерном ведет себя одинаково, в каком бы порядке потоки
+ * ни отправляли запросы.
+ *
+ * <p>Поддерживаются постоянные соединения HTTP/1.1 (keep-alive). Пропускная способность ограничивается
+ * для каждого соединения отдельно.
+ */
+public class MockTileServer {
+
+	private static final String LOG_TAG = MockTileServer.class.getSimpleName();
+
+	private static final int WRITE_CHUNK_SIZE = 1024;
+	private static final int SOCKET_BACKLOG = 16;
+	private static final int TILE_MARK_SIZE_PX = TileSpecs.TILE_SIZE_WH_PX/8;
+
+	/**
+	 * Качество сети, которое изображает сервер
+	 */
+	public static class Profile {
+
+		/** Локальная сеть без задержек и ошибок */
+		public static final Profile LOCAL = new Profile("local", 0, 0, 0, 0);
+		/** Хороший wifi */
+		public static final Profile WIFI = new Profile("wifi", 30, 10, 2*1024*1024, 0);
+		/** Мобильный интернет 3G */
+		public static final Profile MOBILE_3G = new Profile("3g", 300, 150, 64*1024, 0.02);
+		/** Плохая связь: большие задержки, медленно, часто ошибки */
+		public static final Profile FLAKY_EDGE = new Profile("flaky-edge", 800, 600, 16*1024, 0.2);
+
+		final String name;
+		final long latencyMs;
+		final long jitterMs;
+		final long bandwidthBytesPerSecond;
+		final double errorRate;
+
+		/**
+		 * @param name имя профиля для отчетов
+		 * @param latencyMs задержка перед ответом
+		 * @param jitterMs разброс задержки, к задержке добавляется случайная величина от 0 до jitterMs
+		 * @param bandwidthBytesPerSecond скорость отдачи данных на соединение, 0 - без ограничений
+		 * @param errorRate доля запросов, на которые отвечаем ошибкой 503, от 0 до 1
+		 */
+		public Profile(String name, long latencyMs, long jitterMs, long bandwidthBytesPerSecond, double errorRate) {
+			if (latencyMs < 0 || jitterMs < 0 || bandwidthBytesPerSecond < 0) {
+				throw new IllegalArgumentException("Latency, jitter and bandwidth should be >= 0");
+			}
+			if (errorRate < 0 || errorRate > 1) {
+				throw new IllegalArgumentException("Error rate should be in [0, 1]");
+			}
+
+			this.name = name;
+			this.latencyMs = latencyMs;
+			this.jitterMs = jitterMs;
+			this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+			this.errorRate = errorRate;
+		}
+
+		@Override
+		public String toString() {
+			return name + " (latency=" + latencyMs + "+-" + jitterMs + "ms, bandwidth=" + bandwidthBytesPerSecond
+					+ "B/s, errors=" + errorRate + ")";
+		}
+	}
+
+	private final Profile profile;
+	private final long seed;
+
+	private ServerSocket serverSocket;
+	private ExecutorService connectionsExecutor;
+	private final HashSet<Socket> openSockets;
+	private final HashMap<String, Integer> requestAttempts;	// адрес тайла -> сколько раз его уже запрашивали
+	private final HashMap<String, byte[]> tilesData;		// адрес тайла -> его изображение, готовится при первом запросе
+
+	private long requestsServed;
+	private long errorsServed;
+	private long bytesServed;
+
+	/**
+	 * Создает сервер. Чтобы он начал принимать соединения, нужно вызвать {@link #start}.
+	 * @param profile качество сети
+	 * @param seed зерно случайных задержек и ошибок
+	 */
+	public MockTileServer(Profile profile, long seed) {
+		if (profile == null) throw new NullPointerException("profile can't be null");
+
+		this.profile = profile;
+		this.seed = seed;
+		this.openSockets = new HashSet<Socket>();
+		this.requestAttempts = new HashMap<String, Integer>();
+		this.tilesData = new HashMap<String, byte[]>();
+	}
+
+	/**
+	 * Основной цвет изображения тайла, им залит центр тайла. Цвет точно представим в
+	 * {@link TileSpecs#TILE_BITMAP_CONFIG}, поэтому после декодирования пиксель совпадает с ним.
+	 */
+	public static int getTileColor(int xSn, int ySn) {
+		int hash = (xSn * 73856093) ^ (ySn * 19349663);
+		hash ^= hash >>> 16;
+
+		int r = (hash >> 11) & 0x1f, g = (hash >> 5) & 0x3f, b = hash & 0x1f;
+		return 0xff000000 | ((r << 3) | (r >> 2)) << 16 | ((g << 2) | (g >> 4)) << 8 | ((b << 3) | (b >> 2));
+	}
+
+	/**
+	 * Изображение тайла: заливка его цветом и метка инвертированного цвета в углу, чтобы тайлы не были
+	 * одноцветными и проходили тот же путь по кешам, что и настоящие
+	 */
+	private static byte[] createTileData(int xSn, int ySn) {
+		int tileColor = getTileColor(xSn, ySn);
+
+		Bitmap tileBitmap = Bitmap.createBitmap(TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_SIZE_WH_PX, TileSpecs.TILE_BITMAP_CONFIG);
+		tileBitmap.eraseColor(tileColor);
+		Paint markPaint = new Paint();
+		markPaint.setColor(tileColor ^ 0x00ffffff);
+		new Canvas(tileBitmap).drawRect(0, 0, TILE_MARK_SIZE_PX, TILE_MARK_SIZE_PX, markPaint);
+
+		ByteArrayOutputStream tileDataStream = new ByteArrayOutputStream();
+		tileBitmap.compress(Bitmap.CompressFormat.PNG, 100, tileDataStream);
+		tileBitmap.recycle();
+		return tileDataStream.toByteArray();
+	}
+
+	/**
+	 * Изображение тайла по адресу запроса
+	 * @return null - в адресе нет координат тайла
+	 */
+	private byte[] getTileData(String path) {
+		synchronized(tilesData) {
+			byte[] tileData = tilesData.get(path);
+			if (tileData != null) return tileData;
+		}
+
+		int xSn, ySn;
+		try {
+			xSn = Integer.parseInt(getQueryParameter(path, "x"));
+			ySn = Integer.parseInt(getQueryParameter(path, "y"));
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+
+		byte[] tileData = createTileData(xSn, ySn);
+		synchronized(tilesData) {
+			tilesData.put(path, tileData);
+		}
+		return tileData;
+	}
+
+	/**
+	 * @return значение параметра запроса или null, если его нет
+	 */
+	private static String getQueryParameter(String path, String name) {
+		int queryStart = path.indexOf('?');
+		if (queryStart < 0) return null;
+
+		String[] parameters = path.substring(queryStart + 1).split("&");
+		for (String parameter : parameters) {
+			if (parameter.startsWith(name + "=")) return parameter.substring(name.length() + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Начинает принимать соединения на свободном порту локального интерфейса
+	 * @throws IOException если не удалось открыть порт
+	 */
+	public synchronized void start() throws IOException {
+		if (serverSocket != null) return;
+
+		serverSocket = new ServerSocket(0, SOCKET_BACKLOG, InetAddress.getByName("127.0.0.1"));
+		connectionsExecutor = Executors.newCachedThreadPool();
+
+		final ServerSocket acceptSocket = serverSocket;
+		Thread acceptThread = new Thread("MockTileServer-accept") {
+
+			@Override
+			public void run() {
+				while (!acceptSocket.isClosed()) {
+					try {
+						final Socket socket = acceptSocket.accept();
+						if (registerSocket(socket) == false) break;
+
+						connectionsExecutor.execute(new Runnable() {
+
+							@Override
+							public void run() {
+								serveConnection(socket);
+							}
+						});
+					} catch (Exception ex) {
+						// сервер остановили или соединение не удалось принять
+					}
+				}
+			}
+		};
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+
+		Log.i(LOG_TAG, "mock tile server started at " + getBaseURL() + ", profile " + profile);
+	}
+
+	/**
+	 * Останавливает сервер и закрывает все соединения
+	 */
+	public synchronized void stop() {
+		if (serverSocket == null) return;
+
+		try {
+			serverSocket.close();
+		} catch (IOException ex) {
+			// все равно закрываемся
+		}
+		serverSocket = null;
+
+		for (Socket socket : openSockets) {
+			closeSocket(socket);
+		}
+		openSockets.clear();
+
+		connectionsExecutor.shutdownNow();
+		connectionsExecutor = null;
+	}
+
+	private synchronized boolean registerSocket(Socket socket) {
+		if (serverSocket == null) {
+			closeSocket(socket);
+			return false;
+		}
+		openSockets.add(socket);
+		return true;
+	}
+
+	private synchronized void unregisterSocket(Socket socket) {
+		openSockets.remove(socket);
+	}
+
+	private static void closeSocket(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ex) {
+			// закрываем молча
+		}
+	}
+
+	/**
+	 * Базовый URL тайлов, к нему добавляются параметры x и y
+	 */
+	public synchronized String getBaseURL() {
+		if (serverSocket == null) throw new IllegalStateException("Server is not started");
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/tiles?l=map";
+	}
+
+	/**
+	 * Создает загрузчик, который качает тайлы с этого сервера
+	 */
+	public TileMiner createTileMiner() {
+		final String baseTileSourceURL = getBaseURL();
+
+		return new TileMiner() {
+
+			@Override
+			protected String buildURL(TileRequest tileRequest) {
+				return baseTileSourceURL + "&x=" + tileRequest.getTileSpecs().xSn + "&y=" + tileRequest.getTileSpecs().ySn;
+			}
+		};
+	}
+
+	/**
+	 * Создает загрузчик на неблокирующих сокетах, который качает тайлы с этого сервера. Сервер держит
+	 * соединения и отвечает на запросы по порядку, поэтому проверяются и keep-alive, и pipelining.
+	 */
+	public TileMiner createNioTileMiner() {
+		return new NioTileMiner(createTileMiner());
+	}
+
+	/**
+	 * Сколько запросов обработано, включая ответы с ошибкой
+	 */
+	public synchronized long getRequestsServed() {
+		return requestsServed;
+	}
+
+	public synchronized long getErrorsServed() {
+		return errorsServed;
+	}
+
+	/**
+	 * Сколько байт изображений тайлов отдано, без заголовков
+	 */
+	public synchronized long getBytesServed() {
+		return bytesServed;
+	}
+
+	/**
+	 * Генератор случайных величин для очередной попытки скачать тайл по адресу path
+	 */
+	private synchronized Random nextRequestRandom(String path) {
+		Integer attempt = requestAttempts.get(path);
+		if (attempt == null) attempt = 0;
+		requestAttempts.put(path, attempt + 1);
+
+		return new Random(seed ^ (31L * path.hashCode() + attempt));
+	}
+
+	private synchronized void onResponseSent(boolean error, int bodySize) {
+		requestsServed++;
+		if (error) errorsServed++;
+		else bytesServed += bodySize;
+	}
+
+	private void serveConnection(Socket socket) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+			OutputStream outputStream = socket.getOutputStream();
+
+			boolean keepAlive = true;
+			while (keepAlive && !Thread.currentThread().isInterrupted()) {
+
+				String requestLine = reader.readLine();
+				if (requestLine == null) break;	// клиент закрыл соединение
+
+				String[] requestParts = requestLine.split(" ");
+				if (requestParts.length < 3) break;
+				keepAlive = requestParts[2].equals("HTTP/1.1");
+
+				String headerLine;
+				while ((headerLine = reader.readLine()) != null && headerLine.length() > 0) {
+					String header = headerLine.toLowerCase();
+					if (header.startsWith("connection:")) {
+						keepAlive = header.contains("keep-alive") || (keepAlive && !header.contains("close"));
+					}
+				}
+				if (headerLine == null) break;
+
+				Random random = nextRequestRandom(requestParts[1]);
+				long delayMs = profile.latencyMs + ((profile.jitterMs > 0)?(long)(random.nextDouble() * profile.jitterMs):0);
+				boolean error = random.nextDouble() < profile.errorRate;
+				if (delayMs > 0) Thread.sleep(delayMs);
+
+				byte[] tileData = getTileData(requestParts[1]);
+				if (tileData == null) {
+					writeResponse(outputStream, "404 Not Found", null, keepAlive);
+					error = true;
+				} else if (error) {
+					writeResponse(outputStream, "503 Service Unavailable", null, keepAlive);
+				} else {
+					writeResponse(outputStream, "200 OK", tileData, keepAlive);
+				}
+				onResponseSent(error, (tileData != null)?tileData.length:0);
+			}
+		} catch (InterruptedException ex) {
+			// сервер останавливается
+		} catch (IOException ex) {
+			// соединение оборвалось
+		} finally {
+			unregisterSocket(socket);
+			closeSocket(socket);
+		}
+	}
+
+	private void writeResponse(OutputStream outputStream, String status, byte[] body, boolean keepAlive) throws IOException, InterruptedException {
+		int bodySize = (body != null)?body.length:0;
+
+		String headers = "HTTP/1.1 " + status + "\r\n"
+				+ "Content-Type: image/png\r\n"
+				+ "Content-Length: " + bodySize + "\r\n"
+				+ "Connection: " + (keepAlive?"keep-alive":"close") + "\r\n"
+				+ "\r\n";
+		outputStream.write(headers.getBytes("ISO-8859-1"));
+
+		// отдаем кусками, после каждого куска ждем столько, сколько он шел бы по каналу заданной ширины
+		long startMs = System.currentTimeMillis();
+		for (int offset = 0; offset < bodySize; offset += WRITE_CHUNK_SIZE) {
+			int chunkSize = Math.min(WRITE_CHUNK_SIZE, bodySize - offset);
+			outputStream.write(body, offset, chunkSize);
+
+			if (profile.bandwidthBytesPerSecond > 0) {
+				long dueMs = startMs + (offset + chunkSize) * 1000L / profile.bandwidthBytesPerSecond;
+				long sleepMs = dueMs - System.currentTimeMillis();
+				if (sleepMs > 0) {
+					outputStream.flush();
+					Thread.sleep(sleepMs);
+				}
+			}
+		}
+		outputStream.flush();
+	}
+}
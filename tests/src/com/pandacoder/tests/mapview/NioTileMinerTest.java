@@ -0,0 +1,95 @@
+package com.pandacoder.tests.mapview;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.test.InstrumentationTestCase;
+
+/**
+ * {@link NioTileMiner} против {@link MockTileServer}: много тайлов сразу, keep-alive и pipelining на задержке
+ * сервера, ошибки сервера.
+ */
+public class NioTileMinerTest extends InstrumentationTestCase {
+
+	private static final int TILES_COUNT = 200;
+	private static final int TILES_ROW_LENGTH = 20;
+	private static final long SEED = 20121004;
+	private static final long FETCH_TIMEOUT_SECONDS = 60;
+	private static final long SUBMIT_RETRY_MS = 10;
+
+	private static final MockTileServer.Profile SLOW_SERVER = new MockTileServer.Profile("slow", 100, 0, 0, 0);
+	private static final MockTileServer.Profile FAILING_SERVER = new MockTileServer.Profile("failing", 0, 0, 0, 1);
+
+	/**
+	 * Качает TILES_COUNT тайлов асинхронно. Если загрузчик занят, запрос повторяется чуть позже.
+	 * @return тайл -> сжатое изображение, null - тайл не скачался
+	 */
+	private static HashMap<TileRequest, byte[]> fetchTiles(TileMiner tileMiner) throws InterruptedException {
+		final HashMap<TileRequest, byte[]> fetchedTiles = new HashMap<TileRequest, byte[]>();
+		final CountDownLatch done = new CountDownLatch(TILES_COUNT);
+
+		TileMiner.TileDataCallback callback = new TileMiner.TileDataCallback() {
+
+			@Override
+			public void onTileData(TileRequest tileRequest, byte[] tileData) {
+				synchronized(fetchedTiles) {
+					fetchedTiles.put(tileRequest, tileData);
+				}
+				done.countDown();
+			}
+		};
+
+		for (int i = 0; i < TILES_COUNT; i++) {
+			TileRequest tileRequest = new TileRequest(new TileSpecs(i % TILES_ROW_LENGTH, i / TILES_ROW_LENGTH));
+			while (tileMiner.getTileDataAsync(tileRequest, callback) == false) {
+				Thread.sleep(SUBMIT_RETRY_MS);
+			}
+		}
+
+		assertTrue("Tiles were not fetched in time", done.await(FETCH_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		return fetchedTiles;
+	}
+
+	public void testAllTilesArriveIntactAtServerLatency() throws Exception {
+		MockTileServer tileServer = new MockTileServer(SLOW_SERVER, SEED);
+		tileServer.start();
+		try {
+			TileMiner tileMiner = tileServer.createNioTileMiner();
+			HashMap<TileRequest, byte[]> fetchedTiles = fetchTiles(tileMiner);
+
+			assertEquals(TILES_COUNT, fetchedTiles.size());
+			for (TileRequest tileRequest : fetchedTiles.keySet()) {
+				byte[] tileData = fetchedTiles.get(tileRequest);
+				assertNotNull(tileRequest.toString(), tileData);
+
+				Bitmap tileBitmap = tileMiner.decodeTileBitmap(tileData);
+				assertNotNull(tileRequest.toString(), tileBitmap);
+				TileSpecs tileSpecs = tileRequest.getTileSpecs();
+				assertEquals(tileRequest.toString(), MockTileServer.getTileColor(tileSpecs.xSn, tileSpecs.ySn),
+						tileBitmap.getPixel(TileSpecs.TILE_SIZE_WH_PX/2, TileSpecs.TILE_SIZE_WH_PX/2));
+				tileBitmap.recycle();
+			}
+			assertEquals(0, tileServer.getErrorsServed());
+		} finally {
+			tileServer.stop();
+		}
+	}
+
+	public void testServerErrorsAreReportedAsFailures() throws Exception {
+		MockTileServer tileServer = new MockTileServer(FAILING_SERVER, SEED);
+		tileServer.start();
+		try {
+			HashMap<TileRequest, byte[]> fetchedTiles = fetchTiles(tileServer.createNioTileMiner());
+
+			assertEquals(TILES_COUNT, fetchedTiles.size());
+			for (TileRequest tileRequest : fetchedTiles.keySet()) {
+				assertNull(tileRequest.toString(), fetchedTiles.get(tileRequest));
+			}
+			assertTrue(tileServer.getErrorsServed() > 0);
+		} finally {
+			tileServer.stop();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package com.pandacoder.tests.mapview;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Запись перетаскивания карты: последовательность сдвигов и отпусканий пальца с временем от начала
+ * записи. Записывается с касаний карты (см. {@link #onTouch}) и воспроизводится {@link TileLoadTestHarness}.
+ *
+ * <p>Текстовый вид - по шагу на строку:
+ * <pre>
+ * 0 -12 3		сдвиг на (-12, 3) в момент 0ms
+ * 16 -20 5
+ * 120 up		палец отпущен в момент 120ms
+ * </pre>
+ *
+ * Класс не потокобезопасен.
+ */
+public class PanTrace implements View.OnTouchListener {
+
+	/**
+	 * Шаг записи
+	 */
+	static class Step {
+		final long timeMs;		// от начала записи
+		final int dx, dy;
+		final boolean release;	// палец отпущен, сдвига нет
+
+		Step(long timeMs, int dx, int dy, boolean release) {
+			this.timeMs = timeMs;
+			this.dx = dx;
+			this.dy = dy;
+			this.release = release;
+		}
+	}
+
+	/**
+	 * Запись не удалось разобрать
+	 */
+	public static class PanTraceFormatException extends RuntimeException {
+
+		private static final long serialVersionUID = 4417532750148126091L;
+
+		PanTraceFormatException(String message) {
+			super(message);
+		}
+	}
+
+	private final ArrayList<Step> steps;
+	private long startMs = -1;	// по часам записывающего, для записи в реальном времени
+	private int previousTouchX, previousTouchY;
+
+	public PanTrace() {
+		this.steps = new ArrayList<Step>();
+	}
+
+	private long toTraceTime(long clockMs) {
+		if (startMs < 0) startMs = clockMs;
+		return clockMs - startMs;
+	}
+
+	/**
+	 * Записывает сдвиг карты
+	 * @param clockMs время по любым монотонным часам, в записи сохраняется время от первого шага
+	 */
+	public void recordPan(long clockMs, int dx, int dy) {
+		steps.add(new Step(toTraceTime(clockMs), dx, dy, false));
+	}
+
+	/**
+	 * Записывает отпускание пальца
+	 * @param clockMs время по тем же часам, что и в {@link #recordPan}
+	 */
+	public void recordRelease(long clockMs) {
+		steps.add(new Step(toTraceTime(clockMs), 0, 0, true));
+	}
+
+	/**
+	 * Записывает перетаскивания карты пальцем, если назначить запись слушателем касаний карты:
+	 * <code>mapView.setOnTouchListener(panTrace)</code>. Сами касания дальше обрабатывает карта.
+	 */
+	@Override
+	public boolean onTouch(View view, MotionEvent event) {
+		int eventX = (int) event.getX(),
+			eventY = (int) event.getY();
+
+		switch (event.getAction()) {
+		case MotionEvent.ACTION_DOWN:
+			previousTouchX = eventX;
+			previousTouchY = eventY;
+			break;
+
+		case MotionEvent.ACTION_UP:
+			recordRelease(SystemClock.uptimeMillis());
+			break;
+
+		case MotionEvent.ACTION_MOVE:
+			int moveMapX = eventX - previousTouchX,
+				moveMapY = eventY - previousTouchY;
+
+			previousTouchX = eventX;
+			previousTouchY = eventY;
+
+			if (moveMapX != 0 || moveMapY != 0) recordPan(SystemClock.uptimeMillis(), moveMapX, moveMapY);
+			break;
+		}
+
+		return false;
+	}
+
+	List<Step> getSteps() {
+		return steps;
+	}
+
+	/**
+	 * Длительность записи
+	 */
+	public long getDurationMs() {
+		return steps.isEmpty()?0:steps.get(steps.size() - 1).timeMs;
+	}
+
+	/**
+	 * Равномерное перетаскивание по прямой с отпусканием пальца в конце
+	 * @param stepsCount сколько сдвигов
+	 * @param dx сдвиг по x за шаг
+	 * @param dy сдвиг по y за шаг
+	 * @param intervalMs время между шагами, 16ms - по сдвигу на кадр
+	 */
+	public static PanTrace straightDrag(int stepsCount, int dx, int dy, long intervalMs) {
+		PanTrace panTrace = new PanTrace();
+		for (int i = 0; i < stepsCount; i++) {
+			panTrace.recordPan(i * intervalMs, dx, dy);
+		}
+		panTrace.recordRelease(stepsCount * intervalMs);
+		return panTrace;
+	}
+
+	/**
+	 * Разбирает запись из текстового вида
+	 * @throws PanTraceFormatException если запись не удалось разобрать
+	 */
+	public static PanTrace parse(String text) {
+		PanTrace panTrace = new PanTrace();
+		long previousTimeMs = 0;
+
+		String[] lines = text.split("\n");
+		for (int i = 0; i < lines.length; i++) {
+			String line = lines[i].trim();
+			if (line.length() == 0) continue;
+
+			String[] fields = line.split("\\s+");
+			try {
+				long timeMs = Long.parseLong(fields[0]);
+				if (timeMs < previousTimeMs) throw new PanTraceFormatException("Line " + (i + 1) + ": time goes back");
+				previousTimeMs = timeMs;
+
+				if (fields.length == 2 && fields[1].equals("up")) {
+					panTrace.steps.add(new Step(timeMs, 0, 0, true));
+				} else if (fields.length == 3) {
+					panTrace.steps.add(new Step(timeMs, Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), false));
+				} else {
+					throw new PanTraceFormatException("Line " + (i + 1) + ": expected \"time dx dy\" or \"time up\"");
+				}
+			} catch (NumberFormatException ex) {
+				throw new PanTraceFormatException("Line " + (i + 1) + ": " + ex.getMessage());
+			}
+		}
+
+		return panTrace;
+	}
+
+	/**
+	 * Текстовый вид записи, который понимает {@link #parse}
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (Step step : steps) {
+			text.append(step.timeMs);
+			if (step.release) text.append(" up\n");
+			else text.append(' ').append(step.dx).append(' ').append(step.dy).append('\n');
+		}
+		return text.toString();
+	}
+}
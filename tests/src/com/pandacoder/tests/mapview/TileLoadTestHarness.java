@@ -0,0 +1,325 @@
+package com.pandacoder.tests.mapview;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Нагрузочный прогон карты: воспроизводит записанное перетаскивание ({@link PanTrace}) через обычный путь
+ * запросов {@link SimpleMapView} и {@link TilesProcessorCenter}, а тайлы качаются с локального
+ * {@link MockTileServer} с заданным качеством сети. Каждый прогон начинается с пустых кешей.
+ *
+ * <p>По итогам прогона считается ({@link Report}):
+ * <ul>
+ * 	<li> время до полной прорисовки экрана после каждого сдвига (среднее и максимальное) и после последнего;
+ * 	<li> тайло-секунды пустоты: сумма по времени количества видимых, но еще не нарисованных тайлов;
+ * 	<li> скачанные байты и доли попаданий в кеши;
+ * 	<li> тайлы, нарисованные не на своем месте: сервер отдает каждому тайлу свой цвет
+ * 		 ({@link MockTileServer#getTileColor}), в конце прогона цвета на карте сверяются с ожидаемыми.
+ * </ul>
+ * Прогоны с одинаковыми записью, профилем и зерном можно сравнивать между собой, например до и после
+ * изменения кешей или порядка обработки запросов.
+ *
+ * <p>{@link #run} блокирует вызывающий поток на все время прогона, вызывать не из UI потока.
+ */
+public class TileLoadTestHarness {
+
+	private static final String LOG_TAG = TileLoadTestHarness.class.getSimpleName();
+
+	private static final long SAMPLE_INTERVAL_MS = 10;
+	private static final long VIEWPORT_COMPLETE_TIMEOUT_MS = 60*1000;
+
+	/**
+	 * Результаты одного прогона
+	 */
+	public static class Report {
+		String profileName;
+		long traceDurationMs;
+		long runDurationMs;
+		boolean viewportCompleted;		// дождались ли полной прорисовки экрана после последнего шага
+		long lastViewportCompleteMs;	// сколько после последнего шага рисовался экран
+		long meanViewportCompleteMs;
+		long maxViewportCompleteMs;
+		double blankTileSeconds;
+		int checkedTiles;
+		int misplacedTiles;				// нарисованы не те тайлы, что ожидались на этом месте
+		long serverRequests;
+		long serverErrors;
+		long serverBytes;
+		String tileLoadStatistics;
+
+		public long getLastViewportCompleteMs() {
+			return lastViewportCompleteMs;
+		}
+
+		public long getMeanViewportCompleteMs() {
+			return meanViewportCompleteMs;
+		}
+
+		public long getMaxViewportCompleteMs() {
+			return maxViewportCompleteMs;
+		}
+
+		public double getBlankTileSeconds() {
+			return blankTileSeconds;
+		}
+
+		public long getServerBytes() {
+			return serverBytes;
+		}
+
+		public boolean isViewportCompleted() {
+			return viewportCompleted;
+		}
+
+		public int getCheckedTiles() {
+			return checkedTiles;
+		}
+
+		public int getMisplacedTiles() {
+			return misplacedTiles;
+		}
+
+		@Override
+		public String toString() {
+			return "profile=" + profileName
+					+ " trace=" + traceDurationMs + "ms run=" + runDurationMs + "ms"
+					+ " viewportComplete(last=" + (viewportCompleted?lastViewportCompleteMs + "ms":"timeout")
+					+ " mean=" + meanViewportCompleteMs + "ms max=" + maxViewportCompleteMs + "ms)"
+					+ " blankTileSeconds=" + String.format("%.2f", blankTileSeconds)
+					+ " tiles(checked=" + checkedTiles + " misplaced=" + misplacedTiles + ")"
+					+ " server(requests=" + serverRequests + " errors=" + serverErrors + " bytes=" + serverBytes + ")"
+					+ " " + tileLoadStatistics;
+		}
+	}
+
+	private final Context context;
+	private final int viewWidth, viewHeight;
+	private final Handler uiHandler;
+
+	/**
+	 * @param context контекст приложения
+	 * @param viewWidth ширина карты в пикселях
+	 * @param viewHeight высота карты в пикселях
+	 */
+	public TileLoadTestHarness(Context context, int viewWidth, int viewHeight) {
+		if (viewWidth <= 0 || viewHeight <= 0) throw new IllegalArgumentException("View size should be > 0");
+
+		this.context = context;
+		this.viewWidth = viewWidth;
+		this.viewHeight = viewHeight;
+		this.uiHandler = new Handler(Looper.getMainLooper());
+	}
+
+	/**
+	 * Выполняет задание в UI потоке и ждет, пока оно выполнится
+	 */
+	private void runOnUiThreadAndWait(final Runnable job) throws InterruptedException {
+		final CountDownLatch doneLatch = new CountDownLatch(1);
+		uiHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					job.run();
+				} finally {
+					doneLatch.countDown();
+				}
+			}
+		});
+		doneLatch.await();
+	}
+
+	private static void deleteDirectory(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) deleteDirectory(file);
+				else file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Сверяет цвета нарисованных тайлов с теми, что отдавал сервер
+	 */
+	private void checkDrawnTiles(final SimpleMapView mapView, Report report) throws InterruptedException {
+		final HashMap<TileRequest, Integer> tileColors = new HashMap<TileRequest, Integer>();
+		runOnUiThreadAndWait(new Runnable() {
+
+			@Override
+			public void run() {
+				tileColors.putAll(mapView.sampleDrawnTileColors());
+			}
+		});
+
+		for (Map.Entry<TileRequest, Integer> tileColor : tileColors.entrySet()) {
+			TileSpecs tileSpecs = tileColor.getKey().getTileSpecs();
+			int expectedColor = MockTileServer.getTileColor(tileSpecs.xSn, tileSpecs.ySn);
+
+			report.checkedTiles++;
+			if (tileColor.getValue() != expectedColor) {
+				report.misplacedTiles++;
+				Log.w(LOG_TAG, "tile " + tileColor.getKey() + " has color " + Integer.toHexString(tileColor.getValue())
+							   + ", expected " + Integer.toHexString(expectedColor));
+			}
+		}
+	}
+
+	/**
+	 * Выполняет один прогон
+	 * @param panTrace что воспроизводить
+	 * @param profile качество сети
+	 * @param seed зерно случайных задержек и ошибок сервера
+	 * @throws IOException если не удалось запустить сервер
+	 * @throws InterruptedException если вызывающий поток прервали
+	 */
+	public Report run(PanTrace panTrace, MockTileServer.Profile profile, long seed) throws IOException, InterruptedException {
+		return run(panTrace, profile, seed, false);
+	}
+
+	/**
+	 * Выполняет один прогон
+	 * @param panTrace что воспроизводить
+	 * @param profile качество сети
+	 * @param seed зерно случайных задержек и ошибок сервера
+	 * @param nioTileMiner качать загрузчиком на неблокирующих сокетах ({@link NioTileMiner}), а не пулом потоков
+	 * @throws IOException если не удалось запустить сервер
+	 * @throws InterruptedException если вызывающий поток прервали
+	 */
+	public Report run(PanTrace panTrace, MockTileServer.Profile profile, long seed, boolean nioTileMiner) 
+			throws IOException, InterruptedException {
+
+		MockTileServer tileServer = new MockTileServer(profile, seed);
+		tileServer.start();
+
+		final File cacheDirectory = new File(context.getCacheDir(), "SimpleMapViewLoadTest");
+		deleteDirectory(cacheDirectory);	// каждый прогон с холодными кешами
+
+		final SimpleMapView[] mapViewHolder = new SimpleMapView[1];
+		final TileMiner tileMiner = nioTileMiner?tileServer.createNioTileMiner():tileServer.createTileMiner();
+		final int[] missingTilesHolder = new int[1];
+
+		Runnable sampleMissingTiles = new Runnable() {
+
+			@Override
+			public void run() {
+				missingTilesHolder[0] = mapViewHolder[0].countMissingVisibleTiles();
+			}
+		};
+
+		Report report = new Report();
+		report.profileName = profile.name;
+		report.traceDurationMs = panTrace.getDurationMs();
+
+		try {
+			long startMs = SystemClock.uptimeMillis();
+
+			// первый шаг - появление карты на экране
+			runOnUiThreadAndWait(new Runnable() {
+
+				@Override
+				public void run() {
+					SimpleMapView mapView = new SimpleMapView(context, tileMiner, cacheDirectory.getAbsolutePath());
+					mapViewHolder[0] = mapView;
+					mapView.layout(0, 0, viewWidth, viewHeight);
+					mapView.resumeTileProcessing();
+				}
+			});
+
+			LinkedList<Long> incompleteStepsMs = new LinkedList<Long>();	// шаги, после которых экран еще не дорисован
+			incompleteStepsMs.add(startMs);
+			long viewportCompleteTotalMs = 0;
+			int viewportCompleteCount = 0;
+			long lastStepMs = startMs;
+
+			List<PanTrace.Step> steps = panTrace.getSteps();
+			int nextStep = 0;
+			long previousSampleMs = startMs;
+
+			while (true) {
+				long nowMs = SystemClock.uptimeMillis();
+
+				while (nextStep < steps.size() && startMs + steps.get(nextStep).timeMs <= nowMs) {
+					final PanTrace.Step step = steps.get(nextStep++);
+					runOnUiThreadAndWait(new Runnable() {
+
+						@Override
+						public void run() {
+							if (step.release) mapViewHolder[0].finishPan();
+							else mapViewHolder[0].panMap(step.dx, step.dy);
+						}
+					});
+					lastStepMs = SystemClock.uptimeMillis();
+					incompleteStepsMs.add(lastStepMs);
+				}
+
+				runOnUiThreadAndWait(sampleMissingTiles);
+				nowMs = SystemClock.uptimeMillis();
+				report.blankTileSeconds += missingTilesHolder[0] * (nowMs - previousSampleMs) / 1000.0;
+				previousSampleMs = nowMs;
+
+				if (missingTilesHolder[0] == 0) {
+					for (long stepMs : incompleteStepsMs) {
+						long completeMs = nowMs - stepMs;
+						viewportCompleteTotalMs += completeMs;
+						viewportCompleteCount++;
+						report.maxViewportCompleteMs = Math.max(report.maxViewportCompleteMs, completeMs);
+					}
+					incompleteStepsMs.clear();
+
+					if (nextStep == steps.size()) {
+						report.viewportCompleted = true;
+						report.lastViewportCompleteMs = nowMs - lastStepMs;
+						break;
+					}
+				}
+
+				if (nextStep == steps.size() && nowMs - lastStepMs > VIEWPORT_COMPLETE_TIMEOUT_MS) {
+					Log.w(LOG_TAG, missingTilesHolder[0] + " tiles still missing, give up waiting");
+					break;
+				}
+
+				Thread.sleep(SAMPLE_INTERVAL_MS);
+			}
+
+			report.runDurationMs = SystemClock.uptimeMillis() - startMs;
+			checkDrawnTiles(mapViewHolder[0], report);
+			if (viewportCompleteCount > 0) report.meanViewportCompleteMs = viewportCompleteTotalMs / viewportCompleteCount;
+			report.tileLoadStatistics = mapViewHolder[0].getTileLoadStatistics().toString();
+
+		} finally {
+			if (mapViewHolder[0] != null) {
+				runOnUiThreadAndWait(new Runnable() {
+
+					@Override
+					public void run() {
+						mapViewHolder[0].pauseTileProcessing();
+						mapViewHolder[0].destroy();
+					}
+				});
+			}
+
+			tileServer.stop();
+			report.serverRequests = tileServer.getRequestsServed();
+			report.serverErrors = tileServer.getErrorsServed();
+			report.serverBytes = tileServer.getBytesServed();
+
+			deleteDirectory(cacheDirectory);
+		}
+
+		Log.i(LOG_TAG, report.toString());
+		return report;
+	}
+}
@@ -0,0 +1,38 @@
+package com.pandacoder.tests.mapview;
+
+import android.test.InstrumentationTestCase;
+
+/**
+ * Прогоны {@link TileLoadTestHarness} на сети без ошибок: экран должен дорисоваться, и каждый тайл должен
+ * оказаться на своем месте.
+ */
+public class TileLoadTestHarnessTest extends InstrumentationTestCase {
+
+	private static final int VIEW_WIDTH_PX = 480;
+	private static final int VIEW_HEIGHT_PX = 800;
+	private static final long SEED = 20121004;
+
+	private TileLoadTestHarness createHarness() {
+		return new TileLoadTestHarness(getInstrumentation().getTargetContext(), VIEW_WIDTH_PX, VIEW_HEIGHT_PX);
+	}
+
+	private static void assertTilesInPlace(TileLoadTestHarness.Report report) {
+		assertTrue(report.toString(), report.isViewportCompleted());
+		assertTrue(report.toString(), report.getCheckedTiles() > 0);
+		assertEquals(report.toString(), 0, report.getMisplacedTiles());
+	}
+
+	public void testStraightDragOnLocalNetwork() throws Exception {
+		assertTilesInPlace(createHarness().run(PanTrace.straightDrag(60, -12, -5, 16), MockTileServer.Profile.LOCAL, SEED));
+	}
+
+	public void testStraightDragOnWifi() throws Exception {
+		assertTilesInPlace(createHarness().run(PanTrace.straightDrag(60, 9, -14, 16), MockTileServer.Profile.WIFI, SEED));
+	}
+
+	public void testPanTraceTextRoundTrip() {
+		PanTrace panTrace = PanTrace.straightDrag(3, -12, 3, 16);
+		assertEquals(panTrace.toString(), PanTrace.parse(panTrace.toString()).toString());
+		assertEquals(48, panTrace.getDurationMs());
+	}
+}